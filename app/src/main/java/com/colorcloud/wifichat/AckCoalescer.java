@@ -0,0 +1,144 @@
+package com.colorcloud.wifichat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.colorcloud.wifichat.Constant.IMMEDIATE_ACKNOWLEDGEMENT;
+
+/**
+ * delayed, coalesced acks for received MESSAGE frames.
+ * <p/>
+ * Instead of one ack frame per message, received ids are collected for DEFAULT_DELAY_MILLIS (or until the next
+ * outgoing data frame) and flushed as AckRanges: per sender, one run of consecutive ids plus a selective ack
+ * bitmap of the 64 ids after the run. A burst of in-order messages from one sender becomes a single frame.
+ * <p/>
+ * Ids of one sender only differ in their low 32 bits (see MessageIdGenerator), so after sorting, the ids of a
+ * sender are adjacent and consecutive messages have consecutive ids.
+ * <p/>
+ * Not thread safe, used on the connection service thread.
+ */
+public class AckCoalescer {
+
+    public static final long DEFAULT_DELAY_MILLIS = 20;
+    // flush right away past this, so that a long burst does not hold acks back until the timer
+    public static final int MAX_PENDING = 256;
+    // a received run longer than this is not from a peer of ours, flushes never build one
+    static final int MAX_RUN = 1 << 16;
+
+    /**
+     * acks base .. base + run - 1, and base + run + 1 + i for every bit i set in sack.
+     * On the wire: an IMMEDIATE_ACKNOWLEDGEMENT frame, base in the ack field, body "run" or "run,sack".
+     */
+    public static final class AckRange {
+        public final long base;
+        public final int run;
+        public final long sack;
+
+        public AckRange(long base, int run, long sack) {
+            this.base = base;
+            this.run = run;
+            this.sack = sack;
+        }
+
+        public MessageWrapper toMessageWrapper() {
+            String body = sack == 0 ? Integer.toString(run) : run + "," + sack;
+            return new MessageWrapper(IMMEDIATE_ACKNOWLEDGEMENT, 0, base, body);
+        }
+
+        /**
+         * an empty body acks the base id alone.
+         *
+         * @throws IllegalArgumentException the body is malformed, the frame should be dropped.
+         */
+        public static AckRange parse(MessageWrapper messageWrapper) {
+            String body = messageWrapper.getMessageBody();
+            if (body.length() == 0) {
+                return new AckRange(messageWrapper.getAck(), 1, 0);
+            }
+            int comma = body.indexOf(',');
+            int run = Integer.parseInt(comma < 0 ? body : body.substring(0, comma));   // NumberFormatException
+            long sack = comma < 0 ? 0 : Long.parseLong(body.substring(comma + 1));
+            if (run < 0 || run > MAX_RUN) {
+                throw new IllegalArgumentException("bad ack run: " + run);
+            }
+            return new AckRange(messageWrapper.getAck(), run, sack);
+        }
+
+        public boolean contains(long id) {
+            long offset = id - base;
+            if (offset >= 0 && offset < run) {
+                return true;
+            }
+            offset -= run + 1;
+            return offset >= 0 && offset < 64 && (sack & (1L << offset)) != 0;
+        }
+
+        /**
+         * number of ids acked.
+         */
+        public int count() {
+            return run + Long.bitCount(sack);
+        }
+    }
+
+    private long[] pending = new long[64];
+    private int size = 0;
+
+    /**
+     * remember a received id to be acked with the next flush.
+     *
+     * @return true if it is the first pending id, the caller should schedule a flush then.
+     */
+    public boolean add(long id) {
+        if (size == pending.length) {
+            pending = Arrays.copyOf(pending, size * 2);
+        }
+        pending[size++] = id;
+        return size == 1;
+    }
+
+    public int pending() {
+        return size;
+    }
+
+    /**
+     * the ack frames for every pending id, and forget them.
+     */
+    public List<MessageWrapper> flush() {
+        List<MessageWrapper> frames = new ArrayList<MessageWrapper>();
+        if (size == 0) {
+            return frames;
+        }
+
+        Arrays.sort(pending, 0, size);
+        int i = 0;
+        while (i < size) {
+            long base = pending[i];
+            long sender = MessageIdGenerator.senderOf(base);
+
+            // the run of consecutive ids, duplicates skipped
+            long end = base;
+            i++;
+            while (i < size && (pending[i] == end
+                    || (pending[i] == end + 1 && MessageIdGenerator.senderOf(pending[i]) == sender))) {
+                end = pending[i++];
+            }
+
+            // selective acks of the 64 ids after the hole that ended the run
+            long sack = 0;
+            while (i < size && MessageIdGenerator.senderOf(pending[i]) == sender && pending[i] - end - 2 < 64) {
+                sack |= 1L << (pending[i] - end - 2);
+                i++;
+            }
+
+            frames.add(new AckRange(base, (int) (end - base + 1), sack).toMessageWrapper());
+        }
+        size = 0;
+        return frames;
+    }
+
+    public void reset() {
+        size = 0;
+    }
+}
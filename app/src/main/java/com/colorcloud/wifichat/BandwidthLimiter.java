@@ -0,0 +1,91 @@
+package com.colorcloud.wifichat;
+
+import java.io.InterruptedIOException;
+
+/**
+ * token bucket shared by every file transfer of the process, in and out, so that bulk file traffic leaves room
+ * for the chat frames on the same Wi-Fi Direct link.
+ * <p/>
+ * A caller reserves its bytes before moving them and sleeps off the debt outside the lock, so concurrent
+ * transfers are served in slices, in the order they ask. A caller that must not block (the connection service
+ * thread) uses tryAcquire() and comes back later instead. A rate of 0 or less disables the cap.
+ */
+public class BandwidthLimiter {
+
+    public static final long DEFAULT_BYTES_PER_SECOND = 4L * 1024 * 1024;
+    private static final long BURST_MILLIS = 100;
+
+    private long bytesPerSecond;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    private static final BandwidthLimiter instance = new BandwidthLimiter(DEFAULT_BYTES_PER_SECOND);
+
+    public static BandwidthLimiter getInstance() {
+        return instance;
+    }
+
+    public BandwidthLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public synchronized void setRate(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = 0;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public synchronized long getRate() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * take the bytes if they may be moved now, without waiting.
+     *
+     * @return 0 if taken, otherwise the nanoseconds until they may be; nothing is taken then.
+     */
+    public synchronized long tryAcquire(int bytes) {
+        if (bytesPerSecond <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        double burst = bytesPerSecond * BURST_MILLIS / 1000.0;
+        tokens = Math.min(burst, tokens + (now - lastRefill) * bytesPerSecond / 1e9);
+        lastRefill = now;
+
+        double needed = Math.min(bytes, burst);   // a slice larger than the burst goes once the bucket is full
+        if (tokens < needed) {
+            return Math.max(1, (long) ((needed - tokens) * 1e9 / bytesPerSecond));
+        }
+        tokens -= bytes;
+        return 0;
+    }
+
+    /**
+     * wait until bytes may be moved.
+     */
+    public void acquire(int bytes) throws InterruptedIOException {
+        long waitNanos;
+        synchronized (this) {
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            double burst = bytesPerSecond * BURST_MILLIS / 1000.0;
+            tokens = Math.min(burst, tokens + (now - lastRefill) * bytesPerSecond / 1e9);
+            lastRefill = now;
+
+            tokens -= bytes;
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens * 1e9 / bytesPerSecond);
+        }
+
+        if (waitNanos > 0) {
+            try {
+                Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for bandwidth");
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.colorcloud.wifichat;
+
+import java.nio.channels.SelectionKey;
+
+/**
+ * per socket channel state, attached to the channel's SelectionKey.
+ * The read side is only touched by the reactor thread serving the channel; the write side is fed by the
+ * connection service, which asks that reactor to write.
+ */
+public class ChannelContext {
+
+    final IoReactor reactor;
+    volatile SelectionKey key = null;   // set by the reactor when it registers the channel
+    final FrameAccumulator reader = new FrameAccumulator();
+    final OutboundQueue outbound = new OutboundQueue();
+
+    ChannelContext(IoReactor reactor) {
+        this.reactor = reactor;
+        outbound.setBatching(reactor.getBatchDelay(), reactor.getBatchBytes());
+    }
+}
@@ -25,6 +25,27 @@ public class ChatActivity extends Activity {
     public static final String TAG = "ChatActivity";
     ChatFragment chatFrag = null;
 
+    /**
+     * delivery result of the messages sent from this activity, called on the connection service thread.
+     */
+    private final RetransmissionEngine.DeliveryListener deliveryListener = new RetransmissionEngine.DeliveryListener() {
+        @Override
+        public void onDelivered(MessageWrapper messageWrapper) {
+            Log.d(TAG, "message delivered: " + messageWrapper.getAck());
+        }
+
+        @Override
+        public void onFailed(final MessageWrapper messageWrapper) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    MessageRow row = MessageRow.parseMsgRow(messageWrapper.getMessageBody());
+                    Toast.makeText(ChatActivity.this, "Message not delivered: " + row.getMsg(), Toast.LENGTH_SHORT).show();
+                }
+            });
+        }
+    };
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         try {
@@ -66,6 +87,7 @@ public class ChatActivity extends Activity {
         try {
             super.onResume();
             registerActivityToService(true);
+            SendingMessageQueue.getInstance().setDeliveryListener(deliveryListener);
         } catch (Exception e) {
             Toast.makeText(this, "On Resume Failed", Toast.LENGTH_SHORT).show();
         }
@@ -76,6 +98,8 @@ public class ChatActivity extends Activity {
         try {
             super.onPause();
             registerActivityToService(false);
+            SendingMessageQueue.getInstance().setDeliveryListener(null);
+            MessageStore.getInstance().flush();   // a batch boundary, the user may not come back
         } catch (Exception e) {
             Toast.makeText(this, "On Pause Failed", Toast.LENGTH_SHORT).show();
         }
@@ -175,14 +199,13 @@ public class ChatActivity extends Activity {
     }
 
     /**
-     * show the msg in chat fragment
+     * show the msgs the service stored since the last call in chat fragment
      */
-    public void showMessage(String msg) {
+    public void showMessages() {
         try {
-            MessageRow row = MessageRow.parseMsgRow(msg);
-//            Log.d(TAG, "showMessage : " + msg + " : " + row.mMsg);
+            // the service stored the messages, the fragment reads them from there in one page
             if (chatFrag != null) {
-                chatFrag.appendChatMessage(row);
+                chatFrag.onMessageStored();
             }
         } catch (Exception e) {
             Toast.makeText(this, "Show Msg Failed", Toast.LENGTH_SHORT).show();
@@ -10,15 +10,14 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.inputmethod.InputMethodManager;
-import android.widget.ArrayAdapter;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
  * chat fragment attached to main activity.
  */
@@ -27,8 +26,9 @@ public class ChatFragment extends ListFragment {
 
     private static ChatActivity mActivity = null;
 
-    private ArrayList<MessageRow> mMessageList = null;   // a list of chat msgs.
-    private ArrayAdapter<MessageRow> mAdapter = null;
+    private ChatHistoryPager mPager = null;   // a window of the chat msgs, the history is in the message store.
+    private ChatMessageAdapter mAdapter = null;
+    private boolean mFirstWindow = true;
 
     private String myDeviceName;
 
@@ -52,17 +52,16 @@ public class ChatFragment extends ListFragment {
         myDeviceName = ((WiFiChatApp) mActivity.getApplication()).mHomeActivity.myDevice.deviceName;
 
         setRetainInstance(true);   // Tell the framework to try to keep this fragment around during a configuration change.
+
+        // the service stored the message that started us, if any, so the newest page has it.
+        mPager = new ChatHistoryPager(MessageStore.GROUP_CONVERSATION, pagerListener);
+        mPager.start();
     }
 
-    /**
-     * the data you place in the Bundle here will be available in the Bundle given to onCreate(Bundle), etc.
-     * only works when your activity is destroyed by android platform. If the user closed the activity, no call of this.
-     * http://www.eigo.co.uk/Managing-State-in-an-Android-Activity.aspx
-     */
     @Override
-    public void onSaveInstanceState(Bundle outState) {
-        super.onSaveInstanceState(outState);
-        outState.putParcelableArrayList("MSG_LIST", mMessageList);
+    public void onDestroy() {
+        super.onDestroy();
+        mPager.close();
     }
 
     /**
@@ -87,38 +86,24 @@ public class ChatFragment extends ListFragment {
 
                     MessageRow messageRow = new MessageRow(myDeviceName, inputMsg, null);
                     MessageWrapper messageWrapper = new MessageWrapper(Constant.MESSAGE, messageRow.toString());
-                    appendChatMessage(messageRow);
-                    final String formattedMsg = messageWrapper.toString();
+                    MessageStore.getInstance().appendLater(MessageStore.GROUP_CONVERSATION, messageRow.toString(),
+                            storedRunnable);
 
                     //todo: multi-hop state has different behaviors
                     if (WiFiDirectActivity.multihopState == false) {
                         SendingMessageQueue.getInstance().addToSendingMessageQueue(messageWrapper.getAck(), messageWrapper);
-                        ConnectionService.pushOutMessage(formattedMsg);
+                        ConnectionService.pushOutMessage(messageWrapper);
                     } else {
                         Log.d(TAG, "multi-hop flow");
-                        RoutingManager.getInstance().connectionTest(formattedMsg);
+                        RoutingManager.getInstance().send(messageWrapper);
                     }
                 } else
                     Toast.makeText(getActivity(), "Please input text", Toast.LENGTH_SHORT).show();
             }
         });
 
-        if (savedInstanceState != null) {
-            mMessageList = savedInstanceState.getParcelableArrayList("MSG_LIST");
-        } else if (mMessageList == null) {
-            // no need to setContentView, just setListAdapter, but listview must be android:id="@android:id/list"
-            mMessageList = new ArrayList<MessageRow>(200);
-        }
-
-        mAdapter = new ChatMessageAdapter(mActivity, mMessageList);
-        String initmsg = getArguments().getString("initMsg");
-
-        if (initmsg != null) {
-            MessageRow row = MessageRow.parseMsgRow(initmsg);
-            mMessageList.add(row);
-        } else if (mMessageList.size() == 0) {
-            mMessageList.add(new MessageRow(myDeviceName, myDeviceName + " logged in", null));
-        }
+        // no need to setContentView, just setListAdapter, but listview must be android:id="@android:id/list"
+        mAdapter = new ChatMessageAdapter(mActivity);
         setListAdapter(mAdapter);  // list fragment data adapter 
 
         return contentView;
@@ -133,29 +118,103 @@ public class ChatFragment extends ListFragment {
     public void onActivityCreated(Bundle savedInstanceState) {  // invoked after fragment view created.
         super.onActivityCreated(savedInstanceState);
         setHasOptionsMenu(true);
+
+        // new rows show up at the bottom while it is in view; older and newer pages load ahead of the scrolling.
+        ListView listView = getListView();
+        listView.setTranscriptMode(ListView.TRANSCRIPT_MODE_NORMAL);
+        listView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (totalItemCount == 0) {
+                    return;
+                }
+                if (firstVisibleItem < ChatHistoryPager.PREFETCH_ROWS) {
+                    mPager.loadOlder();
+                }
+                if (firstVisibleItem + visibleItemCount > totalItemCount - ChatHistoryPager.PREFETCH_ROWS) {
+                    mPager.loadNewer();
+                }
+            }
+        });
+
+        if (mPager.size() > 0) {
+            listView.setSelection(mPager.size() - 1);   // the window came before the list
+            mFirstWindow = false;
+        }
     }
 
+    private final ChatHistoryPager.Listener pagerListener = new ChatHistoryPager.Listener() {
+        @Override
+        public void onWindowChanged(int headShift) {
+            if (mFirstWindow && mPager.size() == 0) {
+                MessageStore.getInstance().appendLater(MessageStore.GROUP_CONVERSATION,
+                        new MessageRow(myDeviceName, myDeviceName + " logged in", null).toString(), storedRunnable);
+            }
+            if (mAdapter == null || getView() == null) {
+                return;   // no list yet, it reads the window when created
+            }
+
+            // keep the rows in view where they are when rows come or go above them
+            ListView listView = getListView();
+            int first = listView.getFirstVisiblePosition();
+            View top = listView.getChildAt(0);
+            mAdapter.notifyDataSetChanged();
+            if (mFirstWindow) {
+                listView.setSelection(mPager.size() - 1);
+            } else if (headShift != 0) {
+                listView.setSelectionFromTop(Math.max(0, first + headShift), top == null ? 0 : top.getTop());
+            }
+            mFirstWindow = false;
+        }
+    };
+
+    private final Runnable storedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (isAdded()) {
+                onMessageStored();   // not once the pager is closed
+            }
+        }
+    };
+
     /**
-     * add a chat message to the list, return the format the message as " sender_addr : msg "
+     * a chat message was put in the message store, the list follows if it shows the newest rows.
      */
-    public void appendChatMessage(MessageRow msg) {
-        mMessageList.add(msg);
-        mAdapter.notifyDataSetChanged();  // notify the attached observer and views to refresh.
+    public void onMessageStored() {
+        mPager.onAppended();
     }
 
     /**
      * chat message adapter from list adapter.
      * Responsible for how to show data to list fragment list view.
      */
-    final class ChatMessageAdapter extends ArrayAdapter<MessageRow> {
+    final class ChatMessageAdapter extends BaseAdapter {
 
         private LayoutInflater mInflater;
 
-        public ChatMessageAdapter(Context context, List<MessageRow> objects) {
-            super(context, 0, objects);
+        public ChatMessageAdapter(Context context) {
             mInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
         }
 
+        @Override
+        public int getCount() {
+            return mPager.size();
+        }
+
+        @Override
+        public MessageRow getItem(int position) {
+            return mPager.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
         @Override
         public int getItemViewType(int position) {
             return IGNORE_ITEM_VIEW_TYPE;   // do not care
@@ -0,0 +1,222 @@
+package com.colorcloud.wifichat;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * paging data source of the chat list: a window of at most MAX_ROWS rows of a conversation in the
+ * MessageStore, instead of the whole history in memory.
+ * <p/>
+ * The window starts with the newest page. loadOlder() and loadNewer() read a PAGE_ROWS page next to the window
+ * on a worker thread, parse it there, and add it on the UI thread; the window is then cut at the other end, so
+ * memory stays flat however long the history is. The list calls them as its first or last PREFETCH_ROWS rows
+ * come into view. While the window holds the newest row it follows the log: onAppended() loads what was
+ * stored since, all of it up to MAX_ROWS in one read, so a batch of incoming messages is one change of the
+ * window and one notification of the list.
+ * <p/>
+ * All methods, and the Listener, are on the UI thread.
+ */
+public class ChatHistoryPager {
+
+    private static final String TAG = "ChatHistoryPager";
+    public static final int PAGE_ROWS = 50;
+    public static final int MAX_ROWS = 300;
+    public static final int PREFETCH_ROWS = 20;
+
+    public interface Listener {
+        /**
+         * the window changed.
+         *
+         * @param headShift rows added at the head minus rows removed there, to keep the scroll position.
+         */
+        void onWindowChanged(int headShift);
+    }
+
+    private static final class Entry {
+        final long seq;
+        final MessageRow row;
+
+        Entry(long seq, MessageRow row) {
+            this.seq = seq;
+            this.row = row;
+        }
+    }
+
+    private final String conversation;
+    private final Listener listener;
+    private final Handler uiHandler;
+    private final WorkHandler loader;
+    private final Executor executor;    // runs both halves of a load instead of the threads, in a test
+    private final ArrayList<Entry> entries = new ArrayList<Entry>(MAX_ROWS + PAGE_ROWS);
+    private long startSeq = -1;     // seq of the first row, -1 before the first page
+    private long endSeq = -1;       // seq after the last row
+    private boolean atHead = false; // nothing older
+    private boolean atTail = true;  // the newest row is in the window
+    private boolean loading = false;
+    private boolean appendedWhileLoading = false;
+
+    public ChatHistoryPager(String conversation, Listener listener) {
+        this.conversation = conversation;
+        this.listener = listener;
+        this.uiHandler = new Handler(Looper.getMainLooper());
+        this.loader = new WorkHandler(TAG);
+        this.executor = null;
+    }
+
+    /**
+     * a pager without threads, to test it: the read of a page and its onLoaded are given to the executor.
+     */
+    ChatHistoryPager(String conversation, Listener listener, Executor executor) {
+        this.conversation = conversation;
+        this.listener = listener;
+        this.uiHandler = null;
+        this.loader = null;
+        this.executor = executor;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public MessageRow get(int position) {
+        return entries.get(position).row;
+    }
+
+    /**
+     * load the newest page.
+     */
+    public void start() {
+        load(true, Long.MAX_VALUE, PAGE_ROWS);
+    }
+
+    /**
+     * the page before the window, if any.
+     */
+    public void loadOlder() {
+        if (startSeq >= 0 && !atHead) {
+            load(false, startSeq, PAGE_ROWS);
+        }
+    }
+
+    /**
+     * the page after the window, if the newest rows are not in it.
+     */
+    public void loadNewer() {
+        if (endSeq >= 0 && !atTail) {
+            load(true, endSeq, PAGE_ROWS);
+        }
+    }
+
+    /**
+     * messages were stored in the conversation.
+     */
+    public void onAppended() {
+        if (loading) {
+            appendedWhileLoading = true;
+        } else if (atTail && endSeq >= 0) {
+            load(true, endSeq, MAX_ROWS);
+        }
+    }
+
+    public void close() {
+        if (executor == null) {
+            uiHandler.removeCallbacksAndMessages(null);
+            loader.close();
+        }
+    }
+
+    /**
+     * @param newer true for the page from seq on, false for the page before seq. Long.MAX_VALUE for the newest.
+     * @param max   rows in the page.
+     */
+    private void load(final boolean newer, final long seq, final int max) {
+        if (loading) {
+            return;
+        }
+        loading = true;
+        post(false, new Runnable() {
+            @Override
+            public void run() {
+                final List<Entry> page = new ArrayList<Entry>(Math.min(max, PAGE_ROWS));
+                long first = 0;
+                long next = 0;
+                try {
+                    MessageLog log = MessageStore.getInstance().log(conversation);
+                    next = log.nextSeq();   // before the read, the page may hold newer ones
+                    List<MessageLog.Record> records = newer && seq != Long.MAX_VALUE
+                            ? log.read(seq, max) : log.readBefore(seq, max);
+                    for (MessageLog.Record record : records) {
+                        page.add(new Entry(record.seq, MessageRow.parseMsgRow(record.body)));
+                    }
+                    first = log.firstSeq();
+                } catch (IOException e) {
+                    Log.e(TAG, "load: " + e.toString());
+                }
+                final long firstSeq = first;
+                final long nextSeq = next;
+                post(true, new Runnable() {
+                    @Override
+                    public void run() {
+                        onLoaded(newer, seq, max, page, firstSeq, nextSeq);
+                    }
+                });
+            }
+        });
+    }
+
+    private void post(boolean ui, Runnable runnable) {
+        if (executor != null) {
+            executor.execute(runnable);
+        } else if (ui) {
+            uiHandler.post(runnable);
+        } else {
+            loader.getHandler().post(runnable);
+        }
+    }
+
+    private void onLoaded(boolean newer, long seq, int max, List<Entry> page, long firstSeq, long nextSeq) {
+        loading = false;
+        boolean following = newer && atTail;
+        int headShift = 0;
+        if (seq == Long.MAX_VALUE) {
+            entries.clear();
+            entries.addAll(page);
+            startSeq = page.isEmpty() ? nextSeq : page.get(0).seq;
+            endSeq = page.isEmpty() ? nextSeq : page.get(page.size() - 1).seq + 1;
+        } else if (newer) {
+            entries.addAll(page);
+            endSeq = page.isEmpty() ? endSeq : page.get(page.size() - 1).seq + 1;
+            int excess = entries.size() - MAX_ROWS;
+            if (excess > 0) {
+                entries.subList(0, excess).clear();
+                startSeq = entries.get(0).seq;
+                headShift = -excess;
+            }
+        } else {
+            entries.addAll(0, page);
+            startSeq = page.isEmpty() ? firstSeq : page.get(0).seq;
+            headShift = page.size();
+            int excess = entries.size() - MAX_ROWS;
+            if (excess > 0) {
+                entries.subList(entries.size() - excess, entries.size()).clear();
+                endSeq = entries.get(entries.size() - 1).seq + 1;
+            }
+        }
+        atHead = startSeq <= firstSeq;
+        atTail = following || endSeq >= nextSeq;
+        if (headShift != 0 || !page.isEmpty() || seq == Long.MAX_VALUE) {
+            listener.onWindowChanged(headShift);
+        }
+
+        if (atTail && (appendedWhileLoading || (following && page.size() == max))) {
+            load(true, endSeq, MAX_ROWS);   // more came in than the page held
+        }
+        appendedWhileLoading = false;
+    }
+}
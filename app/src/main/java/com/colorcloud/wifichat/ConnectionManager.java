@@ -1,5 +1,6 @@
 package com.colorcloud.wifichat;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
@@ -10,15 +11,25 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 
 /**
  * this class encapsulates the NIO buffer and NIO channel on top of socket. It is all abt NIO style.
  * SSLServerSocketChannel, ServerSocketChannel, SocketChannel, Selector, ByteBuffer, etc.
  * NIO buffer (ByteBuffer) either in writing mode or in reading mode. Need to flip the mode before reading or writing.
  * <p/>
+ * Writes never touch the socket here: frames are put on the channel's outbound queue and the reactor thread
+ * writes them when the channel is writable, so a slow link queues instead of truncating.
+ * <p/>
  * You know when a socket channel disconnected when you read -1 or write exception. You need app level ACK.
+ * A peer that leaves without a FIN is found by heartbeats: a side that queued nothing to a peer for a heartbeat
+ * interval sends it a HEARTBEAT, which the peer echoes, so a busy link carries none. Any frame from a peer feeds
+ * its FailureDetector; a suspected peer is evicted as if its connection broke.
  */
 public class ConnectionManager {
 
@@ -26,19 +37,67 @@ public class ConnectionManager {
     private static final int PORT_NUMBER = 1080;
 
     ConnectionService connectionService;
-    // Server knows all clients. key is ip addr, value is socket channel.
+    // Server knows all clients, a client knows the server; by channel, ip, and MAC once told.
     // when remote client screen on, a new connection with the same ip addr is established.
-    private Map<String, SocketChannel> clientChannels = new HashMap<String, SocketChannel>();
+    private final PeerRegistry peers = new PeerRegistry();
+    // the frames each peer has not acked, by MAC, kept over broken links until the peer resumes or expires.
+    private final HashMap<String, PeerSession> sessions = new HashMap<String, PeerSession>();
+    private final long sessionId = new Random().nextLong();   // this run of the service
 
     // global selector and channels
     private boolean isServer = false;
     private Selector selector = null;
+    private IoReactor reactor = null;   // the i/o thread of the selector, the acceptor of a group owner
+    // a group owner's clients are served by a pool of worker reactors, one per core unless set otherwise.
+    private final List<IoReactor> workers = new ArrayList<IoReactor>();
+    private int workerCount = Runtime.getRuntime().availableProcessors();
+    // chat and bulk frames to a peer are coalesced into one write for up to this long, or this many bytes.
+    public static final long DEFAULT_BATCH_DELAY = 2;
+    public static final int DEFAULT_BATCH_BYTES = 16 * 1024;
+    private long batchDelay = DEFAULT_BATCH_DELAY;
+    private int batchBytes = DEFAULT_BATCH_BYTES;
     private SelectionKey selectionKey = null;
     private ServerSocketChannel serverSocketChannel = null;
     private SocketChannel clientSocketChannel = null;
     String clientAddr = null;
     String serverAddr = null;
 
+    // client connect in progress: the channel waits for OP_CONNECT on the reactor.
+    private static final long CONNECT_TIMEOUT = 5000;
+    private static final long RETRY_BASE_DELAY = 500;
+    private static final long RETRY_MAX_DELAY = 8000;
+    private static final int MAX_CONNECT_ATTEMPTS = 6;
+    private String serverHost = null;   // set from start to close of a client
+    private SocketChannel connectingChannel = null;
+    private ChannelContext connectingContext = null;
+    private PeerSession connectingSession = null;   // the frames queued on connectingContext, for the replay
+    private int connectAttempts = 0;
+
+    private final Runnable connectTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Log.e(TAG, "connect to " + serverHost + " timed out");
+            onConnectFailed(connectingChannel);
+        }
+    };
+
+    private final Runnable retryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            connectAttempt();
+        }
+    };
+
+    private boolean heartbeatScheduled = false;
+    private final Runnable heartbeatRunnable = new Runnable() {
+        @Override
+        public void run() {
+            heartbeatScheduled = false;
+            checkPeers();
+            scheduleHeartbeat();
+        }
+    };
+
     /**
      * constructor
      */
@@ -66,35 +125,25 @@ public class ConnectionManager {
     public static SocketChannel createSocketChannel(String hostName, int port) throws IOException {
         // Create a non-blocking socket channel
         SocketChannel socketChannel = SocketChannel.open();
-        socketChannel.configureBlocking(false);
-        // Send a connection request to the server; this method is non-blocking
-        socketChannel.connect(new InetSocketAddress(hostName, port));
-        return socketChannel;
-    }
-
-    /**
-     * create a socket channel and connect to the host.
-     * after return, the socket channel guarantee to be connected.
-     */
-    public SocketChannel connectTo(String hostname, int port) {
-        SocketChannel socketChannel;
         try {
-            socketChannel = createSocketChannel(hostname, port);  // connect to the remote host, port
-            // Before the socket is usable, the connection must be completed. finishConnect().
-            while (!socketChannel.finishConnect()) {
-                // blocking spin lock
-            }
-            // Socket channel is now ready to use
+            socketChannel.configureBlocking(false);
+            // Send a connection request to the server; this method is non-blocking
+            socketChannel.connect(new InetSocketAddress(hostName, port));
         } catch (IOException e) {
-            Log.e(TAG, "connectTo: exception : " + e.toString());
-            return null;
+            socketChannel.close();
+            throw e;
+        } catch (RuntimeException e) {
+            socketChannel.close();   // UnresolvedAddressException, not to leak the channel either
+            throw e;
         }
         return socketChannel;
     }
 
     /**
      * client, after p2p connection available, connect to group owner and select monitoring the sockets.
-     * start blocking selector monitoring in an async task, infinite loop
+     * start blocking selector monitoring on its own i/o thread, infinite loop.
+     * The connect completes on the reactor (OP_CONNECT), the service thread never waits for it; an attempt that
+     * is refused or not done in CONNECT_TIMEOUT is retried with exponential backoff.
      */
     public int startClientSelector(String host) {
         closeClient();
@@ -106,31 +155,72 @@ public class ConnectionManager {
         }
 
         try {
-            // connected to the server upon start client.
-            clientSocketChannel = connectTo(host, PORT_NUMBER);
-            if (clientSocketChannel == null) {
-                Log.e(TAG, "failed to connect to server");
-                return -1;
-            }
-
             selector = Selector.open();
-            clientAddr = clientSocketChannel.socket().getLocalAddress().getHostName();
-            selectionKey = clientSocketChannel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-            ((WiFiChatApp) connectionService.getApplication()).setMyAddr(clientAddr);
-            Log.d(TAG, "Client Selector started; client addr: " + clientSocketChannel.socket().getLocalAddress().getHostAddress());
-        } catch (Exception e) {
+        } catch (IOException e) {
             Log.e(TAG, "startClientSelector exception: " + e.toString());
             selector = null;
-            clientSocketChannel = null;
             return -1;
         }
 
         // start selector monitoring, blocking
-        new SelectorAsyncTask(connectionService, selector).execute();
-        Log.d(TAG, "client selector started");
+        reactor = new IoReactor(connectionService, selector);
+        reactor.setBatching(batchDelay, batchBytes);
+        reactor.start();
+
+        serverHost = host;
+        connectAttempts = 0;
+        connectingContext = new ChannelContext(reactor);   // frames sent before the connect is done wait here
+        connectingSession = new PeerSession();
+        connectAttempt();
+        Log.d(TAG, "client selector started, connecting to " + host);
         return 0;
     }
 
+    private void connectAttempt() {
+        connectAttempts++;
+        try {
+            connectingChannel = createSocketChannel(serverHost, PORT_NUMBER);
+        } catch (IOException e) {
+            Log.e(TAG, "connectAttempt: exception : " + e.toString());
+            onConnectFailed(connectingChannel);
+            return;
+        } catch (UnresolvedAddressException e) {
+            // the group owner's name does not resolve yet, a failed attempt like any other
+            Log.e(TAG, "connectAttempt: unresolved address " + serverHost);
+            onConnectFailed(connectingChannel);
+            return;
+        }
+        reactor.connect(connectingChannel, connectingContext);
+        connectionService.getHandler().postDelayed(connectTimeoutRunnable, CONNECT_TIMEOUT);
+    }
+
+    /**
+     * the connect attempt was refused, or timed out; retry after a backoff, or give up.
+     */
+    public void onConnectFailed(SocketChannel socketChannel) {
+        if (serverHost == null || socketChannel != connectingChannel) {
+            return;   // an attempt we already gave up on
+        }
+        connectionService.getHandler().removeCallbacks(connectTimeoutRunnable);
+        if (connectingChannel != null) {
+            try {
+                connectingChannel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "onConnectFailed: close exception: " + e.toString());
+            }
+            connectingChannel = null;
+        }
+
+        if (connectAttempts >= MAX_CONNECT_ATTEMPTS) {
+            Log.e(TAG, "onConnectFailed: no connection to " + serverHost + " after " + connectAttempts + " attempts");
+            closeClient();
+            return;
+        }
+        long delay = Math.min(RETRY_MAX_DELAY, RETRY_BASE_DELAY << (connectAttempts - 1));
+        Log.d(TAG, "onConnectFailed: attempt " + connectAttempts + " to " + serverHost + ", retry in " + delay + " ms");
+        connectionService.getHandler().postDelayed(retryRunnable, delay);
+    }
+
     /**
      * create a selector to manage a server socket channel
      * The registration process yields an object called a selection key which identifies the selector/socket channel pair
@@ -163,11 +253,45 @@ public class ConnectionManager {
             return -1;
         }
 
-        new SelectorAsyncTask(connectionService, selector).execute();
-        Log.d(TAG, "server selector started");
+        // the acceptor hands every accepted client to the least loaded worker
+        try {
+            for (int i = 0; i < workerCount; i++) {
+                IoReactor worker = new IoReactor(connectionService, Selector.open());
+                worker.setName("IoReactor-" + i);
+                worker.setBatching(batchDelay, batchBytes);
+                workers.add(worker);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "startServerSelector: worker selector exception: " + e.toString());   // serve with what we have
+        }
+        for (IoReactor worker : workers) {
+            worker.start();
+        }
+        reactor = new IoReactor(connectionService, selector);
+        reactor.setWorkers(new ArrayList<IoReactor>(workers));   // its own copy, the acceptor reads it
+        reactor.setBatching(batchDelay, batchBytes);   // serves its own clients when there are no workers
+        reactor.start();
+        Log.d(TAG, "server selector started, workers: " + workers.size());
         return 0;
     }
 
+    /**
+     * number of worker reactors serving the clients of the next group owner session, 0 to serve them on the
+     * acceptor. Defaults to the number of cores.
+     */
+    public void setWorkerCount(int workerCount) {
+        this.workerCount = Math.max(0, workerCount);
+    }
+
+    /**
+     * send-side batching of the next session's links: chat and bulk frames wait up to delayMillis, or until
+     * byteBudget bytes are queued, and go out in one write. Control frames never wait. 0 turns batching off.
+     */
+    public void setBatching(long delayMillis, int byteBudget) {
+        this.batchDelay = Math.max(0, delayMillis);
+        this.batchBytes = Math.max(0, byteBudget);
+    }
+
     /**
      * handle selector error, re-start
      */
@@ -186,121 +310,477 @@ public class ConnectionManager {
                     selectionKey.cancel();
                 }
                 serverSocketChannel.close();
-                selector.close();
+                stopReactor();
             } catch (Exception e) {
                 Log.e(TAG, "closeServer exception: " + e.toString());
             } finally {
                 isServer = false;
                 serverSocketChannel = null;
                 selector = null;
+                reactor = null;
                 serverAddr = null;
-                clientChannels.clear();
+                clearPeers();
             }
         }
         Log.d(TAG, "server closed");
     }
 
     private void closeClient() {
-        if (clientSocketChannel != null) {
+        if (clientSocketChannel != null || serverHost != null) {
+            connectionService.getHandler().removeCallbacks(connectTimeoutRunnable);
+            connectionService.getHandler().removeCallbacks(retryRunnable);
             try {
-                if (selectionKey != null) {
-                    selectionKey.cancel();
+                if (clientSocketChannel != null) {
+                    clientSocketChannel.close();
                 }
-                clientSocketChannel.close();
-                selector.close();
+                if (connectingChannel != null) {
+                    connectingChannel.close();
+                }
+                stopReactor();
             } catch (Exception e) {
                 Log.e(TAG, "closeClient exception: " + e.toString());
             } finally {
                 clientSocketChannel = null;
+                connectingChannel = null;
+                connectingContext = null;
+                if (connectingSession != null && connectingSession.unackedCount() > 0) {
+                    Log.e(TAG, "closeClient: " + connectingSession.unackedCount() + " frames queued while connecting dropped");
+                }
+                connectingSession = null;
+                serverHost = null;
                 selector = null;
+                reactor = null;
                 clientAddr = null;
+                clearPeers();
             }
         }
         Log.d(TAG, "client closed");
     }
 
+    /**
+     * the reactors close their selectors on their own threads; without a reactor it is closed here.
+     */
+    private void stopReactor() throws IOException {
+        for (IoReactor worker : workers) {
+            worker.shutdown();
+        }
+        workers.clear();
+        if (reactor != null) {
+            reactor.shutdown();
+        } else if (selector != null) {
+            selector.close();
+        }
+    }
+
     /**
      * read out -1, connection broken, remove it from clients collection
      */
     public void onBrokenConn(SocketChannel socketChannel) {
-        //todo why this method keeps being called when connection breaks?
+        PeerRegistry.Peer peer = peers.remove(socketChannel);
+        if (peer != null) {
+            peer.context.outbound.clear();   // nothing queued can reach a broken channel
+            detachSession(peer);
+        }
+
         if (socketChannel.socket().getInetAddress() != null) {
-            String peerAddr = socketChannel.socket().getInetAddress().getHostAddress();
             if (isServer) {
-                clientChannels.remove(peerAddr);
-            } else {
-                closeClient();
+                try {
+                    socketChannel.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "onBrokenConn: close exception: " + e.toString());
+                }
+            } else if (socketChannel == clientSocketChannel) {
+                reconnect();
+            }
+        }
+    }
+
+    /**
+     * the link to the group owner broke, connect again to the same host; the session resumes on the new link.
+     * If the group re-forms with another owner ip, startClientSelector() comes with it and the session resumes
+     * there, it is kept by MAC.
+     */
+    private void reconnect() {
+        Log.d(TAG, "reconnect to " + serverHost);
+        try {
+            clientSocketChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "reconnect: close exception: " + e.toString());
+        }
+        clientSocketChannel = null;
+        connectAttempts = 0;
+        connectingContext = new ChannelContext(reactor);
+        connectingSession = new PeerSession();
+        connectAttempt();
+    }
+
+    /**
+     * keep the session of a peer that is gone, until it comes back or expires.
+     */
+    private void detachSession(PeerRegistry.Peer peer) {
+        String mac = peer.getMac();
+        if (mac != null && sessions.get(mac) == peer.session) {
+            peer.session.detach(SystemClock.elapsedRealtime());
+        } else if (peer.session.unackedCount() > 0) {
+            Log.e(TAG, peer + " gone before it resumed, " + peer.session.unackedCount() + " unacked frames dropped");
+        }
+    }
+
+    private void clearPeers() {
+        for (PeerRegistry.Peer peer : peers.snapshot()) {
+            detachSession(peer);
+        }
+        peers.clear();
+    }
+
+    /**
+     * the peer's SESSION_RESUME: who it is, and which run of it. If we hold its session from an earlier link, the
+     * frames it never acked there are written again on this one.
+     */
+    public void onSessionResume(SocketChannel socketChannel, String body) {
+        PeerRegistry.Peer peer = peers.get(socketChannel);
+        String[] fields = PeerSession.parseResume(body);
+        if (peer == null || fields == null) {
+            return;
+        }
+        long peerSessionId;
+        try {
+            peerSessionId = Long.parseLong(fields[1]);
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "onSessionResume: bad session id: " + body);
+            return;
+        }
+        String mac = RoutingTable.normalize(fields[0]);
+        long now = SystemClock.elapsedRealtime();
+        for (Iterator<PeerSession> it = sessions.values().iterator(); it.hasNext(); ) {
+            if (it.next().isExpired(now)) {
+                it.remove();
+            }
+        }
+
+        PeerRegistry.Peer previous = peers.byMac(mac);   // its old link, if that one did not break yet
+        peers.bindMac(peer, mac);
+        PeerSession session = sessions.get(mac);
+        if (session == null || session == peer.session) {
+            peer.session.setPeerSessionId(peerSessionId);
+            sessions.put(mac, peer.session);
+            return;
+        }
+
+        // the peer is back: replay what it never acked, the frames written on this link so far are already sent
+        if (previous != null && previous != peer) {
+            previous.session = new PeerSession();   // the old link is dead, its session goes with the peer
+        }
+        if (session.getPeerSessionId() != peerSessionId) {
+            Log.d(TAG, "onSessionResume: " + mac + " restarted, its unacked frames are replayed anyway");
+        }
+        List<ByteBuffer> replay = session.unackedFrames();
+        session.absorb(peer.session);
+        session.attach();
+        session.setPeerSessionId(peerSessionId);
+        peer.session = session;
+        Log.d(TAG, "onSessionResume: " + mac + " resumed, replaying " + replay.size() + " unacked frames");
+        long[] gap = session.takeGap();
+        if (gap != null) {
+            // frames the session had no room for are not in the replay, the peer must know they are missing
+            Log.e(TAG, "onSessionResume: " + gap[0] + " frames to " + mac + " lost unacked, gap reported");
+            writeData(socketChannel, new MessageWrapper(Constant.SESSION_GAP, PeerSession.gapBody(gap)).getFrame());
+        }
+        for (ByteBuffer frame : replay) {
+            writeData(socketChannel, frame);
+        }
+    }
+
+    /**
+     * the peer on the channel acked these ids.
+     */
+    public void onAcknowledged(SocketChannel socketChannel, AckCoalescer.AckRange range) {
+        PeerRegistry.Peer peer = peers.get(socketChannel);
+        if (peer != null) {
+            peer.session.acknowledge(range);
+        }
+    }
+
+    /**
+     * check the peers twice per heartbeat interval while there are any.
+     */
+    private void scheduleHeartbeat() {
+        if (!heartbeatScheduled && peers.size() > 0) {
+            heartbeatScheduled = connectionService.getHandler().postDelayed(heartbeatRunnable,
+                    peers.getHeartbeatInterval() / 2);
+        }
+    }
+
+    /**
+     * evict the peers the failure detector suspects, and keep the quiet links alive.
+     */
+    private void checkPeers() {
+        long now = SystemClock.elapsedRealtime();
+        long interval = peers.getHeartbeatInterval();
+        for (PeerRegistry.Peer peer : peers.snapshot()) {
+            if (!peer.isAlive(now)) {
+                Log.e(TAG, "checkPeers: " + peer + " silent for " + (now - peer.getLastSeen()) + " ms, evicted");
+                peer.context.reactor.evict(peer.context.key);   // then MSG_BROKEN_CONN, as for a broken link
+            } else if (now - peer.lastSent >= interval) {
+                // the id is the send time, the echo brings it back for a round trip sample
+                writeData(peer.channel, new MessageWrapper(Constant.HEARTBEAT, 0, now, "").getFrame());
             }
         }
     }
 
+    /**
+     * the peer echoed our heartbeat.
+     */
+    public void onHeartbeatEcho(SocketChannel socketChannel, long sentAt) {
+        PeerRegistry.Peer peer = peers.get(socketChannel);
+        if (peer != null) {
+            peer.getRtt().sample(SystemClock.elapsedRealtime() - sentAt);
+        }
+    }
+
+    /**
+     * a new link: who we are first, so the peer can resume our session; then our routes instead of at the next
+     * period, what we buffered for it, and the files being distributed.
+     */
+    private void onLinkUp(SocketChannel socketChannel) {
+        String mac = WiFiDirectActivity.getWiFiDirectMacAddress();
+        if (mac != null) {
+            writeData(socketChannel, new MessageWrapper(Constant.SESSION_RESUME,
+                    PeerSession.resumeBody(mac, sessionId)).getFrame());
+        }
+        RoutingManager.getInstance().advertise();
+        writeData(socketChannel, RoutingManager.getInstance().summaryVector().getFrame());
+        SwarmManager.getInstance().onLinkUp(socketChannel);
+        scheduleHeartbeat();
+    }
+
     /**
      * Server handle new client coming in.
      */
     public void onNewClient(SocketChannel socketChannel) {
         String clientAddr = socketChannel.socket().getInetAddress().getHostAddress();
         Log.d(TAG, "onNewClient: " + clientAddr);
-        clientChannels.put(clientAddr, socketChannel);
+        ChannelContext context = registeredContext(socketChannel);
+        if (context == null) {
+            Log.e(TAG, "onNewClient: " + clientAddr + " already gone");
+            return;
+        }
+        peers.add(socketChannel, clientAddr, context, SystemClock.elapsedRealtime());
+        onLinkUp(socketChannel);
     }
 
     /**
-     * Client's connect to server success,
+     * Client's connect to server success, the link is up.
      */
     public void onFinishConnect(SocketChannel socketChannel) {
+        if (serverHost == null || socketChannel != connectingChannel) {
+            Log.e(TAG, "onFinishConnect: stale connect, closed");
+            try {
+                socketChannel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "onFinishConnect: close exception: " + e.toString());
+            }
+            return;
+        }
+        connectionService.getHandler().removeCallbacks(connectTimeoutRunnable);
+        ChannelContext context = connectingContext;
+        PeerSession queuedSession = connectingSession;
+        connectingChannel = null;
+        connectingContext = null;
+        connectingSession = null;
+
         String clientAddr = socketChannel.socket().getLocalAddress().getHostAddress();
         String serverAddr = socketChannel.socket().getInetAddress().getHostAddress();
-        Log.d(TAG, "onFinishConnect: " + clientAddr + " -> " + serverAddr);
+        Log.d(TAG, "onFinishConnect: " + clientAddr + " -> " + serverAddr + ", attempts: " + connectAttempts);
         clientSocketChannel = socketChannel;
         this.clientAddr = clientAddr;
         ((WiFiChatApp) connectionService.getApplication()).setMyAddr(this.clientAddr);
+        PeerRegistry.Peer peer = peers.add(socketChannel, serverAddr, context, SystemClock.elapsedRealtime());
+        peer.session.absorb(queuedSession);   // what was queued while connecting is unacked too
+        if (context.outbound.size() > 0) {
+            reactor.requestWrite(context.key);   // what was sent while connecting
+        }
+        onLinkUp(socketChannel);
     }
 
     /**
-     * write byte buf to the socket channel.
+     * queue an encoded frame for the socket channel, the reactor thread writes it out.
+     * The frame buffer itself is not consumed, so the same frame can be queued to several channels.
+     *
+     * @return number of bytes queued, -1 if the frame is dropped.
      */
-    private int writeData(SocketChannel socketChannel, String jsonString) {
-        byte[] buf = jsonString.getBytes();
-        ByteBuffer byteBuffer = ByteBuffer.wrap(buf);  // wrap the buf into byte buffer
-        int numOfBytesWritten = 0;
-        try {
-            //byteBuffer.flip();  // no flip after creating from wrap.
-            numOfBytesWritten = socketChannel.write(byteBuffer);
-        } catch (Exception e) {
-            // Connection may have been closed
-            Log.e(TAG, "writeData exception : " + e.toString());
-            onBrokenConn(socketChannel);
+    private int writeData(SocketChannel socketChannel, ByteBuffer frame) {
+        PeerRegistry.Peer peer = peers.get(socketChannel);
+        if (peer == null || !peer.context.key.isValid()) {
+            Log.e(TAG, "writeData: channel not registered, frame dropped");
+            return -1;
+        }
+        ChannelContext context = peer.context;
+
+        int result = context.outbound.offer(frame.duplicate());  // own position/limit, shares the frame bytes
+        if (result == OutboundQueue.REJECTED) {
+            Log.e(TAG, "writeData: outbound queue full, frame dropped; queued bytes: " + context.outbound.queuedBytes());
+            return -1;
         }
-        return numOfBytesWritten;
+        if (result == OutboundQueue.QUEUED_NEEDS_WRITE) {
+            context.reactor.requestWrite(context.key);   // the reactor serving the channel, lock-free hand-off
+        } else if (result == OutboundQueue.QUEUED_BATCHED) {
+            context.reactor.requestFlush(context.key);   // written with what follows within the batch delay
+        }
+        if (peer.session.record(frame) != 0) {
+            // replayed if the link breaks before the peer acks it; beyond the bound the oldest goes into the gap
+            Log.e(TAG, "writeData: " + peer + " has " + PeerSession.MAX_UNACKED_FRAMES + " unacked frames, oldest dropped");
+        }
+        peer.lastSent = SystemClock.elapsedRealtime();   // the peer hears from us, no heartbeat needed
+        return frame.remaining();
+    }
+
+    /**
+     * the state of a linked peer's channel, null if it is not linked (anymore).
+     */
+    private ChannelContext contextOf(SocketChannel socketChannel) {
+        PeerRegistry.Peer peer = peers.get(socketChannel);
+        if (peer == null || !peer.context.key.isValid()) {
+            return null;
+        }
+        return peer.context;
     }
 
     /**
-     * server publish data to all the connected clients
+     * the state attached to the channel's selection key by the reactor serving it, null if the channel is not
+     * registered (anymore).
      */
-    public void pubDataToAllClients(String msg, SocketChannel incomingChannel) {
+    private ChannelContext registeredContext(SocketChannel socketChannel) {
+        if (reactor == null) {
+            return null;
+        }
+        for (IoReactor worker : workers) {
+            SelectionKey key = socketChannel.keyFor(worker.selector());
+            if (key != null) {
+                return key.isValid() ? (ChannelContext) key.attachment() : null;
+            }
+        }
+        SelectionKey key = socketChannel.keyFor(reactor.selector());
+        if (key == null || !key.isValid()) {
+            return null;
+        }
+        return (ChannelContext) key.attachment();
+    }
+
+    /**
+     * server publish an encoded frame to all the connected clients.
+     * Each client queue gets its own duplicate() view of the same read-only bytes, nothing is copied per client.
+     */
+    public void pubDataToAllClients(ByteBuffer frame, SocketChannel incomingChannel) {
         if (!isServer) {
             return;
         }
 
-        for (SocketChannel s : clientChannels.values()) {
-            if (s != incomingChannel) {
-                String peerAddr = s.socket().getInetAddress().getHostAddress();
-                Log.d(TAG, "Server pub data to:  " + peerAddr);
-                writeData(s, msg);
+        long now = SystemClock.elapsedRealtime();
+        for (PeerRegistry.Peer peer : peers.snapshot()) {
+            if (peer.channel != incomingChannel && peer.isAlive(now)) {   // a suspected peer is about to go
+                Log.d(TAG, "Server pub data to:  " + peer);
+                writeData(peer.channel, frame);
             }
         }
     }
 
+    /**
+     * queue a message to one peer only.
+     *
+     * @return number of bytes queued, -1 if the frame is dropped.
+     */
+    public int sendTo(SocketChannel socketChannel, MessageWrapper messageWrapper) {
+        return writeData(socketChannel, messageWrapper.getFrame());
+    }
+
+    /**
+     * the channels to the peers: the group owner for a client, every client for the group owner.
+     */
+    public List<SocketChannel> peerChannels() {
+        List<PeerRegistry.Peer> snapshot = peers.snapshot();
+        List<SocketChannel> channels = new ArrayList<SocketChannel>(snapshot.size());
+        for (PeerRegistry.Peer peer : snapshot) {
+            channels.add(peer.channel);
+        }
+        return channels;
+    }
+
+    /**
+     * the linked peers, by channel, ip, MAC and node id.
+     */
+    public PeerRegistry peers() {
+        return peers;
+    }
+
+    /**
+     * a frame came in from the channel.
+     */
+    public void onFrameFrom(SocketChannel socketChannel) {
+        PeerRegistry.Peer peer = peers.get(socketChannel);
+        if (peer != null) {
+            peer.touch(SystemClock.elapsedRealtime());
+        }
+    }
+
+    /**
+     * the MAC of the peer on the channel, its ip until it told, null if it is not linked.
+     */
+    public String peerName(SocketChannel socketChannel) {
+        PeerRegistry.Peer peer = peers.get(socketChannel);
+        if (peer == null) {
+            return null;
+        }
+        return peer.getMac() != null ? peer.getMac() : peer.ip;
+    }
+
+    /**
+     * the peer on the channel told its MAC.
+     */
+    public void onPeerMac(SocketChannel socketChannel, String mac) {
+        PeerRegistry.Peer peer = peers.get(socketChannel);
+        if (peer != null) {
+            peers.bindMac(peer, mac);
+        }
+    }
+
+    /**
+     * whether a socket link to the peer with the MAC is up; any thread.
+     */
+    public boolean isLinked(String mac) {
+        return peers.byMac(mac) != null;
+    }
+
+    /**
+     * queue a message to the linked peer with the MAC.
+     *
+     * @return number of bytes queued, -1 if no such peer or the frame is dropped.
+     */
+    public int sendToMac(String mac, MessageWrapper messageWrapper) {
+        PeerRegistry.Peer peer = peers.byMac(mac);
+        return peer == null ? -1 : writeData(peer.channel, messageWrapper.getFrame());
+    }
+
+    /**
+     * bytes of file data the channel's outbound queue can still take, 0 if the channel is gone.
+     */
+    public int bulkRoom(SocketChannel socketChannel) {
+        ChannelContext context = contextOf(socketChannel);
+        return context == null ? 0 : context.outbound.bulkRoom();
+    }
+
     /**
      * the device want to push out data.
      * If the device is client, the only channel is to the server.
      * If the device is server, it just pub the data to all clients for now.
      */
-    public int pushOutData(String jsonString) {
+    public int pushOutData(MessageWrapper messageWrapper) {
+        ByteBuffer frame = messageWrapper.getFrame();   // encoded once, whatever the number of receivers
         if (!isServer) {   // device is client, can only send to server
-            sendDataToServer(jsonString);
+            sendDataToServer(frame);
         } else {
             // server pub to all clients, msg already appended with sender addr inside send button handler.
-            pubDataToAllClients(jsonString, null);
+            pubDataToAllClients(frame, null);
         }
         return 0;
     }
@@ -308,11 +788,17 @@ public class ConnectionManager {
     /**
      * whenever client write to server, carry the format of "client_addr : msg "
      */
-    private void sendDataToServer(String jsonString) {
+    private void sendDataToServer(ByteBuffer frame) {
         if (clientSocketChannel == null) {
-            Log.e(TAG, "sendDataToServer: channel not connected ! waiting...");
-            return;
+            if (connectingContext == null) {
+                Log.e(TAG, "sendDataToServer: channel not connected ! frame dropped");
+            } else if (connectingContext.outbound.offer(frame.duplicate()) == OutboundQueue.REJECTED) {
+                Log.e(TAG, "sendDataToServer: outbound queue full while connecting, frame dropped");
+            } else if (connectingSession.record(frame) != 0) {
+                Log.e(TAG, "sendDataToServer: " + PeerSession.MAX_UNACKED_FRAMES + " frames queued while connecting, oldest dropped");
+            }
+            return;   // queued frames go out once connected, and are replayed like the others if not acked
         }
-        writeData(clientSocketChannel, jsonString);
+        writeData(clientSocketChannel, frame);
     }
 }
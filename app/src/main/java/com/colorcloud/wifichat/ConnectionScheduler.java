@@ -0,0 +1,306 @@
+package com.colorcloud.wifichat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * schedules the multi-hop deliveries that need a p2p connection to the next hop.
+ * <p/>
+ * Deliveries wait in a priority queue (higher priority first, then first come first served). At most
+ * maxConcurrent peers are worked on at once; all the deliveries queued for a peer share its connection.
+ * A peer goes through:
+ * <pre>
+ *   QUEUED -> CONNECTING -> SOCKET_READY -> SENDING -> ACKED -> DONE
+ * </pre>
+ * CONNECTING lasts until the driver reports the socket is up, not until the connect request is accepted, so
+ * nothing is sent into a socket that does not exist yet. SENDING lasts until every message is acked.
+ * Each of the two waits has its own timeout; a timeout or a failed connect ends the peer in DONE as well,
+ * with the unacked messages reported failed. Deliveries scheduled while a peer is SENDING go out right away.
+ * A peer the driver already has a socket to skips CONNECTING: no connect, and no disconnect when it is done.
+ * <p/>
+ * Pure java: no android, no thread. The owner feeds the clock, calls tick() regularly and forwards the driver
+ * events, all from one thread. Acks carry no peer, so with maxConcurrent > 1 an id sent to two peers at once
+ * is acked for both by the first ack.
+ */
+public class ConnectionScheduler {
+
+    public static final int QUEUED = 0;
+    public static final int CONNECTING = 1;
+    public static final int SOCKET_READY = 2;
+    public static final int SENDING = 3;
+    public static final int ACKED = 4;
+    public static final int DONE = 5;
+
+    public static final int DEFAULT_MAX_CONCURRENT = 1;        // a device is in one p2p group at a time
+    public static final long DEFAULT_CONNECT_TIMEOUT = 20000;  // p2p negotiation, group formation and socket
+    public static final long DEFAULT_ACK_TIMEOUT = 5000;
+
+    public interface Listener {
+        void onDelivered(String peer, List<MessageWrapper> messages);
+
+        /**
+         * @param state the state the peer was in when it failed: CONNECTING or SENDING.
+         */
+        void onFailed(String peer, int state, List<MessageWrapper> messages);
+    }
+
+    private static final class Delivery {
+        final String peer;
+        final MessageWrapper message;
+        final int priority;
+        final long sequence;
+
+        Delivery(String peer, MessageWrapper message, int priority, long sequence) {
+            this.peer = peer;
+            this.message = message;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final class Session {
+        final String peer;
+        final List<MessageWrapper> messages = new ArrayList<MessageWrapper>();
+        final Set<Long> unacked = new HashSet<Long>();
+        int state = QUEUED;
+        long deadline;
+        boolean linked;   // the socket was up before the scheduler started on the peer
+
+        Session(String peer) {
+            this.peer = peer;
+        }
+    }
+
+    private static final Comparator<Delivery> ORDER = new Comparator<Delivery>() {
+        @Override
+        public int compare(Delivery a, Delivery b) {
+            if (a.priority != b.priority) {
+                return a.priority > b.priority ? -1 : 1;
+            }
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+    };
+
+    private final P2pDriver driver;
+    private final RetransmissionEngine.Clock clock;
+    private final int maxConcurrent;
+    private final long connectTimeout;
+    private final long ackTimeout;
+    private final PriorityQueue<Delivery> queue = new PriorityQueue<Delivery>(16, ORDER);
+    private final Map<String, Session> active = new LinkedHashMap<String, Session>();
+    private long nextSequence = 0;
+    private boolean pumping = false;
+    private Listener listener;
+
+    public ConnectionScheduler(P2pDriver driver, RetransmissionEngine.Clock clock) {
+        this(driver, clock, DEFAULT_MAX_CONCURRENT, DEFAULT_CONNECT_TIMEOUT, DEFAULT_ACK_TIMEOUT);
+    }
+
+    public ConnectionScheduler(P2pDriver driver, RetransmissionEngine.Clock clock, int maxConcurrent,
+                               long connectTimeout, long ackTimeout) {
+        this.driver = driver;
+        this.clock = clock;
+        this.maxConcurrent = maxConcurrent;
+        this.connectTimeout = connectTimeout;
+        this.ackTimeout = ackTimeout;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * deliver the message to the peer.
+     */
+    public void schedule(String peer, MessageWrapper messageWrapper, int priority) {
+        Session session = active.get(peer);
+        if (session != null && session.state == CONNECTING) {
+            session.messages.add(messageWrapper);
+            session.unacked.add(messageWrapper.getAck());
+            return;
+        }
+        if (session != null && session.state == SENDING) {
+            session.messages.add(messageWrapper);
+            session.unacked.add(messageWrapper.getAck());
+            session.deadline = clock.now() + ackTimeout;
+            if (!driver.send(peer, messageWrapper)) {
+                finish(session);
+            }
+            return;
+        }
+
+        queue.add(new Delivery(peer, messageWrapper, priority, nextSequence++));
+        pump();
+    }
+
+    /**
+     * the driver could not connect to the peer.
+     */
+    public void onConnectFailed(String peer) {
+        Session session = active.get(peer);
+        if (session != null && session.state == CONNECTING) {
+            finish(session);
+        }
+    }
+
+    /**
+     * the driver has a socket up to the peer: send everything queued for it.
+     */
+    public void onSocketReady(String peer) {
+        Session session = active.get(peer);
+        if (session == null || session.state != CONNECTING) {
+            return;
+        }
+
+        session.state = SOCKET_READY;
+        sendAll(session);
+    }
+
+    private void sendAll(Session session) {
+        session.state = SENDING;
+        session.deadline = clock.now() + ackTimeout;
+        for (MessageWrapper messageWrapper : new ArrayList<MessageWrapper>(session.messages)) {
+            if (!driver.send(session.peer, messageWrapper)) {
+                finish(session);
+                return;
+            }
+        }
+    }
+
+    public void onAcknowledged(AckCoalescer.AckRange range) {
+        for (Session session : new ArrayList<Session>(active.values())) {
+            if (session.state != SENDING) {
+                continue;   // not sent yet, or ended by an earlier peer's driver calls
+            }
+            Iterator<Long> it = session.unacked.iterator();
+            while (it.hasNext()) {
+                if (range.contains(it.next())) {
+                    it.remove();
+                }
+            }
+            if (session.unacked.isEmpty()) {
+                session.state = ACKED;
+                finish(session);
+            }
+        }
+    }
+
+    /**
+     * end the peers past their deadline. Call it regularly while !isIdle().
+     */
+    public void tick() {
+        long now = clock.now();
+        for (Session session : new ArrayList<Session>(active.values())) {
+            if (session.state != DONE && session.deadline <= now) {
+                finish(session);
+            }
+        }
+    }
+
+    /**
+     * @return the state of the peer: QUEUED, one of the active states, or DONE if nothing is scheduled for it.
+     */
+    public int stateOf(String peer) {
+        Session session = active.get(peer);
+        if (session != null) {
+            return session.state;
+        }
+        for (Delivery delivery : queue) {
+            if (delivery.peer.equals(peer)) {
+                return QUEUED;
+            }
+        }
+        return DONE;
+    }
+
+    public boolean isIdle() {
+        return active.isEmpty() && queue.isEmpty();
+    }
+
+    public int queued() {
+        return queue.size();
+    }
+
+    private void finish(Session session) {
+        int state = session.state;
+        session.state = DONE;
+        active.remove(session.peer);
+        if (!session.linked) {
+            driver.disconnect(session.peer);
+        }
+
+        List<MessageWrapper> delivered = new ArrayList<MessageWrapper>();
+        List<MessageWrapper> failed = new ArrayList<MessageWrapper>();
+        for (MessageWrapper messageWrapper : session.messages) {
+            if (session.unacked.contains(messageWrapper.getAck())) {
+                failed.add(messageWrapper);
+            } else {
+                delivered.add(messageWrapper);
+            }
+        }
+        if (listener != null) {
+            if (!delivered.isEmpty()) {
+                listener.onDelivered(session.peer, delivered);
+            }
+            if (!failed.isEmpty()) {
+                listener.onFailed(session.peer, state, failed);
+            }
+        }
+        pump();
+    }
+
+    /**
+     * start the next peers, as long as there is room.
+     */
+    private void pump() {
+        if (pumping) {
+            return;   // a driver call ended a peer synchronously, the loop below carries on
+        }
+        pumping = true;
+        try {
+            while (active.size() < maxConcurrent && !queue.isEmpty()) {
+                Delivery head = queue.poll();
+                Session session = new Session(head.peer);
+                session.messages.add(head.message);
+                session.unacked.add(head.message.getAck());
+
+                // everything else queued for the same peer shares the connection
+                Iterator<Delivery> it = queue.iterator();
+                List<Delivery> samePeer = new ArrayList<Delivery>();
+                while (it.hasNext()) {
+                    Delivery delivery = it.next();
+                    if (delivery.peer.equals(head.peer)) {
+                        samePeer.add(delivery);
+                        it.remove();
+                    }
+                }
+                Collections.sort(samePeer, ORDER);
+                for (Delivery delivery : samePeer) {
+                    session.messages.add(delivery.message);
+                    session.unacked.add(delivery.message.getAck());
+                }
+
+                active.put(session.peer, session);
+                if (driver.isLinked(session.peer)) {
+                    session.linked = true;
+                    session.state = SOCKET_READY;
+                    sendAll(session);
+                } else {
+                    session.state = CONNECTING;
+                    session.deadline = clock.now() + connectTimeout;
+                    driver.connect(session.peer);
+                }
+            }
+        } finally {
+            pumping = false;
+        }
+    }
+}
@@ -5,16 +5,19 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
-import android.os.AsyncTask;
-import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
 
+import java.io.File;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 import static com.colorcloud.wifichat.Constant.*;
 
@@ -27,6 +30,28 @@ public class ConnectionService extends Service {
 
     ChatActivity chatActivity;    // shall I use weak reference here ?
     ConnectionManager connectionManager;
+    private final DuplicateFilter duplicateFilter = new DuplicateFilter();
+    // acks are coalesced per channel, and go back on the channel the acked frames came in on
+    private final HashMap<SocketChannel, AckCoalescer> ackCoalescers = new HashMap<SocketChannel, AckCoalescer>();
+
+    private final Runnable flushAcksRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushAcks();
+        }
+    };
+
+    // incoming msgs reach the ui in batches, one ui post per UI_BATCH_MILLIS (about a frame) instead of one per msg.
+    private static final int UI_BATCH_MILLIS = 16;
+    private boolean uiBatchPending = false;
+    private String uiBatchLastMsg = null;
+
+    private final Runnable uiBatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            deliverUiBatch();
+        }
+    };
 
     /**
      * @see android.app.Service#onCreate()
@@ -48,6 +73,9 @@ public class ConnectionService extends Service {
         messageHandler = new MessageHandler(workHandler.getLooper());
 
         connectionManager = new ConnectionManager(this);
+        File dir = new File(Environment.getExternalStorageDirectory() + "/" + getPackageName());
+        FileStreamManager.getInstance().init(connectionManager, messageHandler, dir);
+        SwarmManager.getInstance().init(connectionManager, messageHandler, dir);
     }
 
     @Override
@@ -111,17 +139,23 @@ public class ConnectionService extends Service {
             case MSG_FINISH_CONNECT:
                 connectionManager.onFinishConnect((SocketChannel) msg.obj);
                 break;
+            case MSG_CONNECT_FAILED:
+                connectionManager.onConnectFailed((SocketChannel) msg.obj);
+                break;
             // msg coming in
             case MSG_PULLIN_DATA:
-                onPullInData((SocketChannel) msg.obj, msg.getData());
+                onPullInData((MessageWrapper) msg.obj);
                 break;
             case MSG_PUSHOUT_DATA:
-                onPushOutData((String) msg.obj);
+                onPushOutData((MessageWrapper) msg.obj);
                 break;
             case MSG_SELECT_ERROR:
                 connectionManager.onSelectorError();
                 break;
             case MSG_BROKEN_CONN:
+                FileStreamManager.getInstance().onChannelClosed((SocketChannel) msg.obj);
+                SwarmManager.getInstance().onChannelClosed((SocketChannel) msg.obj);
+                SendingMessageQueue.getInstance().onChannelClosed((SocketChannel) msg.obj);
                 connectionManager.onBrokenConn((SocketChannel) msg.obj);
                 break;
             default:
@@ -142,22 +176,22 @@ public class ConnectionService extends Service {
     }
 
     /**
-     * service handle data in come from socket channel
+     * service handle a frame decoded from socket channel
      */
-    private String onPullInData(SocketChannel schannel, Bundle b) {
-        String data = b.getString("DATA");
-
-        MessageWrapper messageWrapper = MessageWrapper.parseMessageWrapper(data);
+    private void onPullInData(MessageWrapper messageWrapper) {
+        SocketChannel schannel = messageWrapper.getOrigin();
         int category = messageWrapper.getCategory();
         String messageBody = messageWrapper.getMessageBody();
 
         Log.d(TAG, "onPullInData: category is: " + category);
+        connectionManager.onFrameFrom(schannel);
 
         switch (category) {
             case Constant.DEVICE_MAC_ADDRESS:
                 // in this case, the messageBody is the device's MAC address
                 Log.d(TAG, "client device's MAC address is: " + messageBody);
                 PersistentGroupPeers.getInstance().add(messageBody);
+                connectionManager.onPeerMac(schannel, messageBody);
                 break;
 
             case Constant.GROUP_MAC_ADDRESS:
@@ -171,14 +205,19 @@ public class ConnectionService extends Service {
                 break;
 
             case Constant.MESSAGE:
-                // reply ack immediately
+                // ack shortly, together with the other messages received meanwhile. Even a duplicate is acked:
+                // the sender retransmitted because our ack was lost.
                 long ack = messageWrapper.getAck();
                 Log.d(TAG, "ack is " + ack);
-                MessageWrapper repliedMessage = new MessageWrapper(IMMEDIATE_ACKNOWLEDGEMENT, "" + ack);
-                ConnectionService.pushOutMessage(repliedMessage.toString());
+                ackLater(schannel, ack);
+
+                if (!duplicateFilter.accept(ack)) {
+                    Log.d(TAG, "duplicate message dropped: " + ack);
+                    break;
+                }
 
-                // pub to all client if this device is server.
-                connectionManager.pubDataToAllClients(data, schannel);
+                // pub to all client if this device is server, relaying the very bytes received.
+                connectionManager.pubDataToAllClients(messageWrapper.getFrame(), schannel);
 
                 // uncomment below line will enable the App to issue push notification upon receiving messages
                 //showNotification(data);
@@ -188,18 +227,101 @@ public class ConnectionService extends Service {
                 break;
 
             case Constant.IMMEDIATE_ACKNOWLEDGEMENT:
-                long ack1 = Long.parseLong(messageWrapper.getMessageBody());
-                Log.d(TAG, "received ack: " + ack1);
-                SendingMessageQueue.getInstance().acknowledge(ack1);
+                AckCoalescer.AckRange range;
+                try {
+                    range = AckCoalescer.AckRange.parse(messageWrapper);
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "bad ack frame dropped: " + e.toString());
+                    break;
+                }
+                Log.d(TAG, "received ack: " + range.base + " run: " + range.run + " sack: " + range.sack);
+                PeerRegistry.Peer peer = connectionManager.peers().get(schannel);
+                SendingMessageQueue.getInstance().acknowledge(range, schannel, peer != null ? peer.getRtt() : null);
+                connectionManager.onAcknowledged(schannel, range);
+                RoutingManager.getInstance().onAcknowledged(range);
+
+                break;
+
+            case Constant.HEARTBEAT:
+                // echoed at once, the id is the sender's clock
+                connectionManager.sendTo(schannel, new MessageWrapper(HEARTBEAT_ECHO, 0, messageWrapper.getAck(), ""));
+
+                break;
+
+            case Constant.HEARTBEAT_ECHO:
+                connectionManager.onHeartbeatEcho(schannel, messageWrapper.getAck());
+
+                break;
+
+            case Constant.SESSION_RESUME:
+                // the peer's MAC and run; frames it did not ack on an earlier link are replayed
+                connectionManager.onSessionResume(schannel, messageBody);
+
+                break;
+
+            case Constant.SESSION_GAP:
+                // the peer lost frames to us it could not replay; our history misses them, the user is told
+                long[] gap = PeerSession.parseGap(messageBody);
+                if (gap != null) {
+                    Log.e(TAG, "session gap: " + gap[0] + " messages lost, ids " + gap[1] + ".." + gap[2]);
+                    showInActivity(new MessageRow(connectionManager.peerName(schannel),
+                            gap[0] + " messages were lost on the way", null).toString());
+                }
 
                 break;
 
             case Constant.ROUTING_ACKNOWLEDGEMENT:
+                // a neighbor's routing table, only travels one hop; it names the neighbor's MAC
+                connectionManager.onPeerMac(schannel, RoutingTable.advertiser(messageBody));
+                RoutingManager.getInstance().onRouteAdvertisement(messageWrapper);
 
                 break;
-        }
 
-        return data;
+            case Constant.ROUTED_MESSAGE:
+                // acked like a MESSAGE, the sender's ConnectionScheduler waits for it.
+                ackLater(schannel, messageWrapper.getAck());
+
+                RoutedMessage routedMessage;
+                try {
+                    routedMessage = RoutedMessage.parse(messageWrapper);
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, e.toString());
+                    break;
+                }
+                // the same message can reach this device along several paths, RoutingManager drops the copies
+                String routedBody = RoutingManager.getInstance().onRoutedMessage(routedMessage);
+                if (routedBody != null) {
+                    showInActivity(routedBody);
+                }
+
+                break;
+
+            case Constant.SUMMARY_VECTOR:
+                // a new neighbor tells what it holds, send it the rest
+                for (MessageWrapper missing : RoutingManager.getInstance().onSummaryVector(messageWrapper)) {
+                    connectionManager.sendTo(schannel, missing);
+                }
+
+                break;
+
+            case Constant.FILE_OFFER:
+            case Constant.FILE_RESUME:
+            case Constant.FILE_DATA:
+            case Constant.FILE_DONE:
+                // file streams share the channel, in the bulk lane
+                FileStreamManager.getInstance().onFrame(messageWrapper);
+
+                break;
+
+            case Constant.SWARM_ANNOUNCE:
+            case Constant.SWARM_HAVE:
+            case Constant.SWARM_REQUEST:
+            case Constant.SWARM_PIECE:
+                // a file distributed to the whole group, fetched from every neighbor holding its chunks
+                SwarmManager.getInstance().onFrame(messageWrapper);
+
+                break;
+        }
     }
 
     /**
@@ -207,53 +329,86 @@ public class ConnectionService extends Service {
      * If the sender is the server, pub to all client.
      * If the sender is client, only can send to the server.
      */
-    private void onPushOutData(String data) {
-        connectionManager.pushOutData(data);
+    private void onPushOutData(MessageWrapper messageWrapper) {
+        // pending acks ride along with the data frame, in the same gathering write.
+        if (messageWrapper.getCategory() == MESSAGE && !ackCoalescers.isEmpty()) {
+            flushAcks();
+        }
+        connectionManager.pushOutData(messageWrapper);
     }
 
     /**
-     * sync call to send data using conn man's channel, as conn man now is blocking on select
+     * ack a frame received from the channel shortly, together with the others received meanwhile.
      */
-    public int connectionSendData(String jsonstring) {
-//    	Log.d(TAG, "connectionSendData : " + jsonstring);
-        new SendDataAsyncTask(connectionManager, jsonstring).execute();
-        return 0;
-        //return connectionManager.clientSendData(jsonstring);
+    private void ackLater(SocketChannel origin, long id) {
+        AckCoalescer coalescer = ackCoalescers.get(origin);
+        if (coalescer == null) {
+            coalescer = new AckCoalescer();
+            ackCoalescers.put(origin, coalescer);
+            messageHandler.postDelayed(flushAcksRunnable, AckCoalescer.DEFAULT_DELAY_MILLIS);
+        }
+        coalescer.add(id);
+        if (coalescer.pending() >= AckCoalescer.MAX_PENDING) {
+            flushAcks();
+        }
     }
 
     /**
-     * write data in an async task to avoid NetworkOnMainThreadException.
+     * send the coalesced acks of every message received since the last flush, each to the peer it came from.
      */
-    public class SendDataAsyncTask extends AsyncTask<Void, Void, Integer> {
-        private String data;
-        private ConnectionManager connman;
-
-        public SendDataAsyncTask(ConnectionManager conn, String jsonstring) {
-            connman = conn;
-            data = jsonstring;
-        }
-
-        @Override
-        protected Integer doInBackground(Void... params) {
-            return connman.pushOutData(data);
+    private void flushAcks() {
+        messageHandler.removeCallbacks(flushAcksRunnable);
+        for (Map.Entry<SocketChannel, AckCoalescer> entry : ackCoalescers.entrySet()) {
+            for (MessageWrapper ackMessage : entry.getValue().flush()) {
+                if (entry.getKey() != null) {
+                    connectionManager.sendTo(entry.getKey(), ackMessage);   // dropped if the link is gone
+                } else {
+                    connectionManager.pushOutData(ackMessage);
+                }
+            }
         }
+        ackCoalescers.clear();
+    }
 
-        @Override
-        protected void onPostExecute(Integer result) {
-//			Log.d(TAG, "SendDataAsyncTask : onPostExecute:  " + data + " len: " + result);
-        }
+    /**
+     * send data using conn man's channel; the frame is queued and written by the reactor thread.
+     */
+    public int connectionSendData(MessageWrapper messageWrapper) {
+//    	Log.d(TAG, "connectionSendData : " + messageWrapper);
+        pushOutMessage(messageWrapper);
+        return 0;
     }
 
     /**
-     * show the message in activity
+     * show the message in activity; the message is stored now, the ui hears of it with the rest of the batch.
      */
     private void showInActivity(final String msg) {
+        // in the history first, whether the chat activity is up or not
+        MessageStore.getInstance().append(MessageStore.GROUP_CONVERSATION, msg);
 //    	Log.d(TAG, "showInActivity : " + msg);
-        if (chatActivity != null) {
-            chatActivity.runOnUiThread(new Runnable() {
+        uiBatchLastMsg = msg;
+        if (!uiBatchPending) {
+            uiBatchPending = true;
+            messageHandler.postDelayed(uiBatchRunnable, UI_BATCH_MILLIS);
+        }
+    }
+
+    /**
+     * one ui thread post for every message stored since the last batch.
+     */
+    private void deliverUiBatch() {
+        uiBatchPending = false;
+        final String lastMsg = uiBatchLastMsg;
+        uiBatchLastMsg = null;
+        if (lastMsg == null) {
+            return;
+        }
+        final ChatActivity activity = chatActivity;
+        if (activity != null) {
+            activity.runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    chatActivity.showMessage(msg);
+                    activity.showMessages();
                 }
             });
         } else {
@@ -262,7 +417,7 @@ public class ConnectionService extends Service {
                 ((WiFiChatApp) getApplication()).mHomeActivity.runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
-                        ((WiFiChatApp) getApplication()).mHomeActivity.startChatActivity(msg);
+                        ((WiFiChatApp) getApplication()).mHomeActivity.startChatActivity(lastMsg);
                     }
                 });
             }
@@ -272,13 +427,65 @@ public class ConnectionService extends Service {
     /**
      * post send msg to service to handle it in background.
      */
-    public static void pushOutMessage(String formattedString) {
+    public static void pushOutMessage(MessageWrapper messageWrapper) {
         Message msg = ConnectionService.getInstance().getHandler().obtainMessage();
         msg.what = MSG_PUSHOUT_DATA;
-        msg.obj = formattedString;
+        msg.obj = messageWrapper;
         ConnectionService.getInstance().getHandler().sendMessage(msg);
     }
 
+    /**
+     * post send msg to one linked peer only; dropped if the link is gone.
+     */
+    public static void pushOutMessageTo(final SocketChannel channel, final MessageWrapper messageWrapper) {
+        final ConnectionService service = ConnectionService.getInstance();
+        service.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                service.connectionManager.sendTo(channel, messageWrapper);
+            }
+        });
+    }
+
+    /**
+     * post send msg to the linked peer with the MAC only; to every peer if it is not linked (yet).
+     */
+    public static void pushOutMessageTo(final String mac, final MessageWrapper messageWrapper) {
+        final ConnectionService service = ConnectionService.getInstance();
+        service.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                if (service.connectionManager.sendToMac(mac, messageWrapper) < 0) {
+                    service.onPushOutData(messageWrapper);
+                }
+            }
+        });
+    }
+
+    /**
+     * post a file to send to the connected peers, on the chat connections. The service closes the source.
+     */
+    public static void pushOutFile(final FileChannel source, final FileManifest manifest) {
+        ConnectionService.getInstance().getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                FileStreamManager.getInstance().send(source, manifest);
+            }
+        });
+    }
+
+    /**
+     * post a file to distribute to the whole group in swarm mode, see SwarmManager. The service closes the source.
+     */
+    public static void distributeFile(final FileChannel source, final FileManifest manifest) {
+        ConnectionService.getInstance().getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                SwarmManager.getInstance().distribute(source, manifest);
+            }
+        });
+    }
+
     /**
      * send a notification upon recv data
      */
@@ -15,17 +15,36 @@ public final class Constant {
 
     public static final int MSG_SELECT_ERROR = 2001;
     public static final int MSG_BROKEN_CONN = 2002;  // network disconnect
+    public static final int MSG_CONNECT_FAILED = 2003;  // client connect refused, or timed out
 
     // message format
     public static final int DEVICE_MAC_ADDRESS = 1;
     public static final int GROUP_MAC_ADDRESS = 2;
     public static final int MESSAGE = 3;
     public static final int IMMEDIATE_ACKNOWLEDGEMENT = 4;
-    public static final int ROUTING_ACKNOWLEDGEMENT = 5;
+    public static final int ROUTING_ACKNOWLEDGEMENT = 5;   // distance-vector route advertisement
+    public static final int ROUTED_MESSAGE = 6;           // multi-hop envelope of a MESSAGE
+    public static final int SUMMARY_VECTOR = 7;           // ids held in the store-and-forward buffer
+    public static final int FILE_OFFER = 8;               // binary FileManifest, id is the stream id
+    public static final int FILE_RESUME = 9;              // first chunk the receiver wants
+    public static final int FILE_DATA = 10;               // binary: offset(8) | file bytes
+    public static final int FILE_DONE = 11;               // file complete and verified
+    public static final int SWARM_ANNOUNCE = 12;          // binary FileManifest of a group distribution
+    public static final int SWARM_HAVE = 13;              // binary: chunks the sender holds
+    public static final int SWARM_REQUEST = 14;           // binary: chunk(4) wanted from the receiver
+    public static final int SWARM_PIECE = 15;             // binary: chunk(4) | offset in chunk(4) | bytes
+    public static final int SESSION_RESUME = 16;          // mac | session id, first frame of every link
+    public static final int HEARTBEAT = 17;               // id is the sender's send time, on a quiet link
+    public static final int HEARTBEAT_ECHO = 18;          // the HEARTBEAT id sent back
+    public static final int SESSION_GAP = 19;             // count | first id | last id of frames lost unacked
 
     // Tokens for different message types
     public static final String MESSAGE_ROW_TOKEN = "^&^";
     public static final String MESSAGE_WRAPPER_TOKEN = "#$#";
     public static final String PERSISTENT_GROUP_PEERS_TOKEN = "&*&";
+    public static final String ROUTE_ENTRY_TOKEN = "&*&";
+    public static final String ROUTE_FIELD_TOKEN = "=";
+    public static final String ROUTE_DESTINATION_TOKEN = ",";
+    public static final String SESSION_FIELD_TOKEN = "|";
 
 }
@@ -19,7 +19,6 @@ package com.colorcloud.wifichat;
 import android.app.Activity;
 import android.app.Fragment;
 import android.app.ProgressDialog;
-import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.net.wifi.WpsInfo;
@@ -27,7 +26,6 @@ import android.net.wifi.p2p.WifiP2pConfig;
 import android.net.wifi.p2p.WifiP2pDevice;
 import android.net.wifi.p2p.WifiP2pInfo;
 import android.net.wifi.p2p.WifiP2pManager.ConnectionInfoListener;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.util.Log;
@@ -39,12 +37,7 @@ import android.widget.TextView;
 import com.colorcloud.wifichat.DeviceListFragment.DeviceActionListener;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
 
 /**
  * A fragment that manages a particular peer and allows interaction with device
@@ -160,7 +153,9 @@ public class DeviceDetailFragment extends Fragment implements ConnectionInfoList
 //        statusText.setText("Sending: " + uri);
 //        Log.d(WiFiDirectActivity.TAG, "Intent----------- " + uri);
         Intent serviceIntent = new Intent(getActivity(), FileTransferService.class);
-        serviceIntent.setAction(FileTransferService.ACTION_SEND_FILE);
+        // the group owner distributes to every member at once, a member sends to the owner
+        serviceIntent.setAction(info.isGroupOwner ? FileTransferService.ACTION_DISTRIBUTE_FILE
+                : FileTransferService.ACTION_SEND_FILE);
         serviceIntent.putExtra(FileTransferService.EXTRAS_FILE_PATH, uri.toString());
         serviceIntent.putExtra(FileTransferService.EXTRAS_GROUP_OWNER_ADDRESS, info.groupOwnerAddress.getHostAddress());
         serviceIntent.putExtra(FileTransferService.EXTRAS_GROUP_OWNER_PORT, 8988);
@@ -191,11 +186,14 @@ public class DeviceDetailFragment extends Fragment implements ConnectionInfoList
 //        view.setText("Group Owner IP - " + info.groupOwnerAddress.getHostAddress());
 
         // After the group negotiation, we assign the group owner as the file
-        // server. The file server is single threaded, single connection server
-        // socket.
+        // server. The file server is long-lived and takes several transfers at
+        // once, see FileServer.
 //        Log.d(TAG, "onConnectionInfoAvailable: " + info.groupOwnerAddress.getHostAddress());
+        // files also come in on the chat connections, on every device
+        FileStreamManager.getInstance().setListener(fileServerListener);
+        SwarmManager.getInstance().setListener(fileServerListener);
         if (info.groupFormed && info.isGroupOwner) {
-            //new FileServerAsyncTask(getActivity(), mContentView.findViewById(R.id.status_text)).execute();
+            startFileServer();
 //            Log.d(TAG, "onConnectionInfoAvailable: device is groupOwner: startSocketServer ");
             ((WiFiChatApp) getActivity().getApplication()).startSocketServer();
         } else if (info.groupFormed) {
@@ -211,7 +209,7 @@ public class DeviceDetailFragment extends Fragment implements ConnectionInfoList
         // if this connected device is not group owner, send its MAC to owner to construct the peer list
         if (!info.isGroupOwner) {
             MessageWrapper messageWrapper = new MessageWrapper(Constant.DEVICE_MAC_ADDRESS, WiFiDirectActivity.getWiFiDirectMacAddress());
-            ConnectionService.pushOutMessage(messageWrapper.toString());
+            ConnectionService.pushOutMessage(messageWrapper);
         }
 
 //        Log.d(TAG, "onConnectionInfoAvailable: socket connection established, show start chat button ! ");
@@ -248,98 +246,52 @@ public class DeviceDetailFragment extends Fragment implements ConnectionInfoList
         view.setText(R.string.empty);
 //        mContentView.findViewById(R.id.btn_start_client).setVisibility(View.GONE);
         this.getView().setVisibility(View.GONE);
+        FileServer.getInstance().stop();
     }
 
     /**
-     * A simple server socket that accepts connection and writes some data on
-     * the stream.
+     * the file server's progress, on the log, and opens each received file with its real MIME type.
      */
-    public static class FileServerAsyncTask extends AsyncTask<Void, Void, String> {
-
-        private Context context;
-        private TextView statusText;
-
-        /**
-         * @param context
-         * @param statusText
-         */
-        public FileServerAsyncTask(Context context, View statusText) {
-            this.context = context;
-            this.statusText = (TextView) statusText;
-        }
-
+    private final FileServer.Listener fileServerListener = new FileServer.Listener() {
         @Override
-        protected String doInBackground(Void... params) {
-            try {
-                ServerSocket serverSocket = new ServerSocket(8988);
-//                Log.d(WiFiDirectActivity.TAG, "Server: Socket opened");
-
-                Socket client = serverSocket.accept();
-//                Log.d(WiFiDirectActivity.TAG, "Server: connection done");
-
-
-                final File f = new File(Environment.getExternalStorageDirectory() + "/"
-                        + context.getPackageName() + "/wifip2pshared-" + System.currentTimeMillis()
-                        + ".jpg");
-
-                File dirs = new File(f.getParent());
-                if (!dirs.exists())
-                    dirs.mkdirs();
-                f.createNewFile();
-
-//                Log.d(WiFiDirectActivity.TAG, "server: copying files " + f.toString());
-                InputStream inputstream = client.getInputStream();
-                copyFile(inputstream, new FileOutputStream(f));
-                serverSocket.close();
-                return f.getAbsolutePath();
-            } catch (IOException e) {
-                Log.e("DeviceDetailFragment", e.getMessage());
-                return null;
-            }
+        public void onTransferProgress(int transfer, FileManifest manifest, long bytesDone) {
+            Log.d(TAG, "file transfer " + transfer + ": " + bytesDone + " / " + manifest.getSize() + " bytes of " + manifest.getName());
         }
 
-        /*
-         * (non-Javadoc)
-         * @see android.os.AsyncTask#onPostExecute(java.lang.Object)
-         */
         @Override
-        protected void onPostExecute(String result) {
-            if (result != null) {
-                statusText.setText("File copied - " + result);
-                Intent intent = new Intent();
-                intent.setAction(android.content.Intent.ACTION_VIEW);
-                intent.setDataAndType(Uri.parse("file://" + result), "image/*");
-                context.startActivity(intent);
+        public void onTransferDone(int transfer, final FileTransferEngine.Received received) {
+            final Activity activity = getActivity();
+            if (activity == null) {
+                return;
             }
-
+            activity.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    Intent intent = new Intent();
+                    intent.setAction(android.content.Intent.ACTION_VIEW);
+                    intent.setDataAndType(Uri.parse("file://" + received.file.getAbsolutePath()), received.manifest.getMimeType());
+                    activity.startActivity(intent);
+                }
+            });
         }
 
-        /*
-         * (non-Javadoc)
-         * @see android.os.AsyncTask#onPreExecute()
-         */
         @Override
-        protected void onPreExecute() {
-            statusText.setText("Opening a server socket");
+        public void onTransferFailed(int transfer, IOException e) {
+            Log.e(TAG, "file transfer " + transfer + " failed, the sender resumes it: " + e.toString());
         }
+    };
 
-    }
-
-    public static boolean copyFile(InputStream inputStream, OutputStream out) {
-        byte buf[] = new byte[1024];
-        int len;
+    /**
+     * start the long-lived file server on the group owner.
+     */
+    private void startFileServer() {
+        File dir = new File(Environment.getExternalStorageDirectory() + "/" + getActivity().getPackageName());
+        FileServer.getInstance().setListener(fileServerListener);
         try {
-            while ((len = inputStream.read(buf)) != -1) {
-                out.write(buf, 0, len);
-
-            }
-            out.close();
-            inputStream.close();
+            FileServer.getInstance().start(dir);
         } catch (IOException e) {
-            Log.e("DeviceDetailFragment", e.toString());
-            return false;
+            Log.e(TAG, "startFileServer: " + e.toString());
         }
-        return true;
     }
 
 }
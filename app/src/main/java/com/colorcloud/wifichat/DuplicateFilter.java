@@ -0,0 +1,87 @@
+package com.colorcloud.wifichat;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * drops messages already received, in O(1) and bounded memory.
+ * <p/>
+ * Per sender (see MessageIdGenerator) it keeps the highest sequence seen and a bitmap of the WINDOW sequences
+ * below it, like the anti-replay window of IPsec. Sequences older than the window are treated as duplicates:
+ * frames of one sender come in order over TCP, only retransmissions arrive late, and never that late.
+ * Only the MAX_SENDERS most recently active senders are remembered.
+ * <p/>
+ * Not thread safe, used on the connection service thread.
+ */
+public class DuplicateFilter {
+
+    static final int WINDOW = 1024;
+    static final int MAX_SENDERS = 256;
+
+    private static final class SequenceWindow {
+        final long[] bits = new long[WINDOW / 64];
+        long highest = -1;
+
+        boolean accept(long sequence) {
+            if (sequence > highest) {
+                long advance = sequence - highest;
+                if (highest < 0 || advance >= WINDOW) {
+                    Arrays.fill(bits, 0);
+                } else {
+                    for (long s = highest + 1; s < sequence; s++) {
+                        clear(s);
+                    }
+                }
+                highest = sequence;
+                set(sequence);
+                return true;
+            }
+
+            if (highest - sequence >= WINDOW || isSet(sequence)) {
+                return false;
+            }
+            set(sequence);
+            return true;
+        }
+
+        private boolean isSet(long s) {
+            int index = (int) (s & (WINDOW - 1));
+            return (bits[index >>> 6] & (1L << index)) != 0;
+        }
+
+        private void set(long s) {
+            int index = (int) (s & (WINDOW - 1));
+            bits[index >>> 6] |= 1L << index;
+        }
+
+        private void clear(long s) {
+            int index = (int) (s & (WINDOW - 1));
+            bits[index >>> 6] &= ~(1L << index);
+        }
+    }
+
+    private final Map<Long, SequenceWindow> windows = new LinkedHashMap<Long, SequenceWindow>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, SequenceWindow> eldest) {
+            return size() > MAX_SENDERS;
+        }
+    };
+
+    /**
+     * @return true the first time a message id is seen, false for a duplicate.
+     */
+    public boolean accept(long messageId) {
+        Long sender = MessageIdGenerator.senderOf(messageId);
+        SequenceWindow window = windows.get(sender);
+        if (window == null) {
+            window = new SequenceWindow();
+            windows.put(sender, window);
+        }
+        return window.accept(MessageIdGenerator.sequenceOf(messageId));
+    }
+
+    public void reset() {
+        windows.clear();
+    }
+}
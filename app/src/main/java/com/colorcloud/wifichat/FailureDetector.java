@@ -0,0 +1,103 @@
+package com.colorcloud.wifichat;
+
+/**
+ * tells whether a peer is still there from the arrival times of its frames, any frame: data traffic counts as a
+ * heartbeat, heartbeats are only sent on a quiet link.
+ * <p/>
+ * MISSED_BEATS suspects the peer once nothing arrived for threshold heartbeat intervals. PHI_ACCRUAL (Hayashibara
+ * et al.) suspects it once phi, -log10 of the probability that the next frame is still to come this late, passes
+ * threshold; the arrival intervals are taken as normally distributed over the last WINDOW ones. Intervals are
+ * counted as at least one heartbeat interval, the longest a live peer stays quiet, so a burst of traffic does not
+ * make the next quiet second look like a failure.
+ * <p/>
+ * Thread-safe.
+ */
+public class FailureDetector {
+
+    public static final int MISSED_BEATS = 0;
+    public static final int PHI_ACCRUAL = 1;
+    public static final double DEFAULT_MAX_MISSED = 4;
+    public static final double DEFAULT_PHI_THRESHOLD = 8;
+
+    private static final int WINDOW = 32;
+
+    private final int mode;
+    private final long intervalMillis;
+    private final double threshold;
+    private final long[] intervals = new long[WINDOW];
+    private int count = 0;
+    private int next = 0;
+    private long lastArrival;
+
+    /**
+     * @param mode           MISSED_BEATS or PHI_ACCRUAL.
+     * @param intervalMillis heartbeat interval.
+     * @param threshold      missed intervals, or phi, at which the peer is suspected.
+     * @param now            link up time, the first arrival.
+     */
+    public FailureDetector(int mode, long intervalMillis, double threshold, long now) {
+        this.mode = mode;
+        this.intervalMillis = intervalMillis;
+        this.threshold = threshold;
+        this.lastArrival = now;
+    }
+
+    /**
+     * a frame arrived from the peer.
+     */
+    public synchronized void heartbeat(long now) {
+        long interval = Math.max(intervalMillis, now - lastArrival);
+        lastArrival = now;
+        intervals[next] = interval;
+        next = (next + 1) % WINDOW;
+        if (count < WINDOW) {
+            count++;
+        }
+    }
+
+    public synchronized long getLastArrival() {
+        return lastArrival;
+    }
+
+    /**
+     * suspicion level of the peer now, phi for PHI_ACCRUAL and missed intervals for MISSED_BEATS.
+     */
+    public synchronized double suspicion(long now) {
+        long elapsed = now - lastArrival;
+        if (mode == MISSED_BEATS) {
+            return (double) elapsed / intervalMillis;
+        }
+
+        double mean = intervalMillis;
+        double variance = 0;
+        if (count > 0) {
+            double sum = 0;
+            for (int i = 0; i < count; i++) {
+                sum += intervals[i];
+            }
+            mean = sum / count;
+            for (int i = 0; i < count; i++) {
+                variance += (intervals[i] - mean) * (intervals[i] - mean);
+            }
+            variance /= count;
+        }
+        double stdDev = Math.max(Math.sqrt(variance), intervalMillis / 4.0);   // a few samples are all alike
+        return phi(elapsed, mean, stdDev);
+    }
+
+    public boolean isAvailable(long now) {
+        return suspicion(now) < threshold;
+    }
+
+    /**
+     * -log10(1 - F(elapsed)) for the normal distribution, with the logistic approximation of its CDF.
+     */
+    static double phi(long elapsed, double mean, double stdDev) {
+        double y = (elapsed - mean) / stdDev;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (elapsed > mean) {
+            return -Math.log10(e / (1.0 + e));
+        }
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+}
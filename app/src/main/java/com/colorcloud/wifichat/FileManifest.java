@@ -0,0 +1,167 @@
+package com.colorcloud.wifichat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * what a file transfer carries besides the bytes: the real file name and MIME type, the size, and the CRC32 of
+ * every fixed-size chunk, so the receiver verifies each chunk as it lands and a broken transfer can resume
+ * from the last verified one.
+ * <p/>
+ * The transfer id is a digest of the whole manifest: the same file sent again maps to the same partial file on
+ * the receiver, a modified file does not.
+ */
+public class FileManifest {
+
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    static final int MAX_CHUNKS = 1 << 20;
+    private static final int SCRATCH_SIZE = 64 * 1024;
+
+    private final String name;
+    private final String mimeType;
+    private final long size;
+    private final int chunkSize;
+    private final int[] checksums;
+
+    public FileManifest(String name, String mimeType, long size, int chunkSize, int[] checksums) {
+        this.name = name;
+        this.mimeType = mimeType;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.checksums = checksums;
+    }
+
+    /**
+     * read the file once to checksum its chunks.
+     */
+    public static FileManifest build(FileChannel source, String name, String mimeType, int chunkSize) throws IOException {
+        long size = source.size();
+        long count = (size + chunkSize - 1) / chunkSize;
+        if (count > MAX_CHUNKS) {
+            throw new IOException("file too large for chunk size " + chunkSize + ": " + size);
+        }
+
+        int[] checksums = new int[(int) count];
+        ByteBuffer scratch = ByteBuffer.allocate(SCRATCH_SIZE);
+        for (int i = 0; i < checksums.length; i++) {
+            long offset = (long) i * chunkSize;
+            checksums[i] = checksum(source, offset, (int) Math.min(chunkSize, size - offset), scratch);
+        }
+        return new FileManifest(name, mimeType, size, chunkSize, checksums);
+    }
+
+    /**
+     * CRC32 of length bytes at position, read through scratch (a heap buffer), the channel position is untouched.
+     */
+    public static int checksum(FileChannel channel, long position, int length, ByteBuffer scratch) throws IOException {
+        CRC32 crc = new CRC32();
+        long end = position + length;
+        while (position < end) {
+            scratch.clear();
+            scratch.limit((int) Math.min(scratch.capacity(), end - position));
+            int n = channel.read(scratch, position);
+            if (n < 0) {
+                throw new IOException("file shorter than expected at " + position);
+            }
+            crc.update(scratch.array(), 0, n);
+            position += n;
+        }
+        return (int) crc.getValue();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int chunkCount() {
+        return checksums.length;
+    }
+
+    public long chunkOffset(int chunk) {
+        return (long) chunk * chunkSize;
+    }
+
+    public int chunkLength(int chunk) {
+        return (int) Math.min(chunkSize, size - chunkOffset(chunk));
+    }
+
+    public int checksum(int chunk) {
+        return checksums[chunk];
+    }
+
+    public long transferId() {
+        byte[] bytes = toBytes();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        long high = crc.getValue();
+        crc.reset();
+        for (int i = bytes.length - 1; i >= 0; i--) {
+            crc.update(bytes[i]);
+        }
+        return (high << 32) | crc.getValue();
+    }
+
+    public byte[] toBytes() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + name.length() + 4 * checksums.length);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(name);
+            out.writeUTF(mimeType);
+            out.writeLong(size);
+            out.writeInt(chunkSize);
+            out.writeInt(checksums.length);
+            for (int checksum : checksums) {
+                out.writeInt(checksum);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);   // not on a byte array
+        }
+    }
+
+    /**
+     * @throws IOException the bytes are not a consistent manifest.
+     */
+    public static FileManifest fromBytes(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        String name = new File(in.readUTF()).getName();   // a name, never a path
+        String mimeType = in.readUTF();
+        long size = in.readLong();
+        int chunkSize = in.readInt();
+        int count = in.readInt();
+        if (size < 0 || chunkSize <= 0 || count < 0 || count > MAX_CHUNKS
+                || count != (size + chunkSize - 1) / chunkSize) {
+            throw new IOException("bad file manifest: size " + size + " chunk " + chunkSize + " count " + count);
+        }
+        int[] checksums = new int[count];
+        for (int i = 0; i < count; i++) {
+            checksums[i] = in.readInt();
+        }
+        return new FileManifest(name, mimeType, size, chunkSize, checksums);
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + mimeType + ", " + size + " bytes, " + checksums.length + " chunks)";
+    }
+}
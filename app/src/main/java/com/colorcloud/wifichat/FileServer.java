@@ -0,0 +1,182 @@
+package com.colorcloud.wifichat;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * long-lived file server, replaces the single-shot FileServerAsyncTask.
+ * <p/>
+ * One acceptor thread keeps the port bound for as long as the server runs and hands every connection to a pool
+ * of MAX_TRANSFERS workers, each running FileTransferEngine.receive(); further connections wait for a free
+ * worker. All transfers share the process wide BandwidthLimiter, so file traffic cannot starve the chat frames.
+ * <p/>
+ * The Listener is called on the worker threads.
+ */
+public class FileServer {
+
+    private static final String TAG = "FileServer";
+    public static final int PORT = 8988;
+    public static final int MAX_TRANSFERS = 4;
+
+    public interface Listener {
+        void onTransferProgress(int transfer, FileManifest manifest, long bytesDone);
+
+        void onTransferDone(int transfer, FileTransferEngine.Received received);
+
+        void onTransferFailed(int transfer, IOException e);
+    }
+
+    private ServerSocketChannel serverChannel = null;
+    private ExecutorService workers = null;
+    private final AtomicInteger nextTransfer = new AtomicInteger();
+    private volatile Listener listener;
+
+    private FileServer() {
+    }
+
+    private static final FileServer instance = new FileServer();
+
+    public static FileServer getInstance() {
+        return instance;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized boolean isRunning() {
+        return serverChannel != null;
+    }
+
+    /**
+     * bind the port and start accepting, files are stored in dir. Does nothing if already running.
+     */
+    public void start(File dir) throws IOException {
+        start(dir, PORT);
+    }
+
+    /**
+     * @param port 0 for any free port, see localPort().
+     */
+    synchronized void start(final File dir, int port) throws IOException {
+        if (serverChannel != null) {
+            return;
+        }
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+
+        final ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.socket().setReuseAddress(true);
+        channel.socket().bind(new InetSocketAddress(port));
+        final ExecutorService pool = Executors.newFixedThreadPool(MAX_TRANSFERS);
+        serverChannel = channel;
+        workers = pool;
+
+        new Thread(TAG) {
+            @Override
+            public void run() {
+                accept(channel, pool, dir);
+            }
+        }.start();
+        Log.d(TAG, "file server started on " + channel.socket().getLocalPort() + ", storing in " + dir);
+    }
+
+    /**
+     * the port the server is bound to, -1 if it is not running.
+     */
+    synchronized int localPort() {
+        return serverChannel == null ? -1 : serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * unbind the port and abort the transfers in progress, their partial files stay for a resume.
+     */
+    public synchronized void stop() {
+        if (serverChannel == null) {
+            return;
+        }
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "stop: " + e.toString());
+        }
+        workers.shutdownNow();   // interrupting a worker closes its channel
+        serverChannel = null;
+        workers = null;
+        Log.d(TAG, "file server stopped");
+    }
+
+    private void accept(ServerSocketChannel channel, ExecutorService pool, final File dir) {
+        while (channel.isOpen()) {
+            final SocketChannel client;
+            try {
+                client = channel.accept();
+            } catch (IOException e) {
+                if (channel.isOpen()) {
+                    Log.e(TAG, "accept: " + e.toString());
+                }
+                return;
+            }
+
+            final int transfer = nextTransfer.incrementAndGet();
+            Log.d(TAG, "transfer " + transfer + " from " + client.socket().getInetAddress().getHostAddress());
+            try {
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        receive(transfer, client, dir);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                close(client);   // stopped meanwhile
+                return;
+            }
+        }
+    }
+
+    private void receive(final int transfer, SocketChannel client, File dir) {
+        try {
+            FileTransferEngine.Received received = FileTransferEngine.receive(client, dir,
+                    BandwidthLimiter.getInstance(), new FileTransferEngine.Progress() {
+                        @Override
+                        public void onProgress(FileManifest manifest, long bytesDone) {
+                            Listener l = listener;
+                            if (l != null) {
+                                l.onTransferProgress(transfer, manifest, bytesDone);
+                            }
+                        }
+                    });
+            Log.d(TAG, "transfer " + transfer + " done: " + received.file);
+            Listener l = listener;
+            if (l != null) {
+                l.onTransferDone(transfer, received);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "transfer " + transfer + " failed: " + e.toString());
+            Listener l = listener;
+            if (l != null) {
+                l.onTransferFailed(transfer, e);
+            }
+        } finally {
+            close(client);
+        }
+    }
+
+    private static void close(SocketChannel client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            // Give up
+        }
+    }
+}
@@ -0,0 +1,431 @@
+package com.colorcloud.wifichat;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static com.colorcloud.wifichat.Constant.FILE_DATA;
+import static com.colorcloud.wifichat.Constant.FILE_DONE;
+import static com.colorcloud.wifichat.Constant.FILE_OFFER;
+import static com.colorcloud.wifichat.Constant.FILE_RESUME;
+
+/**
+ * file streams multiplexed on the chat socket channels, instead of a second connection on port 8988.
+ * <p/>
+ * A stream is identified by its id in the frame id field. The sender offers the FileManifest (FILE_OFFER), the
+ * receiver answers with the first chunk it wants (FILE_RESUME), the sender streams FILE_DATA frames of
+ * DATA_SLICE bytes from there and the receiver confirms the verified file (FILE_DONE). Chunks are checked and
+ * resume state kept exactly as in FileTransferEngine, so a stream broken with the link continues from the last
+ * verified chunk when the file is offered again. A chunk failing its checksum is asked again with FILE_RESUME.
+ * <p/>
+ * FILE_DATA frames go into the bulk lane of the OutboundQueue, behind control and chat frames. The sender only
+ * queues data while the bulk lane has room and polls every PUMP_INTERVAL otherwise: the socket's pace is the
+ * stream's pace. Outgoing data also takes its share of the process wide BandwidthLimiter, like FileTransferEngine;
+ * without tokens the pump comes back when there are, it never sleeps on the service thread.
+ * <p/>
+ * Everything runs on the connection service thread.
+ */
+public class FileStreamManager {
+
+    private static final String TAG = "FileStreamManager";
+    private static final int DATA_SLICE = 16 * 1024;
+    private static final long PUMP_INTERVAL = 10;
+
+    private static final class Outgoing {
+        final long id;
+        final SocketChannel channel;
+        final FileChannel source;
+        final FileManifest manifest;
+        long position = -1;   // not started until FILE_RESUME
+
+        Outgoing(long id, SocketChannel channel, FileChannel source, FileManifest manifest) {
+            this.id = id;
+            this.channel = channel;
+            this.source = source;
+            this.manifest = manifest;
+        }
+    }
+
+    private static final class Incoming {
+        final int transfer;
+        final FileManifest manifest;
+        final File part;
+        final File resume;
+        final RandomAccessFile file;
+        long expected;
+        int verified;
+
+        Incoming(int transfer, FileManifest manifest, File part, File resume, RandomAccessFile file) {
+            this.transfer = transfer;
+            this.manifest = manifest;
+            this.part = part;
+            this.resume = resume;
+            this.file = file;
+        }
+    }
+
+    private ConnectionManager connectionManager;
+    private Handler handler;
+    private File dir;
+    private volatile FileServer.Listener listener;
+    private final Map<Long, Outgoing> outgoing = new HashMap<Long, Outgoing>();
+    private final Map<SocketChannel, Map<Long, Incoming>> incoming = new HashMap<SocketChannel, Map<Long, Incoming>>();
+    private final ByteBuffer scratch = ByteBuffer.allocate(64 * 1024);
+    private int nextTransfer = 0;
+    private boolean pumpScheduled = false;
+
+    private final Runnable pumpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            pumpScheduled = false;
+            pump();
+        }
+    };
+
+    /**
+     * a manager of its own, to test streams between two of them.
+     */
+    FileStreamManager() {
+    }
+
+    private static final FileStreamManager instance = new FileStreamManager();
+
+    public static FileStreamManager getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param handler the connection service handler, everything runs on its thread.
+     * @param dir     where received files are stored.
+     */
+    public void init(ConnectionManager connectionManager, Handler handler, File dir) {
+        this.connectionManager = connectionManager;
+        this.handler = handler;
+        this.dir = dir;
+    }
+
+    public void setListener(FileServer.Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * offer the file to every connected peer. The source is closed once every stream of it has ended.
+     */
+    public void send(FileChannel source, FileManifest manifest) {
+        List<SocketChannel> channels = connectionManager.peerChannels();
+        if (channels.isEmpty()) {
+            Log.e(TAG, "send: no peer connected, " + manifest + " dropped");
+            close(source);
+            return;
+        }
+
+        byte[] manifestBytes = manifest.toBytes();
+        for (SocketChannel channel : channels) {
+            long id = MessageIdGenerator.getInstance().next();
+            outgoing.put(id, new Outgoing(id, channel, source, manifest));
+
+            ByteBuffer frame = FrameCodec.allocateBinary(FILE_OFFER, id, manifestBytes.length);
+            frame.put(manifestBytes);
+            connectionManager.sendTo(channel, FrameCodec.binaryMessage(frame));
+            Log.d(TAG, "offered " + manifest + " as stream " + id);
+        }
+    }
+
+    /**
+     * a FILE_* frame came in.
+     */
+    public void onFrame(MessageWrapper messageWrapper) {
+        try {
+            switch (messageWrapper.getCategory()) {
+                case FILE_OFFER:
+                    onOffer(messageWrapper);
+                    break;
+                case FILE_RESUME:
+                    onResume(messageWrapper);
+                    break;
+                case FILE_DATA:
+                    onData(messageWrapper);
+                    break;
+                case FILE_DONE:
+                    onDone(messageWrapper);
+                    break;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "stream " + messageWrapper.getAck() + ": " + e.toString());
+            abortIncoming(messageWrapper.getOrigin(), messageWrapper.getAck(), e);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "stream " + messageWrapper.getAck() + ": bad frame " + e.toString());
+        }
+    }
+
+    /**
+     * the link is gone: outgoing streams end, incoming ones keep their verified chunks for a resume.
+     */
+    public void onChannelClosed(SocketChannel channel) {
+        Iterator<Outgoing> it = outgoing.values().iterator();
+        List<FileChannel> sources = new ArrayList<FileChannel>();
+        while (it.hasNext()) {
+            Outgoing stream = it.next();
+            if (stream.channel == channel) {
+                it.remove();
+                sources.add(stream.source);
+            }
+        }
+        for (FileChannel source : sources) {
+            closeIfUnused(source);
+        }
+
+        Map<Long, Incoming> streams = incoming.remove(channel);
+        if (streams != null) {
+            for (Incoming stream : streams.values()) {
+                suspend(stream);
+            }
+        }
+    }
+
+    private void onOffer(MessageWrapper messageWrapper) throws IOException {
+        ByteBuffer payload = messageWrapper.getPayload();
+        byte[] manifestBytes = new byte[payload.remaining()];
+        payload.get(manifestBytes);
+        FileManifest manifest = FileManifest.fromBytes(manifestBytes);
+
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        Map<Long, Incoming> streams = incoming.get(messageWrapper.getOrigin());
+        if (streams == null) {
+            streams = new HashMap<Long, Incoming>();
+            incoming.put(messageWrapper.getOrigin(), streams);
+        }
+
+        // the same stream offered again: carry on with the open file, or let go of it if it is another file now
+        Incoming stream = streams.get(messageWrapper.getAck());
+        if (stream != null && stream.manifest.transferId() != manifest.transferId()) {
+            streams.remove(messageWrapper.getAck());
+            suspend(stream);
+            stream = null;
+        }
+
+        if (stream == null) {
+            String id = Long.toHexString(manifest.transferId());
+            File part = new File(dir, id + FileTransferEngine.PART_SUFFIX);
+            File resume = new File(dir, id + FileTransferEngine.RESUME_SUFFIX);
+            stream = new Incoming(++nextTransfer, manifest, part, resume, new RandomAccessFile(part, "rw"));
+            stream.verified = FileTransferEngine.readResume(resume, stream.file.getChannel(), manifest);
+            streams.put(messageWrapper.getAck(), stream);
+        }
+        stream.expected = manifest.chunkOffset(stream.verified);
+        stream.file.getChannel().truncate(stream.expected);
+        Log.d(TAG, "stream " + messageWrapper.getAck() + ": receiving " + manifest + " from chunk " + stream.verified);
+
+        reply(messageWrapper, FILE_RESUME, Integer.toString(stream.verified));
+        if (stream.verified == manifest.chunkCount()) {
+            complete(messageWrapper, stream);
+        }
+    }
+
+    private void onResume(MessageWrapper messageWrapper) {
+        Outgoing stream = outgoing.get(messageWrapper.getAck());
+        if (stream == null || stream.channel != messageWrapper.getOrigin()) {
+            return;
+        }
+        int first = Integer.parseInt(messageWrapper.getMessageBody());
+        stream.position = stream.manifest.chunkOffset(Math.min(first, stream.manifest.chunkCount()));
+        Log.d(TAG, "stream " + stream.id + ": sending from chunk " + first);
+        schedulePump(0);
+    }
+
+    private void onData(MessageWrapper messageWrapper) throws IOException {
+        Map<Long, Incoming> streams = incoming.get(messageWrapper.getOrigin());
+        Incoming stream = streams == null ? null : streams.get(messageWrapper.getAck());
+        if (stream == null) {
+            return;
+        }
+        ByteBuffer payload = messageWrapper.getPayload();
+        long offset = payload.getLong();
+        if (offset != stream.expected) {
+            return;   // sent before our last FILE_RESUME
+        }
+
+        FileChannel target = stream.file.getChannel();
+        while (payload.hasRemaining()) {
+            stream.expected += target.write(payload, stream.expected);
+        }
+
+        FileManifest manifest = stream.manifest;
+        while (stream.verified < manifest.chunkCount()
+                && stream.expected >= manifest.chunkOffset(stream.verified) + manifest.chunkLength(stream.verified)) {
+            int chunk = stream.verified;
+            if (FileManifest.checksum(target, manifest.chunkOffset(chunk), manifest.chunkLength(chunk), scratch) != manifest.checksum(chunk)) {
+                Log.e(TAG, "stream " + messageWrapper.getAck() + ": checksum mismatch in chunk " + chunk + ", asked again");
+                stream.expected = manifest.chunkOffset(chunk);
+                target.truncate(stream.expected);
+                reply(messageWrapper, FILE_RESUME, Integer.toString(chunk));
+                return;
+            }
+            stream.verified++;
+            if (stream.verified % FileTransferEngine.RESUME_SYNC_CHUNKS == 0) {
+                target.force(false);
+                FileTransferEngine.writeResume(stream.resume, stream.verified);
+            }
+            FileServer.Listener l = listener;
+            if (l != null) {
+                l.onTransferProgress(stream.transfer, manifest, stream.expected);
+            }
+        }
+
+        if (stream.verified == manifest.chunkCount()) {
+            complete(messageWrapper, stream);
+        }
+    }
+
+    private void complete(MessageWrapper messageWrapper, Incoming stream) throws IOException {
+        incoming.get(messageWrapper.getOrigin()).remove(messageWrapper.getAck());
+        stream.file.getChannel().force(false);
+        stream.file.close();
+
+        File file = FileTransferEngine.uniqueFile(dir, stream.manifest.getName(), Long.toHexString(stream.manifest.transferId()));
+        if (!stream.part.renameTo(file)) {
+            throw new IOException("cannot rename " + stream.part + " to " + file);
+        }
+        stream.resume.delete();
+        reply(messageWrapper, FILE_DONE, "0");
+        Log.d(TAG, "stream " + messageWrapper.getAck() + ": received " + file);
+
+        FileServer.Listener l = listener;
+        if (l != null) {
+            l.onTransferDone(stream.transfer, new FileTransferEngine.Received(stream.manifest, file));
+        }
+    }
+
+    private void onDone(MessageWrapper messageWrapper) {
+        Outgoing stream = outgoing.get(messageWrapper.getAck());
+        if (stream == null || stream.channel != messageWrapper.getOrigin()) {
+            return;
+        }
+        outgoing.remove(stream.id);
+        closeIfUnused(stream.source);
+        Log.d(TAG, "stream " + stream.id + ": " + stream.manifest + " delivered");
+    }
+
+    private void abortIncoming(SocketChannel channel, long id, IOException e) {
+        Map<Long, Incoming> streams = incoming.get(channel);
+        Incoming stream = streams == null ? null : streams.remove(id);
+        if (stream == null) {
+            return;
+        }
+        suspend(stream);
+        FileServer.Listener l = listener;
+        if (l != null) {
+            l.onTransferFailed(stream.transfer, e);
+        }
+    }
+
+    /**
+     * keep the verified chunks of an unfinished stream for the next offer.
+     */
+    private static void suspend(Incoming stream) {
+        try {
+            stream.file.getChannel().force(false);
+            FileTransferEngine.writeResume(stream.resume, stream.verified);
+            stream.file.close();
+        } catch (IOException e) {
+            Log.e(TAG, "suspend: " + e.toString());
+        }
+    }
+
+    /**
+     * queue data frames while the bulk lanes have room. Run by the handler; a test runs it itself.
+     */
+    void pump() {
+        boolean waiting = false;
+        long tokenWait = 0;
+        List<Outgoing> failed = new ArrayList<Outgoing>();
+        for (Outgoing stream : outgoing.values()) {
+            if (tokenWait > 0) {
+                break;   // the limiter is shared, no other stream gets tokens either
+            }
+            long size = stream.manifest.getSize();
+            if (stream.position < 0 || stream.position >= size) {
+                continue;
+            }
+
+            try {
+                while (stream.position < size) {
+                    int n = (int) Math.min(DATA_SLICE, size - stream.position);
+                    if (connectionManager.bulkRoom(stream.channel) < FrameCodec.HEADER_SIZE + 8 + n) {
+                        waiting = true;
+                        break;
+                    }
+                    tokenWait = BandwidthLimiter.getInstance().tryAcquire(FrameCodec.HEADER_SIZE + 8 + n);
+                    if (tokenWait > 0) {
+                        break;
+                    }
+                    ByteBuffer frame = FrameCodec.allocateBinary(FILE_DATA, stream.id, 8 + n);
+                    frame.putLong(stream.position);
+                    while (frame.hasRemaining()) {
+                        if (stream.source.read(frame, stream.position + frame.position() - FrameCodec.HEADER_SIZE - 8) < 0) {
+                            throw new IOException("file shrank while sending " + stream.manifest);
+                        }
+                    }
+                    if (connectionManager.sendTo(stream.channel, FrameCodec.binaryMessage(frame)) < 0) {
+                        waiting = true;
+                        break;
+                    }
+                    stream.position += n;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "stream " + stream.id + ": " + e.toString());
+                failed.add(stream);   // the receiver keeps what it verified
+            }
+        }
+        for (Outgoing stream : failed) {
+            outgoing.remove(stream.id);
+            closeIfUnused(stream.source);
+        }
+        if (tokenWait > 0) {
+            schedulePump((tokenWait + 999999) / 1000000);
+        } else if (waiting) {
+            schedulePump(PUMP_INTERVAL);
+        }
+    }
+
+    private void schedulePump(long delay) {
+        if (!pumpScheduled) {
+            pumpScheduled = true;
+            handler.postDelayed(pumpRunnable, delay);
+        }
+    }
+
+    private void reply(MessageWrapper request, int category, String body) {
+        connectionManager.sendTo(request.getOrigin(), new MessageWrapper(category, 0, request.getAck(), body));
+    }
+
+    private void closeIfUnused(FileChannel source) {
+        for (Outgoing stream : outgoing.values()) {
+            if (stream.source == source) {
+                return;
+            }
+        }
+        close(source);
+    }
+
+    private static void close(FileChannel source) {
+        try {
+            source.close();
+        } catch (IOException e) {
+            // Give up
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.colorcloud.wifichat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * chunked, resumable file transfer over a blocking SocketChannel.
+ * <pre>
+ *   sender   -> receiver : magic(4) | manifest length(4) | FileManifest
+ *   receiver -> sender   : first chunk wanted(4), -1 to refuse
+ *   sender   -> receiver : chunk bytes, from the chunk wanted to the end
+ *   receiver -> sender   : 0, once the file is complete and verified
+ * </pre>
+ * Chunk bytes go file to socket with FileChannel.transferTo() and socket to file with transferFrom(), without
+ * a copy through the java heap. The receiver writes into a partial file named after the transfer id, checks
+ * every chunk against its CRC32 and records the verified chunk count in a small resume file, after forcing the
+ * data to disk, every RESUME_SYNC_CHUNKS chunks and when the link breaks. A broken transfer restarts from the
+ * last recorded chunk. A chunk failing its checksum breaks the transfer the same way, the retry sends it again.
+ * <p/>
+ * Bytes move in slices of at most SLICE_SIZE. With a BandwidthLimiter every slice waits for its share of the
+ * cap, which interleaves concurrent transfers; the receiver reading no faster than that slows the sender down
+ * through the TCP window. Progress is reported once per chunk.
+ * <p/>
+ * Pure java, no android.
+ */
+public final class FileTransferEngine {
+
+    static final int MAGIC = 0x57434654;   // "WCFT"
+    private static final int MAX_MANIFEST_SIZE = 64 + 2 * 65535 + 4 * FileManifest.MAX_CHUNKS;
+    static final int RESUME_SYNC_CHUNKS = 16;
+    private static final int SLICE_SIZE = 64 * 1024;
+    static final String PART_SUFFIX = ".part";
+    static final String RESUME_SUFFIX = ".resume";
+
+    /**
+     * a completed incoming file.
+     */
+    public static final class Received {
+        public final FileManifest manifest;
+        public final File file;
+
+        Received(FileManifest manifest, File file) {
+            this.manifest = manifest;
+            this.file = file;
+        }
+    }
+
+    public interface Progress {
+        /**
+         * @param bytesDone bytes of the file transferred so far, including those of earlier attempts.
+         */
+        void onProgress(FileManifest manifest, long bytesDone);
+    }
+
+    private FileTransferEngine() {
+    }
+
+    public static int send(FileChannel source, FileManifest manifest, SocketChannel channel) throws IOException {
+        return send(source, manifest, channel, null, null);
+    }
+
+    /**
+     * send the file described by the manifest, resuming where the receiver stopped last time.
+     *
+     * @param limiter  bandwidth cap, null for none.
+     * @param progress null for none.
+     * @return the number of chunks sent.
+     */
+    public static int send(FileChannel source, FileManifest manifest, SocketChannel channel,
+                           BandwidthLimiter limiter, Progress progress) throws IOException {
+        byte[] manifestBytes = manifest.toBytes();
+        ByteBuffer header = ByteBuffer.allocate(8 + manifestBytes.length);
+        header.putInt(MAGIC).putInt(manifestBytes.length).put(manifestBytes);
+        header.flip();
+        writeFully(channel, header);
+
+        int first = readInt(channel);
+        if (first < 0 || first > manifest.chunkCount()) {
+            throw new IOException("receiver refused " + manifest + ": " + first);
+        }
+
+        for (int chunk = first; chunk < manifest.chunkCount(); chunk++) {
+            long position = manifest.chunkOffset(chunk);
+            long end = position + manifest.chunkLength(chunk);
+            while (position < end) {
+                int slice = (int) Math.min(SLICE_SIZE, end - position);
+                if (limiter != null) {
+                    limiter.acquire(slice);
+                }
+                long n = source.transferTo(position, slice, channel);
+                if (n <= 0 && source.size() < end) {
+                    throw new IOException("file shrank while sending " + manifest);
+                }
+                position += n;
+            }
+            if (progress != null) {
+                progress.onProgress(manifest, end);
+            }
+        }
+
+        int status = readInt(channel);
+        if (status != 0) {
+            throw new IOException("receiver failed " + manifest + ": " + status);
+        }
+        return manifest.chunkCount() - first;
+    }
+
+    public static Received receive(SocketChannel channel, File dir) throws IOException {
+        return receive(channel, dir, null, null);
+    }
+
+    /**
+     * receive one file into dir. The partial state of a broken transfer is kept in dir for the next attempt.
+     *
+     * @param limiter  bandwidth cap, null for none.
+     * @param progress null for none.
+     */
+    public static Received receive(SocketChannel channel, File dir, BandwidthLimiter limiter, Progress progress)
+            throws IOException {
+        if (readInt(channel) != MAGIC) {
+            throw new IOException("not a file transfer");
+        }
+        int manifestLength = readInt(channel);
+        if (manifestLength < 0 || manifestLength > MAX_MANIFEST_SIZE) {
+            throw new IOException("bad manifest length " + manifestLength);
+        }
+        ByteBuffer manifestBytes = ByteBuffer.allocate(manifestLength);
+        readFully(channel, manifestBytes);
+        FileManifest manifest = FileManifest.fromBytes(manifestBytes.array());
+
+        String id = Long.toHexString(manifest.transferId());
+        File part = new File(dir, id + PART_SUFFIX);
+        File resume = new File(dir, id + RESUME_SUFFIX);
+
+        RandomAccessFile partFile = new RandomAccessFile(part, "rw");
+        FileChannel target = partFile.getChannel();
+        int verified = 0;
+        boolean complete = false;
+        try {
+            verified = readResume(resume, target, manifest);
+            target.truncate(manifest.chunkOffset(verified));
+
+            ByteBuffer reply = ByteBuffer.allocate(4);
+            reply.putInt(verified).flip();
+            writeFully(channel, reply);
+
+            ByteBuffer scratch = ByteBuffer.allocate(SLICE_SIZE);
+            for (int chunk = verified; chunk < manifest.chunkCount(); chunk++, verified++) {
+                long position = manifest.chunkOffset(chunk);
+                int length = manifest.chunkLength(chunk);
+                long end = position + length;
+                while (position < end) {
+                    int slice = (int) Math.min(SLICE_SIZE, end - position);
+                    if (limiter != null) {
+                        limiter.acquire(slice);
+                    }
+                    long n = target.transferFrom(channel, position, slice);
+                    if (n <= 0) {
+                        // transferFrom() does not tell end of stream from no data, a blocking read does
+                        scratch.clear();
+                        scratch.limit(slice);
+                        if (channel.read(scratch) < 0) {
+                            throw new IOException("stream ended in chunk " + chunk + " of " + manifest);
+                        }
+                        scratch.flip();
+                        n = target.write(scratch, position);
+                    }
+                    position += n;
+                }
+
+                if (FileManifest.checksum(target, manifest.chunkOffset(chunk), length, scratch) != manifest.checksum(chunk)) {
+                    throw new IOException("checksum mismatch in chunk " + chunk + " of " + manifest);
+                }
+                if ((chunk + 1) % RESUME_SYNC_CHUNKS == 0) {
+                    target.force(false);
+                    writeResume(resume, chunk + 1);
+                }
+                if (progress != null) {
+                    progress.onProgress(manifest, end);
+                }
+            }
+            target.force(false);
+            complete = true;
+        } finally {
+            if (!complete) {
+                try {
+                    // broken link: keep what is verified for the next attempt
+                    target.force(false);
+                    writeResume(resume, verified);
+                } catch (IOException e) {
+                    // the periodic record stays
+                }
+            }
+            partFile.close();
+        }
+
+        File file = uniqueFile(dir, manifest.getName(), id);
+        if (!part.renameTo(file)) {
+            throw new IOException("cannot rename " + part + " to " + file);
+        }
+        resume.delete();
+
+        ByteBuffer done = ByteBuffer.allocate(4);
+        done.putInt(0).flip();
+        writeFully(channel, done);
+        return new Received(manifest, file);
+    }
+
+    /**
+     * number of chunks verified by the previous attempt, 0 if there is none or it does not match the file.
+     */
+    static int readResume(File resume, FileChannel target, FileManifest manifest) throws IOException {
+        if (!resume.exists()) {
+            return 0;
+        }
+        RandomAccessFile in = new RandomAccessFile(resume, "r");
+        try {
+            int verified = in.readInt();
+            if (verified < 0 || verified > manifest.chunkCount() || target.size() < manifest.chunkOffset(verified)) {
+                return 0;
+            }
+            return verified;
+        } catch (IOException e) {
+            return 0;   // torn write, start over
+        } finally {
+            in.close();
+        }
+    }
+
+    static void writeResume(File resume, int verified) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(resume, "rw");
+        try {
+            out.seek(0);
+            out.writeInt(verified);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * dir/name, or dir/name-id.ext if that exists already.
+     */
+    static File uniqueFile(File dir, String name, String id) {
+        if (name.length() == 0) {
+            name = "wifip2pshared-" + id;
+        }
+        File file = new File(dir, name);
+        if (!file.exists()) {
+            return file;
+        }
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        return new File(dir, base + "-" + id + extension);
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            if (channel.read(dst) < 0) {
+                throw new IOException("stream ended");
+            }
+        }
+    }
+
+    private static int readInt(SocketChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        readFully(channel, buffer);
+        return buffer.getInt(0);
+    }
+}
@@ -6,24 +6,36 @@ import android.app.IntentService;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.database.Cursor;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.provider.OpenableColumns;
 import android.util.Log;
 
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 
 /**
  * A service that process each file transfer request i.e Intent by opening a
  * socket connection with the WiFi Direct Group Owner and writing the file
+ * <p/>
+ * The file is checksummed into a FileManifest here, off the connection service thread, then streamed on the
+ * chat connections by FileStreamManager. Without them it goes through FileTransferEngine on a connection of
+ * its own, retried up to MAX_ATTEMPTS times; the receiver resumes from its last verified chunk.
+ * ACTION_DISTRIBUTE_FILE hands the file to SwarmManager instead, for every member of the group.
  */
 public class FileTransferService extends IntentService {
 
+    private static final String TAG = "FileTransferService";
     private static final int SOCKET_TIMEOUT = 5000;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY = 2000;
     public static final String ACTION_SEND_FILE = "com.colorcloud.wifichat.SEND_FILE";
+    public static final String ACTION_DISTRIBUTE_FILE = "com.colorcloud.wifichat.DISTRIBUTE_FILE";
     public static final String EXTRAS_FILE_PATH = "file_url";
     public static final String EXTRAS_GROUP_OWNER_ADDRESS = "go_host";
     public static final String EXTRAS_GROUP_OWNER_PORT = "go_port";
@@ -44,43 +56,98 @@ public class FileTransferService extends IntentService {
     protected void onHandleIntent(Intent intent) {
 
         Context context = getApplicationContext();
-        if (intent.getAction().equals(ACTION_SEND_FILE)) {
-            String fileUri = intent.getExtras().getString(EXTRAS_FILE_PATH);
+        boolean distribute = intent.getAction().equals(ACTION_DISTRIBUTE_FILE);
+        if (intent.getAction().equals(ACTION_SEND_FILE) || distribute) {
+            Uri fileUri = Uri.parse(intent.getExtras().getString(EXTRAS_FILE_PATH));
             String host = intent.getExtras().getString(EXTRAS_GROUP_OWNER_ADDRESS);
-            Socket socket = new Socket();
             int port = intent.getExtras().getInt(EXTRAS_GROUP_OWNER_PORT);
+            ContentResolver cr = context.getContentResolver();
 
+            FileInputStream is = null;
             try {
-//                Log.d(WiFiDirectActivity.TAG, "Opening client socket - ");
-                socket.bind(null);
-                socket.connect((new InetSocketAddress(host, port)), SOCKET_TIMEOUT);
-
-//                Log.d(WiFiDirectActivity.TAG, "Client socket - " + socket.isConnected());
-                OutputStream stream = socket.getOutputStream();
-                ContentResolver cr = context.getContentResolver();
-                InputStream is = null;
-                try {
-                    is = cr.openInputStream(Uri.parse(fileUri));
-                } catch (FileNotFoundException e) {
-                    Log.e("FileTransferService", e.toString());
+                is = new ParcelFileDescriptor.AutoCloseInputStream(cr.openFileDescriptor(fileUri, "r"));
+                FileChannel source = is.getChannel();
+                String mimeType = cr.getType(fileUri);
+                FileManifest manifest = FileManifest.build(source, displayName(cr, fileUri),
+                        mimeType != null ? mimeType : "application/octet-stream", FileManifest.DEFAULT_CHUNK_SIZE);
+                Log.d(TAG, "sending " + manifest);
+
+                if (distribute) {
+                    if (ConnectionService.getInstance() == null) {
+                        Log.e(TAG, "no connection to distribute " + manifest);
+                        return;
+                    }
+                    // announced once, the members fetch the chunks from each other
+                    ConnectionService.distributeFile(source, manifest);
+                    is = null;
+                    return;
+                }
+
+                if (ConnectionService.getInstance() != null) {
+                    // multiplexed on the chat connections, the connection service closes the source when done
+                    ConnectionService.pushOutFile(source, manifest);
+                    is = null;
+                    return;
+                }
+
+                // no chat connection, a connection of its own to the file server
+                for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+                    try {
+                        sendTo(host, port, source, manifest);
+                        Log.d(TAG, "sent " + manifest);
+                        break;
+                    } catch (IOException e) {
+                        Log.e(TAG, "attempt " + attempt + " failed: " + e.toString());
+                        if (attempt < MAX_ATTEMPTS) {
+                            SystemClock.sleep(RETRY_DELAY * attempt);
+                        }
+                    }
                 }
-                DeviceDetailFragment.copyFile(is, stream);
-//                Log.d(WiFiDirectActivity.TAG, "Client: Data written");
             } catch (IOException e) {
-                Log.e("FileTransferService", e.getMessage());
+                Log.e(TAG, e.toString());
             } finally {
-                if (socket != null) {
-                    if (socket.isConnected()) {
-                        try {
-                            socket.close();
-                        } catch (IOException e) {
-                            // Give up
-                            e.printStackTrace();
-                        }
+                try {
+                    if (is != null) {
+                        is.close();   // closes the file descriptor as well
                     }
+                } catch (IOException e) {
+                    // Give up
+                    e.printStackTrace();
                 }
             }
 
         }
     }
+
+    private static void sendTo(String host, int port, FileChannel source, FileManifest manifest) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(host, port), SOCKET_TIMEOUT);
+            int chunks = FileTransferEngine.send(source, manifest, channel, BandwidthLimiter.getInstance(), null);
+            Log.d(TAG, chunks + " of " + manifest.chunkCount() + " chunks sent");
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * the name the user sees for the content, the last path segment if the provider has none.
+     */
+    private static String displayName(ContentResolver cr, Uri uri) {
+        Cursor cursor = cr.query(uri, new String[]{OpenableColumns.DISPLAY_NAME}, null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    String name = cursor.getString(cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME));
+                    if (name != null) {
+                        return name;
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        String segment = uri.getLastPathSegment();
+        return segment != null ? segment : "";
+    }
 }
@@ -0,0 +1,99 @@
+package com.colorcloud.wifichat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * per channel read buffer, attached to the channel's SelectionKey.
+ * <p/>
+ * TCP is a byte stream: one read() can return several frames glued together, or only a piece of a frame.
+ * Bytes are accumulated here across OP_READ events and handed out as whole frames only.
+ * The buffer is reused for the life of the channel; it only grows when a single frame does not fit.
+ * <p/>
+ * Usage, on the selector thread:
+ * <pre>
+ *   if (accumulator.read(channel) == -1) { broken }
+ *   while ((msg = accumulator.nextFrame()) != null) { ... }
+ * </pre>
+ */
+public class FrameAccumulator {
+
+    private static final int INITIAL_CAPACITY = 1024 * 8;
+    private static final int MAX_CAPACITY = FrameCodec.HEADER_SIZE + FrameCodec.MAX_BODY_SIZE;
+
+    // always in write mode: bytes [readPosition, buffer.position()) are received but not decoded yet.
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+    private int readPosition = 0;
+
+    /**
+     * read whatever is available on the channel into the buffer.
+     *
+     * @return number of bytes read, -1 if the channel reached end of stream.
+     */
+    public int read(SocketChannel channel) throws IOException {
+        ensureSpace();
+        return channel.read(buffer);
+    }
+
+    /**
+     * @return the next complete frame, or null if no complete frame is buffered.
+     * @throws IOException the stream is corrupted, the channel should be closed.
+     */
+    public MessageWrapper nextFrame() throws IOException {
+        int writePosition = buffer.position();
+        if (writePosition == readPosition) {
+            return null;
+        }
+
+        buffer.limit(writePosition);
+        buffer.position(readPosition);
+        try {
+            MessageWrapper messageWrapper = FrameCodec.decode(buffer);
+            readPosition = buffer.position();
+            return messageWrapper;
+        } finally {
+            // back to write mode
+            buffer.limit(buffer.capacity());
+            buffer.position(writePosition);
+        }
+    }
+
+    /**
+     * number of received bytes not yet handed out as a frame.
+     */
+    public int pending() {
+        return buffer.position() - readPosition;
+    }
+
+    /**
+     * make room before the next read: drop consumed bytes, and grow if the pending frame does not fit.
+     */
+    private void ensureSpace() throws IOException {
+        if (readPosition > 0) {
+            if (readPosition == buffer.position()) {
+                buffer.clear();   // everything consumed, the common case, no copy
+            } else {
+                buffer.limit(buffer.position());
+                buffer.position(readPosition);
+                buffer.compact();
+            }
+            readPosition = 0;
+        }
+
+        if (buffer.hasRemaining()) {
+            return;
+        }
+
+        // full and no complete frame in it: the frame at the head is larger than the buffer.
+        buffer.flip();
+        int frameLength = FrameCodec.frameLength(buffer);
+        int capacity = Math.max(frameLength, Math.min(buffer.capacity() * 2, MAX_CAPACITY));
+        if (capacity <= buffer.capacity()) {
+            throw new IOException("frame does not fit in " + MAX_CAPACITY + " bytes");
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        bigger.put(buffer);
+        buffer = bigger;
+    }
+}
@@ -0,0 +1,283 @@
+package com.colorcloud.wifichat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Binary frame codec used on the chat socket channels.
+ * <p/>
+ * A frame is a fixed 17 bytes header followed by the raw UTF-8 bytes of the message body:
+ * <pre>
+ *   magic(2) | version(1) | category(1) | flags(1) | message id(8) | body length(4) | body(n)
+ * </pre>
+ * All fields are big-endian (ByteBuffer default). The body is copied byte by byte, so it can contain any
+ * character, including the tokens used by the old string format.
+ * <p/>
+ * encode() writes straight into the ByteBuffer handed to the channel, no intermediate String or byte[] is
+ * created for an uncompressed frame. decode() makes one copy of the frame out of the ByteBuffer filled by the
+ * channel, since that buffer is reused for the next read, and decodes the body String out of that copy.
+ * <p/>
+ * A frame with FLAG_BINARY carries raw bytes instead of text (file data): its body String is empty and the
+ * bytes are read with MessageWrapper.getPayload().
+ * <p/>
+ * With compression on (the default) encode(MessageWrapper) picks the smallest body form per text frame, see
+ * PayloadCompressor: FLAG_ROW for a chat row with its sender and time as binary fields, FLAG_DEFLATE for a body
+ * of PayloadCompressor.DEFLATE_THRESHOLD bytes or more deflated with the preset chat dictionary. decode()
+ * undoes both, every device decodes them whether its own compression is on or not.
+ */
+public final class FrameCodec {
+
+    public static final short MAGIC = 0x5743;   // "WC"
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 17;
+    public static final int MAX_BODY_SIZE = 1024 * 1024;
+    public static final int FLAG_BINARY = 0x01;
+    public static final int FLAG_DEFLATE = 0x02;
+    public static final int FLAG_ROW = 0x04;
+
+    private static final int VERSION_OFFSET = 2;
+    private static final int CATEGORY_OFFSET = 3;
+    private static final int FLAGS_OFFSET = 4;
+    private static final int ID_OFFSET = 5;
+    private static final int LENGTH_OFFSET = 13;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static volatile boolean compression = true;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * whether encode(MessageWrapper) compresses text frames, see PayloadCompressor.
+     */
+    public static void setCompression(boolean on) {
+        compression = on;
+    }
+
+    public static boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * number of bytes the uncompressed frame of this message occupies on the wire.
+     */
+    public static int encodedSize(MessageWrapper messageWrapper) {
+        return HEADER_SIZE + utf8Length(messageWrapper.getMessageBody());
+    }
+
+    /**
+     * encode the message into a new buffer, ready to be written to a channel (position 0, limit frame size).
+     * Use MessageWrapper.getFrame() to encode a message only once.
+     */
+    public static ByteBuffer encode(MessageWrapper messageWrapper) {
+        if (compression && (messageWrapper.getFlags() & FLAG_BINARY) == 0) {
+            int[] flags = new int[1];
+            byte[] body = PayloadCompressor.compress(messageWrapper, flags);
+            if (flags[0] != 0) {
+                return frame(messageWrapper.getCategory(), plainFlags(messageWrapper) | flags[0],
+                        messageWrapper.getAck(), body);
+            }
+        }
+        ByteBuffer byteBuffer = ByteBuffer.allocate(encodedSize(messageWrapper));
+        encode(messageWrapper, byteBuffer);
+        byteBuffer.flip();
+        return byteBuffer;
+    }
+
+    /**
+     * the flags of the message without the ones of the body form it was received in.
+     */
+    private static int plainFlags(MessageWrapper messageWrapper) {
+        return messageWrapper.getFlags() & ~(FLAG_DEFLATE | FLAG_ROW);
+    }
+
+    private static ByteBuffer frame(int category, int flags, long id, byte[] body) {
+        if (body.length > MAX_BODY_SIZE) {
+            throw new IllegalArgumentException("message body too large: " + body.length);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + body.length);
+        frame.putShort(MAGIC);
+        frame.put(VERSION);
+        frame.put((byte) category);
+        frame.put((byte) flags);
+        frame.putLong(id);
+        frame.putInt(body.length);
+        frame.put(body);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * encode the message, uncompressed, at the position of dst. dst must have at least encodedSize() bytes remaining.
+     */
+    public static void encode(MessageWrapper messageWrapper, ByteBuffer dst) {
+        String body = messageWrapper.getMessageBody();
+        int bodyLength = utf8Length(body);
+        if (bodyLength > MAX_BODY_SIZE) {
+            throw new IllegalArgumentException("message body too large: " + bodyLength);
+        }
+
+        dst.putShort(MAGIC);
+        dst.put(VERSION);
+        dst.put((byte) messageWrapper.getCategory());
+        dst.put((byte) plainFlags(messageWrapper));
+        dst.putLong(messageWrapper.getAck());
+        dst.putInt(bodyLength);
+        putUtf8(body, dst);
+    }
+
+    /**
+     * category of the encoded frame at the position of frame, without decoding it.
+     */
+    public static int categoryOf(ByteBuffer frame) {
+        return frame.get(frame.position() + CATEGORY_OFFSET) & 0xff;
+    }
+
+    /**
+     * message id of the encoded frame at the position of frame, without decoding it.
+     */
+    public static long idOf(ByteBuffer frame) {
+        return frame.getLong(frame.position() + ID_OFFSET);
+    }
+
+    /**
+     * peek the frame at the position of src without consuming it.
+     *
+     * @return the total length of the frame, or -1 if the header is not complete yet.
+     * @throws IOException the bytes are not a frame of this protocol, the stream cannot be recovered.
+     */
+    public static int frameLength(ByteBuffer src) throws IOException {
+        if (src.remaining() < HEADER_SIZE) {
+            return -1;
+        }
+
+        int start = src.position();
+        if (src.getShort(start) != MAGIC) {
+            throw new IOException("bad frame magic: " + src.getShort(start));
+        }
+        if (src.get(start + VERSION_OFFSET) != VERSION) {
+            throw new IOException("unsupported frame version: " + src.get(start + VERSION_OFFSET));
+        }
+        int bodyLength = src.getInt(start + LENGTH_OFFSET);
+        if (bodyLength < 0 || bodyLength > MAX_BODY_SIZE) {
+            throw new IOException("bad frame body length: " + bodyLength);
+        }
+        return HEADER_SIZE + bodyLength;
+    }
+
+    /**
+     * decode one complete frame at the position of src, and move the position past it.
+     * The frame bytes are copied once out of src, the only byte[] of the frame, and kept as the message's
+     * read-only frame, so a relay can forward exactly the bytes it received without encoding again.
+     *
+     * @return the message, or null if src does not hold a complete frame yet (position unchanged).
+     */
+    public static MessageWrapper decode(ByteBuffer src) throws IOException {
+        int frameLength = frameLength(src);
+        if (frameLength < 0 || src.remaining() < frameLength) {
+            return null;
+        }
+
+        byte[] bytes = new byte[frameLength];
+        src.get(bytes);
+        ByteBuffer frame = ByteBuffer.wrap(bytes);
+
+        int category = categoryOf(frame);
+        int flags = frame.get(FLAGS_OFFSET) & 0xff;
+        long ack = idOf(frame);
+        String body;
+        if ((flags & FLAG_BINARY) != 0) {
+            body = "";
+        } else if ((flags & (FLAG_DEFLATE | FLAG_ROW)) != 0) {
+            body = PayloadCompressor.decompress(flags, bytes, HEADER_SIZE, frameLength - HEADER_SIZE);
+        } else {
+            body = new String(bytes, HEADER_SIZE, frameLength - HEADER_SIZE, UTF_8);
+        }
+
+        MessageWrapper messageWrapper = new MessageWrapper(category, flags, ack, body);
+        messageWrapper.setFrame(frame.asReadOnlyBuffer());
+        return messageWrapper;
+    }
+
+    /**
+     * a FLAG_BINARY frame with the header written, positioned at the payload for the caller to fill it up to the
+     * limit. Hand it to binaryMessage() once full.
+     */
+    public static ByteBuffer allocateBinary(int category, long id, int payloadLength) {
+        if (payloadLength > MAX_BODY_SIZE) {
+            throw new IllegalArgumentException("payload too large: " + payloadLength);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payloadLength);
+        frame.putShort(MAGIC);
+        frame.put(VERSION);
+        frame.put((byte) category);
+        frame.put((byte) FLAG_BINARY);
+        frame.putLong(id);
+        frame.putInt(payloadLength);
+        return frame;
+    }
+
+    /**
+     * the message of a frame from allocateBinary(), filled.
+     */
+    public static MessageWrapper binaryMessage(ByteBuffer frame) {
+        frame.rewind();
+        MessageWrapper messageWrapper = new MessageWrapper(categoryOf(frame), FLAG_BINARY, idOf(frame), "");
+        messageWrapper.setFrame(frame.asReadOnlyBuffer());
+        return messageWrapper;
+    }
+
+    /**
+     * number of bytes the string takes in UTF-8, computed without encoding it.
+     */
+    static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * UTF-8 encode the string into dst, unpaired surrogates are replaced by U+FFFD.
+     */
+    private static void putUtf8(String s, ByteBuffer dst) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                dst.put((byte) c);
+            } else if (c < 0x800) {
+                dst.put((byte) (0xc0 | (c >> 6)));
+                dst.put((byte) (0x80 | (c & 0x3f)));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                    dst.put((byte) (0xf0 | (codePoint >> 18)));
+                    dst.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                    dst.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                    dst.put((byte) (0x80 | (codePoint & 0x3f)));
+                } else {
+                    // keep the 3 bytes accounted by utf8Length()
+                    dst.put((byte) 0xef);
+                    dst.put((byte) 0xbf);
+                    dst.put((byte) 0xbd);
+                }
+            } else {
+                dst.put((byte) (0xe0 | (c >> 12)));
+                dst.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                dst.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+}
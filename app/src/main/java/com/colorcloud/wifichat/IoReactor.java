@@ -0,0 +1,473 @@
+package com.colorcloud.wifichat;
+
+import android.os.Handler;
+import android.os.Message;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.colorcloud.wifichat.Constant.*;
+
+/**
+ * the i/o thread. It owns the selector, and every read and write of the registered channels happens on it.
+ * The selector monitors OP_CONNECT and OP_READ, and OP_WRITE only while a channel has frames queued.
+ * Upon event out, either accept a connection, read the data from the channel, or drain its outbound queue.
+ * <p/>
+ * Other threads never touch the selector or write to a channel. They hand work over through lock-free queues
+ * (many producers, this thread the only consumer) and wake the selector up: requestWrite() to get OP_WRITE
+ * turned on, execute() for anything else. What comes off the channels is posted to the connection service's
+ * handler thread, where the app logic runs, so a slow handler never holds up the sockets and the other way round.
+ * <p/>
+ * A group owner runs one acceptor reactor and a pool of workers. The acceptor only accepts, and hands each new
+ * channel to the least loaded worker, which reads, parses and writes it from then on. Without workers a reactor
+ * serves the channels it accepts itself.
+ * <p/>
+ * A queue that holds a batch back (OutboundQueue.QUEUED_BATCHED) is handed over with requestFlush(); the reactor
+ * bounds its select by the earliest batch deadline and turns OP_WRITE on for the batches that are due. Channels
+ * have TCP_NODELAY on: the batching is done here, the kernel would only hold control frames back.
+ */
+public class IoReactor extends Thread {
+    private static final String TAG = "IoReactor";
+
+    private final Events events;
+    private Selector selector;
+    private volatile boolean running = true;
+    // keys whose outbound queue went from idle to pending, OP_WRITE is turned on by the reactor thread.
+    private final ConcurrentLinkedQueue<SelectionKey> pendingWrites = new ConcurrentLinkedQueue<SelectionKey>();
+    // keys whose outbound queue holds a batch back, with the nanoTime it is due.
+    private final ConcurrentLinkedQueue<Batch> pendingBatches = new ConcurrentLinkedQueue<Batch>();
+    private final ArrayList<Batch> batches = new ArrayList<Batch>();   // reactor thread only
+    // work handed over by other threads, run on the reactor thread before the next select.
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicInteger load = new AtomicInteger();   // socket channels served, or handed over to be
+    private List<IoReactor> workers = null;   // acceptor only
+    private int nextWorker = 0;
+    private long batchDelay = 0;
+    private int batchBytes = 0;
+
+    private static final class Batch {
+        final SelectionKey key;
+        final long deadline;
+
+        Batch(SelectionKey key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * where the reactor reports what happens on its channels: MSG_NEW_CLIENT, MSG_FINISH_CONNECT,
+     * MSG_CONNECT_FAILED, MSG_PULLIN_DATA, MSG_BROKEN_CONN and MSG_SELECT_ERROR. Called on the reactor thread.
+     */
+    public interface Events {
+        void onEvent(int what, Object obj);
+    }
+
+    public IoReactor(final ConnectionService connservice, Selector selector) {
+        this(new Events() {
+            @Override
+            public void onEvent(int what, Object obj) {
+                Handler hdl = connservice.getHandler();
+                Message msg = hdl.obtainMessage();
+                msg.what = what;
+                msg.obj = obj;
+                hdl.sendMessage(msg);
+            }
+        }, selector);
+    }
+
+    /**
+     * a reactor reporting to events instead of the connection service's handler, for JVM tests and benchmarks.
+     */
+    IoReactor(Events events, Selector selector) {
+        super(TAG);
+        setDaemon(true);
+        this.events = events;
+        this.selector = selector;
+    }
+
+    /**
+     * make this reactor an acceptor: accepted channels go to the workers. Before start().
+     */
+    public void setWorkers(List<IoReactor> workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * the batching of the channels this reactor will serve, see OutboundQueue.setBatching(). Before start().
+     */
+    public void setBatching(long delayMillis, int byteBudget) {
+        this.batchDelay = delayMillis;
+        this.batchBytes = byteBudget;
+    }
+
+    long getBatchDelay() {
+        return batchDelay;
+    }
+
+    int getBatchBytes() {
+        return batchBytes;
+    }
+
+    public Selector selector() {
+        return selector;
+    }
+
+    /**
+     * number of socket channels this reactor serves.
+     */
+    public int load() {
+        return load.get();
+    }
+
+    @Override
+    public void run() {
+        select();
+        try {
+            // a stopped reactor serves nobody, its channels are closed with it
+            for (SelectionKey key : selector.keys()) {
+                if (key.channel() instanceof SocketChannel) {
+                    key.channel().close();
+                }
+            }
+            selector.close();   // also cancels the keys of the channels still open
+        } catch (IOException e) {
+            Log.e(TAG, "run : close selector exception: " + e.toString());
+        }
+        Log.d(TAG, "reactor stopped");
+    }
+
+    private void select() {
+        // Wait for events looper
+        while (running) {
+            try {
+                runTasks();
+                applyPendingWrites();
+                long timeout = flushDueBatches();
+                if (!running) {
+                    break;
+                }
+                if (timeout > 0) {
+                    selector.select(timeout);   // until the next batch is due at the latest
+                } else {
+                    selector.select();   // blocked on waiting for event, or a wakeup() from another thread
+                }
+
+//                Log.d(TAG, "select : selector evented out: ");
+                // Get list of selection keys with pending events, and process it.
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    // Get the selection key, and remove it from the list to indicate that it's being processed
+                    SelectionKey selKey = keys.next();
+                    keys.remove();
+//                    Log.d(TAG, "select : selectionkey: " + selKey.attachment());
+                    try {
+                        processSelectionKey(selector, selKey);  // process the selection key.
+                    } catch (IOException e) {
+                        release(selKey);
+                        Log.e(TAG, "select : io exception in processing selector event: " + e.toString());
+                    }
+                }
+            } catch (Exception e) {  // catch all exception in select() and the following ops in selector.
+                if (running) {
+                    Log.e(TAG, "Exception in selector: " + e.toString());
+                    notifyConnectionService(MSG_SELECT_ERROR, null);
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * stop the reactor, the selector is closed on the reactor thread. Can be called from any thread.
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * run the task on the reactor thread, before the next select. Can be called from any thread.
+     */
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * ask the reactor thread to write the channel's queued frames. Can be called from any thread.
+     */
+    public void requestWrite(SelectionKey key) {
+        pendingWrites.offer(key);
+        selector.wakeup();
+    }
+
+    /**
+     * ask the reactor thread to write the channel's queued frames once the queue's batch delay passed.
+     * Can be called from any thread.
+     */
+    public void requestFlush(SelectionKey key) {
+        ChannelContext context = (ChannelContext) key.attachment();
+        pendingBatches.offer(new Batch(key, System.nanoTime() + context.outbound.getBatchDelayNanos()));
+        selector.wakeup();   // once per batch, to bound the select
+    }
+
+    /**
+     * turn OP_WRITE on for the batches due.
+     *
+     * @return milliseconds until the next batch is due, 0 if none is waiting.
+     */
+    private long flushDueBatches() {
+        Batch batch;
+        while ((batch = pendingBatches.poll()) != null) {
+            batches.add(batch);
+        }
+        if (batches.isEmpty()) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        for (Iterator<Batch> it = batches.iterator(); it.hasNext(); ) {
+            batch = it.next();
+            if (batch.deadline - now > 0) {
+                next = Math.min(next, batch.deadline - now);
+                continue;
+            }
+            it.remove();
+            if (batch.key.isValid() && ((ChannelContext) batch.key.attachment()).outbound.flush()) {
+                batch.key.interestOps(batch.key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+        return next == Long.MAX_VALUE ? 0 : Math.max(1, (next + 999999) / 1000000);
+    }
+
+    /**
+     * interest ops are only changed on the reactor thread, so select() is never racing with them.
+     */
+    private void applyPendingWrites() {
+        SelectionKey key;
+        while ((key = pendingWrites.poll()) != null) {
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    /**
+     * the least loaded worker, round robin among equals; this reactor itself if it has no workers.
+     */
+    private IoReactor pickWorker() {
+        if (workers == null || workers.isEmpty()) {
+            return this;
+        }
+        int n = workers.size();
+        IoReactor best = null;
+        for (int i = 0; i < n; i++) {
+            IoReactor worker = workers.get((nextWorker + i) % n);
+            if (best == null || worker.load() < best.load()) {
+                best = worker;
+            }
+        }
+        nextWorker = (workers.indexOf(best) + 1) % n;
+        return best;
+    }
+
+    /**
+     * serve an accepted channel from now on: it is registered on this reactor's thread, then the service hears of it.
+     * Can be called from any thread.
+     */
+    public void adopt(final SocketChannel sChannel) {
+        load.incrementAndGet();   // now, so a burst of accepts spreads over the workers
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // let the selector monitor read/write the accepted connections.
+                    ChannelContext context = new ChannelContext(IoReactor.this);
+                    noDelay(sChannel);
+                    context.key = sChannel.register(selector, SelectionKey.OP_READ, context);
+                    notifyConnectionService(MSG_NEW_CLIENT, sChannel);
+                } catch (IOException e) {
+                    load.decrementAndGet();
+                    Log.e(TAG, "adopt : register exception: " + e.toString());
+                    try {
+                        sChannel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * select a channel whose non-blocking connect() is under way, MSG_FINISH_CONNECT or MSG_CONNECT_FAILED tells
+     * the service how it went. Frames queued on the context meanwhile go out once it is connected.
+     * Can be called from any thread.
+     */
+    public void connect(final SocketChannel sChannel, final ChannelContext context) {
+        load.incrementAndGet();
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    boolean connected = sChannel.isConnected();   // connect() can be done at once, on loopback
+                    noDelay(sChannel);
+                    context.key = sChannel.register(selector,
+                            connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, context);
+                    if (connected) {
+                        notifyConnectionService(MSG_FINISH_CONNECT, sChannel);
+                    }
+                } catch (IOException e) {
+                    load.decrementAndGet();   // closed meanwhile, by the connect timeout
+                    Log.e(TAG, "connect : register exception: " + e.toString());
+                    notifyConnectionService(MSG_CONNECT_FAILED, sChannel);
+                }
+            }
+        });
+    }
+
+    private static void noDelay(SocketChannel sChannel) {
+        try {
+            sChannel.socket().setTcpNoDelay(true);
+        } catch (SocketException e) {
+            Log.e(TAG, "noDelay : " + e.toString());   // batched writes still go out, only later
+        }
+    }
+
+    /**
+     * drop a channel the connection service found dead, as if it broke. Can be called from any thread.
+     */
+    public void evict(final SelectionKey key) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (key.isValid()) {
+                    release(key);
+                    notifyConnectionService(MSG_BROKEN_CONN, key.channel());
+                }
+            }
+        });
+    }
+
+    /**
+     * stop selecting a channel; the connection service closes it.
+     */
+    private void release(SelectionKey key) {
+        if (key.isValid() && key.channel() instanceof SocketChannel) {
+            load.decrementAndGet();
+        }
+        key.cancel();
+    }
+
+    /**
+     * process the event popped to the selector
+     */
+    // TODO: understand what happens here
+    public void processSelectionKey(Selector selector, SelectionKey selKey) throws IOException {
+        if (selKey.isValid() && selKey.isAcceptable()) {  // there is a connection to the server socket channel
+            ServerSocketChannel ssChannel = (ServerSocketChannel) selKey.channel();
+            SocketChannel sChannel = ssChannel.accept();  // accept the connect and get a new socket channel.
+            if (sChannel == null) {
+                return;   // the peer gave up before we got to it
+            }
+            sChannel.configureBlocking(false);
+//            Log.d(TAG, "processSelectionKey : accepted a client connection: " + sChannel.socket().getInetAddress().getHostAddress());
+            pickWorker().adopt(sChannel);
+        } else if (selKey.isValid() && selKey.isConnectable()) {   // client connect to server got the response.
+            SocketChannel sChannel = (SocketChannel) selKey.channel();
+            try {
+                if (!sChannel.finishConnect()) {
+                    return;   // not yet, OP_CONNECT fires again
+                }
+            } catch (IOException e) {
+                // refused or unreachable; unregister the channel, the service retries.
+                release(selKey);
+                Log.e(TAG, "processSelectionKey : finish connection not success: " + e.toString());
+                notifyConnectionService(MSG_CONNECT_FAILED, sChannel);
+                return;
+            }
+//            Log.d(TAG, "processSelectionKey : this client connect to remote success: ");
+            selKey.interestOps(SelectionKey.OP_READ);
+            notifyConnectionService(MSG_FINISH_CONNECT, sChannel);
+        } else {
+            // a channel can be readable and writable in the same select round.
+            if (selKey.isValid() && selKey.isReadable()) {
+//                Log.d(TAG, "processSelectionKey : remote client is readable, read data: " + selKey.attachment());
+                // the key carries the channel's read accumulator, partial frames from previous reads are in there.
+                doReadable(selKey);
+            }
+            if (selKey.isValid() && selKey.isWritable()) {
+                doWritable(selKey);
+            }
+        }
+    }
+
+    /**
+     * handle the writable event from selector, OP_WRITE is only on while the outbound queue is not empty.
+     */
+    public void doWritable(SelectionKey selKey) {
+        SocketChannel sChannel = (SocketChannel) selKey.channel();
+        try {
+            if (((ChannelContext) selKey.attachment()).outbound.drainTo(sChannel)) {
+                selKey.interestOps(selKey.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "doWritable : exception: " + e.toString());
+            release(selKey);   // or OP_WRITE keeps firing on the dead channel
+            notifyConnectionService(MSG_BROKEN_CONN, sChannel);
+        }
+    }
+
+    /**
+     * handle the readable event from selector, every complete frame received so far is posted to the service.
+     * zero, one or many frames can come out of one read.
+     */
+    public void doReadable(SelectionKey selKey) {
+        SocketChannel schannel = (SocketChannel) selKey.channel();
+        FrameAccumulator accumulator = ((ChannelContext) selKey.attachment()).reader;
+        try {
+            int numBytesRead = accumulator.read(schannel);
+            if (numBytesRead == -1) {
+                // read -1 means socket channel is broken, and OP_READ keeps firing on it.
+                release(selKey);
+                notifyConnectionService(MSG_BROKEN_CONN, schannel);
+                return;
+            }
+
+            MessageWrapper messageWrapper;
+            while ((messageWrapper = accumulator.nextFrame()) != null) {
+                messageWrapper.setOrigin(schannel);
+                notifyConnectionService(MSG_PULLIN_DATA, messageWrapper);
+            }
+        } catch (IOException e) {
+            // read error, or not our protocol on the other side and the stream can not be re-synced.
+            Log.e(TAG, "doReadable : exception: " + e.toString());
+            release(selKey);
+            notifyConnectionService(MSG_BROKEN_CONN, schannel);
+        }
+    }
+
+    /**
+     * notify connection manager event
+     */
+    private void notifyConnectionService(int what, Object obj) {
+        events.onEvent(what, obj);
+    }
+}
@@ -0,0 +1,92 @@
+package com.colorcloud.wifichat;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 64 bits message ids, unique across the group without any coordination:
+ * <pre>
+ *   node id(16) | epoch(16) | sequence(32)
+ * </pre>
+ * The node id comes from the device's Wi-Fi Direct MAC address (random if unknown), the epoch changes every time
+ * the generator is created (process start), and the sequence is a lock-free counter. The upper 32 bits identify
+ * one sender for the life of its process, which is what DuplicateFilter keys its windows on.
+ */
+public final class MessageIdGenerator {
+
+    private static volatile MessageIdGenerator instance;
+
+    private final long prefix;
+    private final AtomicInteger sequence = new AtomicInteger(0);
+
+    public MessageIdGenerator(int nodeId, int epoch) {
+        this(nodeId, epoch, 0);
+    }
+
+    /**
+     * a generator whose sequence starts at firstSequence, to test the wraparound.
+     */
+    MessageIdGenerator(int nodeId, int epoch, int firstSequence) {
+        this.prefix = ((long) (nodeId & 0xffff) << 48) | ((long) (epoch & 0xffff) << 32);
+        this.sequence.set(firstSequence);
+    }
+
+    /**
+     * set up the process wide generator for this device, call once the MAC address is known.
+     */
+    public static void init(String macAddress) {
+        instance = new MessageIdGenerator(nodeIdOf(macAddress), currentEpoch());
+    }
+
+    public static MessageIdGenerator getInstance() {
+        MessageIdGenerator generator = instance;
+        if (generator == null) {
+            synchronized (MessageIdGenerator.class) {
+                if (instance == null) {
+                    instance = new MessageIdGenerator(nodeIdOf(null), currentEpoch());
+                }
+                generator = instance;
+            }
+        }
+        return generator;
+    }
+
+    public long next() {
+        return prefix | (sequence.getAndIncrement() & 0xffffffffL);
+    }
+
+    /**
+     * the part of the id that identifies the sender process.
+     */
+    public static long senderOf(long id) {
+        return id >>> 32;
+    }
+
+    public static long sequenceOf(long id) {
+        return id & 0xffffffffL;
+    }
+
+    /**
+     * 16 bits folded out of the 48 bits MAC, random when the MAC is not available.
+     */
+    static int nodeIdOf(String macAddress) {
+        if (macAddress == null) {
+            return new Random().nextInt(0x10000);
+        }
+        long mac = 0;
+        for (int i = 0; i < macAddress.length(); i++) {
+            int digit = Character.digit(macAddress.charAt(i), 16);
+            if (digit >= 0) {
+                mac = (mac << 4) | digit;
+            }
+        }
+        return (int) ((mac ^ (mac >>> 16) ^ (mac >>> 32)) & 0xffff);
+    }
+
+    /**
+     * seconds, 16 bits wrap after 18 hours; a restart within the same second is not a concern for a chat app.
+     */
+    private static int currentEpoch() {
+        return (int) ((System.currentTimeMillis() / 1000) & 0xffff);
+    }
+}
@@ -0,0 +1,695 @@
+package com.colorcloud.wifichat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * append-only message log of one conversation, on disk.
+ * <pre>
+ *   record : length(4) | crc32(4) | seq(8) | timestamp(8) | body, UTF-8
+ * </pre>
+ * Records are appended to the active segment file, named after the seq of its first record; a new segment is
+ * started once the active one reaches the segment size. Every segment keeps a sparse index, one entry
+ * (seq, timestamp, position) every INDEX_INTERVAL bytes, in memory and in a side file. Seqs are given in order
+ * and timestamps never go back, so a lookup by seq or by time is a binary search over the segments, then over
+ * the index of one segment, then a scan of at most INDEX_INTERVAL bytes.
+ * <p/>
+ * Appends are written at once but forced to disk in batches, every FLUSH_RECORDS records and on flush(); the
+ * owner calls flush() on a timer, FLUSH_INTERVAL millis after an append, so a quiet log is not left unforced.
+ * Opening the log scans the active segment and cuts a torn or corrupt tail off; the other segments were forced
+ * when they were closed.
+ * <p/>
+ * delete() only records the seq, in the deleted file. compact() rewrites the closed segments without the
+ * deleted records and those older than a given time, and removes the segments left empty.
+ * <p/>
+ * Thread safe, pure java, no android.
+ */
+public class MessageLog {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    public static final int MAX_BODY_SIZE = 64 * 1024;
+    static final int INDEX_INTERVAL = 4 * 1024;
+    static final int FLUSH_RECORDS = 64;
+    static final long FLUSH_INTERVAL = 1000;
+    private static final int RECORD_HEADER = 24;
+    private static final int INDEX_ENTRY_SIZE = 20;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String COMPACT_SUFFIX = ".compact";
+    private static final String DELETED_FILE = "deleted";
+
+    /**
+     * a message read back from the log.
+     */
+    public static final class Record {
+        public final long seq;
+        public final long timestamp;
+        public final String body;
+
+        Record(long seq, long timestamp, String body) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.body = body;
+        }
+    }
+
+    /**
+     * called for the records of a scan, the buffer holds the whole record. Return false to stop.
+     */
+    private interface Visitor {
+        boolean visit(long seq, long timestamp, ByteBuffer record) throws IOException;
+    }
+
+    private static final class Segment {
+        final long base;
+        final File file;
+        final File indexFile;
+        RandomAccessFile raf;
+        FileChannel channel;
+        long size;
+        long[] indexSeqs = new long[16];
+        long[] indexTimes = new long[16];
+        int[] indexPositions = new int[16];
+        int indexCount = 0;
+
+        Segment(File dir, long base) {
+            this.base = base;
+            this.file = new File(dir, name(base) + LOG_SUFFIX);
+            this.indexFile = new File(dir, name(base) + INDEX_SUFFIX);
+        }
+
+        void open(String mode) throws IOException {
+            raf = new RandomAccessFile(file, mode);
+            channel = raf.getChannel();
+            size = channel.size();
+        }
+
+        void addIndex(long seq, long timestamp, long position) {
+            if (indexCount == indexSeqs.length) {
+                indexSeqs = Arrays.copyOf(indexSeqs, indexCount * 2);
+                indexTimes = Arrays.copyOf(indexTimes, indexCount * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+            }
+            indexSeqs[indexCount] = seq;
+            indexTimes[indexCount] = timestamp;
+            indexPositions[indexCount] = (int) position;
+            indexCount++;
+        }
+
+        boolean needsIndex(long position) {
+            return indexCount == 0 || position - indexPositions[indexCount - 1] >= INDEX_INTERVAL;
+        }
+
+        /**
+         * position to scan from for the first record with a seq >= seq.
+         */
+        long positionOfSeq(long seq) {
+            int i = floor(indexSeqs, indexCount, seq);
+            return i < 0 ? 0 : indexPositions[i];
+        }
+
+        /**
+         * position to scan from for the first record with a timestamp >= timestamp.
+         */
+        long positionOfTime(long timestamp) {
+            int i = floor(indexTimes, indexCount, timestamp - 1);
+            return i < 0 ? 0 : indexPositions[i];
+        }
+
+        void close() throws IOException {
+            if (raf != null) {
+                raf.close();
+                raf = null;
+                channel = null;
+            }
+        }
+    }
+
+    private final File dir;
+    private final int segmentSize;
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private Segment active;
+    private RandomAccessFile indexOut;   // index file of the active segment
+    private RandomAccessFile deletedOut;
+    private final Set<Long> deleted = new HashSet<Long>();
+    private long nextSeq = 0;
+    private long lastTimestamp = Long.MIN_VALUE;
+    private int unflushed = 0;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final CRC32 crc = new CRC32();
+
+    public MessageLog(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * open the log in dir, creating it if needed, and recover from a crash of the last run.
+     */
+    public MessageLog(File dir, int segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+
+        List<Long> bases = new ArrayList<Long>();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("cannot list " + dir);
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(COMPACT_SUFFIX)) {
+                file.delete();   // compaction cut short, the original is still there
+            } else if (name.endsWith(LOG_SUFFIX)) {
+                try {
+                    bases.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // not ours
+                }
+            }
+        }
+        Collections.sort(bases);
+
+        for (int i = 0; i < bases.size(); i++) {
+            Segment segment = new Segment(dir, bases.get(i));
+            boolean last = i == bases.size() - 1;
+            segment.open(last ? "rw" : "r");
+            if (last || !loadIndex(segment)) {
+                recover(segment, last);
+            }
+            segments.add(segment);
+        }
+        if (segments.isEmpty()) {
+            segments.add(newSegment(0));
+        }
+        active = segments.get(segments.size() - 1);
+        indexOut = new RandomAccessFile(active.indexFile, "rw");
+        writeIndex(active, indexOut);
+
+        // seq and time resume after the last record of the newest segment holding any; the active segment is
+        // empty after a crash right after a roll, and then never goes below its base
+        nextSeq = active.base;
+        final boolean[] found = {false};
+        for (int i = segments.size() - 1; i >= 0 && !found[0]; i--) {
+            Segment segment = segments.get(i);
+            long from = segment.indexCount > 0 ? segment.indexPositions[segment.indexCount - 1] : 0;
+            scan(segment, from, new Visitor() {
+                @Override
+                public boolean visit(long seq, long timestamp, ByteBuffer record) {
+                    found[0] = true;
+                    nextSeq = Math.max(nextSeq, seq + 1);
+                    lastTimestamp = timestamp;
+                    return true;
+                }
+            });
+        }
+
+        File deletedFile = new File(dir, DELETED_FILE);
+        deletedOut = new RandomAccessFile(deletedFile, "rw");
+        long count = deletedOut.length() / 8;
+        for (long i = 0; i < count; i++) {
+            deleted.add(deletedOut.readLong());
+        }
+        deletedOut.setLength(count * 8);   // a torn entry
+        deletedOut.seek(count * 8);
+    }
+
+    /**
+     * append a message, the timestamp is raised to the previous one if it is earlier.
+     *
+     * @return the seq of the message.
+     */
+    public synchronized long append(long timestamp, String body) throws IOException {
+        byte[] bytes = utf8(body);
+        if (bytes.length > MAX_BODY_SIZE) {
+            throw new IllegalArgumentException("message too large: " + bytes.length);
+        }
+        int length = RECORD_HEADER + bytes.length;
+        if (active.size > 0 && active.size + length > segmentSize) {
+            roll();
+        }
+
+        long seq = nextSeq;
+        timestamp = Math.max(timestamp, lastTimestamp);
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(length).putInt(0).putLong(seq).putLong(timestamp).put(bytes);
+        record.putInt(4, checksum(record.array(), 8, length - 8));
+        record.flip();
+
+        long position = active.size;
+        while (record.hasRemaining()) {
+            active.channel.write(record, position + record.position());
+        }
+        active.size += length;
+        if (active.needsIndex(position)) {
+            active.addIndex(seq, timestamp, position);
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+            entry.putLong(seq).putLong(timestamp).putInt((int) position).flip();
+            indexOut.getChannel().write(entry, (long) (active.indexCount - 1) * INDEX_ENTRY_SIZE);
+        }
+        nextSeq = seq + 1;
+        lastTimestamp = timestamp;
+
+        unflushed++;
+        if (unflushed >= FLUSH_RECORDS) {
+            flush();
+        }
+        return seq;
+    }
+
+    /**
+     * force the records appended so far to disk.
+     */
+    public synchronized void flush() throws IOException {
+        if (unflushed > 0) {
+            active.channel.force(false);
+            deletedOut.getChannel().force(false);
+            unflushed = 0;
+        }
+    }
+
+    /**
+     * the message with the seq, null if there is none or it was deleted.
+     */
+    public synchronized Record get(final long seq) throws IOException {
+        List<Record> records = read(seq, 1);
+        return records.isEmpty() || records.get(0).seq != seq ? null : records.get(0);
+    }
+
+    /**
+     * up to max messages from the seq on, in order, the deleted ones left out.
+     */
+    public synchronized List<Record> read(final long fromSeq, final int max) throws IOException {
+        final List<Record> records = new ArrayList<Record>();
+        if (max <= 0) {
+            return records;
+        }
+        for (int i = segmentOf(fromSeq); i < segments.size() && records.size() < max; i++) {
+            Segment segment = segments.get(i);
+            scan(segment, segment.positionOfSeq(fromSeq), new Visitor() {
+                @Override
+                public boolean visit(long seq, long timestamp, ByteBuffer record) throws IOException {
+                    if (seq >= fromSeq && !deleted.contains(seq)) {
+                        records.add(new Record(seq, timestamp, body(record)));
+                    }
+                    return records.size() < max;
+                }
+            });
+        }
+        return records;
+    }
+
+    /**
+     * up to max messages just before the seq, in order, the deleted ones left out.
+     */
+    public synchronized List<Record> readBefore(long beforeSeq, int max) throws IOException {
+        List<Record> records = new ArrayList<Record>();
+        long first = firstSeq();
+        long end = Math.min(beforeSeq, nextSeq);
+        while (records.size() < max && end > first) {
+            long from = Math.max(first, end - (max - records.size()));
+            List<Record> page = new ArrayList<Record>();
+            for (Record record : read(from, (int) (end - from))) {
+                if (record.seq < end) {
+                    page.add(record);
+                }
+            }
+            records.addAll(0, page);
+            end = from;
+        }
+        return records;
+    }
+
+    /**
+     * seq of the first message at or after the time, nextSeq() if there is none.
+     */
+    public synchronized long seqAt(final long timestamp) throws IOException {
+        int first = 0;
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low <= high) {
+            // last segment starting before the time
+            int mid = (low + high) >>> 1;
+            Segment segment = segments.get(mid);
+            if (segment.indexCount > 0 && segment.indexTimes[0] < timestamp) {
+                first = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        final long[] found = {-1};
+        for (int i = first; i < segments.size() && found[0] < 0; i++) {
+            Segment segment = segments.get(i);
+            scan(segment, segment.positionOfTime(timestamp), new Visitor() {
+                @Override
+                public boolean visit(long seq, long time, ByteBuffer record) {
+                    if (time >= timestamp) {
+                        found[0] = seq;
+                        return false;
+                    }
+                    return true;
+                }
+            });
+        }
+        return found[0] >= 0 ? found[0] : nextSeq;
+    }
+
+    /**
+     * seq of the oldest record kept, nextSeq() if the log is empty.
+     */
+    public synchronized long firstSeq() {
+        for (Segment segment : segments) {
+            if (segment.indexCount > 0) {
+                return segment.indexSeqs[0];
+            }
+        }
+        return nextSeq;
+    }
+
+    /**
+     * seq the next message will get.
+     */
+    public synchronized long nextSeq() {
+        return nextSeq;
+    }
+
+    /**
+     * hide a message. Its bytes go at the next compaction of its segment.
+     */
+    public synchronized void delete(long seq) throws IOException {
+        if (seq < 0 || seq >= nextSeq || !deleted.add(seq)) {
+            return;
+        }
+        deletedOut.writeLong(seq);
+        unflushed++;
+    }
+
+    /**
+     * rewrite the closed segments without the deleted messages and those older than keepAfter, a timestamp.
+     * The active segment is left alone.
+     *
+     * @return the number of records removed.
+     */
+    public synchronized int compact(final long keepAfter) throws IOException {
+        flush();
+        int removed = 0;
+        for (int i = 0; i < segments.size() - 1; i++) {
+            final Segment segment = segments.get(i);
+            final Segment compacted = new Segment(dir, segment.base);
+            File file = new File(dir, compacted.file.getName() + COMPACT_SUFFIX);
+            final RandomAccessFile out = new RandomAccessFile(file, "rw");
+            final int[] dropped = {0};
+            try {
+                scan(segment, 0, new Visitor() {
+                    @Override
+                    public boolean visit(long seq, long timestamp, ByteBuffer record) throws IOException {
+                        if (timestamp < keepAfter || deleted.contains(seq)) {
+                            deleted.remove(seq);
+                            dropped[0]++;
+                            return true;
+                        }
+                        if (compacted.needsIndex(compacted.size)) {
+                            compacted.addIndex(seq, timestamp, compacted.size);
+                        }
+                        while (record.hasRemaining()) {
+                            compacted.size += out.getChannel().write(record, compacted.size);
+                        }
+                        return true;
+                    }
+                });
+                out.getChannel().force(false);
+            } finally {
+                out.close();
+            }
+
+            if (dropped[0] == 0) {
+                file.delete();
+                continue;
+            }
+            removed += dropped[0];
+            segment.close();
+            segment.indexFile.delete();
+            if (compacted.size == 0) {
+                file.delete();
+                segment.file.delete();
+                segments.remove(i--);
+                continue;
+            }
+            if (!file.renameTo(segment.file)) {
+                throw new IOException("cannot replace " + segment.file);
+            }
+            compacted.open("r");
+            RandomAccessFile index = new RandomAccessFile(compacted.indexFile, "rw");
+            try {
+                writeIndex(compacted, index);
+            } finally {
+                index.close();
+            }
+            segments.set(i, compacted);
+        }
+
+        // the records gone from the segments leave the deleted file
+        File file = new File(dir, DELETED_FILE + COMPACT_SUFFIX);
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            for (long seq : deleted) {
+                out.writeLong(seq);
+            }
+            out.getChannel().force(false);
+        } finally {
+            out.close();
+        }
+        deletedOut.close();
+        File deletedFile = new File(dir, DELETED_FILE);
+        if (!file.renameTo(deletedFile)) {
+            throw new IOException("cannot replace " + deletedFile);
+        }
+        deletedOut = new RandomAccessFile(deletedFile, "rw");
+        deletedOut.seek(deletedOut.length());
+        return removed;
+    }
+
+    public synchronized void close() throws IOException {
+        flush();
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        indexOut.close();
+        deletedOut.close();
+    }
+
+    /**
+     * close the active segment, forced, and start a new one.
+     */
+    private void roll() throws IOException {
+        active.channel.force(false);
+        indexOut.getChannel().force(false);
+        indexOut.close();
+
+        active = newSegment(nextSeq);
+        segments.add(active);
+        indexOut = new RandomAccessFile(active.indexFile, "rw");
+    }
+
+    private Segment newSegment(long base) throws IOException {
+        Segment segment = new Segment(dir, base);
+        segment.open("rw");
+        return segment;
+    }
+
+    /**
+     * index of the segment holding the seq, the first one if the seq is older than all.
+     */
+    private int segmentOf(long seq) {
+        int low = 0;
+        int high = segments.size() - 1;
+        int found = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (segments.get(mid).base <= seq) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * read the index file of a closed segment, false if it is missing or does not fit the segment.
+     */
+    private static boolean loadIndex(Segment segment) throws IOException {
+        if (!segment.indexFile.exists() || segment.indexFile.length() % INDEX_ENTRY_SIZE != 0) {
+            return false;
+        }
+        RandomAccessFile in = new RandomAccessFile(segment.indexFile, "r");
+        try {
+            ByteBuffer entries = ByteBuffer.allocate((int) in.length());
+            in.readFully(entries.array());
+            long lastPosition = -1;
+            while (entries.hasRemaining()) {
+                long seq = entries.getLong();
+                long timestamp = entries.getLong();
+                int position = entries.getInt();
+                if (position <= lastPosition || position >= segment.size) {
+                    segment.indexCount = 0;
+                    return false;
+                }
+                segment.addIndex(seq, timestamp, position);
+                lastPosition = position;
+            }
+            return segment.size == 0 || segment.indexCount > 0;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * rebuild the index of a segment by scanning it. The active segment is cut after its last valid record.
+     */
+    private void recover(final Segment segment, boolean active) throws IOException {
+        segment.indexCount = 0;
+        final long[] position = {0};
+        long end = scan(segment, 0, new Visitor() {
+            @Override
+            public boolean visit(long seq, long timestamp, ByteBuffer record) {
+                if (segment.needsIndex(position[0])) {
+                    segment.addIndex(seq, timestamp, position[0]);
+                }
+                position[0] += record.remaining();
+                return true;
+            }
+        });
+        if (active && end < segment.size) {
+            segment.channel.truncate(end);
+            segment.size = end;
+        }
+        if (!active) {
+            segment.size = end;   // a corrupt tail stays on disk but is never read
+            RandomAccessFile index = new RandomAccessFile(segment.indexFile, "rw");
+            try {
+                writeIndex(segment, index);
+            } finally {
+                index.close();
+            }
+        }
+    }
+
+    private static void writeIndex(Segment segment, RandomAccessFile index) throws IOException {
+        ByteBuffer entries = ByteBuffer.allocate(segment.indexCount * INDEX_ENTRY_SIZE);
+        for (int i = 0; i < segment.indexCount; i++) {
+            entries.putLong(segment.indexSeqs[i]).putLong(segment.indexTimes[i]).putInt(segment.indexPositions[i]);
+        }
+        entries.flip();
+        index.setLength(0);
+        index.getChannel().write(entries, 0);
+        index.getChannel().force(false);
+    }
+
+    /**
+     * visit the valid records of the segment from the position on.
+     *
+     * @return the position after the last valid record, or of the record the visitor stopped at.
+     */
+    private long scan(Segment segment, long position, Visitor visitor) throws IOException {
+        ByteBuffer buffer = readBuffer;
+        while (position < segment.size) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), segment.size - position));
+            while (buffer.hasRemaining()) {
+                if (segment.channel.read(buffer, position + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+
+            while (buffer.remaining() >= RECORD_HEADER) {
+                int start = buffer.position();
+                int length = buffer.getInt(start);
+                if (length < RECORD_HEADER || length > RECORD_HEADER + MAX_BODY_SIZE) {
+                    return position + start;   // corrupt
+                }
+                if (buffer.remaining() < length) {
+                    break;
+                }
+                if (checksum(buffer.array(), buffer.arrayOffset() + start + 8, length - 8) != buffer.getInt(start + 4)) {
+                    return position + start;
+                }
+                ByteBuffer record = buffer.duplicate();
+                record.limit(start + length);
+                if (!visitor.visit(buffer.getLong(start + 8), buffer.getLong(start + 16), record)) {
+                    return position + start;
+                }
+                buffer.position(start + length);
+            }
+
+            if (buffer.position() == 0) {
+                if (buffer.limit() == segment.size - position) {
+                    return position;   // a record cut by the end of the file
+                }
+                buffer = ByteBuffer.allocate(buffer.getInt(0));   // larger than the read buffer
+                continue;
+            }
+            position += buffer.position();
+            buffer = readBuffer;
+        }
+        return position;
+    }
+
+    private int checksum(byte[] bytes, int offset, int length) {
+        crc.reset();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static String body(ByteBuffer record) throws UnsupportedEncodingException {
+        int start = record.position() + RECORD_HEADER;
+        return new String(record.array(), record.arrayOffset() + start, record.limit() - start, "UTF-8");
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);   // every platform has UTF-8
+        }
+    }
+
+    /**
+     * index of the last value <= key, -1 if there is none.
+     */
+    private static int floor(long[] values, int count, long key) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    private static String name(long base) {
+        return String.format(Locale.US, "%020d", base);
+    }
+}
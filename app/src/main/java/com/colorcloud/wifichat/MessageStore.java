@@ -0,0 +1,152 @@
+package com.colorcloud.wifichat;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * the chat history on the device, one MessageLog per conversation in a directory of its own.
+ * <p/>
+ * Records are in the log as soon as append() returns, so they survive the process being killed; they are
+ * forced to disk in batches by the log, and by a flush on the store thread MessageLog.FLUSH_INTERVAL after an
+ * append. No disk work on the UI thread: it uses appendLater() and flush(), which run on the store thread.
+ */
+public class MessageStore {
+
+    private static final String TAG = "MessageStore";
+    public static final String GROUP_CONVERSATION = "group";
+
+    private File dir;
+    private final Map<String, MessageLog> logs = new HashMap<String, MessageLog>();
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    private WorkHandler writer;
+    private boolean flushScheduled = false;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (MessageStore.this) {
+                flushScheduled = false;
+            }
+            flushLogs();
+        }
+    };
+
+    private MessageStore() {
+    }
+
+    private static final MessageStore instance = new MessageStore();
+
+    public static MessageStore getInstance() {
+        return instance;
+    }
+
+    public synchronized void init(File dir) {
+        this.dir = dir;
+        if (writer == null) {
+            writer = new WorkHandler(TAG);
+        }
+    }
+
+    /**
+     * the log of the conversation, opened on first use.
+     */
+    public synchronized MessageLog log(String conversation) throws IOException {
+        MessageLog log = logs.get(conversation);
+        if (log == null) {
+            if (dir == null) {
+                throw new IOException("message store not initialized");
+            }
+            log = new MessageLog(new File(dir, conversation.replaceAll("[^A-Za-z0-9._-]", "_")));
+            logs.put(conversation, log);
+        }
+        return log;
+    }
+
+    /**
+     * append a message row, now, on the calling thread; not on the UI thread. A failure is logged, the message
+     * is still shown.
+     *
+     * @return the seq of the message, -1 on failure.
+     */
+    public long append(String conversation, String messageRow) {
+        return append(conversation, System.currentTimeMillis(), messageRow);
+    }
+
+    /**
+     * append a message row on the store thread, with the time of the call.
+     *
+     * @param onStored run on the UI thread once the row is in the log, null for none.
+     */
+    public void appendLater(final String conversation, final String messageRow, final Runnable onStored) {
+        final long timestamp = System.currentTimeMillis();
+        post(new Runnable() {
+            @Override
+            public void run() {
+                append(conversation, timestamp, messageRow);
+                if (onStored != null) {
+                    uiHandler.post(onStored);
+                }
+            }
+        });
+    }
+
+    /**
+     * force every log to disk, on the store thread.
+     */
+    public void flush() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                flushLogs();
+            }
+        });
+    }
+
+    private long append(String conversation, long timestamp, String messageRow) {
+        try {
+            long seq = log(conversation).append(timestamp, messageRow);
+            scheduleFlush();
+            return seq;
+        } catch (IOException e) {
+            Log.e(TAG, "append: " + e.toString());
+            return -1;
+        }
+    }
+
+    private synchronized void scheduleFlush() {
+        if (!flushScheduled && writer != null) {
+            flushScheduled = true;
+            writer.getHandler().postDelayed(flushRunnable, MessageLog.FLUSH_INTERVAL);
+        }
+    }
+
+    private synchronized void post(Runnable runnable) {
+        if (writer == null) {
+            Log.e(TAG, "message store not initialized");
+            return;
+        }
+        writer.getHandler().post(runnable);
+    }
+
+    private void flushLogs() {
+        List<MessageLog> open;
+        synchronized (this) {
+            open = new ArrayList<MessageLog>(logs.values());   // not holding the store while forcing
+        }
+        for (MessageLog log : open) {
+            try {
+                log.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "flush: " + e.toString());
+            }
+        }
+    }
+}
@@ -1,8 +1,7 @@
 package com.colorcloud.wifichat;
 
-import java.util.StringTokenizer;
-import java.util.zip.CRC32;
-import java.util.zip.Checksum;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 
 import static com.colorcloud.wifichat.Constant.MESSAGE;
 import static com.colorcloud.wifichat.Constant.MESSAGE_WRAPPER_TOKEN;
@@ -14,26 +13,32 @@ public class MessageWrapper {
     private static final String TAG = "MessageWrapper";
 
     private int category;
+    private int flags;
     private long ack;
     private String messageBody;
 
-    private MessageWrapper() {
-        this.category = 0; // which doesn't belong to any category
-        this.ack = 0;
-        this.messageBody = "";
+    // the channel this message was received from, null for a locally created message
+    private SocketChannel origin;
+    // encoded frame, read-only and shared by every channel the message is written to
+    private ByteBuffer frame;
+
+    /**
+     * used by FrameCodec when a frame is decoded from the wire.
+     */
+    MessageWrapper(int category, int flags, long ack, String messageBody) {
+        this.category = category;
+        this.flags = flags;
+        this.ack = ack;
+        this.messageBody = messageBody;
     }
 
     public MessageWrapper(int category, String messageBody) {
         this.category = category;
         this.messageBody = messageBody;
 
-//         ACK is only a meaningful field with the type MESSAGE
+//         ACK is only a meaningful field with the type MESSAGE, it is the unique id of the message
         if (category == MESSAGE) {
-            byte bytes[] = messageBody.getBytes();
-            Checksum checksum = new CRC32();
-            checksum.update(bytes, 0, bytes.length);
-            this.ack = checksum.getValue();
-            // TODO: 6/2/16 when a MESSAGE is constructed, it should be enqueued in the message queue for ACK
+            this.ack = MessageIdGenerator.getInstance().next();
         } else {
             this.ack = 0;
         }
@@ -43,6 +48,10 @@ public class MessageWrapper {
         return this.category;
     }
 
+    public int getFlags() {
+        return this.flags;
+    }
+
     public long getAck() {
         return this.ack;
     }
@@ -51,32 +60,40 @@ public class MessageWrapper {
         return this.messageBody;
     }
 
-    public String toString() {
-        return category + MESSAGE_WRAPPER_TOKEN + ack + MESSAGE_WRAPPER_TOKEN + messageBody;
+    /**
+     * the encoded frame of this message, encoded on first use only. For a received message these are the
+     * bytes read from the wire. Callers must write a duplicate(), never the returned buffer itself.
+     */
+    public ByteBuffer getFrame() {
+        if (frame == null) {
+            frame = FrameCodec.encode(this).asReadOnlyBuffer();
+        }
+        return frame;
     }
 
-    public static MessageWrapper parseMessageWrapper(String string) {
-        int parsingProgress = 0; // parsing has 3 stages 1,2,3
-        StringTokenizer stringTokenizer = new StringTokenizer(string, MESSAGE_WRAPPER_TOKEN);
-        MessageWrapper messageWrapper = new MessageWrapper();
-
-        while (stringTokenizer.hasMoreTokens()) {
-            if (parsingProgress == 0) {
-                messageWrapper.category = Integer.parseInt(stringTokenizer.nextToken());
-                parsingProgress++;
-                continue;
-            }
-            if (parsingProgress == 1) {
-                messageWrapper.ack = Long.parseLong(stringTokenizer.nextToken());
-                parsingProgress++;
-                continue;
-            }
-            if (parsingProgress == 2) {
-                messageWrapper.messageBody = stringTokenizer.nextToken();
-                break;
-            }
-        }
+    /**
+     * the raw bytes of a FrameCodec.FLAG_BINARY frame, a read-only view into the frame.
+     */
+    public ByteBuffer getPayload() {
+        ByteBuffer payload = getFrame().duplicate();
+        payload.position(FrameCodec.HEADER_SIZE);
+        return payload.slice();
+    }
+
+    void setFrame(ByteBuffer frame) {
+        this.frame = frame;
+    }
+
+    public SocketChannel getOrigin() {
+        return this.origin;
+    }
 
-        return messageWrapper;
+    void setOrigin(SocketChannel origin) {
+        this.origin = origin;
+    }
+
+    // for debug purpose, the wire format is FrameCodec
+    public String toString() {
+        return category + MESSAGE_WRAPPER_TOKEN + ack + MESSAGE_WRAPPER_TOKEN + messageBody;
     }
 }
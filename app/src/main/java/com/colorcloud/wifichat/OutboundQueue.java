@@ -0,0 +1,307 @@
+package com.colorcloud.wifichat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * bounded queue of encoded frames waiting to be written to one socket channel.
+ * <p/>
+ * Producers (the connection service thread) only offer frames. The selector thread drains the queue when the
+ * channel is writable, with one gathering write for up to MAX_GATHER frames. A short write leaves the rest of
+ * the frame it stopped in as the first thing to write on the next OP_WRITE event, nothing is truncated.
+ * <p/>
+ * Frames go into one of three lanes after their category: LANE_CONTROL (acks, routing, handshakes), LANE_CHAT
+ * (messages) and LANE_BULK (file data). Each write takes control frames first, then chat frames, and lets one
+ * bulk frame through for every CHAT_WEIGHT chat frames, so a chat frame never waits behind more than one bulk
+ * frame and a chat burst does not stall a file. The bulk lane has its own, smaller byte budget: a file can not
+ * fill the queue and get chat frames rejected. Frames picked for a write but not started go back to the front
+ * of their lane, to be ordered again against what arrived meanwhile.
+ * <p/>
+ * offer() tells the producer when the queue goes from idle to pending, that is the only time OP_WRITE interest
+ * has to be turned on. drainTo() tells the selector when the queue is empty, that is when OP_WRITE is turned off.
+ * Both transitions are decided under the queue lock, so a frame can not be left behind with OP_WRITE off.
+ * <p/>
+ * With batching on, chat and bulk frames are coalesced, Nagle style: a frame offered to an idle queue that was
+ * last written more than the batch delay ago goes out at once, the ones following it within the delay wait for
+ * it to pass (QUEUED_BATCHED, the reactor calls flush() then), or for the batch byte budget to fill up, and go
+ * out together in one gathering write. A control frame is never held, it flushes the pending batch with it.
+ */
+public class OutboundQueue {
+
+    public static final int DEFAULT_MAX_BYTES = 1024 * 512;
+    public static final int DEFAULT_MAX_BULK_BYTES = 1024 * 256;
+
+    // results of offer()
+    public static final int REJECTED = -1;
+    public static final int QUEUED = 0;
+    public static final int QUEUED_NEEDS_WRITE = 1;
+    public static final int QUEUED_BATCHED = 2;   // the caller must have flush() called after the batch delay
+
+    public static final int LANE_CONTROL = 0;
+    public static final int LANE_CHAT = 1;
+    public static final int LANE_BULK = 2;
+    private static final int LANES = 3;
+
+    private static final int MAX_GATHER = 64;
+    private static final int CHAT_WEIGHT = 8;
+
+    private final int maxBytes;
+    private final int maxBulkBytes;
+    private final ArrayDeque<ByteBuffer>[] lanes;
+    private ByteBuffer current = null;   // frame partially written, goes first
+    private int currentLane;
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];   // selector thread only
+    private final int[] gatherLanes = new int[MAX_GATHER];
+    private int queuedBytes = 0;
+    private int bulkBytes = 0;
+    private int chatCredit = CHAT_WEIGHT;
+    private boolean writeScheduled = false;
+    private long batchDelayNanos = 0;    // 0: no batching
+    private int batchBytes = 0;
+    private boolean batchPending = false;
+    private long lastFlush = 0;          // nanoTime a write was last scheduled, 0 never
+
+    public OutboundQueue() {
+        this(DEFAULT_MAX_BYTES, DEFAULT_MAX_BULK_BYTES);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public OutboundQueue(int maxBytes, int maxBulkBytes) {
+        this.maxBytes = maxBytes;
+        this.maxBulkBytes = maxBulkBytes;
+        this.lanes = new ArrayDeque[LANES];
+        for (int i = 0; i < LANES; i++) {
+            lanes[i] = new ArrayDeque<ByteBuffer>();
+        }
+    }
+
+    /**
+     * coalesce chat and bulk frames for up to delayMillis, or until byteBudget bytes are queued.
+     * delayMillis 0 writes every frame as soon as it is offered.
+     */
+    public synchronized void setBatching(long delayMillis, int byteBudget) {
+        this.batchDelayNanos = delayMillis * 1000000L;
+        this.batchBytes = byteBudget;
+    }
+
+    public synchronized long getBatchDelayNanos() {
+        return batchDelayNanos;
+    }
+
+    /**
+     * the lane of a frame category.
+     */
+    public static int laneOf(int category) {
+        switch (category) {
+            case Constant.MESSAGE:
+            case Constant.ROUTED_MESSAGE:
+                return LANE_CHAT;
+            case Constant.FILE_DATA:
+            case Constant.SWARM_PIECE:
+                return LANE_BULK;
+            default:
+                return LANE_CONTROL;
+        }
+    }
+
+    /**
+     * queue a frame, in the lane of its category. The buffer is owned by the queue afterwards, pass a duplicate()
+     * to share the bytes.
+     *
+     * @return REJECTED if the queue (or for a bulk frame, the bulk lane) is full, QUEUED_NEEDS_WRITE if the
+     * caller must turn OP_WRITE interest on, QUEUED_BATCHED if it must call flush() after the batch delay,
+     * QUEUED otherwise.
+     */
+    public synchronized int offer(ByteBuffer frame) {
+        int size = frame.remaining();
+        int lane = laneOf(FrameCodec.categoryOf(frame));
+        if (lane == LANE_BULK) {
+            if (bulkBytes + size > maxBulkBytes && bulkBytes > 0) {
+                return REJECTED;
+            }
+        } else if (queuedBytes + size > maxBytes && queuedBytes > 0) {
+            return REJECTED;
+        }
+
+        lanes[lane].addLast(frame);
+        queuedBytes += size;
+        if (lane == LANE_BULK) {
+            bulkBytes += size;
+        }
+        if (writeScheduled) {
+            return QUEUED;
+        }
+        if (lane != LANE_CONTROL && batchDelayNanos > 0 && queuedBytes < batchBytes) {
+            if (batchPending) {
+                return QUEUED;
+            }
+            if (lastFlush != 0 && System.nanoTime() - lastFlush < batchDelayNanos) {
+                batchPending = true;
+                return QUEUED_BATCHED;
+            }
+        }
+        return scheduleWrite();
+    }
+
+    /**
+     * the batch delay passed, called on the selector thread.
+     *
+     * @return true if OP_WRITE interest should be turned on; false if the batch went out already.
+     */
+    public synchronized boolean flush() {
+        if (!batchPending) {
+            return false;
+        }
+        scheduleWrite();
+        return true;
+    }
+
+    private int scheduleWrite() {
+        batchPending = false;
+        writeScheduled = true;
+        lastFlush = System.nanoTime();
+        return QUEUED_NEEDS_WRITE;
+    }
+
+    /**
+     * write as much of the queue as the channel accepts, called on the selector thread on OP_WRITE.
+     *
+     * @return true if the queue is now empty and OP_WRITE interest should be turned off.
+     */
+    public boolean drainTo(GatheringByteChannel channel) throws IOException {
+        int count = 0;
+        synchronized (this) {
+            batchPending = false;   // a batch still held back goes with this write
+            if (current != null) {
+                gatherLanes[count] = currentLane;
+                gather[count++] = current;
+                current = null;
+            }
+            while (count < MAX_GATHER) {
+                int lane = nextLane();
+                if (lane < 0) {
+                    break;
+                }
+                gatherLanes[count] = lane;
+                gather[count++] = lanes[lane].pollFirst();
+            }
+        }
+
+        long written = 0;
+        try {
+            if (count > 0) {
+                written = channel.write(gather, 0, count);
+            }
+        } finally {
+            synchronized (this) {
+                int i = 0;
+                while (i < count && !gather[i].hasRemaining()) {
+                    i++;
+                }
+                if (i < count && gather[i].position() > 0) {
+                    currentLane = gatherLanes[i];
+                    current = gather[i++];   // stopped inside this frame
+                }
+                for (int j = count - 1; j >= i; j--) {
+                    lanes[gatherLanes[j]].addFirst(gather[j]);   // not started, back in line
+                }
+                for (int j = 0; j < count; j++) {
+                    gather[j] = null;
+                }
+                account(written);
+            }
+        }
+
+        synchronized (this) {
+            if (current == null && queuedBytes == 0) {
+                writeScheduled = false;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * lane of the next frame to write, -1 if all are empty. Called under the lock.
+     */
+    private int nextLane() {
+        if (!lanes[LANE_CONTROL].isEmpty()) {
+            return LANE_CONTROL;
+        }
+        boolean chat = !lanes[LANE_CHAT].isEmpty();
+        boolean bulk = !lanes[LANE_BULK].isEmpty();
+        if (chat && (chatCredit > 0 || !bulk)) {
+            if (bulk) {
+                chatCredit--;   // counted only while bulk waits, a chat-only stretch must not use up the weighting
+            }
+            return LANE_CHAT;
+        }
+        if (bulk) {
+            chatCredit = CHAT_WEIGHT;
+            return LANE_BULK;
+        }
+        return -1;
+    }
+
+    /**
+     * written bytes leave the counters; bulk bytes are told apart by the frames written.
+     */
+    private void account(long written) {
+        queuedBytes = Math.max(0, queuedBytes - (int) written);
+        int bulkLeft = 0;
+        for (ByteBuffer frame : lanes[LANE_BULK]) {
+            bulkLeft += frame.remaining();
+        }
+        if (current != null && currentLane == LANE_BULK) {
+            bulkLeft += current.remaining();
+        }
+        bulkBytes = bulkLeft;
+        if (lanesEmpty() && current == null) {
+            queuedBytes = 0;
+        }
+    }
+
+    private boolean lanesEmpty() {
+        for (ArrayDeque<ByteBuffer> lane : lanes) {
+            if (!lane.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        int size = current != null ? 1 : 0;
+        for (ArrayDeque<ByteBuffer> lane : lanes) {
+            size += lane.size();
+        }
+        return size;
+    }
+
+    public synchronized int queuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * bytes a bulk producer may still queue before the bulk lane is full.
+     */
+    public synchronized int bulkRoom() {
+        return Math.max(0, maxBulkBytes - bulkBytes);
+    }
+
+    /**
+     * drop everything, when the channel is broken.
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<ByteBuffer> lane : lanes) {
+            lane.clear();
+        }
+        current = null;
+        queuedBytes = 0;
+        bulkBytes = 0;
+        writeScheduled = false;
+        batchPending = false;
+    }
+}
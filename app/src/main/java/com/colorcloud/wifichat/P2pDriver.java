@@ -0,0 +1,29 @@
+package com.colorcloud.wifichat;
+
+/**
+ * the p2p operations ConnectionScheduler needs. RoutingManager implements it on WifiP2pManager and the socket
+ * channels; a fake one can drive the scheduler on the JVM.
+ * <p/>
+ * The driver reports back through ConnectionScheduler.onConnectFailed() and onSocketReady().
+ */
+public interface P2pDriver {
+
+    /**
+     * whether a socket to the peer is already up, so the scheduler can send without a connect.
+     */
+    boolean isLinked(String peer);
+
+    /**
+     * ask for a p2p connection to the peer. Returning only means the request was made.
+     */
+    void connect(String peer);
+
+    /**
+     * queue the message to the peer, the socket is up.
+     *
+     * @return false if it could not be queued.
+     */
+    boolean send(String peer, MessageWrapper messageWrapper);
+
+    void disconnect(String peer);
+}
@@ -0,0 +1,256 @@
+package com.colorcloud.wifichat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static com.colorcloud.wifichat.Constant.MESSAGE;
+import static com.colorcloud.wifichat.Constant.MESSAGE_ROW_TOKEN;
+
+/**
+ * the compact forms of a text frame body, chosen per frame by FrameCodec and flagged in the header.
+ * <p/>
+ * FLAG_ROW: a MESSAGE body that is a MessageRow, "sender^&^msg^&^dd-MM-yyyy hh:mm:ss", goes as binary fields
+ * <pre>
+ *   sender length(1) | sender | day(1) | month(1) | year(2) | hour(1) | minute(1) | second(1) | msg
+ * </pre>
+ * and is rebuilt char for char on decode, so nothing above the codec sees a difference.
+ * <p/>
+ * FLAG_DEFLATE: a body of DEFLATE_THRESHOLD bytes or more is deflated (raw, no zlib header) with a preset
+ * dictionary of what chat and control frames are made of, which is what makes short frames compress at all.
+ * It is kept only if it is smaller. A FLAG_ROW body can be deflated too.
+ * <p/>
+ * Deflater and Inflater are per thread: frames are encoded on the service thread and decoded on the reactors.
+ */
+public final class PayloadCompressor {
+
+    public static final int DEFLATE_THRESHOLD = 64;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int ROW_TIME_LENGTH = 19;   // dd-MM-yyyy hh:mm:ss
+    private static final int ROW_TIME_FIELDS = 7;
+
+    // the shared preset dictionary; the most frequent strings last, deflate finds the nearest match cheapest.
+    // Changing it breaks the wire format, both sides must have the same one.
+    private static final byte[] DICTIONARY = (
+            "&*&02:&*&06:&*&0a:&*&12:&*&1a:&*&22:&*&2a:&*&32:&*&3a:&*&42:&*&4a:&*&52:&*&5a:&*&62:&*&6a:&*&72:&*&7a:"
+                    + "=1,=2,=3,&*&=0,192.168.49.1 logged in Header "
+                    + "http://www. .com .jpg .png .mp3 .mp4 .pdf file photo video picture download send sent "
+                    + "thanks thank you please sorry okay sure cool nice great good morning night tomorrow today "
+                    + "yesterday tonight later soon now when where what why how who which would could should "
+                    + "going to want know think just like really about with from this that have there here "
+                    + "can't don't didn't won't isn't I'm it's that's what's you're we're they're let's "
+                    + "yes yeah no not and the for are you your our we they he she him her them me my "
+                    + "lol haha :) :( :D ok OK hi hello hey bye see you ? ! . , "
+                    + "-2016 -2017 -2018 -2019 -2020 -2021 -2022 -2023 -2024 -2025 -2026 -2027 "
+                    + MESSAGE_ROW_TOKEN + " " + MESSAGE_ROW_TOKEN).getBytes(UTF_8);
+
+    private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED, true);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private PayloadCompressor() {
+    }
+
+    /**
+     * the body of the message in its most compact form.
+     *
+     * @param flags out: flags[0] gets FrameCodec.FLAG_ROW and FLAG_DEFLATE as applied, 0 for the plain UTF-8 body.
+     */
+    static byte[] compress(MessageWrapper messageWrapper, int[] flags) {
+        String body = messageWrapper.getMessageBody();
+        byte[] payload = null;
+        flags[0] = 0;
+        if (messageWrapper.getCategory() == MESSAGE) {
+            payload = compactRow(body);
+            if (payload != null) {
+                flags[0] |= FrameCodec.FLAG_ROW;
+            }
+        }
+        if (payload == null) {
+            payload = body.getBytes(UTF_8);
+        }
+        if (payload.length >= DEFLATE_THRESHOLD) {
+            byte[] deflated = deflate(payload);
+            if (deflated.length < payload.length) {
+                payload = deflated;
+                flags[0] |= FrameCodec.FLAG_DEFLATE;
+            }
+        }
+        return payload;
+    }
+
+    /**
+     * the text body of a compressed frame.
+     */
+    static String decompress(int flags, byte[] bytes, int offset, int length) throws IOException {
+        if ((flags & FrameCodec.FLAG_DEFLATE) != 0) {
+            bytes = inflate(bytes, offset, length);
+            offset = 0;
+            length = bytes.length;
+        }
+        if ((flags & FrameCodec.FLAG_ROW) != 0) {
+            return expandRow(bytes, offset, length);
+        }
+        return new String(bytes, offset, length, UTF_8);
+    }
+
+    /**
+     * @return the FLAG_ROW form, null if the body is not a MessageRow with the usual time format.
+     */
+    static byte[] compactRow(String body) {
+        int first = body.indexOf(MESSAGE_ROW_TOKEN);
+        int last = body.lastIndexOf(MESSAGE_ROW_TOKEN);
+        if (first < 0 || last == first || body.length() - last - MESSAGE_ROW_TOKEN.length() != ROW_TIME_LENGTH) {
+            return null;
+        }
+        int[] time = parseTime(body, last + MESSAGE_ROW_TOKEN.length());
+        if (time == null) {
+            return null;
+        }
+        byte[] sender = body.substring(0, first).getBytes(UTF_8);
+        if (sender.length > 0xff) {
+            return null;
+        }
+        byte[] msg = body.substring(first + MESSAGE_ROW_TOKEN.length(), last).getBytes(UTF_8);
+
+        ByteBuffer row = ByteBuffer.allocate(1 + sender.length + ROW_TIME_FIELDS + msg.length);
+        row.put((byte) sender.length);
+        row.put(sender);
+        row.put((byte) time[0]);
+        row.put((byte) time[1]);
+        row.putShort((short) time[2]);
+        row.put((byte) time[3]);
+        row.put((byte) time[4]);
+        row.put((byte) time[5]);
+        row.put(msg);
+        return row.array();
+    }
+
+    private static String expandRow(byte[] bytes, int offset, int length) throws IOException {
+        ByteBuffer row = ByteBuffer.wrap(bytes, offset, length);
+        if (row.remaining() < 1) {
+            throw new IOException("bad row body");
+        }
+        int senderLength = row.get() & 0xff;
+        if (row.remaining() < senderLength + ROW_TIME_FIELDS) {
+            throw new IOException("bad row body, sender length: " + senderLength);
+        }
+        String sender = new String(bytes, row.position(), senderLength, UTF_8);
+        row.position(row.position() + senderLength);
+        int day = row.get() & 0xff;
+        int month = row.get() & 0xff;
+        int year = row.getShort() & 0xffff;
+        int hour = row.get() & 0xff;
+        int minute = row.get() & 0xff;
+        int second = row.get() & 0xff;
+        String msg = new String(bytes, row.position(), row.remaining(), UTF_8);
+
+        StringBuilder sb = new StringBuilder(sender.length() + msg.length() + 2 * MESSAGE_ROW_TOKEN.length()
+                + ROW_TIME_LENGTH);
+        sb.append(sender).append(MESSAGE_ROW_TOKEN).append(msg).append(MESSAGE_ROW_TOKEN);
+        appendDigits(sb, day, 2).append('-');
+        appendDigits(sb, month, 2).append('-');
+        appendDigits(sb, year, 4).append(' ');
+        appendDigits(sb, hour, 2).append(':');
+        appendDigits(sb, minute, 2).append(':');
+        appendDigits(sb, second, 2);
+        return sb.toString();
+    }
+
+    /**
+     * day, month, year, hour, minute, second of "dd-MM-yyyy hh:mm:ss" at start, null if it is anything else.
+     */
+    private static int[] parseTime(String s, int start) {
+        int[] fields = new int[6];
+        int field = 0;
+        int value = 0;
+        for (int i = 0; i < ROW_TIME_LENGTH; i++) {
+            char c = s.charAt(start + i);
+            char separator = i == 2 || i == 5 ? '-' : i == 10 ? ' ' : i == 13 || i == 16 ? ':' : 0;
+            if (separator != 0) {
+                if (c != separator) {
+                    return null;
+                }
+                fields[field++] = value;
+                value = 0;
+            } else if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+            } else {
+                return null;
+            }
+        }
+        fields[field] = value;
+        return fields;
+    }
+
+    private static StringBuilder appendDigits(StringBuilder sb, int value, int digits) {
+        for (int divisor = digits == 4 ? 1000 : 10; divisor > 0; divisor /= 10) {
+            sb.append((char) ('0' + value / divisor % 10));
+        }
+        return sb;
+    }
+
+    private static byte[] deflate(byte[] input) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(input);
+        deflater.finish();
+        byte[] out = new byte[input.length + 16];   // not kept when it does not shrink, no need to grow
+        int length = 0;
+        while (!deflater.finished() && length < out.length) {
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        if (!deflater.finished()) {
+            return input;
+        }
+        byte[] deflated = new byte[length];
+        System.arraycopy(out, 0, deflated, 0, length);
+        return deflated;
+    }
+
+    private static byte[] inflate(byte[] bytes, int offset, int length) throws IOException {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(bytes, offset, length);
+        byte[] out = new byte[Math.min(FrameCodec.MAX_BODY_SIZE, Math.max(256, length * 4))];
+        int total = 0;
+        try {
+            while (!inflater.finished()) {
+                if (total == out.length) {
+                    if (out.length == FrameCodec.MAX_BODY_SIZE) {
+                        throw new IOException("inflated body too large");
+                    }
+                    byte[] grown = new byte[Math.min(FrameCodec.MAX_BODY_SIZE, out.length * 2)];
+                    System.arraycopy(out, 0, grown, 0, total);
+                    out = grown;
+                }
+                int n = inflater.inflate(out, total, out.length - total);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("truncated deflated body");
+                }
+                total += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("bad deflated body: " + e.getMessage());
+        }
+        byte[] inflated = new byte[total];
+        System.arraycopy(out, 0, inflated, 0, total);
+        return inflated;
+    }
+}
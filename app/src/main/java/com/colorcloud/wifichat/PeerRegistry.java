@@ -0,0 +1,221 @@
+package com.colorcloud.wifichat;
+
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * the peers with a socket link to this device: every client for the group owner, the group owner for a client.
+ * <p/>
+ * A peer is found in O(1) by its channel, its ip, or once it told us, its MAC and node id (the MessageIdGenerator
+ * prefix of the MAC). Joins and leaves are rare and take the lock; lookups never do, and fan-out iterates an
+ * immutable snapshot, so a peer joining or leaving in the middle of a publish does not break the iteration.
+ */
+public class PeerRegistry {
+
+    /**
+     * a linked peer and its per-peer state.
+     */
+    public static final class Peer {
+        final SocketChannel channel;
+        final String ip;
+        final ChannelContext context;   // the outbound queue, and the reactor serving the channel
+        private final RttEstimator rtt = new RttEstimator();
+        private final FailureDetector liveness;
+        private volatile String mac = null;
+        PeerSession session = new PeerSession();   // service thread only; the peer's old one once it resumes
+        long lastSent = 0;                         // service thread only, elapsedRealtime of the last frame queued
+
+        Peer(SocketChannel channel, String ip, ChannelContext context, FailureDetector liveness) {
+            this.channel = channel;
+            this.ip = ip;
+            this.context = context;
+            this.liveness = liveness;
+        }
+
+        public SocketChannel getChannel() {
+            return channel;
+        }
+
+        public String getIp() {
+            return ip;
+        }
+
+        /**
+         * the peer's MAC, lower case, null until it sent it.
+         */
+        public String getMac() {
+            return mac;
+        }
+
+        public OutboundQueue getOutbound() {
+            return context.outbound;
+        }
+
+        /**
+         * round trip times of the messages acked by this peer, and of its heartbeat echoes.
+         */
+        public RttEstimator getRtt() {
+            return rtt;
+        }
+
+        /**
+         * elapsedRealtime of the last frame from the peer, or of the link up.
+         */
+        public long getLastSeen() {
+            return liveness.getLastArrival();
+        }
+
+        /**
+         * false once the failure detector suspects the peer is gone; it is evicted soon after.
+         */
+        public boolean isAlive(long now) {
+            return liveness.isAvailable(now);
+        }
+
+        public FailureDetector getLiveness() {
+            return liveness;
+        }
+
+        void touch(long now) {
+            liveness.heartbeat(now);
+        }
+
+        @Override
+        public String toString() {
+            return ip + (mac != null ? " " + mac : "");
+        }
+    }
+
+    private final ConcurrentHashMap<SocketChannel, Peer> byChannel = new ConcurrentHashMap<SocketChannel, Peer>();
+    private final ConcurrentHashMap<String, Peer> byIp = new ConcurrentHashMap<String, Peer>();
+    private final ConcurrentHashMap<String, Peer> byMac = new ConcurrentHashMap<String, Peer>();
+    private final ConcurrentHashMap<Integer, Peer> byNodeId = new ConcurrentHashMap<Integer, Peer>();
+    private volatile List<Peer> snapshot = Collections.emptyList();   // join order, replaced, never changed
+    private int detectorMode = FailureDetector.MISSED_BEATS;
+    private long heartbeatInterval = 2000;
+    private double detectorThreshold = FailureDetector.DEFAULT_MAX_MISSED;
+
+    /**
+     * the failure detector of the peers linked from now on.
+     *
+     * @param mode              FailureDetector.MISSED_BEATS or PHI_ACCRUAL.
+     * @param heartbeatInterval the longest a live peer stays quiet, in milliseconds.
+     * @param threshold         missed intervals, or phi, at which a peer is suspected.
+     */
+    public synchronized void setFailureDetector(int mode, long heartbeatInterval, double threshold) {
+        this.detectorMode = mode;
+        this.heartbeatInterval = heartbeatInterval;
+        this.detectorThreshold = threshold;
+    }
+
+    public synchronized long getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    /**
+     * a link came up. A newer link from the same ip takes the ip over, the older one stays until it breaks.
+     */
+    public synchronized Peer add(SocketChannel channel, String ip, ChannelContext context, long now) {
+        Peer peer = new Peer(channel, ip, context,
+                new FailureDetector(detectorMode, heartbeatInterval, detectorThreshold, now));
+        Peer previous = byChannel.put(channel, peer);
+        if (previous != null) {
+            unindex(previous);
+        }
+        byIp.put(ip, peer);
+
+        List<Peer> peers = new ArrayList<Peer>(snapshot.size() + 1);
+        for (Peer p : snapshot) {
+            if (p != previous) {
+                peers.add(p);
+            }
+        }
+        peers.add(peer);
+        snapshot = Collections.unmodifiableList(peers);
+        return peer;
+    }
+
+    /**
+     * the link is gone.
+     *
+     * @return the peer, null if the channel was not registered.
+     */
+    public synchronized Peer remove(SocketChannel channel) {
+        Peer peer = byChannel.remove(channel);
+        if (peer == null) {
+            return null;
+        }
+        unindex(peer);
+
+        List<Peer> peers = new ArrayList<Peer>(snapshot);
+        peers.remove(peer);
+        snapshot = Collections.unmodifiableList(peers);
+        return peer;
+    }
+
+    public synchronized void clear() {
+        byChannel.clear();
+        byIp.clear();
+        byMac.clear();
+        byNodeId.clear();
+        snapshot = Collections.<Peer>emptyList();
+    }
+
+    /**
+     * the peer told us its MAC, from then on it can be found by MAC and node id.
+     */
+    public synchronized void bindMac(Peer peer, String mac) {
+        if (mac == null || mac.length() == 0 || byChannel.get(peer.channel) != peer) {
+            return;   // no MAC, or the peer is gone meanwhile
+        }
+        String normalized = RoutingTable.normalize(mac);
+        if (normalized.equals(peer.mac)) {
+            return;
+        }
+        if (peer.mac != null) {
+            byMac.remove(peer.mac, peer);
+            byNodeId.remove(MessageIdGenerator.nodeIdOf(peer.mac), peer);
+        }
+        peer.mac = normalized;
+        byMac.put(normalized, peer);
+        byNodeId.put(MessageIdGenerator.nodeIdOf(normalized), peer);
+    }
+
+    private void unindex(Peer peer) {
+        byIp.remove(peer.ip, peer);
+        if (peer.mac != null) {
+            byMac.remove(peer.mac, peer);
+            byNodeId.remove(MessageIdGenerator.nodeIdOf(peer.mac), peer);
+        }
+    }
+
+    public Peer get(SocketChannel channel) {
+        return byChannel.get(channel);
+    }
+
+    public Peer byIp(String ip) {
+        return byIp.get(ip);
+    }
+
+    public Peer byMac(String mac) {
+        return mac == null ? null : byMac.get(RoutingTable.normalize(mac));
+    }
+
+    public Peer byNodeId(int nodeId) {
+        return byNodeId.get(nodeId);
+    }
+
+    /**
+     * the peers as of now; the list never changes, iterate it from any thread.
+     */
+    public List<Peer> snapshot() {
+        return snapshot;
+    }
+
+    public int size() {
+        return snapshot.size();
+    }
+}
@@ -0,0 +1,198 @@
+package com.colorcloud.wifichat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import static com.colorcloud.wifichat.Constant.SESSION_FIELD_TOKEN;
+
+/**
+ * what a link to one peer left unfinished: the MESSAGE and ROUTED_MESSAGE frames written to the peer and not
+ * acked by it yet, in send order, and the session id the peer announced.
+ * <p/>
+ * A session outlives its link. ConnectionManager keeps it by the peer's MAC, so when the peer comes back, on a
+ * reconnect or with a new ip after the group re-formed, its SESSION_RESUME finds the session and the frames it
+ * never acked are written again, and only those. The receiver drops the copies it did get, by message id, and acks
+ * them again.
+ * <p/>
+ * At most MAX_UNACKED_FRAMES frames are kept; to make room the oldest one goes, and is counted in the gap. The gap
+ * is sent to the peer (SESSION_GAP) with the replay, so it knows messages are missing from its history instead
+ * of never hearing of them.
+ * <p/>
+ * Only used on the connection service thread.
+ */
+public class PeerSession {
+
+    public static final int MAX_UNACKED_FRAMES = 512;
+    public static final long DETACHED_TTL = 10 * 60 * 1000;   // a peer gone longer than that is not coming back
+
+    private final LinkedHashMap<Long, ByteBuffer> unacked = new LinkedHashMap<Long, ByteBuffer>();
+    private long peerSessionId = 0;      // 0 until the peer announced it
+    private long detachedAt = -1;        // elapsedRealtime the link broke, -1 while linked
+    private long lastAckedId = 0;
+    private int gapCount = 0;            // frames dropped unacked, since the last takeGap()
+    private long gapFirstId = 0;
+    private long gapLastId = 0;
+
+    /**
+     * a frame went to the peer; kept until acked if it is acked at all.
+     *
+     * @return the id of the unacked frame dropped to make room, 0 if none was.
+     */
+    public long record(ByteBuffer frame) {
+        int category = FrameCodec.categoryOf(frame);
+        if (category != Constant.MESSAGE && category != Constant.ROUTED_MESSAGE) {
+            return 0;
+        }
+        long id = FrameCodec.idOf(frame);
+        if (id == 0 || unacked.containsKey(id)) {
+            return 0;   // a retransmission keeps its place
+        }
+        long dropped = 0;
+        if (unacked.size() >= MAX_UNACKED_FRAMES) {
+            Iterator<Long> oldest = unacked.keySet().iterator();
+            dropped = oldest.next();
+            oldest.remove();
+            addGap(1, dropped, dropped);
+        }
+        unacked.put(id, frame);
+        return dropped;
+    }
+
+    private void addGap(int count, long firstId, long lastId) {
+        if (gapCount == 0) {
+            gapFirstId = firstId;
+        }
+        gapCount += count;
+        gapLastId = lastId;
+    }
+
+    /**
+     * the peer acked these ids.
+     *
+     * @return number of frames acked.
+     */
+    public int acknowledge(AckCoalescer.AckRange range) {
+        int acked = 0;
+        for (int i = 0; i < range.run; i++) {
+            acked += acknowledge(range.base + i);
+        }
+        for (long bits = range.sack; bits != 0; bits &= bits - 1) {
+            acked += acknowledge(range.base + range.run + 1 + Long.numberOfTrailingZeros(bits));
+        }
+        return acked;
+    }
+
+    private int acknowledge(long id) {
+        if (unacked.remove(id) == null) {
+            return 0;
+        }
+        lastAckedId = id;
+        return 1;
+    }
+
+    /**
+     * frames written on the link after the peer came back, before its SESSION_RESUME told who it is.
+     */
+    public void absorb(PeerSession newer) {
+        if (newer.gapCount > 0) {
+            addGap(newer.gapCount, newer.gapFirstId, newer.gapLastId);
+        }
+        for (ByteBuffer frame : newer.unacked.values()) {
+            record(frame);
+        }
+    }
+
+    /**
+     * the frames to write again on resume, oldest first.
+     */
+    public List<ByteBuffer> unackedFrames() {
+        return new ArrayList<ByteBuffer>(unacked.values());
+    }
+
+    public int unackedCount() {
+        return unacked.size();
+    }
+
+    /**
+     * the frames dropped unacked since the last call, to report to the peer; the count starts again.
+     *
+     * @return {count, first id, last id}, null if none was dropped.
+     */
+    public long[] takeGap() {
+        if (gapCount == 0) {
+            return null;
+        }
+        long[] gap = {gapCount, gapFirstId, gapLastId};
+        gapCount = 0;
+        return gap;
+    }
+
+    public long getLastAckedId() {
+        return lastAckedId;
+    }
+
+    public long getPeerSessionId() {
+        return peerSessionId;
+    }
+
+    public void setPeerSessionId(long peerSessionId) {
+        this.peerSessionId = peerSessionId;
+    }
+
+    public void detach(long now) {
+        detachedAt = now;
+    }
+
+    public void attach() {
+        detachedAt = -1;
+    }
+
+    public boolean isExpired(long now) {
+        return detachedAt >= 0 && now - detachedAt > DETACHED_TTL;
+    }
+
+    /**
+     * body of the SESSION_RESUME frame this device sends on link up.
+     */
+    public static String resumeBody(String mac, long sessionId) {
+        return mac + SESSION_FIELD_TOKEN + sessionId;
+    }
+
+    /**
+     * body of the SESSION_GAP frame: count | first id | last id of the frames dropped.
+     */
+    public static String gapBody(long[] gap) {
+        return gap[0] + SESSION_FIELD_TOKEN + gap[1] + SESSION_FIELD_TOKEN + gap[2];
+    }
+
+    /**
+     * @return {count, first id, last id} of a SESSION_GAP body, null if malformed.
+     */
+    public static long[] parseGap(String body) {
+        StringTokenizer fields = new StringTokenizer(body, SESSION_FIELD_TOKEN);
+        if (fields.countTokens() != 3) {
+            return null;
+        }
+        try {
+            return new long[]{Long.parseLong(fields.nextToken()), Long.parseLong(fields.nextToken()),
+                    Long.parseLong(fields.nextToken())};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return {mac, session id} of a SESSION_RESUME body, null if malformed.
+     */
+    public static String[] parseResume(String body) {
+        StringTokenizer fields = new StringTokenizer(body, SESSION_FIELD_TOKEN);
+        if (fields.countTokens() != 2) {
+            return null;
+        }
+        return new String[]{fields.nextToken(), fields.nextToken()};
+    }
+}
@@ -0,0 +1,323 @@
+package com.colorcloud.wifichat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * reliability engine for outgoing MESSAGE frames: every tracked message is retransmitted until its ack comes
+ * back, or given up after maxRetries.
+ * <p/>
+ * A message is tracked per destination: it is delivered once every destination it was sent to acked it, and a
+ * timeout retransmits it to the destinations still silent only. A destination is any key the transport knows how
+ * to send to (ConnectionService uses the peer's channel); null stands for "whoever is linked", any ack counts for
+ * it and its retransmissions are broadcast. A destination that is gone (forget()) is counted the same way: the
+ * message then waits for one more ack from any peer that did not ack it yet.
+ * <p/>
+ * The first timeout is the RTO of the slowest destination still silent: its own RttEstimator, learnt from its
+ * acks, once that has samples, the engine's RttEstimator otherwise and for whoever is linked. Every
+ * retransmission doubles it (capped at the max RTO) with +/-25% jitter so that a group of devices does not
+ * retransmit in lock step.
+ * All timeouts live in a single TimerWheel; acked messages are only marked done and fall off the wheel lazily.
+ * <p/>
+ * Pure java: no android, no thread. The owner feeds the clock and calls tick() regularly from one thread
+ * (SendingMessageQueue does it on the ConnectionService looper), which makes it testable with a fake clock.
+ */
+public class RetransmissionEngine {
+
+    public static final int DEFAULT_MAX_RETRIES = 5;
+    public static final long DEFAULT_TICK_MILLIS = 50;
+    private static final int WHEEL_SLOTS = 256;
+
+    public interface Clock {
+        long now();
+    }
+
+    public interface Transport {
+        /**
+         * send the message again, the frame is the same as the first time.
+         *
+         * @param destination one of the destinations it was tracked with, null to send it to every peer.
+         */
+        void send(MessageWrapper messageWrapper, Object destination);
+    }
+
+    public interface DeliveryListener {
+        void onDelivered(MessageWrapper messageWrapper);
+
+        void onFailed(MessageWrapper messageWrapper);
+    }
+
+    private static final class Pending {
+        final long id;
+        final MessageWrapper message;
+        final long firstSentAt;
+        final Set<Object> awaiting = new HashSet<Object>();   // destinations that did not ack yet
+        final Set<Object> acked = new HashSet<Object>();      // destinations that did, null not included
+        int anyAcks = 0;   // acks still due from whoever is linked: forgotten destinations, or a broadcast
+        int acks = 0;
+        int retransmissions = 0;
+        boolean done = false;
+
+        Pending(long id, MessageWrapper message, long firstSentAt) {
+            this.id = id;
+            this.message = message;
+            this.firstSentAt = firstSentAt;
+        }
+    }
+
+    private final Clock clock;
+    private final Transport transport;
+    private final Random random;
+    private final int maxRetries;
+    private final RttEstimator rttEstimator = new RttEstimator();
+    private final Map<Object, RttEstimator> peerRtts = new HashMap<Object, RttEstimator>();   // by destination
+    private final TimerWheel<Pending> wheel;
+    private final Map<Long, Pending> pending = new HashMap<Long, Pending>();
+    private final List<Pending> expired = new ArrayList<Pending>();
+    private DeliveryListener deliveryListener;
+
+    public RetransmissionEngine(Clock clock, Transport transport, Random random) {
+        this(clock, transport, random, DEFAULT_MAX_RETRIES, DEFAULT_TICK_MILLIS);
+    }
+
+    public RetransmissionEngine(Clock clock, Transport transport, Random random, int maxRetries, long tickMillis) {
+        this.clock = clock;
+        this.transport = transport;
+        this.random = random;
+        this.maxRetries = maxRetries;
+        this.wheel = new TimerWheel<Pending>(tickMillis, WHEEL_SLOTS, clock.now());
+    }
+
+    public void setDeliveryListener(DeliveryListener deliveryListener) {
+        this.deliveryListener = deliveryListener;
+    }
+
+    public RttEstimator getRttEstimator() {
+        return rttEstimator;
+    }
+
+    /**
+     * start tracking a message that has just been sent for the first time, to whoever is linked.
+     */
+    public void track(long id, MessageWrapper messageWrapper) {
+        track(id, messageWrapper, null);
+    }
+
+    /**
+     * start tracking a message that has just been sent for the first time.
+     *
+     * @param destinations where it was sent, each of them has to ack it; null or empty for whoever is linked.
+     */
+    public void track(long id, MessageWrapper messageWrapper, Collection<?> destinations) {
+        long now = clock.now();
+        Pending p = new Pending(id, messageWrapper, now);
+        if (destinations == null || destinations.isEmpty()) {
+            p.anyAcks = 1;
+        } else {
+            p.awaiting.addAll(destinations);
+        }
+        Pending previous = pending.put(id, p);
+        if (previous != null) {
+            previous.done = true;   // same id sent again, the new one replaces it
+        }
+        wheel.schedule(p, now + timeout(p, 0));
+    }
+
+    /**
+     * the ack of the message came back.
+     *
+     * @return false if the id is unknown: already acked, given up, or never tracked.
+     */
+    public boolean acknowledge(long id) {
+        return acknowledge(id, null, null);
+    }
+
+    /**
+     * the ack of the message came back from one destination.
+     *
+     * @param from    the destination that acked, null if not known.
+     * @param peerRtt the estimator of the peer that acked, also fed with the sample, and the timeouts of the
+     *                messages to from are taken from it; null if not known.
+     * @return false if the id is unknown, or the message is not waiting for an ack from there.
+     */
+    public boolean acknowledge(long id, Object from, RttEstimator peerRtt) {
+        if (from != null && peerRtt != null) {
+            peerRtts.put(from, peerRtt);
+        }
+        Pending p = pending.get(id);
+        if (p == null) {
+            return false;
+        }
+        if (from == null || !p.awaiting.remove(from)) {
+            // an ack still due from whoever is linked takes the ack of any peer, once per peer
+            if (p.anyAcks == 0 || p.acked.contains(from)) {
+                return false;   // acked twice by the same peer, or by a peer it was not sent to
+            }
+            p.anyAcks--;
+        }
+        if (from != null) {
+            p.acked.add(from);
+        }
+
+        p.acks++;
+        if (p.retransmissions == 0) {
+            long rtt = clock.now() - p.firstSentAt;
+            rttEstimator.sample(rtt);
+            if (peerRtt != null) {
+                peerRtt.sample(rtt);
+            }
+        }
+        if (p.awaiting.isEmpty() && p.anyAcks == 0) {
+            complete(p);
+        }
+        return true;
+    }
+
+    /**
+     * every destination acked, or is gone.
+     */
+    private void complete(Pending p) {
+        p.done = true;
+        pending.remove(p.id);
+        if (deliveryListener != null) {
+            if (p.acks > 0) {
+                deliveryListener.onDelivered(p.message);
+            } else {
+                deliveryListener.onFailed(p.message);
+            }
+        }
+    }
+
+    /**
+     * a destination is gone, for good or until it comes back linked as another one: the messages waiting for
+     * its ack wait for the ack of a peer that has not acked them instead, and are retransmitted to every peer.
+     */
+    public void forget(Object destination) {
+        if (destination == null) {
+            return;
+        }
+        peerRtts.remove(destination);
+        for (Pending p : pending.values()) {
+            if (p.awaiting.remove(destination)) {
+                p.anyAcks++;
+            }
+        }
+    }
+
+    /**
+     * a batched ack from AckCoalescer, every id of the range in one call.
+     *
+     * @return number of pending messages acknowledged.
+     */
+    public int acknowledge(AckCoalescer.AckRange range) {
+        return acknowledge(range, null, null);
+    }
+
+    public int acknowledge(AckCoalescer.AckRange range, Object from, RttEstimator peerRtt) {
+        int acked = 0;
+        for (int i = 0; i < range.run; i++) {
+            if (acknowledge(range.base + i, from, peerRtt)) {
+                acked++;
+            }
+        }
+        for (long bits = range.sack; bits != 0; bits &= bits - 1) {
+            if (acknowledge(range.base + range.run + 1 + Long.numberOfTrailingZeros(bits), from, peerRtt)) {
+                acked++;
+            }
+        }
+        return acked;
+    }
+
+    /**
+     * fire the timeouts that are due: retransmit, or give up and report failure.
+     */
+    public void tick() {
+        long now = clock.now();
+        wheel.advance(now, expired);
+
+        for (int i = 0; i < expired.size(); i++) {
+            Pending p = expired.get(i);
+            if (p.done) {
+                continue;
+            }
+
+            if (p.retransmissions >= maxRetries) {
+                p.done = true;
+                pending.remove(p.id);
+                if (deliveryListener != null) {
+                    deliveryListener.onFailed(p.message);
+                }
+            } else {
+                p.retransmissions++;
+                if (p.anyAcks > 0) {
+                    transport.send(p.message, null);   // to every peer, the ones that acked drop the copy
+                } else {
+                    for (Object destination : p.awaiting) {
+                        transport.send(p.message, destination);
+                    }
+                }
+                wheel.schedule(p, now + timeout(p, p.retransmissions));
+            }
+        }
+        expired.clear();
+    }
+
+    /**
+     * RTO doubled per retransmission, capped, with +/-25% jitter.
+     */
+    private long timeout(Pending p, int retransmissions) {
+        long base = rto(p) << Math.min(retransmissions, 16);
+        base = Math.min(base, rttEstimator.getMaxRto());
+        double jitter = 0.75 + 0.5 * random.nextDouble();
+        return Math.max(1, (long) (base * jitter));
+    }
+
+    /**
+     * the largest RTO of the destinations the message waits for, the engine's for one without samples of its own.
+     */
+    private long rto(Pending p) {
+        long rto = 0;
+        boolean shared = p.anyAcks > 0;
+        for (Object destination : p.awaiting) {
+            RttEstimator peerRtt = peerRtts.get(destination);
+            if (peerRtt != null && peerRtt.hasSample()) {
+                rto = Math.max(rto, peerRtt.getRto());
+            } else {
+                shared = true;
+            }
+        }
+        return shared ? Math.max(rto, rttEstimator.getRto()) : rto;
+    }
+
+    /**
+     * number of messages still waiting for their ack.
+     */
+    public int size() {
+        return pending.size();
+    }
+
+    public Collection<MessageWrapper> pendingMessages() {
+        List<MessageWrapper> messages = new ArrayList<MessageWrapper>(pending.size());
+        for (Pending p : pending.values()) {
+            messages.add(p.message);
+        }
+        return messages;
+    }
+
+    /**
+     * forget every pending message, no callback is fired.
+     */
+    public void reset() {
+        for (Pending p : pending.values()) {
+            p.done = true;
+        }
+        pending.clear();
+        wheel.clear();
+    }
+}
@@ -0,0 +1,77 @@
+package com.colorcloud.wifichat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import static com.colorcloud.wifichat.Constant.ROUTED_MESSAGE;
+import static com.colorcloud.wifichat.Constant.ROUTE_DESTINATION_TOKEN;
+import static com.colorcloud.wifichat.Constant.ROUTE_ENTRY_TOKEN;
+
+/**
+ * envelope of a chat message forwarded hop by hop in the multi-hop mode.
+ * <p/>
+ * On the wire it is a ROUTED_MESSAGE frame with the id of the original MESSAGE, so duplicates coming along
+ * different paths are dropped by DuplicateFilter. Body: "dest1,dest2&*&hopsLeft&*&original body"; only the first
+ * two separators are parsed, the original body can contain anything.
+ */
+public class RoutedMessage {
+
+    private final long id;
+    private final List<String> destinations;
+    private final int hopsLeft;
+    private final String body;
+
+    public RoutedMessage(long id, List<String> destinations, int hopsLeft, String body) {
+        this.id = id;
+        this.destinations = destinations;
+        this.hopsLeft = hopsLeft;
+        this.body = body;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public List<String> getDestinations() {
+        return destinations;
+    }
+
+    public int getHopsLeft() {
+        return hopsLeft;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    public MessageWrapper toMessageWrapper() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < destinations.size(); i++) {
+            if (i > 0) {
+                sb.append(ROUTE_DESTINATION_TOKEN);
+            }
+            sb.append(destinations.get(i));
+        }
+        sb.append(ROUTE_ENTRY_TOKEN).append(hopsLeft).append(ROUTE_ENTRY_TOKEN).append(body);
+        return new MessageWrapper(ROUTED_MESSAGE, 0, id, sb.toString());
+    }
+
+    public static RoutedMessage parse(MessageWrapper messageWrapper) {
+        String s = messageWrapper.getMessageBody();
+        int first = s.indexOf(ROUTE_ENTRY_TOKEN);
+        int second = s.indexOf(ROUTE_ENTRY_TOKEN, first + ROUTE_ENTRY_TOKEN.length());
+        if (first < 0 || second < 0) {
+            throw new IllegalArgumentException("malformed routed message: " + messageWrapper.getAck());
+        }
+
+        List<String> destinations = new ArrayList<String>();
+        StringTokenizer st = new StringTokenizer(s.substring(0, first), ROUTE_DESTINATION_TOKEN);
+        while (st.hasMoreTokens()) {
+            destinations.add(st.nextToken());
+        }
+        int hopsLeft = Integer.parseInt(s.substring(first + ROUTE_ENTRY_TOKEN.length(), second));
+        String body = s.substring(second + ROUTE_ENTRY_TOKEN.length());
+        return new RoutedMessage(messageWrapper.getAck(), destinations, hopsLeft, body);
+    }
+}
@@ -0,0 +1,49 @@
+package com.colorcloud.wifichat;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * drops the destinations of a routed message this device already handled.
+ * <p/>
+ * A group message is split into one envelope per next hop, all with the id of the message. Where equal cost paths
+ * cross, two envelopes meet again downstream, each with destinations of its own, so a second envelope is only a
+ * duplicate for the destinations already handled here; DuplicateFilter would drop it whole. Only the
+ * MAX_MESSAGES most recently seen ids are remembered.
+ * <p/>
+ * Not thread safe, the caller synchronizes.
+ */
+public class RoutedMessageFilter {
+
+    static final int MAX_MESSAGES = 256;
+
+    private final LinkedHashMap<Long, Set<String>> handled = new LinkedHashMap<Long, Set<String>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Set<String>> eldest) {
+            return size() > MAX_MESSAGES;
+        }
+    };
+
+    /**
+     * @return the destinations of the envelope not handled here before, marked handled now; empty if it is a
+     * duplicate.
+     */
+    public List<String> accept(RoutedMessage routedMessage) {
+        Set<String> seen = handled.get(routedMessage.getId());
+        if (seen == null) {
+            seen = new HashSet<String>();
+            handled.put(routedMessage.getId(), seen);
+        }
+        List<String> fresh = new ArrayList<String>();
+        for (String destination : routedMessage.getDestinations()) {
+            if (seen.add(RoutingTable.normalize(destination))) {
+                fresh.add(destination);
+            }
+        }
+        return fresh;
+    }
+}
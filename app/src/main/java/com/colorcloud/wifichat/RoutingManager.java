@@ -3,16 +3,95 @@ package com.colorcloud.wifichat;
 import android.net.wifi.WpsInfo;
 import android.net.wifi.p2p.WifiP2pConfig;
 import android.net.wifi.p2p.WifiP2pManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.colorcloud.wifichat.Constant.ROUTING_ACKNOWLEDGEMENT;
+import static com.colorcloud.wifichat.Constant.SUMMARY_VECTOR;
+
 /**
  * Created by wangqilin on 4/3/16.
+ * <p/>
+ * multi-hop routing. Every device advertises its RoutingTable every ADVERTISE_INTERVAL, and right away when a
+ * socket link comes up, as a ROUTING_ACKNOWLEDGEMENT frame. A multi-hop message is sent once per distinct next hop,
+ * as a RoutedMessage carrying the destinations reached through that hop; each hop forwards the rest the same way.
+ * Destinations without a route yet are tried directly.
+ * <p/>
+ * Every routed message sent or relayed is also kept in a StoreAndForwardBuffer. On link up the two sides swap
+ * SUMMARY_VECTOR frames and send each other only the buffered messages the other side lacks, so a failed
+ * connect does not lose the message.
+ * <p/>
+ * The p2p connections to the next hops are run by a ConnectionScheduler, on the main thread where the
+ * WifiP2pManager callbacks come. The socket to a next hop counts as up when its advertisement comes in.
  */
 public class RoutingManager {
     private static final String TAG = "RoutingManager";
+    static final long ADVERTISE_INTERVAL = 5000;
+    private static final long SCHEDULER_TICK_INTERVAL = 500;
+
     private WiFiDirectActivity wiFiDirectActivity = null;
+    private RoutingTable routingTable = null;
+    private final StoreAndForwardBuffer buffer = new StoreAndForwardBuffer(StoreAndForwardBuffer.DEFAULT_CAPACITY,
+            StoreAndForwardBuffer.DEFAULT_TTL);
+    private final RoutedMessageFilter routedFilter = new RoutedMessageFilter();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ConnectionScheduler scheduler;
+
+    private final Runnable tickRunnable = new Runnable() {
+        @Override
+        public void run() {
+            scheduler.tick();
+            if (!scheduler.isIdle()) {
+                handler.postDelayed(this, SCHEDULER_TICK_INTERVAL);
+            }
+        }
+    };
+
+    private final Runnable advertiseRunnable = new Runnable() {
+        @Override
+        public void run() {
+            advertise();
+            handler.postDelayed(this, ADVERTISE_INTERVAL);
+        }
+    };
 
     private RoutingManager() {
+        final WifiP2pDriver driver = new WifiP2pDriver();
+        scheduler = new ConnectionScheduler(driver, new RetransmissionEngine.Clock() {
+            @Override
+            public long now() {
+                return SystemClock.elapsedRealtime();
+            }
+        });
+        scheduler.setListener(new ConnectionScheduler.Listener() {
+            @Override
+            public void onDelivered(String peer, List<MessageWrapper> messages) {
+                Log.d(TAG, messages.size() + " routed messages delivered to " + peer);
+            }
+
+            @Override
+            public void onFailed(String peer, int state, List<MessageWrapper> messages) {
+                // still in the store-and-forward buffer, they go out on the next link
+                Log.e(TAG, messages.size() + " routed messages not delivered to " + peer + ", state " + state);
+                if (state == ConnectionScheduler.CONNECTING && !driver.isLinked(peer)) {
+                    // no link to begin with and none now: not a neighbor to route through
+                    synchronized (RoutingManager.this) {
+                        if (routingTable != null) {
+                            routingTable.removeNeighbor(peer);
+                        }
+                    }
+                }
+            }
+        });
     }
 
     private static final RoutingManager instance = new RoutingManager();
@@ -24,59 +103,292 @@ public class RoutingManager {
     // by right singleton should have no argument, but here we need a reference to call the methods in WiFiDirectActivity
     public void init(WiFiDirectActivity wiFiDirectActivity) {
         this.wiFiDirectActivity = wiFiDirectActivity;
+        handler.removeCallbacks(advertiseRunnable);
+        handler.postDelayed(advertiseRunnable, ADVERTISE_INTERVAL);
     }
 
-    public void connectionTest(final String formattedMsg) {
-        connectionTest(formattedMsg, 0);
+    /**
+     * the routing table, created once this device's MAC address is known. null before that.
+     */
+    private synchronized RoutingTable table() {
+        if (routingTable == null) {
+            String self = WiFiDirectActivity.getWiFiDirectMacAddress();
+            if (self == null && WiFiDirectActivity.myDevice != null) {
+                self = WiFiDirectActivity.myDevice.deviceAddress;
+            }
+            if (self != null) {
+                routingTable = new RoutingTable(self, RoutingTable.DEFAULT_ROUTE_TIMEOUT);
+            }
+        }
+        return routingTable;
     }
 
-    public void connectionTest(final String formattedMsg, final int index) {
-        Log.d(TAG, "connectionTest called with index = " + index);
+    /**
+     * push this device's routes to the socket neighbors.
+     */
+    public void advertise() {
+        String body;
+        synchronized (this) {
+            RoutingTable table = table();
+            if (table == null || ConnectionService.getInstance() == null) {
+                return;
+            }
+            long now = SystemClock.elapsedRealtime();
+            table.expire(now);
+            buffer.expire(now);
+            body = table.encodeAdvertisement();
+        }
+        ConnectionService.pushOutMessage(new MessageWrapper(ROUTING_ACKNOWLEDGEMENT, body));
+    }
 
-        final int max = PersistentGroupPeers.getInstance().getPersistentGroupPeers().size();
+    /**
+     * the ids of the buffered messages, to be sent on a new link.
+     */
+    public synchronized MessageWrapper summaryVector() {
+        return new MessageWrapper(SUMMARY_VECTOR, buffer.summaryVector(SystemClock.elapsedRealtime()));
+    }
 
-        if (index >= max - 1) {
-            return;
+    /**
+     * a neighbor's summary vector came in.
+     *
+     * @return the buffered messages the neighbor does not hold yet, to be sent back to it.
+     */
+    public synchronized List<MessageWrapper> onSummaryVector(MessageWrapper messageWrapper) {
+        List<MessageWrapper> missing = new ArrayList<MessageWrapper>();
+        for (RoutedMessage routedMessage : buffer.missingFrom(messageWrapper.getMessageBody(), SystemClock.elapsedRealtime())) {
+            missing.add(routedMessage.toMessageWrapper());
         }
+        Log.d(TAG, "summary vector: " + missing.size() + " of " + buffer.size() + " buffered messages missing");
+        return missing;
+    }
 
-        String macAddr = PersistentGroupPeers.getInstance().getPersistentGroupPeers().get(index);
-
-        // don't send msg to self
-        if (macAddr.equalsIgnoreCase(wiFiDirectActivity.myDevice.deviceAddress)) {
-            connectionTest(formattedMsg, index + 1);
+    /**
+     * a neighbor's advertisement came in.
+     */
+    public void onRouteAdvertisement(MessageWrapper messageWrapper) {
+        synchronized (this) {
+            RoutingTable table = table();
+            if (table == null) {
+                return;
+            }
+            if (table.onAdvertisement(messageWrapper.getMessageBody(), SystemClock.elapsedRealtime())) {
+                Log.d(TAG, "routes changed: " + table.routes());
+            }
         }
 
-        // compose WifiP2pConfig object
-        WifiP2pConfig wifiP2pConfig = new WifiP2pConfig();
-        wifiP2pConfig.deviceAddress = macAddr.toLowerCase(); // toLowerCase() is IMPORTANT!
-        wifiP2pConfig.groupOwnerIntent = -1;
-        wifiP2pConfig.wps = new WpsInfo();
+        // the advertisement came over the socket, so the socket to its sender is up
+        final String neighbor = RoutingTable.advertiser(messageWrapper.getMessageBody());
+        if (neighbor != null) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    scheduler.onSocketReady(neighbor);
+                }
+            });
+        }
+    }
 
-        wiFiDirectActivity.getWifiP2pManager().connect(wiFiDirectActivity.getChannel(), wifiP2pConfig, new WifiP2pManager.ActionListener() {
+    /**
+     * acks came in, some may be for routed messages.
+     */
+    public void onAcknowledged(final AckCoalescer.AckRange range) {
+        handler.post(new Runnable() {
             @Override
-            public void onSuccess() {
-                WiFiDirectBroadcastReceiver.connected = true;
+            public void run() {
+                scheduler.onAcknowledged(range);
+            }
+        });
+    }
 
-                // push out the message
-                ConnectionService.pushOutMessage(formattedMsg);
-                // TODO: ack here
+    /**
+     * send a chat message to every peer of the persistent group, along the computed paths.
+     */
+    public void send(MessageWrapper messageWrapper) {
+        RoutingTable table = table();
+        String self = table == null ? "" : table.getSelf();
 
-                //disconnect
-                wiFiDirectActivity.disconnect();
+        List<String> destinations = new ArrayList<String>();
+        for (String macAddr : PersistentGroupPeers.getInstance().getPersistentGroupPeers()) {
+            if (!RoutingTable.normalize(macAddr).equals(self)) {   // don't send msg to self
+                destinations.add(RoutingTable.normalize(macAddr));
+            }
+        }
+        RoutedMessage routedMessage = new RoutedMessage(messageWrapper.getAck(), destinations, RoutingTable.INFINITY - 1,
+                messageWrapper.getMessageBody());
+        synchronized (this) {
+            routedFilter.accept(routedMessage);   // a copy coming back is not sent again
+            buffer.offer(routedMessage, StoreAndForwardBuffer.PRIORITY_OWN, SystemClock.elapsedRealtime());
+        }
+        forward(routedMessage, StoreAndForwardBuffer.PRIORITY_OWN);
+    }
+
+    /**
+     * a RoutedMessage came in: forward it to the destinations other than this device. Destinations an earlier
+     * copy of it already carried here are dropped.
+     *
+     * @return the chat message body if this device is one of the destinations, null otherwise.
+     */
+    public String onRoutedMessage(RoutedMessage routedMessage) {
+        RoutingTable table = table();
+        String self = table == null ? "" : table.getSelf();
 
-                // move to the next client device
-                connectionTest(formattedMsg, index + 1);
+        List<String> fresh;
+        synchronized (this) {
+            fresh = routedFilter.accept(routedMessage);
+        }
+        if (fresh.isEmpty()) {
+            Log.d(TAG, "duplicate routed message dropped: " + routedMessage.getId());
+            return null;
+        }
+
+        boolean forMe = false;
+        List<String> others = new ArrayList<String>();
+        for (String destination : fresh) {
+            if (RoutingTable.normalize(destination).equals(self)) {
+                forMe = true;
+            } else {
+                others.add(destination);
             }
+        }
 
-            @Override
-            public void onFailure(int reason) {
-                WiFiDirectBroadcastReceiver.connected = false;
+        if (forMe) {
+            // not kept below if this device was its only destination, its id must still be in the summary vector
+            synchronized (this) {
+                buffer.markDelivered(routedMessage.getId(), SystemClock.elapsedRealtime());
+            }
+        }
+        if (!others.isEmpty() && routedMessage.getHopsLeft() > 1) {
+            RoutedMessage next = new RoutedMessage(routedMessage.getId(), others, routedMessage.getHopsLeft() - 1,
+                    routedMessage.getBody());
+            synchronized (this) {
+                buffer.offer(next, StoreAndForwardBuffer.PRIORITY_RELAYED, SystemClock.elapsedRealtime());
+            }
+            forward(next, StoreAndForwardBuffer.PRIORITY_RELAYED);
+        }
+        return forMe ? routedMessage.getBody() : null;
+    }
+
+    /**
+     * split the destinations by next hop, one envelope per next hop.
+     */
+    private void forward(RoutedMessage routedMessage, final int priority) {
+        Map<String, List<String>> byNextHop = new LinkedHashMap<String, List<String>>();
+        synchronized (this) {
+            RoutingTable table = table();
+            for (String destination : routedMessage.getDestinations()) {
+                String nextHop = table == null ? null : table.nextHop(destination);
+                if (nextHop == null) {
+                    nextHop = RoutingTable.normalize(destination);   // no route yet, try it directly
+                }
+                List<String> list = byNextHop.get(nextHop);
+                if (list == null) {
+                    list = new ArrayList<String>();
+                    byNextHop.put(nextHop, list);
+                }
+                list.add(destination);
+            }
+        }
+
+        for (Map.Entry<String, List<String>> entry : byNextHop.entrySet()) {
+            final String nextHop = entry.getKey();
+            final MessageWrapper envelope = new RoutedMessage(routedMessage.getId(), entry.getValue(),
+                    routedMessage.getHopsLeft(), routedMessage.getBody()).toMessageWrapper();
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Log.d(TAG, "schedule " + envelope.getAck() + " via " + nextHop);
+                    scheduler.schedule(nextHop, envelope, priority);
+                    handler.removeCallbacks(tickRunnable);
+                    handler.postDelayed(tickRunnable, SCHEDULER_TICK_INTERVAL);
+                }
+            });
+        }
+    }
 
-                Log.e(TAG, "*** connection failed " + reason);
+    /**
+     * ConnectionScheduler's p2p operations on WifiP2pManager and the ConnectionService socket.
+     * <p/>
+     * Only the groups formed for the scheduler are removed when it is done with the peer; a group the device was
+     * already in (the user's, or another peer's) is left alone. Called on the main thread only.
+     */
+    private class WifiP2pDriver implements P2pDriver {
+        // peers whose p2p group was formed by a connect() of this driver
+        private final Set<String> formedHere = new HashSet<String>();
 
-                // move to the next device
-                connectionTest(formattedMsg, index + 1);
+        @Override
+        public boolean isLinked(String peer) {
+            ConnectionService service = ConnectionService.getInstance();
+            return service != null && service.connectionManager != null && service.connectionManager.isLinked(peer);
+        }
+
+        @Override
+        public void connect(final String peer) {
+            if (wiFiDirectActivity == null) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        scheduler.onConnectFailed(peer);
+                    }
+                });
+                return;
             }
-        });
+
+            // compose WifiP2pConfig object
+            WifiP2pConfig wifiP2pConfig = new WifiP2pConfig();
+            wifiP2pConfig.deviceAddress = peer; // lower case, IMPORTANT!
+            wifiP2pConfig.groupOwnerIntent = -1;
+            wifiP2pConfig.wps = new WpsInfo();
+
+            final boolean alreadyConnected = WiFiDirectBroadcastReceiver.connected;
+            wiFiDirectActivity.getWifiP2pManager().connect(wiFiDirectActivity.getChannel(), wifiP2pConfig, new WifiP2pManager.ActionListener() {
+                @Override
+                public void onSuccess() {
+                    // only the request is accepted, the socket comes up later
+                    WiFiDirectBroadcastReceiver.connected = true;
+                    if (!alreadyConnected) {
+                        formedHere.add(peer);
+                    }
+                }
+
+                @Override
+                public void onFailure(int reason) {
+                    WiFiDirectBroadcastReceiver.connected = false;
+                    Log.e(TAG, "*** connection to " + peer + " failed " + reason);
+                    scheduler.onConnectFailed(peer);
+                }
+            });
+        }
+
+        @Override
+        public boolean send(String peer, MessageWrapper messageWrapper) {
+            if (ConnectionService.getInstance() == null) {
+                return false;
+            }
+            ConnectionService.pushOutMessageTo(peer, messageWrapper);   // to the next hop only, once it is linked
+            return true;
+        }
+
+        @Override
+        public void disconnect(final String peer) {
+            if (!formedHere.remove(peer)) {
+                Log.d(TAG, "group with " + peer + " not formed by the scheduler, kept");
+                return;
+            }
+            if (wiFiDirectActivity == null) {
+                return;
+            }
+            // just this link: the socket service and the rest of the app stay as they are
+            wiFiDirectActivity.getWifiP2pManager().removeGroup(wiFiDirectActivity.getChannel(), new WifiP2pManager.ActionListener() {
+                @Override
+                public void onSuccess() {
+                    Log.d(TAG, "group with " + peer + " removed");
+                }
+
+                @Override
+                public void onFailure(int reason) {
+                    Log.e(TAG, "*** removing the group with " + peer + " failed " + reason);
+                }
+            });
+        }
     }
 }
@@ -0,0 +1,278 @@
+package com.colorcloud.wifichat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+import static com.colorcloud.wifichat.Constant.ROUTE_ENTRY_TOKEN;
+import static com.colorcloud.wifichat.Constant.ROUTE_FIELD_TOKEN;
+
+/**
+ * distance-vector routing table keyed by device MAC address, hop count metric.
+ * <p/>
+ * Neighbors are learned from the advertisements they send (one hop). An advertisement lists every route of its
+ * sender with the hop count and the next hop; a receiver ignores the routes that go through itself (split horizon
+ * with poison reverse, decided by the receiver because the group owner's advertisement reaches all clients).
+ * Routes not refreshed within routeTimeout are aged out, routes of INFINITY hops are dropped.
+ * <p/>
+ * Advertisements come from remote peers: a malformed one is ignored as a whole, nothing of it is applied.
+ * <p/>
+ * Pure java: the owner passes the clock in and serializes the calls.
+ */
+public class RoutingTable {
+
+    public static final int INFINITY = 16;
+    public static final long DEFAULT_ROUTE_TIMEOUT = 30000;
+
+    public static final class Route {
+        public final String destination;
+        String nextHop;
+        int hops;
+        long updatedAt;
+
+        Route(String destination, String nextHop, int hops, long updatedAt) {
+            this.destination = destination;
+            this.nextHop = nextHop;
+            this.hops = hops;
+            this.updatedAt = updatedAt;
+        }
+
+        public String getNextHop() {
+            return nextHop;
+        }
+
+        public int getHops() {
+            return hops;
+        }
+
+        @Override
+        public String toString() {
+            return destination + " via " + nextHop + " (" + hops + " hops)";
+        }
+    }
+
+    private final String self;
+    private final long routeTimeout;
+    private final Map<String, Route> routes = new HashMap<String, Route>();
+
+    public RoutingTable(String selfMac, long routeTimeout) {
+        this.self = normalize(selfMac);
+        this.routeTimeout = routeTimeout;
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    /**
+     * a frame came straight from this device, it is one hop away.
+     */
+    public void onNeighbor(String neighborMac, long now) {
+        String neighbor = normalize(neighborMac);
+        if (neighbor.equals(self)) {
+            return;
+        }
+        Route route = routes.get(neighbor);
+        if (route == null) {
+            routes.put(neighbor, new Route(neighbor, neighbor, 1, now));
+        } else {
+            route.nextHop = neighbor;
+            route.hops = 1;
+            route.updatedAt = now;
+        }
+    }
+
+    /**
+     * the MAC address of the device that sent the advertisement, null if it is empty or malformed.
+     */
+    public static String advertiser(String body) {
+        List<String[]> entries = parseAdvertisement(body);
+        return entries == null ? null : entries.get(0)[0];
+    }
+
+    /**
+     * the entries of an advertisement: {advertiser}, then {destination, hops, next hop} for every route, MACs
+     * normalized.
+     *
+     * @return null if the advertisement is empty or any entry is malformed.
+     */
+    static List<String[]> parseAdvertisement(String body) {
+        StringTokenizer entries = new StringTokenizer(body, ROUTE_ENTRY_TOKEN);
+        if (!entries.hasMoreTokens()) {
+            return null;
+        }
+        List<String[]> parsed = new ArrayList<String[]>();
+        parsed.add(new String[]{normalize(entries.nextToken())});
+        while (entries.hasMoreTokens()) {
+            StringTokenizer fields = new StringTokenizer(entries.nextToken(), ROUTE_FIELD_TOKEN);
+            if (fields.countTokens() != 3) {
+                return null;
+            }
+            String destination = normalize(fields.nextToken());
+            String hops = fields.nextToken();
+            String nextHop = normalize(fields.nextToken());
+            try {
+                if (Integer.parseInt(hops) < 0) {
+                    return null;
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            parsed.add(new String[]{destination, hops, nextHop});
+        }
+        return parsed;
+    }
+
+    /**
+     * merge the advertisement of a neighbor (Bellman-Ford).
+     *
+     * @return true if any route changed; false too if the advertisement is malformed and ignored.
+     */
+    public boolean onAdvertisement(String body, long now) {
+        List<String[]> entries = parseAdvertisement(body);
+        if (entries == null) {
+            return false;
+        }
+        String neighbor = entries.get(0)[0];
+        if (neighbor.equals(self)) {
+            return false;
+        }
+        onNeighbor(neighbor, now);
+
+        boolean changed = false;
+        Set<String> advertised = new HashSet<String>();
+        for (int i = 1; i < entries.size(); i++) {
+            String destination = entries.get(i)[0];
+            int hops = Integer.parseInt(entries.get(i)[1]);
+            String theirNextHop = entries.get(i)[2];
+            advertised.add(destination);
+
+            if (destination.equals(self) || destination.equals(neighbor)) {
+                continue;
+            }
+            if (theirNextHop.equals(self)) {
+                hops = INFINITY;   // poison reverse: their route is ours, it can not be our route
+            }
+            changed |= update(destination, neighbor, Math.min(hops + 1, INFINITY), now);
+        }
+
+        // the advertisement is the neighbor's whole table: what it no longer lists, it can no longer reach
+        Iterator<Route> it = routes.values().iterator();
+        while (it.hasNext()) {
+            Route route = it.next();
+            if (route.nextHop.equals(neighbor) && !route.destination.equals(neighbor)
+                    && !advertised.contains(route.destination)) {
+                it.remove();
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private boolean update(String destination, String neighbor, int hops, long now) {
+        Route route = routes.get(destination);
+        if (route == null) {
+            if (hops >= INFINITY) {
+                return false;
+            }
+            routes.put(destination, new Route(destination, neighbor, hops, now));
+            return true;
+        }
+
+        if (route.nextHop.equals(neighbor)) {
+            // news from our own next hop is always believed, better or worse
+            if (hops >= INFINITY) {
+                routes.remove(destination);
+                return true;
+            }
+            boolean changed = route.hops != hops;
+            route.hops = hops;
+            route.updatedAt = now;
+            return changed;
+        }
+
+        if (hops < route.hops) {
+            route.nextHop = neighbor;
+            route.hops = hops;
+            route.updatedAt = now;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * the neighbor is gone: drop it and every route through it.
+     */
+    public void removeNeighbor(String neighborMac) {
+        String neighbor = normalize(neighborMac);
+        Iterator<Route> it = routes.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().nextHop.equals(neighbor)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * age out the routes not refreshed in time.
+     *
+     * @return number of routes removed.
+     */
+    public int expire(long now) {
+        int removed = 0;
+        Iterator<Route> it = routes.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().updatedAt > routeTimeout) {
+                it.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return the MAC of the neighbor to hand a frame for destination to, null if there is no route.
+     */
+    public String nextHop(String destinationMac) {
+        Route route = routes.get(normalize(destinationMac));
+        return route == null ? null : route.nextHop;
+    }
+
+    /**
+     * @return hop count to the destination, INFINITY if there is no route.
+     */
+    public int hopsTo(String destinationMac) {
+        Route route = routes.get(normalize(destinationMac));
+        return route == null ? INFINITY : route.hops;
+    }
+
+    public List<Route> routes() {
+        return new ArrayList<Route>(routes.values());
+    }
+
+    /**
+     * this device's advertisement: self, then destination=hops=nextHop for every route.
+     */
+    public String encodeAdvertisement() {
+        StringBuilder sb = new StringBuilder(self);
+        for (Route route : routes.values()) {
+            sb.append(ROUTE_ENTRY_TOKEN).append(route.destination)
+                    .append(ROUTE_FIELD_TOKEN).append(route.hops)
+                    .append(ROUTE_FIELD_TOKEN).append(route.nextHop);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * MACs are compared lower case; WifiP2pConfig needs them lower case too.
+     */
+    static String normalize(String mac) {
+        return mac == null ? "" : mac.toLowerCase(Locale.US);
+    }
+}
@@ -0,0 +1,80 @@
+package com.colorcloud.wifichat;
+
+/**
+ * round trip time estimator and retransmission timeout, as TCP does it (RFC 6298).
+ * <p/>
+ * SRTT and RTTVAR are smoothed with gains 1/8 and 1/4, RTO = SRTT + 4 * RTTVAR clamped to [minRto, maxRto].
+ * Only samples of frames sent once may be fed in (Karn's algorithm), an ack of a retransmitted frame
+ * can not tell which copy it acknowledges.
+ * <p/>
+ * Thread-safe: a peer's estimator is fed on the service thread and read from anywhere.
+ */
+public class RttEstimator {
+
+    public static final long DEFAULT_INITIAL_RTO = 1000;
+    public static final long DEFAULT_MIN_RTO = 200;
+    public static final long DEFAULT_MAX_RTO = 30000;
+
+    private final long minRto;
+    private final long maxRto;
+
+    private double srtt = 0;
+    private double rttvar = 0;
+    private long rto;
+    private boolean hasSample = false;
+
+    public RttEstimator() {
+        this(DEFAULT_INITIAL_RTO, DEFAULT_MIN_RTO, DEFAULT_MAX_RTO);
+    }
+
+    public RttEstimator(long initialRto, long minRto, long maxRto) {
+        this.minRto = minRto;
+        this.maxRto = maxRto;
+        this.rto = initialRto;
+    }
+
+    /**
+     * feed a measured round trip time, in milliseconds.
+     */
+    public synchronized void sample(long rttMillis) {
+        if (rttMillis < 0) {
+            return;
+        }
+
+        if (!hasSample) {
+            srtt = rttMillis;
+            rttvar = rttMillis / 2.0;
+            hasSample = true;
+        } else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rttMillis);
+            srtt = 0.875 * srtt + 0.125 * rttMillis;
+        }
+        rto = Math.min(maxRto, Math.max(minRto, (long) Math.ceil(srtt + 4 * rttvar)));
+    }
+
+    public synchronized boolean hasSample() {
+        return hasSample;
+    }
+
+    /**
+     * smoothed round trip time in milliseconds, 0 before the first sample.
+     */
+    public synchronized long getSrtt() {
+        return (long) srtt;
+    }
+
+    public synchronized long getRttvar() {
+        return (long) rttvar;
+    }
+
+    /**
+     * current retransmission timeout in milliseconds.
+     */
+    public synchronized long getRto() {
+        return rto;
+    }
+
+    public long getMaxRto() {
+        return maxRto;
+    }
+}
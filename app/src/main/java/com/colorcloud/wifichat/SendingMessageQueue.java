@@ -1,21 +1,56 @@
 package com.colorcloud.wifichat;
 
+import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Random;
 
 /**
  * Created by wangqilin on 5/10/15.
+ * <p/>
+ * messages waiting for their IMMEDIATE_ACKNOWLEDGEMENT. The retransmission logic is in RetransmissionEngine,
+ * this class drives it on the ConnectionService looper: a tick is posted every RetransmissionEngine tick
+ * while messages are pending. A message is tracked per linked peer, by channel: it waits for the ack of every
+ * peer it went to, and is retransmitted through ConnectionService.pushOutMessageTo() to the silent ones only.
  */
 public class SendingMessageQueue {
     private static final String TAG = "SendingMessageQueue";
 
     private static SendingMessageQueue instance;
-    private Map<Long, MessageWrapper> messageQueue;
+    private final RetransmissionEngine engine;
+    private boolean tickScheduled = false;
+
+    private final Runnable tickRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SendingMessageQueue.this) {
+                tickScheduled = false;
+                engine.tick();
+                scheduleTick();
+            }
+        }
+    };
 
     private SendingMessageQueue() {
-        messageQueue = new HashMap<Long, MessageWrapper>();
+        engine = new RetransmissionEngine(new RetransmissionEngine.Clock() {
+            @Override
+            public long now() {
+                return SystemClock.elapsedRealtime();
+            }
+        }, new RetransmissionEngine.Transport() {
+            @Override
+            public void send(MessageWrapper messageWrapper, Object destination) {
+                Log.d(TAG, "retransmit message with the ack: " + messageWrapper.getAck() + " to: " + destination);
+                if (destination == null) {
+                    ConnectionService.pushOutMessage(messageWrapper);
+                } else {
+                    ConnectionService.pushOutMessageTo((SocketChannel) destination, messageWrapper);
+                }
+            }
+        }, new Random());
     }
 
     // thread-safe singleton implementation
@@ -26,26 +61,76 @@ public class SendingMessageQueue {
         return instance;
     }
 
-    public void addToSendingMessageQueue(Long ack, MessageWrapper messageWrapper) {
-        messageQueue.put(ack, messageWrapper);
+    /**
+     * delivered/failed callbacks, called on the ConnectionService thread. Set null to stop listening.
+     */
+    public synchronized void setDeliveryListener(RetransmissionEngine.DeliveryListener listener) {
+        engine.setDeliveryListener(listener);
+    }
+
+    /**
+     * track a message about to be pushed out to every linked peer.
+     */
+    public synchronized void addToSendingMessageQueue(Long ack, MessageWrapper messageWrapper) {
+        ConnectionService service = ConnectionService.getInstance();
+        List<SocketChannel> peers = service != null && service.connectionManager != null
+                ? service.connectionManager.peerChannels() : null;   // none while connecting: any ack will do
+        engine.track(ack, messageWrapper, peers);
+        scheduleTick();
         Log.d(TAG, "message added to the queue with an ack: " + ack);
     }
 
-    public void acknowledge(long ack) {
-        messageQueue.remove(ack);
-        Log.d(TAG, "message with the ack: " + ack + " has been acknowledged");
+    public synchronized void acknowledge(long ack) {
+        if (engine.acknowledge(ack)) {
+            Log.d(TAG, "message with the ack: " + ack + " has been acknowledged; rto: " + engine.getRttEstimator().getRto());
+        }
+    }
+
+    public synchronized void acknowledge(AckCoalescer.AckRange range) {
+        acknowledge(range, null, null);
+    }
+
+    /**
+     * @param from    the channel the ack came from.
+     * @param peerRtt the round trip times of the peer the ack came from, null if not known.
+     */
+    public synchronized void acknowledge(AckCoalescer.AckRange range, SocketChannel from, RttEstimator peerRtt) {
+        int acked = engine.acknowledge(range, from, peerRtt);
+        Log.d(TAG, acked + " of " + range.count() + " acked messages were pending; rto: " + engine.getRttEstimator().getRto());
+    }
+
+    /**
+     * the link is gone; the messages it did not ack wait for the peer to come back on any link.
+     */
+    public synchronized void onChannelClosed(SocketChannel channel) {
+        engine.forget(channel);
     }
 
-    public void reset() {
-        messageQueue.clear();
+    public synchronized void reset() {
+        engine.reset();
         Log.d(TAG, "message queue has been cleared");
     }
 
+    public synchronized RttEstimator getRttEstimator() {
+        return engine.getRttEstimator();
+    }
+
+    /**
+     * keep ticking while something is pending, stop when the queue is empty.
+     */
+    private void scheduleTick() {
+        if (tickScheduled || engine.size() == 0 || ConnectionService.getInstance() == null) {
+            return;
+        }
+        Handler handler = ConnectionService.getInstance().getHandler();
+        tickScheduled = handler.postDelayed(tickRunnable, RetransmissionEngine.DEFAULT_TICK_MILLIS);
+    }
+
     // for debug purpose
-    public void printMessageQueue() {
-        Log.d(TAG, "size of the message queue: " + messageQueue.size());
-        for (MessageWrapper messageWrapper: messageQueue.values()) {
+    public synchronized void printMessageQueue() {
+        Log.d(TAG, "size of the message queue: " + engine.size());
+        for (MessageWrapper messageWrapper : engine.pendingMessages()) {
             Log.d(TAG, messageWrapper.toString());
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,198 @@
+package com.colorcloud.wifichat;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+import static com.colorcloud.wifichat.Constant.ROUTE_DESTINATION_TOKEN;
+
+/**
+ * delay tolerant message buffer of the multi-hop mode (epidemic routing).
+ * <p/>
+ * Every routed message this device sends or relays is kept here, as it would go out on the next hop, until its
+ * TTL runs out. When a socket link comes up both sides send the ids they hold (the summary vector), and each
+ * answers with the messages the other one lacks. So a message survives a failed connect and reaches the peers
+ * met later, and a brief link only carries what is new to it.
+ * <p/>
+ * Bounded: when full, the lowest priority message goes first, the oldest among equals. Expired messages are
+ * dropped before that. Messages with no hop left are not kept.
+ * <p/>
+ * Messages delivered to this device but not kept (it was their only destination) are still listed in the
+ * summary vector, by id only, for the same TTL, so neighbors do not send them again. So are the messages evicted
+ * or turned away when full: offered again on every link, they would only be dropped again.
+ * <p/>
+ * Not thread safe, the caller synchronizes.
+ */
+public class StoreAndForwardBuffer {
+
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final long DEFAULT_TTL = 10 * 60 * 1000;
+
+    public static final int PRIORITY_RELAYED = 0;
+    public static final int PRIORITY_OWN = 1;   // sent by this device
+
+    private static final class Entry {
+        final RoutedMessage message;
+        final int priority;
+        final long expiresAt;
+
+        Entry(RoutedMessage message, int priority, long expiresAt) {
+            this.message = message;
+            this.priority = priority;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int capacity;
+    private final long ttl;
+    // insertion order is age order
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+    // id to expiry of the messages delivered here, in age order, bounded by capacity too
+    private final LinkedHashMap<Long, Long> delivered = new LinkedHashMap<Long, Long>();
+
+    public StoreAndForwardBuffer(int capacity, long ttl) {
+        this.capacity = capacity;
+        this.ttl = ttl;
+    }
+
+    /**
+     * keep the message for the peers met later.
+     *
+     * @return true if stored, false if already held, out of hops, or less important than everything held.
+     */
+    public boolean offer(RoutedMessage routedMessage, int priority, long now) {
+        if (routedMessage.getHopsLeft() < 1 || entries.containsKey(routedMessage.getId())) {
+            return false;
+        }
+
+        expire(now);
+        if (entries.size() >= capacity) {
+            Entry victim = null;
+            for (Entry entry : entries.values()) {
+                if (victim == null || entry.priority < victim.priority) {
+                    victim = entry;
+                }
+            }
+            if (victim.priority > priority) {
+                remember(routedMessage.getId(), now + ttl);
+                return false;
+            }
+            entries.remove(victim.message.getId());
+            remember(victim.message.getId(), victim.expiresAt);
+        }
+
+        entries.put(routedMessage.getId(), new Entry(routedMessage, priority, now + ttl));
+        return true;
+    }
+
+    public boolean contains(long id) {
+        return entries.containsKey(id);
+    }
+
+    /**
+     * the message reached this device as a destination; list it in the summary vector even if it is not kept.
+     */
+    public void markDelivered(long id, long now) {
+        expire(now);
+        remember(id, now + ttl);
+    }
+
+    /**
+     * list the id in the summary vector without keeping the message, until expiresAt.
+     */
+    private void remember(long id, long expiresAt) {
+        if (delivered.containsKey(id)) {
+            return;
+        }
+        if (delivered.size() >= capacity) {
+            Iterator<Long> it = delivered.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+        delivered.put(id, expiresAt);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * drop the messages past their TTL.
+     *
+     * @return number of messages dropped.
+     */
+    public int expire(long now) {
+        int expired = 0;
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expiresAt <= now) {
+                it.remove();
+                expired++;
+            }
+        }
+        Iterator<Long> deliveredIt = delivered.values().iterator();
+        while (deliveredIt.hasNext()) {
+            if (deliveredIt.next() <= now) {
+                deliveredIt.remove();
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * the ids of every message held or delivered, to be sent to a new neighbor: "id,id,...".
+     */
+    public String summaryVector(long now) {
+        expire(now);
+        StringBuilder sb = new StringBuilder((entries.size() + delivered.size()) * 20);
+        for (Long id : entries.keySet()) {
+            if (sb.length() > 0) {
+                sb.append(ROUTE_DESTINATION_TOKEN);
+            }
+            sb.append(id.longValue());
+        }
+        for (Long id : delivered.keySet()) {
+            if (entries.containsKey(id)) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(ROUTE_DESTINATION_TOKEN);
+            }
+            sb.append(id.longValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * the messages a neighbor does not hold, given its summary vector, oldest first.
+     */
+    public List<RoutedMessage> missingFrom(String summaryVector, long now) {
+        Set<Long> theirs = parseSummaryVector(summaryVector);
+        expire(now);
+
+        List<RoutedMessage> missing = new ArrayList<RoutedMessage>();
+        for (Entry entry : entries.values()) {
+            if (!theirs.contains(entry.message.getId())) {
+                missing.add(entry.message);
+            }
+        }
+        return missing;
+    }
+
+    public static Set<Long> parseSummaryVector(String summaryVector) {
+        Set<Long> ids = new HashSet<Long>();
+        StringTokenizer st = new StringTokenizer(summaryVector, ROUTE_DESTINATION_TOKEN);
+        while (st.hasMoreTokens()) {
+            try {
+                ids.add(Long.parseLong(st.nextToken()));
+            } catch (NumberFormatException e) {
+                // skip it, the message is sent again at worst
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,748 @@
+package com.colorcloud.wifichat;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static com.colorcloud.wifichat.Constant.SWARM_ANNOUNCE;
+import static com.colorcloud.wifichat.Constant.SWARM_HAVE;
+import static com.colorcloud.wifichat.Constant.SWARM_PIECE;
+import static com.colorcloud.wifichat.Constant.SWARM_REQUEST;
+
+/**
+ * distribution of one file to the whole group, swarm style, instead of one upload per member.
+ * <p/>
+ * The source announces the file once (SWARM_ANNOUNCE, its FileManifest with the CRC32 of every chunk, the
+ * frame id is the transfer id); every node joins and passes the announcement on to its other peer channels.
+ * Neighbors tell each other which chunks they hold (SWARM_HAVE, the full bitfield on joining, then every
+ * chunk as it is verified) and fetch the chunks they miss from whichever neighbor holds them (SWARM_REQUEST,
+ * answered with SWARM_PIECE frames in the bulk lane). Chunks are picked rarest first among the neighbors, at
+ * most MAX_REQUESTS_PER_PEER per neighbor, so every node serves what it got and the source uploads each chunk
+ * about once however many members there are.
+ * <p/>
+ * A node holding the whole file floods a member done notice. The swarm ends once every member of the
+ * PersistentGroupPeers has the file, or after IDLE_TIMEOUT without traffic. The verified chunks are recorded in
+ * a bitfield file next to the partial file, a node announced the same file again keeps them.
+ * <p/>
+ * Everything runs on the connection service thread.
+ */
+public class SwarmManager {
+
+    private static final String TAG = "SwarmManager";
+    private static final int PIECE_SLICE = 16 * 1024;
+    private static final int MAX_REQUESTS = 8;
+    private static final int MAX_REQUESTS_PER_PEER = 2;
+    private static final long REQUEST_TIMEOUT = 15000;
+    private static final long IDLE_TIMEOUT = 10 * 60 * 1000;
+    private static final long TICK_INTERVAL = 500;
+    private static final long PUMP_INTERVAL = 10;
+    static final String PART_SUFFIX = ".swarm";
+    static final String HAVE_SUFFIX = ".have";
+
+    // first int of a SWARM_HAVE payload, a chunk index otherwise
+    private static final int HAVE_ALL = -1;           // the full bitfield follows
+    private static final int HAVE_MEMBER_DONE = -2;   // mac address of a member holding the whole file follows
+
+    private static final class Request {
+        final int chunk;
+        final SocketChannel peer;
+        long deadline;
+        int received;
+
+        Request(int chunk, SocketChannel peer, long deadline) {
+            this.chunk = chunk;
+            this.peer = peer;
+            this.deadline = deadline;
+        }
+    }
+
+    private static final class Upload {
+        final Swarm swarm;
+        final int chunk;
+        int offset;
+
+        Upload(Swarm swarm, int chunk) {
+            this.swarm = swarm;
+            this.chunk = chunk;
+        }
+    }
+
+    private static final class Swarm {
+        final long id;
+        final int transfer;
+        final FileManifest manifest;
+        final MessageWrapper announcement;
+        final BitSet have = new BitSet();
+        final Map<SocketChannel, BitSet> peers = new HashMap<SocketChannel, BitSet>();
+        final int[] availability;   // neighbors holding each chunk
+        final Map<Integer, Request> requests = new HashMap<Integer, Request>();
+        final Set<String> membersDone = new HashSet<String>();
+        File part;                  // null for the source
+        File haveFile;
+        RandomAccessFile file;      // null for the source
+        FileChannel data;
+        int haveCount;
+        long lastActivity;
+
+        Swarm(long id, int transfer, FileManifest manifest, MessageWrapper announcement) {
+            this.id = id;
+            this.transfer = transfer;
+            this.manifest = manifest;
+            this.announcement = announcement;
+            this.availability = new int[manifest.chunkCount()];
+        }
+
+        boolean complete() {
+            return haveCount == manifest.chunkCount();
+        }
+    }
+
+    private ConnectionManager connectionManager;
+    private Handler handler;
+    private File dir;
+    private volatile FileServer.Listener listener;
+    private final Map<Long, Swarm> swarms = new HashMap<Long, Swarm>();
+    private final Map<SocketChannel, ArrayDeque<Upload>> uploads = new HashMap<SocketChannel, ArrayDeque<Upload>>();
+    private final ByteBuffer scratch = ByteBuffer.allocate(64 * 1024);
+    private final Random random = new Random();
+    private int nextTransfer = 0;
+    private boolean tickScheduled = false;
+    private boolean pumpScheduled = false;
+
+    private final Runnable tickRunnable = new Runnable() {
+        @Override
+        public void run() {
+            tickScheduled = false;
+            tick();
+        }
+    };
+
+    private final Runnable pumpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            pumpScheduled = false;
+            pump();
+        }
+    };
+
+    /**
+     * a manager of its own, to test swarms between several of them.
+     */
+    SwarmManager() {
+    }
+
+    private static final SwarmManager instance = new SwarmManager();
+
+    public static SwarmManager getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param handler the connection service handler, everything runs on its thread.
+     * @param dir     where distributed files are stored.
+     */
+    public void init(ConnectionManager connectionManager, Handler handler, File dir) {
+        this.connectionManager = connectionManager;
+        this.handler = handler;
+        this.dir = dir;
+    }
+
+    public void setListener(FileServer.Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * distribute the file to the group, this device being the source. The source is closed when the swarm ends.
+     */
+    public void distribute(FileChannel source, FileManifest manifest) {
+        long id = manifest.transferId();
+        Swarm existing = swarms.get(id);
+        if (existing != null) {
+            Log.d(TAG, "swarm " + Long.toHexString(id) + ": already distributing " + manifest);
+            close(source);
+            return;
+        }
+
+        byte[] manifestBytes = manifest.toBytes();
+        if (manifestBytes.length > FrameCodec.MAX_BODY_SIZE) {
+            Log.e(TAG, "distribute: too many chunks to announce " + manifest);
+            close(source);
+            return;
+        }
+        ByteBuffer frame = FrameCodec.allocateBinary(SWARM_ANNOUNCE, id, manifestBytes.length);
+        frame.put(manifestBytes);
+
+        Swarm swarm = new Swarm(id, ++nextTransfer, manifest, FrameCodec.binaryMessage(frame));
+        swarm.data = source;
+        swarm.have.set(0, manifest.chunkCount());
+        swarm.haveCount = manifest.chunkCount();
+        swarm.membersDone.add(self());
+        swarm.lastActivity = SystemClock.elapsedRealtime();
+        swarms.put(id, swarm);
+
+        for (SocketChannel peer : connectionManager.peerChannels()) {
+            join(swarm, peer);
+        }
+        Log.d(TAG, "swarm " + Long.toHexString(id) + ": distributing " + manifest);
+        scheduleTick();
+    }
+
+    /**
+     * a SWARM_* frame came in.
+     */
+    public void onFrame(MessageWrapper messageWrapper) {
+        try {
+            switch (messageWrapper.getCategory()) {
+                case SWARM_ANNOUNCE:
+                    onAnnounce(messageWrapper);
+                    break;
+                case SWARM_HAVE:
+                    onHave(messageWrapper);
+                    break;
+                case SWARM_REQUEST:
+                    onRequest(messageWrapper);
+                    break;
+                case SWARM_PIECE:
+                    onPiece(messageWrapper);
+                    break;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "swarm " + Long.toHexString(messageWrapper.getAck()) + ": " + e.toString());
+            Swarm swarm = swarms.get(messageWrapper.getAck());
+            if (swarm != null) {
+                end(swarm);
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "swarm " + Long.toHexString(messageWrapper.getAck()) + ": bad frame " + e.toString());
+        }
+    }
+
+    /**
+     * a new peer channel: it joins every live swarm.
+     */
+    public void onLinkUp(SocketChannel channel) {
+        for (Swarm swarm : swarms.values()) {
+            join(swarm, channel);
+        }
+    }
+
+    /**
+     * the link is gone: its chunks are no longer available, its requests go elsewhere.
+     */
+    public void onChannelClosed(SocketChannel channel) {
+        uploads.remove(channel);
+        for (Swarm swarm : swarms.values()) {
+            BitSet bits = swarm.peers.remove(channel);
+            if (bits != null) {
+                for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+                    swarm.availability[i]--;
+                }
+            }
+            Iterator<Request> it = swarm.requests.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().peer == channel) {
+                    it.remove();
+                }
+            }
+            request(swarm);
+        }
+    }
+
+    private void onAnnounce(MessageWrapper messageWrapper) throws IOException {
+        long id = messageWrapper.getAck();
+        if (swarms.containsKey(id)) {
+            return;   // along another path, or our own
+        }
+        ByteBuffer payload = messageWrapper.getPayload();
+        byte[] manifestBytes = new byte[payload.remaining()];
+        payload.get(manifestBytes);
+        FileManifest manifest = FileManifest.fromBytes(manifestBytes);
+
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        Swarm swarm = new Swarm(id, ++nextTransfer, manifest, messageWrapper);
+        swarm.part = new File(dir, Long.toHexString(id) + PART_SUFFIX);
+        swarm.haveFile = new File(dir, Long.toHexString(id) + HAVE_SUFFIX);
+        swarm.file = new RandomAccessFile(swarm.part, "rw");
+        swarm.data = swarm.file.getChannel();
+        readHave(swarm);
+        swarm.lastActivity = SystemClock.elapsedRealtime();
+        swarms.put(id, swarm);
+        Log.d(TAG, "swarm " + Long.toHexString(id) + ": joined for " + manifest + " with " + swarm.haveCount + " chunks");
+
+        for (SocketChannel peer : connectionManager.peerChannels()) {
+            if (peer == messageWrapper.getOrigin()) {
+                sendHaveAll(swarm, peer);
+            } else {
+                join(swarm, peer);
+            }
+        }
+        if (swarm.complete()) {
+            finish(swarm);
+        }
+        scheduleTick();
+    }
+
+    private void onHave(MessageWrapper messageWrapper) throws IOException {
+        Swarm swarm = swarms.get(messageWrapper.getAck());
+        if (swarm == null) {
+            return;
+        }
+        SocketChannel peer = messageWrapper.getOrigin();
+        ByteBuffer payload = messageWrapper.getPayload();
+        int kind = payload.getInt();
+        swarm.lastActivity = SystemClock.elapsedRealtime();
+
+        if (kind == HAVE_MEMBER_DONE) {
+            byte[] macBytes = new byte[payload.remaining()];
+            payload.get(macBytes);
+            String member = new DataInputStream(new ByteArrayInputStream(macBytes)).readUTF();
+            if (swarm.membersDone.add(member)) {
+                for (SocketChannel other : connectionManager.peerChannels()) {
+                    if (other != peer) {
+                        connectionManager.sendTo(other, messageWrapper);
+                    }
+                }
+                Log.d(TAG, "swarm " + Long.toHexString(swarm.id) + ": " + member + " has the file, "
+                        + swarm.membersDone.size() + " members done");
+                retireIfDelivered(swarm);
+            }
+            return;
+        }
+
+        BitSet bits = swarm.peers.get(peer);
+        if (bits == null) {
+            bits = new BitSet();
+            swarm.peers.put(peer, bits);
+        }
+        int chunkCount = swarm.manifest.chunkCount();
+        if (kind == HAVE_ALL) {
+            for (int i = 0; i < chunkCount; i++) {
+                boolean set = (payload.get(payload.position() + (i >> 3)) & (1 << (i & 7))) != 0;
+                if (set && !bits.get(i)) {
+                    bits.set(i);
+                    swarm.availability[i]++;
+                } else if (!set && bits.get(i)) {
+                    bits.clear(i);
+                    swarm.availability[i]--;
+                }
+            }
+        } else if (kind >= 0 && kind < chunkCount && !bits.get(kind)) {
+            bits.set(kind);
+            swarm.availability[kind]++;
+        }
+        request(swarm);
+    }
+
+    private void onRequest(MessageWrapper messageWrapper) {
+        Swarm swarm = swarms.get(messageWrapper.getAck());
+        if (swarm == null) {
+            return;
+        }
+        SocketChannel peer = messageWrapper.getOrigin();
+        int chunk = messageWrapper.getPayload().getInt();
+        if (chunk < 0 || chunk >= swarm.manifest.chunkCount() || !swarm.have.get(chunk)) {
+            sendHaveAll(swarm, peer);   // its view of us is wrong
+            return;
+        }
+
+        ArrayDeque<Upload> queue = uploads.get(peer);
+        if (queue == null) {
+            queue = new ArrayDeque<Upload>();
+            uploads.put(peer, queue);
+        }
+        queue.addLast(new Upload(swarm, chunk));
+        swarm.lastActivity = SystemClock.elapsedRealtime();
+        schedulePump(0);
+    }
+
+    private void onPiece(MessageWrapper messageWrapper) throws IOException {
+        Swarm swarm = swarms.get(messageWrapper.getAck());
+        if (swarm == null) {
+            return;
+        }
+        ByteBuffer payload = messageWrapper.getPayload();
+        int chunk = payload.getInt();
+        int offset = payload.getInt();
+        Request request = swarm.requests.get(chunk);
+        if (request == null || request.peer != messageWrapper.getOrigin() || offset != request.received) {
+            return;   // timed out and asked elsewhere
+        }
+
+        FileManifest manifest = swarm.manifest;
+        long position = manifest.chunkOffset(chunk) + offset;
+        int length = payload.remaining();
+        if (offset + length > manifest.chunkLength(chunk)) {
+            throw new IOException("piece past the end of chunk " + chunk);
+        }
+        while (payload.hasRemaining()) {
+            position += swarm.data.write(payload, position);
+        }
+        long now = SystemClock.elapsedRealtime();
+        request.received += length;
+        request.deadline = now + REQUEST_TIMEOUT;
+        swarm.lastActivity = now;
+        if (request.received < manifest.chunkLength(chunk)) {
+            return;
+        }
+
+        swarm.requests.remove(chunk);
+        if (FileManifest.checksum(swarm.data, manifest.chunkOffset(chunk), manifest.chunkLength(chunk), scratch) != manifest.checksum(chunk)) {
+            Log.e(TAG, "swarm " + Long.toHexString(swarm.id) + ": checksum mismatch in chunk " + chunk + ", asked again");
+            request(swarm);
+            return;
+        }
+
+        swarm.have.set(chunk);
+        swarm.haveCount++;
+        if (swarm.haveCount % FileTransferEngine.RESUME_SYNC_CHUNKS == 0) {
+            swarm.data.force(false);
+            writeHave(swarm);
+        }
+        FileServer.Listener l = listener;
+        if (l != null) {
+            l.onTransferProgress(swarm.transfer, manifest, (long) swarm.haveCount * manifest.getChunkSize());
+        }
+
+        ByteBuffer frame = FrameCodec.allocateBinary(SWARM_HAVE, swarm.id, 4);
+        frame.putInt(chunk);
+        MessageWrapper have = FrameCodec.binaryMessage(frame);
+        for (SocketChannel peer : connectionManager.peerChannels()) {
+            connectionManager.sendTo(peer, have);
+        }
+
+        if (swarm.complete()) {
+            finish(swarm);
+        } else {
+            request(swarm);
+        }
+    }
+
+    /**
+     * ask neighbors for the rarest chunks we miss, as many as the request limits allow.
+     */
+    private void request(Swarm swarm) {
+        if (swarm.complete() || swarm.peers.isEmpty()) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        Map<SocketChannel, Integer> load = new HashMap<SocketChannel, Integer>();
+        for (Request request : swarm.requests.values()) {
+            Integer n = load.get(request.peer);
+            load.put(request.peer, n == null ? 1 : n + 1);
+        }
+
+        while (swarm.requests.size() < MAX_REQUESTS) {
+            int best = -1;
+            int bestCount = Integer.MAX_VALUE;
+            int ties = 0;
+            for (int chunk = swarm.have.nextClearBit(0); chunk < swarm.manifest.chunkCount(); chunk = swarm.have.nextClearBit(chunk + 1)) {
+                int count = swarm.availability[chunk];
+                if (count == 0 || count > bestCount || swarm.requests.containsKey(chunk)
+                        || pickPeer(swarm, chunk, load) == null) {
+                    continue;
+                }
+                if (count < bestCount) {
+                    best = chunk;
+                    bestCount = count;
+                    ties = 1;
+                } else if (random.nextInt(++ties) == 0) {
+                    best = chunk;   // spread equally rare chunks over the requesters
+                }
+            }
+            if (best < 0) {
+                return;
+            }
+
+            SocketChannel peer = pickPeer(swarm, best, load);
+            Integer n = load.get(peer);
+            load.put(peer, n == null ? 1 : n + 1);
+            swarm.requests.put(best, new Request(best, peer, now + REQUEST_TIMEOUT));
+
+            ByteBuffer frame = FrameCodec.allocateBinary(SWARM_REQUEST, swarm.id, 4);
+            frame.putInt(best);
+            connectionManager.sendTo(peer, FrameCodec.binaryMessage(frame));
+        }
+    }
+
+    /**
+     * the least loaded neighbor holding the chunk with a request slot left, null if none.
+     */
+    private static SocketChannel pickPeer(Swarm swarm, int chunk, Map<SocketChannel, Integer> load) {
+        SocketChannel best = null;
+        int bestLoad = MAX_REQUESTS_PER_PEER;
+        for (Map.Entry<SocketChannel, BitSet> entry : swarm.peers.entrySet()) {
+            if (!entry.getValue().get(chunk)) {
+                continue;
+            }
+            Integer n = load.get(entry.getKey());
+            int peerLoad = n == null ? 0 : n;
+            if (peerLoad < bestLoad) {
+                best = entry.getKey();
+                bestLoad = peerLoad;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * the whole file is verified: move it in place and keep serving it from there.
+     */
+    private void finish(Swarm swarm) throws IOException {
+        swarm.data.force(false);
+        swarm.file.close();
+
+        File file = FileTransferEngine.uniqueFile(dir, swarm.manifest.getName(), Long.toHexString(swarm.id));
+        if (!swarm.part.renameTo(file)) {
+            throw new IOException("cannot rename " + swarm.part + " to " + file);
+        }
+        swarm.haveFile.delete();
+        swarm.part = file;
+        swarm.file = new RandomAccessFile(file, "r");
+        swarm.data = swarm.file.getChannel();
+        Log.d(TAG, "swarm " + Long.toHexString(swarm.id) + ": received " + file);
+
+        FileServer.Listener l = listener;
+        if (l != null) {
+            l.onTransferDone(swarm.transfer, new FileTransferEngine.Received(swarm.manifest, file));
+        }
+
+        String self = self();
+        swarm.membersDone.add(self);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(self);
+        ByteBuffer frame = FrameCodec.allocateBinary(SWARM_HAVE, swarm.id, 4 + bytes.size());
+        frame.putInt(HAVE_MEMBER_DONE).put(bytes.toByteArray());
+        MessageWrapper done = FrameCodec.binaryMessage(frame);
+        for (SocketChannel peer : connectionManager.peerChannels()) {
+            connectionManager.sendTo(peer, done);
+        }
+        retireIfDelivered(swarm);
+    }
+
+    /**
+     * end the swarm once every member of the group has the file.
+     */
+    private void retireIfDelivered(Swarm swarm) {
+        List<String> members = PersistentGroupPeers.getInstance().getPersistentGroupPeers();
+        if (!swarm.complete() || members.isEmpty()) {
+            return;
+        }
+        for (String member : members) {
+            if (!swarm.membersDone.contains(RoutingTable.normalize(member))) {
+                return;
+            }
+        }
+        Log.d(TAG, "swarm " + Long.toHexString(swarm.id) + ": every member has " + swarm.manifest);
+        end(swarm);
+    }
+
+    /**
+     * stop the swarm. The verified chunks of an unfinished file stay for the next announcement.
+     */
+    private void end(Swarm swarm) {
+        swarms.remove(swarm.id);
+        if (!swarm.complete()) {
+            try {
+                swarm.data.force(false);
+                writeHave(swarm);
+            } catch (IOException e) {
+                Log.e(TAG, "end: " + e.toString());
+            }
+        }
+        close(swarm.data);
+    }
+
+    /**
+     * time requests out, end idle swarms, and ask again.
+     */
+    private void tick() {
+        long now = SystemClock.elapsedRealtime();
+        List<Swarm> idle = new ArrayList<Swarm>();
+        for (Swarm swarm : swarms.values()) {
+            Iterator<Request> it = swarm.requests.values().iterator();
+            while (it.hasNext()) {
+                Request request = it.next();
+                if (request.deadline <= now) {
+                    Log.d(TAG, "swarm " + Long.toHexString(swarm.id) + ": chunk " + request.chunk + " timed out");
+                    it.remove();
+                }
+            }
+            if (now - swarm.lastActivity > IDLE_TIMEOUT) {
+                idle.add(swarm);
+            } else {
+                request(swarm);
+            }
+        }
+        for (Swarm swarm : idle) {
+            Log.d(TAG, "swarm " + Long.toHexString(swarm.id) + ": idle, ended");
+            end(swarm);
+        }
+        scheduleTick();
+    }
+
+    /**
+     * queue piece frames while the bulk lanes have room. Run by the handler; a test runs it itself.
+     */
+    void pump() {
+        boolean waiting = false;
+        Iterator<Map.Entry<SocketChannel, ArrayDeque<Upload>>> it = uploads.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<SocketChannel, ArrayDeque<Upload>> entry = it.next();
+            SocketChannel peer = entry.getKey();
+            ArrayDeque<Upload> queue = entry.getValue();
+            while (!queue.isEmpty()) {
+                Upload upload = queue.peekFirst();
+                Swarm swarm = upload.swarm;
+                if (swarms.get(swarm.id) != swarm) {
+                    queue.pollFirst();   // ended meanwhile
+                    continue;
+                }
+                int n = Math.min(PIECE_SLICE, swarm.manifest.chunkLength(upload.chunk) - upload.offset);
+                if (connectionManager.bulkRoom(peer) < FrameCodec.HEADER_SIZE + 8 + n) {
+                    waiting = true;
+                    break;
+                }
+                ByteBuffer frame = FrameCodec.allocateBinary(SWARM_PIECE, swarm.id, 8 + n);
+                frame.putInt(upload.chunk).putInt(upload.offset);
+                long position = swarm.manifest.chunkOffset(upload.chunk) + upload.offset;
+                try {
+                    while (frame.hasRemaining()) {
+                        if (swarm.data.read(frame, position + frame.position() - FrameCodec.HEADER_SIZE - 8) < 0) {
+                            throw new IOException("file shrank while serving " + swarm.manifest);
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "swarm " + Long.toHexString(swarm.id) + ": " + e.toString());
+                    queue.pollFirst();   // the requester times out and asks elsewhere
+                    continue;
+                }
+                if (connectionManager.sendTo(peer, FrameCodec.binaryMessage(frame)) < 0) {
+                    waiting = true;
+                    break;
+                }
+                upload.offset += n;
+                if (upload.offset == swarm.manifest.chunkLength(upload.chunk)) {
+                    queue.pollFirst();
+                }
+            }
+            if (queue.isEmpty()) {
+                it.remove();
+            }
+        }
+        if (waiting) {
+            schedulePump(PUMP_INTERVAL);
+        }
+    }
+
+    /**
+     * send the announcement and our bitfield to a neighbor.
+     */
+    private void join(Swarm swarm, SocketChannel peer) {
+        connectionManager.sendTo(peer, swarm.announcement);
+        sendHaveAll(swarm, peer);
+    }
+
+    private void sendHaveAll(Swarm swarm, SocketChannel peer) {
+        byte[] bits = toBytes(swarm.have, swarm.manifest.chunkCount());
+        ByteBuffer frame = FrameCodec.allocateBinary(SWARM_HAVE, swarm.id, 4 + bits.length);
+        frame.putInt(HAVE_ALL).put(bits);
+        connectionManager.sendTo(peer, FrameCodec.binaryMessage(frame));
+    }
+
+    private void scheduleTick() {
+        if (!tickScheduled && !swarms.isEmpty()) {
+            tickScheduled = true;
+            handler.postDelayed(tickRunnable, TICK_INTERVAL);
+        }
+    }
+
+    private void schedulePump(long delay) {
+        if (!pumpScheduled) {
+            pumpScheduled = true;
+            handler.postDelayed(pumpRunnable, delay);
+        }
+    }
+
+    /**
+     * the chunks verified by an earlier run, none if the record does not match the partial file.
+     */
+    private static void readHave(Swarm swarm) throws IOException {
+        if (!swarm.haveFile.exists()) {
+            return;
+        }
+        FileManifest manifest = swarm.manifest;
+        byte[] bits = new byte[(manifest.chunkCount() + 7) / 8];
+        RandomAccessFile in = new RandomAccessFile(swarm.haveFile, "r");
+        try {
+            in.readFully(bits);
+        } catch (IOException e) {
+            return;   // torn write, start over
+        } finally {
+            in.close();
+        }
+        long size = swarm.data.size();
+        for (int i = 0; i < manifest.chunkCount(); i++) {
+            if ((bits[i >> 3] & (1 << (i & 7))) != 0 && manifest.chunkOffset(i) + manifest.chunkLength(i) <= size) {
+                swarm.have.set(i);
+                swarm.haveCount++;
+            }
+        }
+    }
+
+    private static void writeHave(Swarm swarm) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(swarm.haveFile, "rw");
+        try {
+            out.seek(0);
+            out.write(toBytes(swarm.have, swarm.manifest.chunkCount()));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * bit i of the set is bit (i % 8) of byte (i / 8).
+     */
+    private static byte[] toBytes(BitSet bits, int count) {
+        byte[] bytes = new byte[(count + 7) / 8];
+        for (int i = bits.nextSetBit(0); i >= 0 && i < count; i = bits.nextSetBit(i + 1)) {
+            bytes[i >> 3] |= 1 << (i & 7);
+        }
+        return bytes;
+    }
+
+    private static String self() {
+        String mac = WiFiDirectActivity.getWiFiDirectMacAddress();
+        return mac == null ? "" : RoutingTable.normalize(mac);
+    }
+
+    private static void close(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Give up
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.colorcloud.wifichat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * hashed timer wheel: one wheel serves every pending timeout, instead of one timer per item.
+ * <p/>
+ * Time is cut in ticks of tickMillis. An item lands in the slot of the first tick at or after its deadline;
+ * advance() visits the slots of the ticks elapsed since the last call and hands out the items whose deadline is
+ * reached. Items due more than one revolution ahead simply stay in their slot until their deadline.
+ * <p/>
+ * Pure java and not thread safe, the owner drives it from a single thread with its own clock.
+ */
+public class TimerWheel<T> {
+
+    private static final class Entry<T> {
+        final T item;
+        final long deadline;
+
+        Entry(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long tickMillis;
+    private final int mask;
+    private final List<List<Entry<T>>> slots;
+    private long currentTick;
+    private int size = 0;
+
+    /**
+     * @param numberOfSlots rounded up to a power of 2.
+     */
+    public TimerWheel(long tickMillis, int numberOfSlots, long nowMillis) {
+        int n = Integer.highestOneBit(Math.max(1, numberOfSlots - 1)) << 1;
+        this.tickMillis = tickMillis;
+        this.mask = n - 1;
+        this.slots = new ArrayList<List<Entry<T>>>(n);
+        for (int i = 0; i < n; i++) {
+            slots.add(new ArrayList<Entry<T>>());
+        }
+        this.currentTick = nowMillis / tickMillis;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * schedule the item at an absolute deadline. A deadline already passed fires on the next tick.
+     */
+    public void schedule(T item, long deadlineMillis) {
+        // round up: when the wheel reaches this tick, the deadline is reached too. Fires at most one tick late.
+        long tick = Math.max((deadlineMillis + tickMillis - 1) / tickMillis, currentTick + 1);
+        slots.get((int) (tick & mask)).add(new Entry<T>(item, deadlineMillis));
+        size++;
+    }
+
+    /**
+     * move the wheel to nowMillis, and add every item whose deadline is reached to expired.
+     */
+    public void advance(long nowMillis, List<T> expired) {
+        long nowTick = nowMillis / tickMillis;
+        if (nowTick <= currentTick) {
+            return;
+        }
+
+        // after a long pause every slot is visited once, the deadline check sorts out what is really due.
+        long ticks = Math.min(nowTick - currentTick, mask + 1);
+        for (long tick = currentTick + 1; tick <= currentTick + ticks; tick++) {
+            expireSlot(slots.get((int) (tick & mask)), nowMillis, expired);
+        }
+        currentTick = nowTick;
+    }
+
+    private void expireSlot(List<Entry<T>> slot, long nowMillis, List<T> expired) {
+        for (int i = slot.size() - 1; i >= 0; i--) {
+            Entry<T> entry = slot.get(i);
+            if (entry.deadline <= nowMillis) {
+                // swap remove, order inside a slot does not matter
+                int last = slot.size() - 1;
+                slot.set(i, slot.get(last));
+                slot.remove(last);
+                size--;
+                expired.add(entry.item);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        for (List<Entry<T>> slot : slots) {
+            slot.clear();
+        }
+        size = 0;
+    }
+}
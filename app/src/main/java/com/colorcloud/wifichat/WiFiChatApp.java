@@ -4,6 +4,8 @@ import android.app.Application;
 import android.net.wifi.p2p.WifiP2pManager.Channel;
 import android.os.Message;
 
+import java.io.File;
+
 import static com.colorcloud.wifichat.Constant.MSG_STARTCLIENT;
 import static com.colorcloud.wifichat.Constant.MSG_STARTSERVER;
 
@@ -19,6 +21,8 @@ public class WiFiChatApp extends Application {
     @Override
     public void onCreate() {
         super.onCreate();
+        MessageIdGenerator.init(WiFiDirectActivity.getWiFiDirectMacAddress());
+        MessageStore.getInstance().init(new File(getFilesDir(), "messages"));
     }
 
     /**
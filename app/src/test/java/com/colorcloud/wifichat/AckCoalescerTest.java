@@ -0,0 +1,120 @@
+package com.colorcloud.wifichat;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AckCoalescerTest {
+
+    private static AckCoalescer.AckRange parse(MessageWrapper messageWrapper) {
+        return AckCoalescer.AckRange.parse(messageWrapper);
+    }
+
+    private static MessageWrapper ackFrame(long base, String body) {
+        return new MessageWrapper(Constant.IMMEDIATE_ACKNOWLEDGEMENT, 0, base, body);
+    }
+
+    @Test
+    public void firstAddAsksForAFlush() {
+        AckCoalescer coalescer = new AckCoalescer();
+        assertTrue(coalescer.add(1));
+        assertFalse(coalescer.add(2));
+        assertEquals(2, coalescer.pending());
+        coalescer.flush();
+        assertEquals(0, coalescer.pending());
+        assertTrue(coalescer.add(3));
+    }
+
+    @Test
+    public void burstOfOneSenderIsOneFrame() {
+        MessageIdGenerator generator = new MessageIdGenerator(1, 1);
+        AckCoalescer coalescer = new AckCoalescer();
+        long first = generator.next();
+        coalescer.add(first);
+        for (int i = 1; i < 100; i++) {
+            coalescer.add(generator.next());
+        }
+        List<MessageWrapper> frames = coalescer.flush();
+        assertEquals(1, frames.size());
+        AckCoalescer.AckRange range = parse(frames.get(0));
+        assertEquals(first, range.base);
+        assertEquals(100, range.run);
+        assertEquals(0, range.sack);
+    }
+
+    @Test
+    public void holesGoInTheSelectiveAck() {
+        AckCoalescer coalescer = new AckCoalescer();
+        long base = new MessageIdGenerator(2, 1).next();
+        // 0 1 2 _ 4 _ 6, out of order and with a duplicate
+        for (long offset : new long[]{6, 0, 2, 1, 4, 2}) {
+            coalescer.add(base + offset);
+        }
+        List<MessageWrapper> frames = coalescer.flush();
+        assertEquals(1, frames.size());
+        AckCoalescer.AckRange range = parse(frames.get(0));
+        assertEquals(3, range.run);
+        assertEquals(5, range.count());
+        for (long offset = 0; offset < 8; offset++) {
+            assertEquals("offset " + offset, offset <= 2 || offset == 4 || offset == 6,
+                    range.contains(base + offset));
+        }
+    }
+
+    @Test
+    public void sendersGetTheirOwnFrames() {
+        AckCoalescer coalescer = new AckCoalescer();
+        long a = new MessageIdGenerator(3, 1).next();
+        long b = new MessageIdGenerator(4, 1).next();
+        coalescer.add(a);
+        coalescer.add(b);
+        coalescer.add(a + 1);
+        assertEquals(2, coalescer.flush().size());
+    }
+
+    @Test
+    public void beyondTheSackWindowStartsANewFrame() {
+        AckCoalescer coalescer = new AckCoalescer();
+        long base = new MessageIdGenerator(5, 1).next();
+        coalescer.add(base);
+        coalescer.add(base + 2 + 64);
+        assertEquals(2, coalescer.flush().size());
+    }
+
+    @Test
+    public void wireFormatRoundTrip() {
+        AckCoalescer.AckRange range = new AckCoalescer.AckRange(42, 7, 0x8000000000000005L);
+        AckCoalescer.AckRange parsed = parse(range.toMessageWrapper());
+        assertEquals(42, parsed.base);
+        assertEquals(7, parsed.run);
+        assertEquals(0x8000000000000005L, parsed.sack);
+
+        AckCoalescer.AckRange single = parse(ackFrame(9, ""));
+        assertEquals(1, single.count());
+        assertTrue(single.contains(9));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformedRunIsRejected() {
+        parse(ackFrame(1, "x"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformedSackIsRejected() {
+        parse(ackFrame(1, "3,"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeRunIsRejected() {
+        parse(ackFrame(1, "-1"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void hugeRunIsRejected() {
+        parse(ackFrame(1, Integer.toString(Integer.MAX_VALUE)));
+    }
+}
@@ -0,0 +1,125 @@
+package com.colorcloud.wifichat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * frames on the wire per delivered message, a client sending 1000 messages per second to the group owner on
+ * loopback. The owner acks every message with a frame of its own, as it used to, or coalesces the acks the way
+ * ConnectionService.ackLater() does: flushed AckCoalescer.DEFAULT_DELAY_MILLIS after the first pending one.
+ * A message is delivered when the client got its ack.
+ */
+public class AckCoalescingLoadTest {
+
+    private static final int RATE = 1000;   // messages per second
+    private static final int MESSAGES = 500;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private final ScheduledExecutorService ownerThread = Executors.newSingleThreadScheduledExecutor();
+    private LoopbackGroup group;
+    private final Set<Long> acked = new HashSet<Long>();
+    private int ackFrames = 0;
+
+    @After
+    public void tearDown() throws IOException {
+        ownerThread.shutdownNow();
+        if (group != null) {
+            group.close();
+        }
+    }
+
+    /**
+     * @return frames per delivered message.
+     */
+    private double run(final boolean coalesce) throws Exception {
+        final AckCoalescer coalescer = new AckCoalescer();
+        final Runnable flush = new Runnable() {
+            @Override
+            public void run() {
+                for (MessageWrapper ackMessage : coalescer.flush()) {
+                    group.sendWaiting(0, ackMessage.getFrame());
+                }
+            }
+        };
+        group = new LoopbackGroup(1, 0, 0, 0, new LoopbackGroup.Listener() {
+            @Override
+            public void onOwnerFrame(int client, final MessageWrapper messageWrapper) {
+                ownerThread.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        long id = messageWrapper.getAck();
+                        if (!coalesce) {
+                            group.sendWaiting(0, new AckCoalescer.AckRange(id, 1, 0).toMessageWrapper().getFrame());
+                        } else if (coalescer.add(id)) {
+                            ownerThread.schedule(flush, AckCoalescer.DEFAULT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                        } else if (coalescer.pending() >= AckCoalescer.MAX_PENDING) {
+                            flush.run();
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onClientFrame(int client, MessageWrapper messageWrapper) {
+                AckCoalescer.AckRange range = AckCoalescer.AckRange.parse(messageWrapper);
+                synchronized (acked) {
+                    ackFrames++;
+                    for (int i = 0; i < range.run; i++) {
+                        acked.add(range.base + i);
+                    }
+                    for (long bits = range.sack; bits != 0; bits &= bits - 1) {
+                        acked.add(range.base + range.run + 1 + Long.numberOfTrailingZeros(bits));
+                    }
+                    acked.notifyAll();
+                }
+            }
+        });
+
+        MessageIdGenerator generator = new MessageIdGenerator(1, 1);
+        List<String> rows = ChatCorpus.rows(MESSAGES, 7);
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            long due = start + i * 1000000000L / RATE;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            group.sendFromClient(0, new MessageWrapper(Constant.MESSAGE, 0, generator.next(), rows.get(i)).getFrame());
+        }
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        synchronized (acked) {
+            while (acked.size() < MESSAGES && System.currentTimeMillis() < deadline) {
+                acked.wait(100);
+            }
+            assertEquals(MESSAGES, acked.size());
+            return (double) (MESSAGES + ackFrames) / acked.size();
+        }
+    }
+
+    @Test
+    public void ackPerMessageDoublesTheFrames() throws Exception {
+        double framesPerMessage = run(false);
+        System.out.println("ack per message: " + framesPerMessage + " frames per delivered message");
+        assertEquals(2.0, framesPerMessage, 0.001);
+    }
+
+    @Test
+    public void coalescedAcksAddAFractionOfAFrame() throws Exception {
+        double framesPerMessage = run(true);
+        System.out.println("coalesced acks: " + framesPerMessage + " frames per delivered message");
+        // about one ack frame per DEFAULT_DELAY_MILLIS of traffic, 1.05 at 1000 msg/s
+        assertTrue("frames per message: " + framesPerMessage, framesPerMessage < 1.25);
+    }
+}
@@ -0,0 +1,38 @@
+package com.colorcloud.wifichat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BandwidthLimiterTest {
+
+    @Test
+    public void tryAcquireTakesNothingWhenItFails() throws InterruptedException {
+        BandwidthLimiter limiter = new BandwidthLimiter(100 * 1000);   // burst of 10000 bytes
+        Thread.sleep(150);
+        assertEquals(0, limiter.tryAcquire(10000));
+
+        long wait = limiter.tryAcquire(5000);
+        assertTrue(wait > 0);
+        assertTrue(wait <= 50 * 1000000L);
+        Thread.sleep(wait / 1000000 + 5);
+        assertEquals(0, limiter.tryAcquire(5000));
+    }
+
+    @Test
+    public void sliceLargerThanTheBurstGoesOnceTheBucketIsFull() throws InterruptedException {
+        BandwidthLimiter limiter = new BandwidthLimiter(100 * 1000);
+        Thread.sleep(150);
+        assertEquals(0, limiter.tryAcquire(30000));
+        assertTrue(limiter.tryAcquire(1) > 0);   // in debt for the rest
+    }
+
+    @Test
+    public void noRateNoCap() {
+        BandwidthLimiter limiter = new BandwidthLimiter(0);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, limiter.tryAcquire(1024 * 1024));
+        }
+    }
+}
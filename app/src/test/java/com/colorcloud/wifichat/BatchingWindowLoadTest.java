@@ -0,0 +1,133 @@
+package com.colorcloud.wifichat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * throughput against latency of the send-side batching on loopback, for batch windows from 0 to 20 ms, the
+ * byte budget at ConnectionManager.DEFAULT_BATCH_BYTES. For each window the group owner sends a client:
+ * - THROUGHPUT_MESSAGES chat messages one after the other as fast as the OutboundQueue takes them, timed until
+ *   the client read the last one;
+ * - bursts of BURST messages every BURST_INTERVAL_MICROS, a user pasting lines or a relayed burst, timed one
+ *   way from the offer to the client reading it.
+ * The windows are printed as a table, one line per point of the curve.
+ */
+public class BatchingWindowLoadTest {
+
+    private static final long[] WINDOWS_MILLIS = {0, 1, 2, 5, 10, 20};
+    private static final int THROUGHPUT_MESSAGES = 20000;
+    private static final int BURSTS = 100;
+    private static final int BURST = 10;
+    private static final long BURST_INTERVAL_MICROS = 5000;
+    private static final long TIMEOUT_MILLIS = 30000;
+
+    private LoopbackGroup group;
+    private ByteBuffer[] frames;
+    private long[] sentAt;
+    private long[] readAt;
+
+    @After
+    public void tearDown() throws IOException {
+        if (group != null) {
+            group.close();
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    private void await(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (group.clientFrames() < count) {
+            assertTrue("the client read " + group.clientFrames() + " of " + count,
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * @return messages per second, and the p99 one-way latency of the bursts in microseconds.
+     */
+    private long[] run(long windowMillis) throws Exception {
+        group = new LoopbackGroup(1, 0, windowMillis, ConnectionManager.DEFAULT_BATCH_BYTES,
+                new LoopbackGroup.Listener() {
+                    @Override
+                    public void onOwnerFrame(int client, MessageWrapper messageWrapper) {
+                    }
+
+                    @Override
+                    public void onClientFrame(int client, MessageWrapper messageWrapper) {
+                        readAt[(int) messageWrapper.getAck() - 1] = System.nanoTime();
+                    }
+                });
+
+        long start = System.nanoTime();
+        for (int i = 0; i < THROUGHPUT_MESSAGES; i++) {
+            group.sendWaiting(0, frames[i]);
+        }
+        await(THROUGHPUT_MESSAGES);
+        long rate = (long) (THROUGHPUT_MESSAGES / ((System.nanoTime() - start) / 1e9));
+
+        start = System.nanoTime();
+        for (int b = 0; b < BURSTS; b++) {
+            long wait = start + b * BURST_INTERVAL_MICROS * 1000 - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            for (int i = 0; i < BURST; i++) {
+                int id = THROUGHPUT_MESSAGES + b * BURST + i;
+                sentAt[id] = System.nanoTime();
+                group.sendWaiting(0, frames[id]);
+            }
+        }
+        await(THROUGHPUT_MESSAGES + BURSTS * BURST);
+        group.close();
+        group = null;
+
+        long[] latencies = new long[BURSTS * BURST];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = (readAt[THROUGHPUT_MESSAGES + i] - sentAt[THROUGHPUT_MESSAGES + i]) / 1000;
+        }
+        Arrays.sort(latencies);
+        long p99 = percentile(latencies, 0.99);
+        System.out.println("window " + windowMillis + " ms: " + rate + " messages/s, burst latency p50 "
+                + percentile(latencies, 0.5) + " us, p99 " + p99 + " us");
+        return new long[]{rate, p99};
+    }
+
+    @Test
+    public void batchingTradesLatencyForThroughput() throws Exception {
+        int total = THROUGHPUT_MESSAGES + BURSTS * BURST;
+        List<String> rows = ChatCorpus.rows(total, 9);
+        frames = new ByteBuffer[total];
+        for (int i = 0; i < total; i++) {
+            frames[i] = new MessageWrapper(Constant.MESSAGE, 0, i + 1, rows.get(i)).getFrame();
+        }
+        sentAt = new long[total];
+        readAt = new long[total];
+
+        run(WINDOWS_MILLIS[0]);   // warms the JIT up, the first run is the slowest whatever its window
+        long unbatched = 0;
+        long batched = 0;
+        for (long window : WINDOWS_MILLIS) {
+            long[] point = run(window);
+            // a batch is held back one window at most, the rest is the loopback and the scheduler
+            assertTrue("window " + window + " ms, p99 " + point[1] + " us", point[1] < (window + 20) * 1000);
+            if (window == 0) {
+                unbatched = point[0];
+            } else if (window == ConnectionManager.DEFAULT_BATCH_DELAY) {
+                batched = point[0];
+            }
+        }
+        assertTrue("unbatched " + unbatched + " messages/s, batched " + batched, batched > unbatched);
+    }
+}
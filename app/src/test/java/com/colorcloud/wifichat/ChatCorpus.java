@@ -0,0 +1,48 @@
+package com.colorcloud.wifichat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static com.colorcloud.wifichat.Constant.MESSAGE_ROW_TOKEN;
+
+/**
+ * synthetic chat traffic for the compression tests and benchmark: MessageRow bodies as ChatFragment sends them,
+ * short everyday messages of a handful of users over a few days, the same for the same seed.
+ */
+final class ChatCorpus {
+
+    private static final String[] SENDERS = {"Alice's Galaxy S4", "Bob", "Nexus 5", "chen wei", "Android_7f3a"};
+    private static final String[] WORDS = {
+            "ok", "yes", "no", "I'm", "you", "the", "at", "here", "there", "going", "to", "meet", "later", "now",
+            "where", "are", "what", "time", "see", "thanks", "sure", "lol", "haha", "good", "morning", "night",
+            "tomorrow", "today", "can't", "don't", "know", "think", "just", "really", "sent", "the", "file",
+            "photo", "download", "it", "wifi", "is", "slow", "battery", "low", "lunch", "canteen", "library",
+            "lab", "class", "bus", "stop", "10", "minutes", "?", "!", ":)", "hello", "hey", "bye"};
+
+    private ChatCorpus() {
+    }
+
+    static List<String> rows(int count, long seed) {
+        Random random = new Random(seed);
+        List<String> rows = new ArrayList<String>(count);
+        long minute = 0;
+        for (int i = 0; i < count; i++) {
+            minute += random.nextInt(5);
+            StringBuilder msg = new StringBuilder();
+            int words = 1 + random.nextInt(random.nextInt(10) == 0 ? 40 : 10);
+            for (int w = 0; w < words; w++) {
+                if (w > 0) {
+                    msg.append(' ');
+                }
+                msg.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            String time = String.format(Locale.US, "%02d-10-2026 %02d:%02d:%02d",
+                    1 + (int) (minute / (24 * 60)) % 28, (int) (minute / 60) % 12 + 1, (int) (minute % 60),
+                    random.nextInt(60));
+            rows.add(SENDERS[random.nextInt(SENDERS.length)] + MESSAGE_ROW_TOKEN + msg + MESSAGE_ROW_TOKEN + time);
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,198 @@
+package com.colorcloud.wifichat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static com.colorcloud.wifichat.Constant.MESSAGE_ROW_TOKEN;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * the pager over a conversation of the MessageStore, its loads run by the test instead of the worker and UI
+ * threads, so a load can be left half done while messages come in.
+ */
+public class ChatHistoryPagerTest {
+
+    private static int conversations = 0;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<Runnable> posted = new ArrayList<Runnable>();
+    private final List<Integer> headShifts = new ArrayList<Integer>();
+    private String conversation;
+    private ChatHistoryPager pager;
+    private int stored = 0;
+
+    @Before
+    public void setUp() {
+        MessageStore.getInstance().init(folder.getRoot());
+        conversation = "pager" + (++conversations);   // the store keeps the logs it opened
+        pager = new ChatHistoryPager(conversation, new ChatHistoryPager.Listener() {
+            @Override
+            public void onWindowChanged(int headShift) {
+                headShifts.add(headShift);
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                posted.add(command);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        pager.close();
+    }
+
+    private void store(int count) {
+        for (int i = 0; i < count; i++) {
+            MessageStore.getInstance().append(conversation, "Bob" + MESSAGE_ROW_TOKEN + "message " + stored++
+                    + MESSAGE_ROW_TOKEN + "18-10-2026 10:00:00");
+        }
+    }
+
+    private void pump() {
+        while (!posted.isEmpty()) {
+            posted.remove(0).run();
+        }
+    }
+
+    private int message(int position) {
+        return Integer.parseInt(pager.get(position).getMsg().substring("message ".length()));
+    }
+
+    /**
+     * the window holds the messages from first to last, in order.
+     */
+    private void assertWindow(int first, int last) {
+        assertEquals(last - first + 1, pager.size());
+        for (int i = 0; i < pager.size(); i++) {
+            assertEquals(first + i, message(i));
+        }
+    }
+
+    @Test
+    public void emptyHistoryIsAnEmptyWindowThatFollowsTheLog() {
+        pager.start();
+        pump();
+        assertEquals(0, pager.size());
+        assertEquals(Arrays.asList(0), headShifts);
+
+        pager.loadOlder();
+        pager.loadNewer();
+        assertTrue(posted.isEmpty());
+
+        store(3);
+        pager.onAppended();
+        pump();
+        assertWindow(0, 2);
+        assertEquals(Arrays.asList(0, 0), headShifts);
+    }
+
+    @Test
+    public void scrollingBackEndsWithTheShortOldestPage() {
+        store(ChatHistoryPager.PAGE_ROWS * 2 + 20);
+        pager.start();
+        pump();
+        assertWindow(70, 119);
+
+        pager.loadOlder();
+        pump();
+        assertWindow(20, 119);
+        pager.loadOlder();
+        pump();
+        assertWindow(0, 119);
+        pager.loadOlder();
+        assertTrue("the oldest row is in the window", posted.isEmpty());
+        assertEquals(Arrays.asList(0, ChatHistoryPager.PAGE_ROWS, 20), headShifts);
+    }
+
+    @Test
+    public void historyOfWholePagesEndsWithoutAnEmptyPage() {
+        store(ChatHistoryPager.PAGE_ROWS);
+        pager.start();
+        pump();
+        assertWindow(0, ChatHistoryPager.PAGE_ROWS - 1);
+        pager.loadOlder();
+        assertTrue(posted.isEmpty());
+
+        store(ChatHistoryPager.PAGE_ROWS);
+        pager.onAppended();
+        pump();
+        assertWindow(0, 2 * ChatHistoryPager.PAGE_ROWS - 1);
+        pager.loadOlder();
+        pager.loadNewer();
+        assertTrue(posted.isEmpty());
+    }
+
+    @Test
+    public void windowIsCutAtMaxRowsAtTheOtherEnd() {
+        store(1000);
+        pager.start();
+        pump();
+        int pages = ChatHistoryPager.MAX_ROWS / ChatHistoryPager.PAGE_ROWS;
+        for (int i = 1; i < pages; i++) {
+            pager.loadOlder();
+            pump();
+        }
+        assertWindow(1000 - ChatHistoryPager.MAX_ROWS, 999);
+
+        pager.loadOlder();
+        pump();
+        assertWindow(1000 - ChatHistoryPager.MAX_ROWS - ChatHistoryPager.PAGE_ROWS, 999 - ChatHistoryPager.PAGE_ROWS);
+        assertEquals(ChatHistoryPager.PAGE_ROWS, (int) headShifts.get(headShifts.size() - 1));
+
+        // away from the newest rows, the window does not follow the log
+        store(5);
+        pager.onAppended();
+        assertTrue(posted.isEmpty());
+
+        pager.loadNewer();
+        pump();
+        assertWindow(1000 - ChatHistoryPager.MAX_ROWS, 999);
+        assertEquals(-ChatHistoryPager.PAGE_ROWS, (int) headShifts.get(headShifts.size() - 1));
+        pager.loadNewer();
+        pump();
+        assertWindow(1005 - ChatHistoryPager.MAX_ROWS, 1004);
+        pager.loadNewer();
+        assertTrue(posted.isEmpty());
+    }
+
+    @Test
+    public void messagesStoredWhileAPageLoadsAreLoadedAfterIt() {
+        store(10);
+        pager.start();
+        posted.remove(0).run();   // the page is read, not yet in the window
+        store(5);
+        pager.onAppended();
+        pump();
+        assertWindow(0, 14);
+        assertEquals(Arrays.asList(0, 0), headShifts);
+    }
+
+    @Test
+    public void burstLargerThanTheWindowEndsAtTheNewestRow() {
+        store(10);
+        pager.start();
+        pump();
+        store(700);
+        pager.onAppended();
+        pump();
+        assertWindow(710 - ChatHistoryPager.MAX_ROWS, 709);
+
+        store(1);
+        pager.onAppended();
+        pump();
+        assertWindow(711 - ChatHistoryPager.MAX_ROWS, 710);
+    }
+}
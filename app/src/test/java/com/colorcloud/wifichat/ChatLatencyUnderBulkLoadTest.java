@@ -0,0 +1,157 @@
+package com.colorcloud.wifichat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * chat round trips on loopback while the group owner streams file data to the same client as fast as the
+ * OutboundQueue takes it, the way FileStreamManager keeps the bulk lane full. The client reads at
+ * LINK_BYTES_PER_SECOND, a Wi-Fi Direct link, so the backlog is in the owner's queue as it is on a phone.
+ * The owner pings, the client echoes every ping back at once, the round trip is taken on the owner.
+ * Pings go in the chat lane, or, as on a single FIFO, in the bulk lane behind the file data.
+ */
+public class ChatLatencyUnderBulkLoadTest {
+
+    private static final int PINGS = 200;
+    private static final long PING_INTERVAL_MICROS = 5000;
+    private static final long LINK_BYTES_PER_SECOND = 8L * 1024 * 1024;
+    private static final int BULK_SLICE = 16 * 1024;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private LoopbackGroup group;
+    private volatile boolean streaming;
+    private Thread bulkThread;
+    private final ConcurrentHashMap<Long, Long> sentAt = new ConcurrentHashMap<Long, Long>();
+    private final List<Long> rtts = new ArrayList<Long>();
+
+    @After
+    public void tearDown() throws Exception {
+        stop();
+    }
+
+    private void stop() throws Exception {
+        streaming = false;
+        if (bulkThread != null) {
+            bulkThread.join();
+            bulkThread = null;
+        }
+        if (group != null) {
+            group.close();
+            group = null;
+        }
+    }
+
+    private static long percentile(List<Long> sorted, double p) {
+        return sorted.get(Math.min(sorted.size() - 1, (int) (sorted.size() * p)));
+    }
+
+    /**
+     * @return the sorted round trips in microseconds.
+     */
+    private List<Long> run(final boolean chatLane) throws Exception {
+        sentAt.clear();
+        rtts.clear();
+        streaming = true;
+        group = new LoopbackGroup(1, 0, 0, 0, new LoopbackGroup.Listener() {
+            @Override
+            public void onOwnerFrame(int client, MessageWrapper messageWrapper) {
+                Long sent = sentAt.remove(messageWrapper.getAck());
+                if (sent != null) {
+                    synchronized (rtts) {
+                        rtts.add((System.nanoTime() - sent) / 1000);
+                        rtts.notifyAll();
+                    }
+                }
+            }
+
+            @Override
+            public void onClientFrame(int client, MessageWrapper messageWrapper) {
+                if (messageWrapper.getAck() == 0) {
+                    return;   // file data
+                }
+                try {
+                    group.sendFromClient(client, new MessageWrapper(Constant.MESSAGE, 0, messageWrapper.getAck(), "pong").getFrame());
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+
+        group.setLinkRate(LINK_BYTES_PER_SECOND);
+
+        final ByteBuffer slice = FrameCodec.allocateBinary(Constant.FILE_DATA, 0, BULK_SLICE);
+        slice.position(slice.limit());
+        FrameCodec.binaryMessage(slice);   // rewinds it
+        bulkThread = new Thread("bulk") {
+            @Override
+            public void run() {
+                while (streaming) {
+                    if (!group.send(0, slice)) {
+                        try {
+                            Thread.sleep(1);   // full, polled as FileStreamManager does
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }
+        };
+        bulkThread.start();
+        Thread.sleep(200);   // the bulk lane full and the socket busy
+
+        long start = System.nanoTime();
+        for (int i = 1; i <= PINGS; i++) {
+            long due = start + i * PING_INTERVAL_MICROS * 1000;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            ByteBuffer ping;
+            if (chatLane) {
+                ping = new MessageWrapper(Constant.MESSAGE, 0, i, "ping " + i).getFrame();
+            } else {
+                ping = FrameCodec.allocateBinary(Constant.FILE_DATA, i, 8);
+                ping.putLong(i);
+                FrameCodec.binaryMessage(ping);
+            }
+            sentAt.put((long) i, System.nanoTime());
+            group.sendWaiting(0, ping);
+        }
+        long bulkBytes = (group.clientFrames() - PINGS) * (long) BULK_SLICE;
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        synchronized (rtts) {
+            while (rtts.size() < PINGS && System.currentTimeMillis() < deadline) {
+                rtts.wait(100);
+            }
+            assertEquals(PINGS, rtts.size());
+            stop();
+            Collections.sort(rtts);
+            System.out.println((chatLane ? "chat lane" : "bulk lane") + ": rtt p50 " + percentile(rtts, 0.5)
+                    + " us, p99 " + percentile(rtts, 0.99) + " us, file data "
+                    + (long) (bulkBytes / seconds / 1024) + " KB/s");
+            return new ArrayList<Long>(rtts);
+        }
+    }
+
+    @Test
+    public void chatLaneCutsTheRoundTripUnderAFileTransfer() throws Exception {
+        List<Long> fifo = run(false);
+        List<Long> lanes = run(true);
+        // behind at most one bulk frame and the socket buffers, not behind the whole bulk lane as well
+        assertTrue("chat lane p99 " + percentile(lanes, 0.99) + " us, bulk lane p50 " + percentile(fifo, 0.5) + " us",
+                percentile(lanes, 0.99) < percentile(fifo, 0.5));
+    }
+}
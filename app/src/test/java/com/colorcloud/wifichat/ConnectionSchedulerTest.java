@@ -0,0 +1,171 @@
+package com.colorcloud.wifichat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * the scheduler on a fake driver and a fake clock: the driver records the calls, the test plays the p2p events.
+ */
+public class ConnectionSchedulerTest {
+
+    static class FakeDriver implements P2pDriver {
+        final Set<String> linked = new HashSet<String>();
+        final List<String> calls = new ArrayList<String>();
+        boolean sendResult = true;
+
+        @Override
+        public boolean isLinked(String peer) {
+            return linked.contains(peer);
+        }
+
+        @Override
+        public void connect(String peer) {
+            calls.add("connect " + peer);
+        }
+
+        @Override
+        public boolean send(String peer, MessageWrapper messageWrapper) {
+            calls.add("send " + messageWrapper.getAck() + " " + peer);
+            return sendResult;
+        }
+
+        @Override
+        public void disconnect(String peer) {
+            calls.add("disconnect " + peer);
+        }
+    }
+
+    private RetransmissionEngineTest.FakeClock clock;
+    private FakeDriver driver;
+    private ConnectionScheduler scheduler;
+    private List<String> outcomes;
+
+    @Before
+    public void setUp() {
+        clock = new RetransmissionEngineTest.FakeClock();
+        driver = new FakeDriver();
+        outcomes = new ArrayList<String>();
+        scheduler = new ConnectionScheduler(driver, clock);
+        scheduler.setListener(new ConnectionScheduler.Listener() {
+            @Override
+            public void onDelivered(String peer, List<MessageWrapper> messages) {
+                outcomes.add("delivered " + messages.size() + " " + peer);
+            }
+
+            @Override
+            public void onFailed(String peer, int state, List<MessageWrapper> messages) {
+                outcomes.add("failed " + messages.size() + " " + peer + " in " + state);
+            }
+        });
+    }
+
+    private static MessageWrapper message(long id) {
+        return new MessageWrapper(Constant.ROUTED_MESSAGE, 0, id, "m" + id);
+    }
+
+    private void ack(long id) {
+        scheduler.onAcknowledged(new AckCoalescer.AckRange(id, 1, 0));
+    }
+
+    @Test
+    public void linkedPeerIsSentToWithoutAConnect() {
+        driver.linked.add("b");
+        scheduler.schedule("b", message(1), 0);
+
+        assertEquals(Arrays.asList("send 1 b"), driver.calls);
+        assertEquals(ConnectionScheduler.SENDING, scheduler.stateOf("b"));
+
+        ack(1);
+        assertEquals(Arrays.asList("delivered 1 b"), outcomes);
+        assertEquals(Arrays.asList("send 1 b"), driver.calls);   // the link was there before, it stays
+        assertTrue(scheduler.isIdle());
+    }
+
+    @Test
+    public void unlinkedPeerIsSentToOnceTheSocketIsUp() {
+        scheduler.schedule("b", message(1), 0);
+        scheduler.schedule("b", message(2), 0);
+        assertEquals(Arrays.asList("connect b"), driver.calls);
+        assertEquals(ConnectionScheduler.CONNECTING, scheduler.stateOf("b"));
+
+        scheduler.onSocketReady("b");
+        assertEquals(Arrays.asList("connect b", "send 1 b", "send 2 b"), driver.calls);
+
+        ack(1);
+        ack(2);
+        assertEquals(Arrays.asList("connect b", "send 1 b", "send 2 b", "disconnect b"), driver.calls);
+        assertEquals(Arrays.asList("delivered 2 b"), outcomes);
+    }
+
+    @Test
+    public void failedConnectEndsThePeerInConnecting() {
+        scheduler.schedule("b", message(1), 0);
+        scheduler.onConnectFailed("b");
+
+        assertEquals(Arrays.asList("failed 1 b in " + ConnectionScheduler.CONNECTING), outcomes);
+        assertEquals(ConnectionScheduler.DONE, scheduler.stateOf("b"));
+    }
+
+    @Test
+    public void failedSendOnALinkedPeerIsNotAConnectFailure() {
+        driver.linked.add("b");
+        driver.sendResult = false;
+        scheduler.schedule("b", message(1), 0);
+
+        assertEquals(Arrays.asList("failed 1 b in " + ConnectionScheduler.SENDING), outcomes);
+        assertEquals(Arrays.asList("send 1 b"), driver.calls);
+    }
+
+    @Test
+    public void connectAndAckWaitsTimeOut() {
+        scheduler.schedule("b", message(1), 0);
+        clock.now += ConnectionScheduler.DEFAULT_CONNECT_TIMEOUT - 1;
+        scheduler.tick();
+        assertTrue(outcomes.isEmpty());
+        clock.now += 1;
+        scheduler.tick();
+        assertEquals(Arrays.asList("failed 1 b in " + ConnectionScheduler.CONNECTING), outcomes);
+
+        driver.linked.add("c");
+        scheduler.schedule("c", message(2), 0);
+        clock.now += ConnectionScheduler.DEFAULT_ACK_TIMEOUT;
+        scheduler.tick();
+        assertEquals("failed 1 c in " + ConnectionScheduler.SENDING, outcomes.get(1));
+    }
+
+    @Test
+    public void higherPriorityPeerGoesFirst() {
+        scheduler.schedule("b", message(1), 0);   // takes the one connection
+        scheduler.schedule("c", message(2), 0);
+        scheduler.schedule("d", message(3), 5);
+        assertEquals(2, scheduler.queued());
+
+        scheduler.onConnectFailed("b");
+        assertEquals(Arrays.asList("connect b", "disconnect b", "connect d"), driver.calls);
+        assertEquals(ConnectionScheduler.QUEUED, scheduler.stateOf("c"));
+    }
+
+    @Test
+    public void linkedPeersAreWorkedOnOneAfterTheOther() {
+        driver.linked.add("b");
+        driver.linked.add("c");
+        scheduler.schedule("b", message(1), 0);
+        scheduler.schedule("c", message(2), 0);
+        assertEquals(ConnectionScheduler.QUEUED, scheduler.stateOf("c"));
+
+        ack(1);
+        assertEquals(Arrays.asList("send 1 b", "send 2 c"), driver.calls);
+        ack(2);
+        assertEquals(Arrays.asList("delivered 1 b", "delivered 1 c"), outcomes);
+        assertTrue(scheduler.isIdle());
+    }
+}
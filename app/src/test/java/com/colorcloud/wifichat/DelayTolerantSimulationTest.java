@@ -0,0 +1,84 @@
+package com.colorcloud.wifichat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * delivery ratio and overhead of the store-and-forward layer, with TopologySimulator: 10 devices that only ever
+ * meet in brief random links, one message a second from a random device to another one, for 10 minutes of
+ * simulated time. The numbers are printed for each mode, the asserts hold the ordering between them.
+ */
+public class DelayTolerantSimulationTest {
+
+    private static final int NODES = 10;
+    private static final long LATENCY = 20;
+    private static final long MESSAGE_INTERVAL = 1000;
+    private static final long DURATION = 10 * 60 * 1000;
+    private static final long DRAIN = 5 * 60 * 1000;   // contacts keep coming after the last message
+
+    private static final class Result {
+        final double deliveryRatio;
+        final double framesPerDelivery;
+
+        Result(double deliveryRatio, double framesPerDelivery) {
+            this.deliveryRatio = deliveryRatio;
+            this.framesPerDelivery = framesPerDelivery;
+        }
+    }
+
+    private static Result run(String name, int storeMode) {
+        final TopologySimulator sim = new TopologySimulator(NODES, LATENCY, 9);
+        sim.setStoreMode(storeMode);
+        sim.startAdvertising();
+        sim.randomContacts(1000, 1000, 5000, DURATION + DRAIN);
+
+        final List<long[]> sent = new ArrayList<long[]>();   // id, destination
+        for (long t = MESSAGE_INTERVAL; t <= DURATION; t += MESSAGE_INTERVAL) {
+            sim.at(t, new Runnable() {
+                @Override
+                public void run() {
+                    int from = sim.random().nextInt(NODES);
+                    int to = (from + 1 + sim.random().nextInt(NODES - 1)) % NODES;
+                    long id = sim.node(from).send(Collections.singletonList(sim.node(to)));
+                    sent.add(new long[]{id, to});
+                }
+            });
+        }
+        sim.runUntil(DURATION + DRAIN);
+
+        int delivered = 0;
+        for (long[] message : sent) {
+            if (sim.node((int) message[1]).received.contains(message[0])) {
+                delivered++;
+            }
+        }
+        int frames = sim.frames(Constant.ROUTED_MESSAGE) + sim.frames(Constant.SUMMARY_VECTOR);
+        Result result = new Result((double) delivered / sent.size(), (double) frames / Math.max(1, delivered));
+        System.out.println(name + ": " + delivered + " of " + sent.size() + " delivered, "
+                + sim.frames(Constant.ROUTED_MESSAGE) + " message frames, " + sim.frames(Constant.SUMMARY_VECTOR)
+                + " summary vectors, " + String.format("%.1f", result.framesPerDelivery) + " frames per delivery");
+        return result;
+    }
+
+    @Test
+    public void storeAndForwardDeliversWhatBriefLinksDrop() {
+        Result none = run("no buffer", TopologySimulator.STORE_NONE);
+        Result summary = run("summary vectors", TopologySimulator.STORE_SUMMARY);
+        assertTrue(summary.deliveryRatio > 0.9);
+        assertTrue(summary.deliveryRatio > 2 * none.deliveryRatio);
+    }
+
+    @Test
+    public void summaryVectorsCutTheRedundantTransmissions() {
+        Result flood = run("flood on link up", TopologySimulator.STORE_FLOOD);
+        Result summary = run("summary vectors", TopologySimulator.STORE_SUMMARY);
+        assertEquals(flood.deliveryRatio, summary.deliveryRatio, 0.05);
+        assertTrue(summary.framesPerDelivery < flood.framesPerDelivery / 2);
+    }
+}
@@ -0,0 +1,83 @@
+package com.colorcloud.wifichat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DuplicateFilterTest {
+
+    private static final MessageIdGenerator ALICE = new MessageIdGenerator(1, 1);
+
+    @Test
+    public void secondCopyIsDropped() {
+        DuplicateFilter filter = new DuplicateFilter();
+        long id = ALICE.next();
+        assertTrue(filter.accept(id));
+        assertFalse(filter.accept(id));
+    }
+
+    @Test
+    public void lateRetransmissionInsideTheWindowIsAccepted() {
+        DuplicateFilter filter = new DuplicateFilter();
+        MessageIdGenerator generator = new MessageIdGenerator(2, 1);
+        long late = generator.next();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(filter.accept(generator.next()));
+        }
+        assertTrue(filter.accept(late));
+        assertFalse(filter.accept(late));
+    }
+
+    @Test
+    public void olderThanTheWindowCountsAsDuplicate() {
+        DuplicateFilter filter = new DuplicateFilter();
+        MessageIdGenerator generator = new MessageIdGenerator(3, 1);
+        long old = generator.next();
+        for (int i = 0; i < DuplicateFilter.WINDOW; i++) {
+            filter.accept(generator.next());
+        }
+        assertFalse(filter.accept(old));
+    }
+
+    @Test
+    public void jumpAheadClearsTheSkippedSequences() {
+        DuplicateFilter filter = new DuplicateFilter();
+        long prefix = new MessageIdGenerator(4, 1).next();
+        assertTrue(filter.accept(prefix + 5));
+        assertTrue(filter.accept(prefix + 5 + DuplicateFilter.WINDOW + 3));
+        // the bit of prefix + 3 + WINDOW shares a slot with prefix + 3, it must not look seen
+        assertTrue(filter.accept(prefix + 3 + DuplicateFilter.WINDOW + 3 - 1));
+    }
+
+    @Test
+    public void sendersAreIndependent() {
+        DuplicateFilter filter = new DuplicateFilter();
+        long a = new MessageIdGenerator(5, 1).next();
+        long b = new MessageIdGenerator(6, 1).next();
+        assertNotEquals(MessageIdGenerator.senderOf(a), MessageIdGenerator.senderOf(b));
+        assertEquals(MessageIdGenerator.sequenceOf(a), MessageIdGenerator.sequenceOf(b));
+        assertTrue(filter.accept(a));
+        assertTrue(filter.accept(b));
+    }
+
+    @Test
+    public void restartedSenderIsANewSender() {
+        DuplicateFilter filter = new DuplicateFilter();
+        long before = new MessageIdGenerator(7, 1).next();
+        long after = new MessageIdGenerator(7, 2).next();
+        assertTrue(filter.accept(before));
+        assertTrue(filter.accept(after));
+    }
+
+    @Test
+    public void resetForgetsEverything() {
+        DuplicateFilter filter = new DuplicateFilter();
+        long id = ALICE.next();
+        filter.accept(id);
+        filter.reset();
+        assertTrue(filter.accept(id));
+    }
+}
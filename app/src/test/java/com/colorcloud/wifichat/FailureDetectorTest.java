@@ -0,0 +1,95 @@
+package com.colorcloud.wifichat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * both detectors on arrival times given by the test, in milliseconds from the link up.
+ */
+public class FailureDetectorTest {
+
+    private static final long INTERVAL = 1000;
+
+    /**
+     * a detector that saw count frames, every interval apart, the last at the time returned.
+     */
+    private static long beat(FailureDetector detector, int count, long interval) {
+        long now = 0;
+        for (int i = 0; i < count; i++) {
+            now += interval;
+            detector.heartbeat(now);
+        }
+        return now;
+    }
+
+    @Test
+    public void missedBeatsSuspectsAfterTheThreshold() {
+        FailureDetector detector = new FailureDetector(FailureDetector.MISSED_BEATS, INTERVAL,
+                FailureDetector.DEFAULT_MAX_MISSED, 0);
+        assertEquals(3.0, detector.suspicion(3000), 1e-9);
+        assertTrue(detector.isAvailable(3999));
+        assertFalse(detector.isAvailable(4000));
+
+        detector.heartbeat(3500);
+        assertEquals(3500, detector.getLastArrival());
+        assertTrue(detector.isAvailable(4000));
+        assertFalse(detector.isAvailable(7500));
+    }
+
+    @Test
+    public void phiIsLowOnTimeAndClimbsAfter() {
+        assertEquals(-Math.log10(0.5), FailureDetector.phi(1000, 1000, 250), 1e-3);
+        double previous = 0;
+        for (long elapsed = 0; elapsed <= 3000; elapsed += 250) {
+            double phi = FailureDetector.phi(elapsed, 1000, 250);
+            assertTrue("phi at " + elapsed + ": " + phi, phi >= previous);
+            previous = phi;
+        }
+        assertTrue(FailureDetector.phi(3000, 1000, 250) > FailureDetector.DEFAULT_PHI_THRESHOLD);
+    }
+
+    @Test
+    public void phiAccrualSuspectsARegularPeerSoonAfterItStops() {
+        FailureDetector detector = new FailureDetector(FailureDetector.PHI_ACCRUAL, INTERVAL,
+                FailureDetector.DEFAULT_PHI_THRESHOLD, 0);
+        long last = beat(detector, 40, INTERVAL);
+        assertTrue(detector.isAvailable(last + 1500));
+        assertFalse(detector.isAvailable(last + 3000));
+    }
+
+    @Test
+    public void phiAccrualWaitsLongerForAJitteryPeer() {
+        FailureDetector regular = new FailureDetector(FailureDetector.PHI_ACCRUAL, INTERVAL,
+                FailureDetector.DEFAULT_PHI_THRESHOLD, 0);
+        FailureDetector jittery = new FailureDetector(FailureDetector.PHI_ACCRUAL, INTERVAL,
+                FailureDetector.DEFAULT_PHI_THRESHOLD, 0);
+        long regularLast = beat(regular, 40, 2 * INTERVAL);
+        long jitteryLast = 0;
+        for (int i = 0; i < 40; i++) {
+            jitteryLast += i % 2 == 0 ? INTERVAL : 3 * INTERVAL;   // the same mean, two seconds
+            jittery.heartbeat(jitteryLast);
+        }
+        assertFalse(regular.isAvailable(regularLast + 4000));
+        assertTrue(jittery.isAvailable(jitteryLast + 4000));
+        assertTrue(jittery.suspicion(jitteryLast + 4000) < regular.suspicion(regularLast + 4000));
+    }
+
+    @Test
+    public void burstOfTrafficDoesNotShortenTheWait() {
+        FailureDetector detector = new FailureDetector(FailureDetector.PHI_ACCRUAL, INTERVAL,
+                FailureDetector.DEFAULT_PHI_THRESHOLD, 0);
+        long last = beat(detector, 40, 10);   // a file transfer, a frame every 10 ms
+        assertTrue(detector.isAvailable(last + 1500));
+    }
+
+    @Test
+    public void phiAccrualWithoutArrivalsAssumesTheHeartbeatInterval() {
+        FailureDetector detector = new FailureDetector(FailureDetector.PHI_ACCRUAL, INTERVAL,
+                FailureDetector.DEFAULT_PHI_THRESHOLD, 5000);
+        assertTrue(detector.isAvailable(6500));
+        assertFalse(detector.isAvailable(8000));
+    }
+}
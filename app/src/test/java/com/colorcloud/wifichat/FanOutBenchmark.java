@@ -0,0 +1,81 @@
+package com.colorcloud.wifichat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * the group owner relaying chat messages to 1, 8 and 32 loopback clients, until every client has read them.
+ * shared: one encoded frame per message, a duplicate() per client queue, as pubDataToAllClients() does.
+ * Otherwise each client gets its own encoding of the message, the way the relay worked before.
+ * Run it on the JVM with the test classpath, with -prof gc for the allocation rate:
+ * <pre>
+ *   java -cp &lt;test classpath&gt; org.openjdk.jmh.Main FanOutBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+
+    private static final int ROWS = 1024;
+    private static final int BURST = 64;
+
+    @Param({"1", "8", "32"})
+    public int clients;
+
+    @Param({"true", "false"})
+    public boolean shared;
+
+    private LoopbackGroup group;
+    private List<String> rows;
+    private int next = 0;
+    private long sent = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        rows = ChatCorpus.rows(ROWS, 4);
+        group = new LoopbackGroup(clients, 0, 0, 0, null);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        group.close();
+    }
+
+    /**
+     * relay a burst of messages, one operation per message relayed to all clients.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void relay() throws InterruptedException {
+        for (int i = 0; i < BURST; i++) {
+            next = (next + 1) & (ROWS - 1);
+            MessageWrapper messageWrapper = new MessageWrapper(Constant.MESSAGE, 0, next + 1, rows.get(next));
+            ByteBuffer frame = shared ? messageWrapper.getFrame() : null;
+            for (int client = 0; client < clients; client++) {
+                group.sendWaiting(client, shared ? frame : FrameCodec.encode(messageWrapper));
+            }
+        }
+        sent += BURST * clients;
+        group.awaitClientFrames(sent);
+    }
+}
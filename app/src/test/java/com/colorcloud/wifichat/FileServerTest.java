@@ -0,0 +1,197 @@
+package com.colorcloud.wifichat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * the server on a free loopback port, fed by plain FileTransferEngine senders.
+ */
+public class FileServerTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final FileServer server = FileServer.getInstance();
+    private final ExecutorService senders = Executors.newCachedThreadPool();
+    private final List<FileTransferEngine.Received> done = new ArrayList<FileTransferEngine.Received>();
+    private final List<IOException> failed = new ArrayList<IOException>();
+    private CountDownLatch finished;
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        BandwidthLimiter.getInstance().setRate(0);
+        dir = new File(folder.getRoot(), "received");
+        server.setListener(new FileServer.Listener() {
+            @Override
+            public void onTransferProgress(int transfer, FileManifest manifest, long bytesDone) {
+            }
+
+            @Override
+            public void onTransferDone(int transfer, FileTransferEngine.Received received) {
+                synchronized (done) {
+                    done.add(received);
+                }
+                finished.countDown();
+            }
+
+            @Override
+            public void onTransferFailed(int transfer, IOException e) {
+                synchronized (failed) {
+                    failed.add(e);
+                }
+                finished.countDown();
+            }
+        });
+        server.start(dir, 0);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        server.setListener(null);
+        senders.shutdownNow();
+        BandwidthLimiter.getInstance().setRate(BandwidthLimiter.DEFAULT_BYTES_PER_SECOND);
+    }
+
+    private File file(String name, int size, int seed) throws IOException {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        File file = folder.newFile(name);
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        out.write(content);
+        out.close();
+        return file;
+    }
+
+    private Future<Integer> send(final File file) {
+        return senders.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                FileChannel source = new FileInputStream(file).getChannel();
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.localPort()));
+                try {
+                    FileManifest manifest = FileManifest.build(source, file.getName(), "image/png", 16 * 1024);
+                    return FileTransferEngine.send(source, manifest, channel);
+                } finally {
+                    channel.close();
+                    source.close();
+                }
+            }
+        });
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean accepts(int port) {
+        try {
+            SocketChannel.open(new InetSocketAddress("127.0.0.1", port)).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void moreSendersThanWorkersAllGetThrough() throws Exception {
+        int senderCount = FileServer.MAX_TRANSFERS + 2;
+        finished = new CountDownLatch(senderCount);
+        List<File> files = new ArrayList<File>();
+        List<Future<Integer>> sent = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < senderCount; i++) {
+            File file = file("image" + i + ".png", 200 * 1024 + i, i);
+            files.add(file);
+            sent.add(send(file));
+        }
+        for (Future<Integer> chunks : sent) {
+            assertEquals(Integer.valueOf(13), chunks.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+        assertTrue(finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        assertTrue(failed.isEmpty());
+        Set<String> names = new HashSet<String>();
+        for (FileTransferEngine.Received received : done) {
+            names.add(received.file.getName());
+            assertArrayEquals(read(new File(folder.getRoot(), received.file.getName())), read(received.file));
+        }
+        assertEquals(senderCount, names.size());
+    }
+
+    @Test
+    public void failedTransferDoesNotStopTheServer() throws Exception {
+        finished = new CountDownLatch(1);
+        SocketChannel garbage = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.localPort()));
+        garbage.write(ByteBuffer.wrap("GET / HTTP/1.0\r\n\r\n".getBytes("US-ASCII")));
+        assertTrue(finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        garbage.close();
+        assertEquals(1, failed.size());
+
+        finished = new CountDownLatch(1);
+        File file = file("after.png", 50 * 1024, 9);
+        send(file).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertTrue(finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, done.size());
+        assertArrayEquals(read(file), read(done.get(0).file));
+    }
+
+    @Test
+    public void stoppedServerReleasesThePortAndStartsAgain() throws Exception {
+        int port = server.localPort();
+        server.stop();
+        assertFalse(server.isRunning());
+        assertEquals(-1, server.localPort());
+        // the acceptor thread lets go of the port as it wakes up from accept()
+        long deadline = System.currentTimeMillis() + TIMEOUT_SECONDS * 1000;
+        while (accepts(port)) {
+            assertTrue("still accepting on " + port, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        server.start(dir, 0);
+        finished = new CountDownLatch(1);
+        File file = file("again.png", 1000, 2);
+        send(file).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertTrue(finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("again.png"), Arrays.asList(dir.list()));
+    }
+}
@@ -0,0 +1,280 @@
+package com.colorcloud.wifichat;
+
+import android.os.Handler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * a sender and a receiver FileStreamManager, each on a fake ConnectionManager whose frames land in the other's
+ * inbox. The handler does nothing on the JVM, so the test delivers the frames and runs the sender's pump itself.
+ */
+public class FileStreamManagerTest {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int SIZE = 10 * CHUNK_SIZE - 4000;   // 10 chunks, the last one short
+    private static final int DATA_SLICE = 16 * 1024;
+    private static final int DATA_FRAME_SIZE = FrameCodec.HEADER_SIZE + 8 + DATA_SLICE;
+
+    /**
+     * one end of the link. Frames it sends are encoded, then decoded at the other end as if read off the socket.
+     */
+    private static class Side extends ConnectionManager {
+        final FileStreamManager manager = new FileStreamManager();
+        final SocketChannel channel;   // this side's channel to the other side
+        final ArrayDeque<ByteBuffer> inbox = new ArrayDeque<ByteBuffer>();
+        final List<Long> dataOffsets = new ArrayList<Long>();   // of the FILE_DATA frames sent
+        Side other;
+        int bulkCapacity = Integer.MAX_VALUE;
+        int corruptDataFrame = -1;
+
+        Side(File dir) throws IOException {
+            super(null);
+            channel = SocketChannel.open();
+            manager.init(this, new Handler(), dir);   // posts nothing on the JVM
+        }
+
+        @Override
+        public List<SocketChannel> peerChannels() {
+            return other == null ? Collections.<SocketChannel>emptyList() : Collections.singletonList(channel);
+        }
+
+        @Override
+        public int sendTo(SocketChannel socketChannel, MessageWrapper messageWrapper) {
+            ByteBuffer frame = ByteBuffer.allocate(messageWrapper.getFrame().remaining());
+            frame.put(messageWrapper.getFrame().duplicate()).flip();
+            if (messageWrapper.getCategory() == Constant.FILE_DATA) {
+                long offset = frame.getLong(FrameCodec.HEADER_SIZE);
+                if (dataOffsets.size() == corruptDataFrame) {
+                    int at = FrameCodec.HEADER_SIZE + 8 + 100;
+                    frame.put(at, (byte) ~frame.get(at));
+                }
+                dataOffsets.add(offset);
+            }
+            other.inbox.add(frame);
+            return frame.remaining();
+        }
+
+        @Override
+        public int bulkRoom(SocketChannel socketChannel) {
+            long queued = 0;
+            for (ByteBuffer frame : other.inbox) {
+                queued += frame.remaining();
+            }
+            return (int) Math.max(0, bulkCapacity - queued);
+        }
+
+        /**
+         * hand at most max of the frames in the inbox to the manager, as the socket reader does.
+         *
+         * @return the number handed over.
+         */
+        int deliver(int max) throws IOException {
+            int delivered = 0;
+            while (delivered < max && !inbox.isEmpty()) {
+                MessageWrapper messageWrapper = FrameCodec.decode(inbox.poll());
+                messageWrapper.setOrigin(channel);
+                manager.onFrame(messageWrapper);
+                delivered++;
+            }
+            return delivered;
+        }
+    }
+
+    private static class Recorder implements FileServer.Listener {
+        final List<Long> progress = new ArrayList<Long>();
+        final List<FileTransferEngine.Received> done = new ArrayList<FileTransferEngine.Received>();
+        final List<IOException> failed = new ArrayList<IOException>();
+
+        @Override
+        public void onTransferProgress(int transfer, FileManifest manifest, long bytesDone) {
+            progress.add(bytesDone);
+        }
+
+        @Override
+        public void onTransferDone(int transfer, FileTransferEngine.Received received) {
+            done.add(received);
+        }
+
+        @Override
+        public void onTransferFailed(int transfer, IOException e) {
+            failed.add(e);
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File sourceFile;
+    private byte[] content;
+    private Side sender;
+    private Side receiver;
+    private Recorder recorder;
+
+    @Before
+    public void setUp() throws IOException {
+        BandwidthLimiter.getInstance().setRate(0);   // no cap, the test is not timed
+        content = new byte[SIZE];
+        new Random(3).nextBytes(content);
+        sourceFile = folder.newFile("photo.jpg");
+        RandomAccessFile file = new RandomAccessFile(sourceFile, "rw");
+        file.write(content);
+        file.close();
+
+        sender = new Side(folder.newFolder("sender"));
+        receiver = new Side(folder.newFolder("receiver"));
+        sender.other = receiver;
+        receiver.other = sender;
+        recorder = new Recorder();
+        receiver.manager.setListener(recorder);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        BandwidthLimiter.getInstance().setRate(BandwidthLimiter.DEFAULT_BYTES_PER_SECOND);
+        sender.channel.close();
+        receiver.channel.close();
+    }
+
+    private FileChannel offer() throws IOException {
+        FileChannel source = new FileInputStream(sourceFile).getChannel();
+        sender.manager.send(source, FileManifest.build(source, sourceFile.getName(), "image/jpeg", CHUNK_SIZE));
+        return source;
+    }
+
+    /**
+     * deliver both ways and pump the sender until nothing moves any more.
+     */
+    private void run() throws IOException {
+        while (true) {
+            int moved = receiver.deliver(Integer.MAX_VALUE) + sender.deliver(Integer.MAX_VALUE);
+            if (moved == 0) {
+                sender.manager.pump();
+                if (receiver.inbox.isEmpty()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void streamedFileArrivesVerifiedUnderItsName() throws IOException {
+        FileChannel source = offer();
+        run();
+
+        assertTrue(recorder.failed.isEmpty());
+        assertEquals(1, recorder.done.size());
+        File file = recorder.done.get(0).file;
+        assertEquals("photo.jpg", file.getName());
+        assertArrayEquals(content, read(file));
+        assertEquals(10, recorder.progress.size());   // once per verified chunk
+        assertEquals(Long.valueOf(SIZE), recorder.progress.get(9));
+        assertEquals((SIZE + DATA_SLICE - 1) / DATA_SLICE, sender.dataOffsets.size());
+        assertFalse("closed once the receiver confirmed", source.isOpen());
+
+        // nothing of the transfer is left behind but the file
+        assertEquals(Arrays.asList("photo.jpg"), Arrays.asList(file.getParentFile().list()));
+    }
+
+    @Test
+    public void brokenStreamResumesFromTheLastVerifiedChunk() throws IOException {
+        FileChannel source = offer();
+        receiver.deliver(1);   // the offer
+        sender.deliver(1);     // resume from chunk 0
+        sender.manager.pump();
+        receiver.deliver(13);  // 3 chunks and a slice of the 4th
+
+        sender.manager.onChannelClosed(sender.channel);
+        receiver.manager.onChannelClosed(receiver.channel);
+        receiver.inbox.clear();
+        sender.inbox.clear();
+        assertFalse(source.isOpen());
+        assertTrue(recorder.done.isEmpty());
+
+        sender.dataOffsets.clear();
+        offer();
+        run();
+
+        assertEquals(1, recorder.done.size());
+        assertArrayEquals(content, read(recorder.done.get(0).file));
+        assertEquals(Long.valueOf(3L * CHUNK_SIZE), sender.dataOffsets.get(0));
+        assertEquals((SIZE - 3 * CHUNK_SIZE + DATA_SLICE - 1) / DATA_SLICE, sender.dataOffsets.size());
+    }
+
+    @Test
+    public void corruptChunkIsAskedForAgain() throws IOException {
+        sender.corruptDataFrame = 5;   // in chunk 1
+        offer();
+        run();
+
+        assertEquals(1, recorder.done.size());
+        assertArrayEquals(content, read(recorder.done.get(0).file));
+        int frames = (SIZE + DATA_SLICE - 1) / DATA_SLICE;
+        // everything after the bad chunk was sent, then chunk 1 and the rest once more
+        assertEquals(frames + frames - 4, sender.dataOffsets.size());
+        assertEquals(Long.valueOf(CHUNK_SIZE), sender.dataOffsets.get(frames));
+    }
+
+    @Test
+    public void senderQueuesDataOnlyWhileTheBulkLaneHasRoom() throws IOException {
+        sender.bulkCapacity = 3 * DATA_FRAME_SIZE;
+        offer();
+        receiver.deliver(1);
+        sender.deliver(1);
+        sender.manager.pump();
+        assertEquals(3, receiver.inbox.size());
+
+        sender.manager.pump();
+        assertEquals("no room, nothing more", 3, receiver.inbox.size());
+
+        receiver.deliver(2);
+        sender.manager.pump();
+        assertEquals(3, receiver.inbox.size());
+        assertEquals(5, sender.dataOffsets.size());
+
+        run();
+        assertEquals(1, recorder.done.size());
+        assertArrayEquals(content, read(recorder.done.get(0).file));
+    }
+
+    @Test
+    public void fileWithoutPeersIsDroppedAndClosed() throws IOException {
+        sender.other = null;
+        FileChannel source = new FileInputStream(sourceFile).getChannel();
+        sender.manager.send(source, FileManifest.build(source, sourceFile.getName(), "image/jpeg", CHUNK_SIZE));
+        assertFalse(source.isOpen());
+    }
+}
@@ -0,0 +1,183 @@
+package com.colorcloud.wifichat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * one file over loopback, time per file: FileTransferEngine against the 1 KB stream copy it replaced (the old
+ * DeviceDetailFragment.copyFile(), kept here as legacyCopy()). The engine's time includes building the manifest
+ * and verifying and forcing every chunk on the receiver; the stream copy does neither.
+ * The 1 GB run needs that much free space in java.io.tmpdir, twice. Run it on the JVM with the test classpath:
+ * <pre>
+ *   java -cp &lt;test classpath&gt; org.openjdk.jmh.Main FileTransferBenchmark -p megabytes=1,100
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileTransferBenchmark {
+
+    @Param({"1", "100", "1024"})
+    public int megabytes;
+
+    private final ExecutorService receiver = Executors.newSingleThreadExecutor();
+    private File dir;
+    private File source;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = File.createTempFile("transfer", "");
+        dir.delete();
+        dir.mkdirs();
+        source = new File(dir, "source.bin");
+        RandomAccessFile file = new RandomAccessFile(source, "rw");
+        try {
+            byte[] block = new byte[1024 * 1024];
+            Random random = new Random(1);
+            for (int i = 0; i < megabytes; i++) {
+                random.nextBytes(block);
+                file.write(block);
+            }
+        } finally {
+            file.close();
+        }
+        new File(dir, "in").mkdirs();
+    }
+
+    @TearDown
+    public void tearDown() {
+        receiver.shutdownNow();
+        File in = new File(dir, "in");
+        for (File file : in.listFiles()) {
+            file.delete();
+        }
+        in.delete();
+        source.delete();
+        dir.delete();
+    }
+
+    /**
+     * FileTransferService's send: manifest, then the chunks with transferTo(); received with transferFrom().
+     */
+    @Benchmark
+    public long engine() throws Exception {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        try {
+            Future<File> received = receiver.submit(new Callable<File>() {
+                @Override
+                public File call() throws IOException {
+                    SocketChannel channel = server.accept();
+                    try {
+                        return FileTransferEngine.receive(channel, new File(dir, "in")).file;
+                    } finally {
+                        channel.close();
+                    }
+                }
+            });
+            FileInputStream in = new FileInputStream(source);
+            SocketChannel channel = SocketChannel.open(server.socket().getLocalSocketAddress());
+            try {
+                FileChannel file = in.getChannel();
+                FileManifest manifest = FileManifest.build(file, source.getName(), "application/octet-stream",
+                        FileManifest.DEFAULT_CHUNK_SIZE);
+                FileTransferEngine.send(file, manifest, channel);
+            } finally {
+                channel.close();
+                in.close();
+            }
+            return deleted(received.get());
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * the transfer before FileTransferEngine: socket streams and a 1 KB buffer on both ends.
+     */
+    @Benchmark
+    public long legacyCopy() throws Exception {
+        final ServerSocket server = new ServerSocket();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        try {
+            Future<File> received = receiver.submit(new Callable<File>() {
+                @Override
+                public File call() throws IOException {
+                    Socket socket = server.accept();
+                    File file = new File(new File(dir, "in"), source.getName());
+                    try {
+                        copyFile(socket.getInputStream(), new FileOutputStream(file));
+                    } finally {
+                        socket.close();
+                    }
+                    return file;
+                }
+            });
+            Socket socket = new Socket();
+            socket.connect(server.getLocalSocketAddress());
+            try {
+                copyFile(new FileInputStream(source), socket.getOutputStream());
+            } finally {
+                socket.close();
+            }
+            return deleted(received.get());
+        } finally {
+            server.close();
+        }
+    }
+
+    private long deleted(File file) throws IOException {
+        long length = file.length();
+        if (length != megabytes * 1024L * 1024L) {
+            throw new IOException("received " + length + " bytes");
+        }
+        file.delete();
+        return length;
+    }
+
+    /**
+     * DeviceDetailFragment.copyFile() as it was.
+     */
+    private static void copyFile(InputStream inputStream, OutputStream out) throws IOException {
+        byte buf[] = new byte[1024];
+        int len;
+        while ((len = inputStream.read(buf)) != -1) {
+            out.write(buf, 0, len);
+        }
+        out.close();
+        inputStream.close();
+    }
+}
@@ -0,0 +1,218 @@
+package com.colorcloud.wifichat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * transfers over a loopback connection, the receiver on a thread of its own.
+ */
+public class FileTransferEngineTest {
+
+    private static final int CHUNK_SIZE = 32 * 1024;
+    private static final int SIZE = 40 * CHUNK_SIZE + 999;   // 41 chunks, past two resume records
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ExecutorService receiver = Executors.newSingleThreadExecutor();
+    private ServerSocketChannel server;
+    private File source;
+    private File dir;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[SIZE];
+        new Random(5).nextBytes(content);
+        source = folder.newFile("notes.pdf");
+        RandomAccessFile file = new RandomAccessFile(source, "rw");
+        file.write(content);
+        file.close();
+        dir = folder.newFolder("in");
+
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        receiver.shutdownNow();
+        server.close();
+    }
+
+    private Future<FileTransferEngine.Received> receive() {
+        return receiver.submit(new Callable<FileTransferEngine.Received>() {
+            @Override
+            public FileTransferEngine.Received call() throws IOException {
+                SocketChannel channel = server.accept();
+                try {
+                    return FileTransferEngine.receive(channel, dir);
+                } finally {
+                    channel.close();
+                }
+            }
+        });
+    }
+
+    private FileManifest manifest() throws IOException {
+        FileChannel channel = new FileInputStream(source).getChannel();
+        try {
+            return FileManifest.build(channel, source.getName(), "application/pdf", CHUNK_SIZE);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * send the file, breaking the link once the sender is done with chunk breakAfter; -1 not to break it.
+     *
+     * @return the chunks sent.
+     */
+    private int send(FileManifest manifest, final int breakAfter) throws IOException {
+        FileChannel file = new FileInputStream(source).getChannel();
+        final SocketChannel channel = SocketChannel.open(server.socket().getLocalSocketAddress());
+        try {
+            return FileTransferEngine.send(file, manifest, channel, null, new FileTransferEngine.Progress() {
+                @Override
+                public void onProgress(FileManifest manifest, long bytesDone) {
+                    if (bytesDone == manifest.chunkOffset(breakAfter) + manifest.chunkLength(breakAfter)) {
+                        try {
+                            channel.close();
+                        } catch (IOException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                }
+            });
+        } finally {
+            channel.close();
+            file.close();
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void assertFails(Future<?> future) throws InterruptedException {
+        try {
+            future.get();
+            fail("the transfer did not fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void fileArrivesWholeUnderItsName() throws Exception {
+        Future<FileTransferEngine.Received> received = receive();
+        assertEquals(41, send(manifest(), -1));
+
+        FileTransferEngine.Received done = received.get();
+        assertEquals(new File(dir, "notes.pdf"), done.file);
+        assertEquals("application/pdf", done.manifest.getMimeType());
+        assertArrayEquals(content, read(done.file));
+        assertEquals(Arrays.asList("notes.pdf"), Arrays.asList(dir.list()));
+    }
+
+    @Test
+    public void brokenTransferResumesAfterTheVerifiedChunks() throws Exception {
+        FileManifest manifest = manifest();
+        Future<FileTransferEngine.Received> broken = receive();
+        try {
+            send(manifest, 20);
+            fail("the sender did not notice the broken link");
+        } catch (IOException expected) {
+        }
+        assertFails(broken);
+        String id = Long.toHexString(manifest.transferId());
+        assertTrue(new File(dir, id + FileTransferEngine.RESUME_SUFFIX).exists());
+        assertTrue(new File(dir, id + FileTransferEngine.PART_SUFFIX).exists());
+
+        Future<FileTransferEngine.Received> received = receive();
+        assertEquals("chunks 0 to 20 were verified", 41 - 21, send(manifest, -1));
+        assertArrayEquals(content, read(received.get().file));
+        assertEquals(Arrays.asList("notes.pdf"), Arrays.asList(dir.list()));
+    }
+
+    @Test
+    public void chunkFailingItsChecksumBreaksTheTransferThere() throws Exception {
+        FileManifest good = manifest();
+        int[] checksums = new int[good.chunkCount()];
+        for (int i = 0; i < checksums.length; i++) {
+            checksums[i] = good.checksum(i);
+        }
+        checksums[5] ^= 1;
+        FileManifest bad = new FileManifest(good.getName(), good.getMimeType(), good.getSize(), CHUNK_SIZE, checksums);
+
+        Future<FileTransferEngine.Received> received = receive();
+        try {
+            send(bad, -1);
+            fail("the sender did not notice the failure");
+        } catch (IOException expected) {
+        }
+        assertFails(received);
+        File resume = new File(dir, Long.toHexString(bad.transferId()) + FileTransferEngine.RESUME_SUFFIX);
+        RandomAccessFile in = new RandomAccessFile(resume, "r");
+        assertEquals(5, in.readInt());
+        in.close();
+    }
+
+    @Test
+    public void resumeRecordPastThePartialFileIsIgnored() throws IOException {
+        FileManifest manifest = manifest();
+        File resume = new File(dir, "r" + FileTransferEngine.RESUME_SUFFIX);
+        RandomAccessFile part = new RandomAccessFile(new File(dir, "p" + FileTransferEngine.PART_SUFFIX), "rw");
+        try {
+            part.setLength(manifest.chunkOffset(3));
+            FileTransferEngine.writeResume(resume, 3);
+            assertEquals(3, FileTransferEngine.readResume(resume, part.getChannel(), manifest));
+            FileTransferEngine.writeResume(resume, 4);
+            assertEquals(0, FileTransferEngine.readResume(resume, part.getChannel(), manifest));
+            FileTransferEngine.writeResume(resume, 42);
+            part.setLength(SIZE);
+            assertEquals(0, FileTransferEngine.readResume(resume, part.getChannel(), manifest));
+        } finally {
+            part.close();
+        }
+    }
+
+    @Test
+    public void nameClashGetsTheTransferId() throws IOException {
+        assertTrue(new File(dir, "a.jpg").createNewFile());
+        assertEquals(new File(dir, "a-1f.jpg"), FileTransferEngine.uniqueFile(dir, "a.jpg", "1f"));
+        assertEquals(new File(dir, "b.jpg"), FileTransferEngine.uniqueFile(dir, "b.jpg", "1f"));
+        assertEquals(new File(dir, "wifip2pshared-1f"), FileTransferEngine.uniqueFile(dir, "", "1f"));
+    }
+}
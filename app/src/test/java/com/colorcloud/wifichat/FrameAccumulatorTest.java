@@ -0,0 +1,163 @@
+package com.colorcloud.wifichat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * frames written over a loopback TCP connection, split and glued in every way, come out whole and in order.
+ */
+public class FrameAccumulatorTest {
+
+    private ServerSocketChannel server;
+    private SocketChannel writer;
+    private SocketChannel reader;
+
+    @Before
+    public void setUp() throws IOException {
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        writer = SocketChannel.open(server.socket().getLocalSocketAddress());
+        writer.socket().setTcpNoDelay(true);
+        reader = server.accept();
+        reader.configureBlocking(false);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        writer.close();
+        reader.close();
+        server.close();
+    }
+
+    private static ByteBuffer frames(List<MessageWrapper> messages) {
+        int size = 0;
+        for (MessageWrapper messageWrapper : messages) {
+            size += messageWrapper.getFrame().remaining();
+        }
+        ByteBuffer stream = ByteBuffer.allocate(size);
+        for (MessageWrapper messageWrapper : messages) {
+            stream.put(messageWrapper.getFrame().duplicate());
+        }
+        stream.flip();
+        return stream;
+    }
+
+    /**
+     * write the stream in pieces of the given sizes, cycling, reading after every piece.
+     */
+    private List<MessageWrapper> transfer(ByteBuffer stream, int[] pieces) throws IOException {
+        FrameAccumulator accumulator = new FrameAccumulator();
+        List<MessageWrapper> received = new ArrayList<MessageWrapper>();
+        int total = stream.remaining();
+        int sent = 0;
+        int read = 0;
+        for (int i = 0; stream.hasRemaining(); i++) {
+            ByteBuffer piece = stream.duplicate();
+            piece.limit(Math.min(stream.limit(), stream.position() + pieces[i % pieces.length]));
+            while (piece.hasRemaining()) {
+                sent += writer.write(piece);
+            }
+            stream.position(piece.position());
+            read += drain(accumulator, received, sent - read);
+        }
+        assertEquals(total, read);
+        assertEquals(0, accumulator.pending());
+        return received;
+    }
+
+    /**
+     * read until expected more bytes came in, decode what is complete.
+     */
+    private int drain(FrameAccumulator accumulator, List<MessageWrapper> received, int expected)
+            throws IOException {
+        int read = 0;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (read < expected && System.currentTimeMillis() < deadline) {
+            read += Math.max(0, accumulator.read(reader));
+            MessageWrapper messageWrapper;
+            while ((messageWrapper = accumulator.nextFrame()) != null) {
+                received.add(messageWrapper);
+            }
+        }
+        return read;
+    }
+
+    private static List<MessageWrapper> messages(int count, int bodySize, long seed) {
+        Random random = new Random(seed);
+        List<MessageWrapper> messages = new ArrayList<MessageWrapper>();
+        for (int i = 0; i < count; i++) {
+            char[] body = new char[random.nextInt(bodySize + 1)];
+            for (int j = 0; j < body.length; j++) {
+                body[j] = (char) ('a' + random.nextInt(26));
+            }
+            messages.add(new MessageWrapper(Constant.MESSAGE, 0, i + 1, new String(body)));
+        }
+        return messages;
+    }
+
+    private static void assertSameMessages(List<MessageWrapper> sent, List<MessageWrapper> received) {
+        assertEquals(sent.size(), received.size());
+        for (int i = 0; i < sent.size(); i++) {
+            assertEquals(sent.get(i).getAck(), received.get(i).getAck());
+            assertEquals(sent.get(i).getMessageBody(), received.get(i).getMessageBody());
+        }
+    }
+
+    @Test
+    public void oneByteAtATime() throws IOException {
+        List<MessageWrapper> sent = messages(20, 40, 1);
+        assertSameMessages(sent, transfer(frames(sent), new int[]{1}));
+    }
+
+    @Test
+    public void piecesAcrossFrameBoundaries() throws IOException {
+        List<MessageWrapper> sent = messages(200, 300, 2);
+        assertSameMessages(sent, transfer(frames(sent), new int[]{7, 3, FrameCodec.HEADER_SIZE, 1000, 1, 64}));
+    }
+
+    @Test
+    public void manyFramesInOneWrite() throws IOException {
+        List<MessageWrapper> sent = messages(500, 50, 3);
+        ByteBuffer stream = frames(sent);
+        assertSameMessages(sent, transfer(stream, new int[]{stream.remaining()}));
+    }
+
+    @Test
+    public void frameLargerThanTheBufferGrowsIt() throws IOException {
+        List<MessageWrapper> sent = new ArrayList<MessageWrapper>();
+        sent.add(new MessageWrapper(Constant.MESSAGE, 0, 1, "small"));
+        char[] big = new char[100 * 1024];
+        Arrays.fill(big, 'x');
+        sent.add(new MessageWrapper(Constant.MESSAGE, 0, 2, new String(big)));
+        sent.add(new MessageWrapper(Constant.MESSAGE, 0, 3, "after"));
+        assertSameMessages(sent, transfer(frames(sent), new int[]{4096, 13}));
+    }
+
+    @Test
+    public void endOfStream() throws IOException {
+        writer.close();
+        FrameAccumulator accumulator = new FrameAccumulator();
+        long deadline = System.currentTimeMillis() + 5000;
+        int read = 0;
+        while (read == 0 && System.currentTimeMillis() < deadline) {
+            read = accumulator.read(reader);
+        }
+        assertEquals(-1, read);
+        assertNull(accumulator.nextFrame());
+    }
+}
@@ -0,0 +1,86 @@
+package com.colorcloud.wifichat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
+
+import static com.colorcloud.wifichat.Constant.MESSAGE_WRAPPER_TOKEN;
+
+/**
+ * a message round trip, encoded to the bytes written to the channel and decoded back, with FrameCodec and with
+ * the string format FrameCodec replaced: "category#$#ack#$#body" from MessageWrapper.toString(), parsed back
+ * with a StringTokenizer. Run it on the JVM with the test classpath, with -prof gc for the allocation rate:
+ * <pre>
+ *   java -cp &lt;test classpath&gt; org.openjdk.jmh.Main FrameCodecBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCodecBenchmark {
+
+    private static final int ROWS = 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Param({"false", "true"})
+    public boolean compression;
+
+    private MessageWrapper[] messages;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        FrameCodec.setCompression(compression);
+        List<String> rows = ChatCorpus.rows(ROWS, 1);
+        messages = new MessageWrapper[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            messages[i] = new MessageWrapper(Constant.MESSAGE, 0, i + 1, rows.get(i));
+        }
+    }
+
+    @Benchmark
+    public MessageWrapper frame() throws IOException {
+        next = (next + 1) & (ROWS - 1);
+        return FrameCodec.decode(FrameCodec.encode(messages[next]));
+    }
+
+    @Benchmark
+    public MessageWrapper legacyString() {
+        next = (next + 1) & (ROWS - 1);
+        MessageWrapper messageWrapper = messages[next];
+        String sent = messageWrapper.getCategory() + MESSAGE_WRAPPER_TOKEN + messageWrapper.getAck()
+                + MESSAGE_WRAPPER_TOKEN + messageWrapper.getMessageBody();
+        ByteBuffer wire = ByteBuffer.wrap(sent.getBytes(UTF_8));
+        return parseLegacy(new String(wire.array(), 0, wire.limit(), UTF_8));
+    }
+
+    /**
+     * the removed MessageWrapper.parseMessageWrapper(). The token is a set of delimiter chars to StringTokenizer,
+     * so a body with '#' or '$' comes back cut; the corpus has neither.
+     */
+    private static MessageWrapper parseLegacy(String string) {
+        StringTokenizer stringTokenizer = new StringTokenizer(string, MESSAGE_WRAPPER_TOKEN);
+        int category = Integer.parseInt(stringTokenizer.nextToken());
+        long ack = Long.parseLong(stringTokenizer.nextToken());
+        String body = stringTokenizer.hasMoreTokens() ? stringTokenizer.nextToken() : "";
+        return new MessageWrapper(category, 0, ack, body);
+    }
+}
@@ -0,0 +1,128 @@
+package com.colorcloud.wifichat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FrameCodecTest {
+
+    @Before
+    public void setUp() {
+        FrameCodec.setCompression(false);   // the plain frame format, PayloadCompressorTest covers the rest
+    }
+
+    @After
+    public void tearDown() {
+        FrameCodec.setCompression(true);
+    }
+
+    private static MessageWrapper roundTrip(MessageWrapper messageWrapper) throws IOException {
+        ByteBuffer frame = FrameCodec.encode(messageWrapper);
+        assertEquals(FrameCodec.encodedSize(messageWrapper), frame.remaining());
+        MessageWrapper decoded = FrameCodec.decode(frame);
+        assertEquals(0, frame.remaining());
+        return decoded;
+    }
+
+    @Test
+    public void roundTripKeepsCategoryIdAndBody() throws IOException {
+        MessageWrapper decoded = roundTrip(new MessageWrapper(Constant.MESSAGE, 0, 0x1234567890abcdefL, "hello"));
+        assertEquals(Constant.MESSAGE, decoded.getCategory());
+        assertEquals(0x1234567890abcdefL, decoded.getAck());
+        assertEquals("hello", decoded.getMessageBody());
+    }
+
+    @Test
+    public void bodyMayContainAnyCharacter() throws IOException {
+        String body = "a^&^b~&~c&*&d\né中😀";
+        assertEquals(body, roundTrip(new MessageWrapper(Constant.MESSAGE, 0, 1, body)).getMessageBody());
+    }
+
+    @Test
+    public void emptyBody() throws IOException {
+        assertEquals("", roundTrip(new MessageWrapper(Constant.HEARTBEAT, 0, 7, "")).getMessageBody());
+    }
+
+    @Test
+    public void unpairedSurrogateTakesTheBytesCounted() throws IOException {
+        MessageWrapper messageWrapper = new MessageWrapper(Constant.MESSAGE, 0, 1, "x\ud800y");
+        assertEquals("x�y", roundTrip(messageWrapper).getMessageBody());
+    }
+
+    @Test
+    public void categoryAbove0x7fIsNotSignExtended() throws IOException {
+        MessageWrapper decoded = roundTrip(new MessageWrapper(0xc8, 0, 1, "x"));
+        assertEquals(0xc8, decoded.getCategory());
+
+        ByteBuffer frame = FrameCodec.allocateBinary(0xc8, 2, 1);
+        frame.put((byte) 1);
+        assertEquals(0xc8, FrameCodec.binaryMessage(frame).getCategory());
+        assertEquals(0xc8, FrameCodec.categoryOf(frame));
+    }
+
+    @Test
+    public void categoryOfAndIdOfReadTheHeader() {
+        ByteBuffer frame = FrameCodec.encode(new MessageWrapper(Constant.ROUTED_MESSAGE, 0, 42, "body"));
+        assertEquals(Constant.ROUTED_MESSAGE, FrameCodec.categoryOf(frame));
+        assertEquals(42, FrameCodec.idOf(frame));
+        assertEquals(0, frame.position());
+    }
+
+    @Test
+    public void incompleteFrameIsNotConsumed() throws IOException {
+        ByteBuffer frame = FrameCodec.encode(new MessageWrapper(Constant.MESSAGE, 0, 1, "hello"));
+        for (int length = 0; length < frame.remaining(); length++) {
+            ByteBuffer part = frame.duplicate();
+            part.limit(length);
+            assertNull(FrameCodec.decode(part));
+            assertEquals(0, part.position());
+        }
+    }
+
+    @Test
+    public void binaryPayload() throws IOException {
+        ByteBuffer frame = FrameCodec.allocateBinary(Constant.FILE_DATA, 9, 3);
+        frame.put(new byte[]{1, 2, 3});
+        ByteBuffer wire = FrameCodec.binaryMessage(frame).getFrame().duplicate();
+
+        MessageWrapper decoded = FrameCodec.decode(wire);
+        assertEquals(FrameCodec.FLAG_BINARY, decoded.getFlags());
+        assertEquals("", decoded.getMessageBody());
+        ByteBuffer payload = decoded.getPayload();
+        assertEquals(3, payload.remaining());
+        assertEquals(3, payload.get(2));
+    }
+
+    @Test(expected = IOException.class)
+    public void badMagicIsRejected() throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(FrameCodec.HEADER_SIZE);
+        frame.putShort((short) 0x1234);
+        frame.rewind();
+        FrameCodec.frameLength(frame);
+    }
+
+    @Test(expected = IOException.class)
+    public void oversizedBodyLengthIsRejected() throws IOException {
+        ByteBuffer frame = FrameCodec.encode(new MessageWrapper(Constant.MESSAGE, 0, 1, "x"));
+        ByteBuffer bad = ByteBuffer.allocate(frame.remaining());
+        bad.put(frame.duplicate());
+        bad.putInt(13, FrameCodec.MAX_BODY_SIZE + 1);
+        bad.rewind();
+        FrameCodec.decode(bad);
+    }
+
+    @Test
+    public void receivedFrameIsKeptForRelay() throws IOException {
+        ByteBuffer frame = FrameCodec.encode(new MessageWrapper(Constant.MESSAGE, 0, 5, "relay me"));
+        MessageWrapper decoded = FrameCodec.decode(frame.duplicate());
+        assertTrue(decoded.getFrame().isReadOnly());
+        assertEquals(frame, decoded.getFrame());
+    }
+}
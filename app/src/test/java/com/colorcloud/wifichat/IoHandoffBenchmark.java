@@ -0,0 +1,102 @@
+package com.colorcloud.wifichat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * end to end handoff of a chat message through the i/o thread model, on loopback: a client writes a message,
+ * the owner's IoReactor reads and parses it and hands it to the app thread, the app thread answers through the
+ * OutboundQueue and requestWrite(), the reactor writes the answer and the client reads it. One operation is
+ * one such round trip.
+ * handler: the app logic on a thread of its own, as the connection service's handler thread.
+ * inline: the answer queued on the reactor thread itself, the cost of the reactor alone.
+ * Run it on the JVM with the test classpath:
+ * <pre>
+ *   java -cp &lt;test classpath&gt; org.openjdk.jmh.Main IoHandoffBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IoHandoffBenchmark {
+
+    private static final int ROWS = 1024;
+
+    @Param({"handler", "inline"})
+    public String handoff;
+
+    private LoopbackGroup group;
+    private ExecutorService appThread;
+    private ByteBuffer[] messages;
+    private int next = 0;
+    private long answered = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        messages = new ByteBuffer[ROWS];
+        int seq = 1;
+        for (String row : ChatCorpus.rows(ROWS, 6)) {
+            messages[seq - 1] = new MessageWrapper(Constant.MESSAGE, 0, seq, row).getFrame();
+            seq++;
+        }
+        appThread = "handler".equals(handoff) ? Executors.newSingleThreadExecutor() : null;
+        group = new LoopbackGroup(1, 1, 0, 0, new LoopbackGroup.Listener() {
+            @Override
+            public void onOwnerFrame(final int client, final MessageWrapper messageWrapper) {
+                if (appThread == null) {
+                    answer(client, messageWrapper);
+                } else {
+                    appThread.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            answer(client, messageWrapper);
+                        }
+                    });
+                }
+            }
+
+            @Override
+            public void onClientFrame(int client, MessageWrapper messageWrapper) {
+            }
+        });
+    }
+
+    private void answer(int client, MessageWrapper messageWrapper) {
+        group.sendWaiting(client, new MessageWrapper(Constant.MESSAGE, 0, messageWrapper.getAck(),
+                messageWrapper.getMessageBody()).getFrame());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        group.close();
+        if (appThread != null) {
+            appThread.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    public void roundTrip() throws IOException, InterruptedException {
+        next = (next + 1) & (ROWS - 1);
+        group.sendFromClient(0, messages[next]);
+        group.awaitClientFrames(++answered);
+    }
+}
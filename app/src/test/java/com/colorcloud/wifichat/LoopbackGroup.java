@@ -0,0 +1,339 @@
+package com.colorcloud.wifichat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.colorcloud.wifichat.Constant.MSG_NEW_CLIENT;
+import static com.colorcloud.wifichat.Constant.MSG_PULLIN_DATA;
+
+/**
+ * a group owner and its clients on loopback, for the benchmarks and load tests.
+ * <p/>
+ * The owner side is the app's own i/o: an acceptor IoReactor and its workers, channels with a ChannelContext,
+ * frames queued on the OutboundQueue the way ConnectionManager.writeData() does. Each client is a plain
+ * non-blocking channel; one client thread reads them all with a FrameAccumulator per channel. Frames are counted
+ * on both sides, and handed to the Listener if there is one, on the reading thread.
+ */
+final class LoopbackGroup {
+
+    interface Listener {
+        /**
+         * a frame the owner received from client, on the owner's reactor thread.
+         */
+        void onOwnerFrame(int client, MessageWrapper messageWrapper);
+
+        /**
+         * a frame client received from the owner, on the client thread.
+         */
+        void onClientFrame(int client, MessageWrapper messageWrapper);
+    }
+
+    private static final long SETUP_TIMEOUT_SECONDS = 10;
+    private static final int LINK_BUFFER_SIZE = 32 * 1024;   // smaller stalls loopback TCP on windows under one segment
+
+    private final Listener listener;
+    private final IoReactor acceptor;
+    private final List<IoReactor> workers = new ArrayList<IoReactor>();
+    private final ServerSocketChannel server;
+    private final SocketChannel[] clients;
+    private final ChannelContext[] owned;   // the owner's context of each client
+    private final Map<Integer, Integer> clientOfPort = new HashMap<Integer, Integer>();
+    private final CountDownLatch adopted;
+    private final Selector clientSelector;
+    private final Thread clientThread;
+    private volatile boolean running = true;
+    private volatile BandwidthLimiter link;   // null: the clients read as fast as they can
+    private long ownerFrames = 0;    // guarded by this
+    private long clientFrames = 0;   // guarded by this
+
+    /**
+     * @param workers number of worker reactors behind the acceptor, 0 for the acceptor to serve the clients itself.
+     * @param listener null to only count frames.
+     */
+    LoopbackGroup(int clients, int workers, long batchDelayMillis, int batchBytes, Listener listener)
+            throws IOException {
+        this.listener = listener;
+        this.clients = new SocketChannel[clients];
+        this.owned = new ChannelContext[clients];
+        this.adopted = new CountDownLatch(clients);
+
+        IoReactor.Events events = new IoReactor.Events() {
+            @Override
+            public void onEvent(int what, Object obj) {
+                if (what == MSG_NEW_CLIENT) {
+                    onAdopted((SocketChannel) obj);
+                } else if (what == MSG_PULLIN_DATA) {
+                    MessageWrapper messageWrapper = (MessageWrapper) obj;
+                    onOwnerFrame(clientAt(messageWrapper.getOrigin()), messageWrapper);
+                }
+            }
+        };
+        for (int i = 0; i < workers; i++) {
+            IoReactor worker = new IoReactor(events, Selector.open());
+            worker.setName("IoReactor-" + i);
+            worker.setBatching(batchDelayMillis, batchBytes);
+            this.workers.add(worker);
+            worker.start();
+        }
+
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        server.configureBlocking(false);
+        Selector selector = Selector.open();
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        acceptor = new IoReactor(events, selector);
+        acceptor.setBatching(batchDelayMillis, batchBytes);
+        acceptor.setWorkers(new ArrayList<IoReactor>(this.workers));
+        acceptor.start();
+
+        clientSelector = Selector.open();
+        for (int i = 0; i < clients; i++) {
+            SocketChannel channel = SocketChannel.open(server.socket().getLocalSocketAddress());
+            channel.socket().setTcpNoDelay(true);
+            channel.configureBlocking(false);
+            synchronized (clientOfPort) {
+                clientOfPort.put(channel.socket().getLocalPort(), i);
+                clientOfPort.notifyAll();
+            }
+            channel.register(clientSelector, SelectionKey.OP_READ, new FrameAccumulator());
+            this.clients[i] = channel;
+        }
+        try {
+            if (!adopted.await(SETUP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new IOException("owner did not adopt all clients");
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted");
+        }
+
+        clientThread = new Thread("LoopbackClients") {
+            @Override
+            public void run() {
+                readClients();
+            }
+        };
+        clientThread.setDaemon(true);
+        clientThread.start();
+    }
+
+    int size() {
+        return clients.length;
+    }
+
+    List<IoReactor> workers() {
+        return workers;
+    }
+
+    /**
+     * make every client read no faster than bytesPerSecond, as over a radio link. The socket buffers on both
+     * ends shrink to LINK_BUFFER_SIZE, so the backlog builds up in the owner's OutboundQueue and not in the kernel.
+     */
+    void setLinkRate(long bytesPerSecond) throws IOException {
+        for (int i = 0; i < clients.length; i++) {
+            clients[i].socket().setReceiveBufferSize(LINK_BUFFER_SIZE);
+            ((SocketChannel) owned[i].key.channel()).socket().setSendBufferSize(LINK_BUFFER_SIZE);
+        }
+        link = new BandwidthLimiter(bytesPerSecond);
+    }
+
+    private void onAdopted(SocketChannel channel) {
+        int client = clientAt(channel);
+        for (IoReactor reactor : reactors()) {
+            SelectionKey key = channel.keyFor(reactor.selector());
+            if (key != null) {
+                owned[client] = (ChannelContext) key.attachment();
+            }
+        }
+        adopted.countDown();
+    }
+
+    private List<IoReactor> reactors() {
+        List<IoReactor> reactors = new ArrayList<IoReactor>(workers);
+        reactors.add(acceptor);
+        return reactors;
+    }
+
+    /**
+     * the client at the other end of an owner channel; the owner can adopt it before the client side knows its port.
+     */
+    private int clientAt(SocketChannel ownerChannel) {
+        int port = ownerChannel.socket().getPort();
+        synchronized (clientOfPort) {
+            while (!clientOfPort.containsKey(port)) {
+                try {
+                    clientOfPort.wait();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException("interrupted");
+                }
+            }
+            return clientOfPort.get(port);
+        }
+    }
+
+    /**
+     * queue a frame from the owner to client, as ConnectionManager.writeData() does. The frame is not consumed.
+     *
+     * @return false if the outbound queue is full and the frame is dropped.
+     */
+    boolean send(int client, ByteBuffer frame) {
+        ChannelContext context = owned[client];
+        int result = context.outbound.offer(frame.duplicate());
+        if (result == OutboundQueue.QUEUED_NEEDS_WRITE) {
+            context.reactor.requestWrite(context.key);
+        } else if (result == OutboundQueue.QUEUED_BATCHED) {
+            context.reactor.requestFlush(context.key);
+        }
+        return result != OutboundQueue.REJECTED;
+    }
+
+    /**
+     * queue a frame from the owner to client, waiting while the outbound queue is full.
+     */
+    void sendWaiting(int client, ByteBuffer frame) {
+        while (!send(client, frame)) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * write a frame from client to the owner, on the calling thread. The frame is not consumed.
+     */
+    void sendFromClient(int client, ByteBuffer frame) throws IOException {
+        ByteBuffer bytes = frame.duplicate();
+        SocketChannel channel = clients[client];
+        synchronized (channel) {
+            while (bytes.hasRemaining()) {
+                if (channel.write(bytes) == 0) {
+                    Thread.yield();   // the owner is behind, loopback drains in microseconds
+                }
+            }
+        }
+    }
+
+    private void onOwnerFrame(int client, MessageWrapper messageWrapper) {
+        if (listener != null) {
+            listener.onOwnerFrame(client, messageWrapper);
+        }
+        synchronized (this) {
+            ownerFrames++;
+            notifyAll();
+        }
+    }
+
+    private void readClients() {
+        try {
+            while (running) {
+                clientSelector.select();
+                Iterator<SelectionKey> keys = clientSelector.selectedKeys().iterator();
+                int frames = 0;
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    frames += readClient(key);
+                }
+                if (frames > 0) {
+                    synchronized (this) {
+                        clientFrames += frames;
+                        notifyAll();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                throw new IllegalStateException("client read failed", e);
+            }
+        }
+    }
+
+    private int readClient(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        FrameAccumulator accumulator = (FrameAccumulator) key.attachment();
+        int n = accumulator.read(channel);
+        if (n == -1) {
+            key.cancel();
+            return 0;
+        }
+        BandwidthLimiter limiter = link;
+        if (limiter != null && n > 0) {
+            limiter.acquire(n);
+        }
+        int client = -1;
+        int frames = 0;
+        MessageWrapper messageWrapper;
+        while ((messageWrapper = accumulator.nextFrame()) != null) {
+            if (listener != null) {
+                if (client < 0) {
+                    client = indexOf(channel);
+                }
+                listener.onClientFrame(client, messageWrapper);
+            }
+            frames++;
+        }
+        return frames;
+    }
+
+    private int indexOf(SocketChannel clientChannel) {
+        for (int i = 0; i < clients.length; i++) {
+            if (clients[i] == clientChannel) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    synchronized long ownerFrames() {
+        return ownerFrames;
+    }
+
+    synchronized long clientFrames() {
+        return clientFrames;
+    }
+
+    /**
+     * wait until the clients received count frames in all since the group started.
+     */
+    synchronized void awaitClientFrames(long count) throws InterruptedException {
+        while (clientFrames < count) {
+            wait();
+        }
+    }
+
+    /**
+     * wait until the owner received count frames in all since the group started.
+     */
+    synchronized void awaitOwnerFrames(long count) throws InterruptedException {
+        while (ownerFrames < count) {
+            wait();
+        }
+    }
+
+    void close() throws IOException {
+        running = false;
+        clientSelector.wakeup();
+        try {
+            clientThread.join(SETUP_TIMEOUT_SECONDS * 1000);
+        } catch (InterruptedException ignored) {
+        }
+        for (SocketChannel channel : clients) {
+            channel.close();
+        }
+        clientSelector.close();
+        acceptor.shutdown();
+        for (IoReactor worker : workers) {
+            worker.shutdown();
+        }
+        server.close();
+    }
+}
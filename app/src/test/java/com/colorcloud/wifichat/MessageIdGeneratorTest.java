@@ -0,0 +1,48 @@
+package com.colorcloud.wifichat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class MessageIdGeneratorTest {
+
+    @Test
+    public void nodeIdEpochAndSequenceHaveTheirOwnBits() {
+        MessageIdGenerator generator = new MessageIdGenerator(0xabcd, 0x1234);
+        long id = generator.next();
+        assertEquals(0xabcd123400000000L, id);
+        assertEquals(0xabcd1234L, MessageIdGenerator.senderOf(id));
+        assertEquals(0, MessageIdGenerator.sequenceOf(id));
+        assertEquals(1, MessageIdGenerator.sequenceOf(generator.next()));
+    }
+
+    @Test
+    public void nodeIdAndEpochAreCutTo16Bits() {
+        long id = new MessageIdGenerator(0x1abcd, 0x51234).next();
+        assertEquals(0xabcd1234L, MessageIdGenerator.senderOf(id));
+    }
+
+    @Test
+    public void sequenceWrapsWithoutTouchingTheSender() {
+        MessageIdGenerator generator = new MessageIdGenerator(7, 9, Integer.MAX_VALUE);
+        assertEquals(0x7fffffffL, MessageIdGenerator.sequenceOf(generator.next()));
+        assertEquals(0x80000000L, MessageIdGenerator.sequenceOf(generator.next()));   // no sign into the prefix
+
+        generator = new MessageIdGenerator(7, 9, -1);
+        long last = generator.next();
+        long wrapped = generator.next();
+        assertEquals(0xffffffffL, MessageIdGenerator.sequenceOf(last));
+        assertEquals(0, MessageIdGenerator.sequenceOf(wrapped));
+        assertEquals(MessageIdGenerator.senderOf(last), MessageIdGenerator.senderOf(wrapped));
+        assertEquals((7L << 16) | 9, MessageIdGenerator.senderOf(wrapped));
+    }
+
+    @Test
+    public void nodeIdOfTheMacIgnoresSeparatorsAndCase() {
+        int nodeId = MessageIdGenerator.nodeIdOf("02:1a:11:F0:5b:c3");
+        assertEquals(nodeId, MessageIdGenerator.nodeIdOf("021A11f05BC3"));
+        assertEquals(0x021a ^ 0x11f0 ^ 0x5bc3, nodeId);
+        assertNotEquals(nodeId, MessageIdGenerator.nodeIdOf("02:1a:11:f0:5b:c4"));
+    }
+}
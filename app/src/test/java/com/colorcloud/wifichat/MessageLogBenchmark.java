@@ -0,0 +1,108 @@
+package com.colorcloud.wifichat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MessageLog throughput over ChatCorpus rows: appends, forced to disk every FLUSH_RECORDS as in the app, and the
+ * reads of the chat screen, a page before a seq (ChatHistoryPager scrolling back) and a record by seq, over
+ * a log of HISTORY records spread over several segments. The files are in java.io.tmpdir.
+ * Run it on the JVM with the test classpath:
+ * <pre>
+ *   java -cp &lt;test classpath&gt; org.openjdk.jmh.Main MessageLogBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageLogBenchmark {
+
+    private static final int ROWS = 1024;
+    private static final int HISTORY = 100000;
+    private static final int APPEND_BURST = MessageLog.FLUSH_RECORDS;
+
+    private File dir;
+    private MessageLog appended;
+    private MessageLog history;
+    private List<String> rows;
+    private final Random random = new Random(11);
+    private int next = 0;
+    private long timestamp = 1000000;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = File.createTempFile("messagelog", "");
+        dir.delete();
+        rows = ChatCorpus.rows(ROWS, 3);
+        appended = new MessageLog(new File(dir, "appended"));
+        history = new MessageLog(new File(dir, "history"));
+        for (int i = 0; i < HISTORY; i++) {
+            history.append(timestamp++, rows.get(i & (ROWS - 1)));
+        }
+        history.flush();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        appended.close();
+        history.close();
+        delete(dir);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * a burst of appends, one operation per record, including the force at its end.
+     */
+    @Benchmark
+    @OperationsPerInvocation(APPEND_BURST)
+    public long append() throws IOException {
+        long seq = 0;
+        for (int i = 0; i < APPEND_BURST; i++) {
+            next = (next + 1) & (ROWS - 1);
+            seq = appended.append(timestamp++, rows.get(next));
+        }
+        return seq;
+    }
+
+    /**
+     * one operation per page of ChatHistoryPager.PAGE_ROWS, before a random seq.
+     */
+    @Benchmark
+    public List<MessageLog.Record> readPage() throws IOException {
+        long before = history.firstSeq() + ChatHistoryPager.PAGE_ROWS + random.nextInt(HISTORY - ChatHistoryPager.PAGE_ROWS);
+        return history.readBefore(before, ChatHistoryPager.PAGE_ROWS);
+    }
+
+    @Benchmark
+    public MessageLog.Record get() throws IOException {
+        return history.get(history.firstSeq() + random.nextInt(HISTORY));
+    }
+}
@@ -0,0 +1,183 @@
+package com.colorcloud.wifichat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<Long> seqs(List<MessageLog.Record> records) {
+        List<Long> seqs = new ArrayList<Long>();
+        for (MessageLog.Record record : records) {
+            seqs.add(record.seq);
+        }
+        return seqs;
+    }
+
+    private static String body(int i) {
+        return "message " + i + " é";
+    }
+
+    private static File segmentFile(File dir, long base) {
+        return new File(dir, String.format(Locale.US, "%020d", base) + ".log");
+    }
+
+    private static int segmentCount(File dir) {
+        int count = 0;
+        for (File file : dir.listFiles()) {
+            if (file.getName().endsWith(".log")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void appendAndReadBack() throws IOException {
+        MessageLog log = new MessageLog(folder.newFolder("log"));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, log.append(1000 + i, body(i)));
+        }
+        assertEquals(10, log.nextSeq());
+        assertEquals(body(3), log.get(3).body);
+        assertEquals(1003, log.get(3).timestamp);
+        assertNull(log.get(10));
+        assertEquals(Arrays.asList(4L, 5L, 6L), seqs(log.read(4, 3)));
+        assertEquals(Arrays.asList(7L, 8L, 9L), seqs(log.readBefore(Long.MAX_VALUE, 3)));
+        assertEquals(Arrays.asList(2L, 3L), seqs(log.readBefore(4, 2)));
+        log.close();
+    }
+
+    @Test
+    public void timestampsNeverGoBack() throws IOException {
+        MessageLog log = new MessageLog(folder.newFolder("log"));
+        log.append(2000, "a");
+        log.append(1000, "b");
+        assertEquals(2000, log.get(1).timestamp);
+        log.close();
+    }
+
+    @Test
+    public void readAcrossSegmentsAndSeqAt() throws IOException {
+        MessageLog log = new MessageLog(folder.newFolder("log"), 512);
+        for (int i = 0; i < 100; i++) {
+            log.append(i * 10, body(i));
+        }
+        assertTrue(segmentCount(folder.getRoot().listFiles()[0]) > 3);
+        List<MessageLog.Record> records = log.read(0, 100);
+        assertEquals(100, records.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, records.get(i).seq);
+            assertEquals(body(i), records.get(i).body);
+        }
+        assertEquals(42, log.seqAt(415));
+        assertEquals(42, log.seqAt(420));
+        assertEquals(0, log.seqAt(-1));
+        assertEquals(100, log.seqAt(5000));
+        log.close();
+    }
+
+    @Test
+    public void reopenResumesTheSeqs() throws IOException {
+        File dir = folder.newFolder("log");
+        MessageLog log = new MessageLog(dir, 512);
+        for (int i = 0; i < 50; i++) {
+            log.append(i, body(i));
+        }
+        log.close();
+
+        log = new MessageLog(dir, 512);
+        assertEquals(50, log.nextSeq());
+        assertEquals(50, log.append(0, body(50)));
+        assertEquals(49, log.get(50).timestamp);
+        assertEquals(body(20), log.get(20).body);
+        log.close();
+    }
+
+    @Test
+    public void reopenWithAnEmptyActiveSegmentAfterSeveralOlderOnes() throws IOException {
+        File dir = folder.newFolder("log");
+        MessageLog log = new MessageLog(dir, 512);
+        for (int i = 0; i < 50; i++) {
+            log.append(i, body(i));
+        }
+        log.close();
+        assertTrue(segmentCount(dir) >= 2);
+
+        // a crash right after a roll: the new segment is there, nothing in it
+        assertTrue(segmentFile(dir, 50).createNewFile());
+
+        log = new MessageLog(dir, 512);
+        assertEquals(50, log.nextSeq());
+        assertEquals(50, log.append(100, body(50)));
+        assertEquals(Arrays.asList(48L, 49L, 50L), seqs(log.read(48, 10)));
+        log.close();
+    }
+
+    @Test
+    public void reopenCutsATornTail() throws IOException {
+        File dir = folder.newFolder("log");
+        MessageLog log = new MessageLog(dir);
+        for (int i = 0; i < 5; i++) {
+            log.append(i, body(i));
+        }
+        log.close();
+
+        RandomAccessFile file = new RandomAccessFile(segmentFile(dir, 0), "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        log = new MessageLog(dir);
+        assertEquals(4, log.nextSeq());
+        assertEquals(4, log.append(10, "after"));
+        assertEquals("after", log.get(4).body);
+        log.close();
+    }
+
+    @Test
+    public void deletedMessagesAreHiddenThenCompactedAway() throws IOException {
+        File dir = folder.newFolder("log");
+        MessageLog log = new MessageLog(dir, 512);
+        for (int i = 0; i < 60; i++) {
+            log.append(i, body(i));
+        }
+        log.delete(3);
+        log.delete(4);
+        assertNull(log.get(3));
+        assertEquals(Arrays.asList(2L, 5L), seqs(log.read(2, 2)));
+
+        assertTrue(log.compact(10) >= 10);
+        assertEquals(10, log.firstSeq());
+        assertEquals(Arrays.asList(10L, 11L), seqs(log.read(0, 2)));
+        log.close();
+
+        log = new MessageLog(dir, 512);
+        assertEquals(10, log.firstSeq());
+        assertEquals(60, log.nextSeq());
+        assertNull(log.get(3));
+        log.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void oversizedMessageIsRejected() throws IOException {
+        MessageLog log = new MessageLog(folder.newFolder("log"));
+        char[] body = new char[MessageLog.MAX_BODY_SIZE + 1];
+        Arrays.fill(body, 'x');
+        log.append(0, new String(body));
+    }
+}
@@ -0,0 +1,262 @@
+package com.colorcloud.wifichat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundQueueTest {
+
+    /**
+     * takes up to limit bytes per write, and tells the frames written apart by their header.
+     */
+    static class FakeChannel implements GatheringByteChannel {
+        int limit = Integer.MAX_VALUE;
+        int writes = 0;
+        final ByteBuffer bytes = ByteBuffer.allocate(1024 * 1024);
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            writes++;
+            long written = 0;
+            for (int i = offset; i < offset + length && written < limit; i++) {
+                ByteBuffer src = srcs[i];
+                int n = (int) Math.min(src.remaining(), limit - written);
+                ByteBuffer part = src.duplicate();
+                part.limit(part.position() + n);
+                bytes.put(part);
+                src.position(src.position() + n);
+                written += n;
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[]{src});
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        /**
+         * the categories of the frames written so far, in order.
+         */
+        List<Integer> categories() throws IOException {
+            ByteBuffer stream = bytes.duplicate();
+            stream.flip();
+            List<Integer> categories = new ArrayList<Integer>();
+            MessageWrapper messageWrapper;
+            while ((messageWrapper = FrameCodec.decode(stream)) != null) {
+                categories.add(messageWrapper.getCategory());
+            }
+            return categories;
+        }
+    }
+
+    static ByteBuffer frame(int category, int bodySize) {
+        char[] body = new char[bodySize];
+        Arrays.fill(body, 'x');
+        if (category == Constant.FILE_DATA) {
+            ByteBuffer frame = FrameCodec.allocateBinary(category, 1, bodySize);
+            frame.position(frame.limit());
+            return FrameCodec.binaryMessage(frame).getFrame().duplicate();
+        }
+        return FrameCodec.encode(new MessageWrapper(category, 0, 1, new String(body)));
+    }
+
+    private static String lanes(List<Integer> categories) {
+        StringBuilder sb = new StringBuilder();
+        for (int category : categories) {
+            sb.append(category == Constant.MESSAGE ? 'c' : category == Constant.FILE_DATA ? 'b' : 'k');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void firstOfferNeedsWriteThenQueued() throws IOException {
+        OutboundQueue queue = new OutboundQueue();
+        assertEquals(OutboundQueue.QUEUED_NEEDS_WRITE, queue.offer(frame(Constant.MESSAGE, 10)));
+        assertEquals(OutboundQueue.QUEUED, queue.offer(frame(Constant.MESSAGE, 10)));
+        assertTrue(queue.drainTo(new FakeChannel()));
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.queuedBytes());
+        assertEquals(OutboundQueue.QUEUED_NEEDS_WRITE, queue.offer(frame(Constant.MESSAGE, 10)));
+    }
+
+    @Test
+    public void controlFramesGoFirst() throws IOException {
+        OutboundQueue queue = new OutboundQueue();
+        queue.offer(frame(Constant.MESSAGE, 10));
+        queue.offer(frame(Constant.FILE_DATA, 10));
+        queue.offer(frame(Constant.IMMEDIATE_ACKNOWLEDGEMENT, 10));
+        FakeChannel channel = new FakeChannel();
+        queue.drainTo(channel);
+        assertEquals("kcb", lanes(channel.categories()));
+    }
+
+    @Test
+    public void oneBulkFrameForEveryChatWeightChatFrames() throws IOException {
+        OutboundQueue queue = new OutboundQueue();
+        for (int i = 0; i < 20; i++) {
+            queue.offer(frame(Constant.MESSAGE, 10));
+        }
+        for (int i = 0; i < 4; i++) {
+            queue.offer(frame(Constant.FILE_DATA, 10));
+        }
+        FakeChannel channel = new FakeChannel();
+        queue.drainTo(channel);
+        assertEquals("ccccccccbccccccccbccccbb", lanes(channel.categories()));
+    }
+
+    @Test
+    public void weightingHoldsAfterAChatOnlyStretch() throws IOException {
+        OutboundQueue queue = new OutboundQueue();
+        FakeChannel channel = new FakeChannel();
+        for (int i = 0; i < 100; i++) {
+            queue.offer(frame(Constant.MESSAGE, 10));
+            queue.drainTo(channel);
+        }
+        channel.bytes.clear();
+
+        for (int i = 0; i < 10; i++) {
+            queue.offer(frame(Constant.MESSAGE, 10));
+        }
+        queue.offer(frame(Constant.FILE_DATA, 10));
+        queue.offer(frame(Constant.FILE_DATA, 10));
+        queue.drainTo(channel);
+        assertEquals("ccccccccbccb", lanes(channel.categories()));
+    }
+
+    @Test
+    public void shortWriteResumesInsideTheFrame() throws IOException {
+        OutboundQueue queue = new OutboundQueue();
+        queue.offer(frame(Constant.FILE_DATA, 100));
+        queue.offer(frame(Constant.MESSAGE, 10));
+        FakeChannel channel = new FakeChannel();
+        channel.limit = 30;   // the chat frame, and the start of the bulk frame
+        assertFalse(queue.drainTo(channel));
+
+        // a control frame arriving now waits for the started frame to finish, nothing is interleaved into it
+        queue.offer(frame(Constant.IMMEDIATE_ACKNOWLEDGEMENT, 10));
+        channel.limit = Integer.MAX_VALUE;
+        assertTrue(queue.drainTo(channel));
+        assertEquals("cbk", lanes(channel.categories()));
+        assertEquals(0, queue.queuedBytes());
+    }
+
+    @Test
+    public void fullQueueRejects() {
+        OutboundQueue queue = new OutboundQueue(100, 100);
+        assertEquals(OutboundQueue.QUEUED_NEEDS_WRITE, queue.offer(frame(Constant.MESSAGE, 60)));
+        assertEquals(OutboundQueue.REJECTED, queue.offer(frame(Constant.MESSAGE, 60)));
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void bulkLaneHasItsOwnBudget() {
+        OutboundQueue queue = new OutboundQueue(1000, 100);
+        assertEquals(OutboundQueue.QUEUED_NEEDS_WRITE, queue.offer(frame(Constant.FILE_DATA, 60)));
+        assertEquals(OutboundQueue.REJECTED, queue.offer(frame(Constant.FILE_DATA, 60)));
+        assertEquals(OutboundQueue.QUEUED, queue.offer(frame(Constant.MESSAGE, 60)));
+        assertEquals(100 - 60 - FrameCodec.HEADER_SIZE, queue.bulkRoom());
+    }
+
+    /**
+     * a queue with batching on, written once so that the next frames fall within the delay.
+     */
+    private static OutboundQueue batchingQueue(long delayMillis, int byteBudget) throws IOException {
+        OutboundQueue queue = new OutboundQueue();
+        queue.setBatching(delayMillis, byteBudget);
+        assertEquals(OutboundQueue.QUEUED_NEEDS_WRITE, queue.offer(frame(Constant.MESSAGE, 10)));
+        assertTrue(queue.drainTo(new FakeChannel()));
+        return queue;
+    }
+
+    @Test
+    public void withoutBatchingEveryFrameOnAnIdleQueueIsWritten() throws IOException {
+        OutboundQueue queue = new OutboundQueue();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(OutboundQueue.QUEUED_NEEDS_WRITE, queue.offer(frame(Constant.MESSAGE, 10)));
+            assertTrue(queue.drainTo(new FakeChannel()));
+        }
+    }
+
+    @Test
+    public void framesWithinTheDelayGoOutTogetherOnFlush() throws IOException {
+        OutboundQueue queue = batchingQueue(10000, 16 * 1024);
+        assertEquals(OutboundQueue.QUEUED_BATCHED, queue.offer(frame(Constant.MESSAGE, 10)));
+        assertEquals(OutboundQueue.QUEUED, queue.offer(frame(Constant.MESSAGE, 10)));
+        assertEquals(OutboundQueue.QUEUED, queue.offer(frame(Constant.FILE_DATA, 10)));
+
+        assertTrue(queue.flush());
+        assertFalse(queue.flush());
+        FakeChannel channel = new FakeChannel();
+        assertTrue(queue.drainTo(channel));
+        assertEquals(1, channel.writes);
+        assertEquals("ccb", lanes(channel.categories()));
+    }
+
+    @Test
+    public void controlFrameIsNeverHeld() throws IOException {
+        OutboundQueue queue = batchingQueue(10000, 16 * 1024);
+        assertEquals(OutboundQueue.QUEUED_BATCHED, queue.offer(frame(Constant.MESSAGE, 10)));
+        assertEquals(OutboundQueue.QUEUED_NEEDS_WRITE, queue.offer(frame(Constant.IMMEDIATE_ACKNOWLEDGEMENT, 10)));
+        assertFalse(queue.flush());   // the batch went with the control frame
+
+        FakeChannel channel = new FakeChannel();
+        assertTrue(queue.drainTo(channel));
+        assertEquals("kc", lanes(channel.categories()));
+    }
+
+    @Test
+    public void fullBudgetEndsTheBatch() throws IOException {
+        OutboundQueue queue = batchingQueue(10000, 100);
+        assertEquals(OutboundQueue.QUEUED_BATCHED, queue.offer(frame(Constant.MESSAGE, 60)));
+        assertEquals(OutboundQueue.QUEUED_NEEDS_WRITE, queue.offer(frame(Constant.MESSAGE, 60)));
+    }
+
+    @Test
+    public void frameAfterTheDelayIsWrittenAtOnce() throws IOException, InterruptedException {
+        OutboundQueue queue = batchingQueue(1, 16 * 1024);
+        Thread.sleep(5);
+        assertEquals(OutboundQueue.QUEUED_NEEDS_WRITE, queue.offer(frame(Constant.MESSAGE, 10)));
+    }
+
+    @Test
+    public void drainTakesAPendingBatch() throws IOException {
+        OutboundQueue queue = batchingQueue(10000, 16 * 1024);
+        assertEquals(OutboundQueue.QUEUED_BATCHED, queue.offer(frame(Constant.MESSAGE, 10)));
+        assertTrue(queue.drainTo(new FakeChannel()));
+        assertFalse(queue.flush());   // nothing left to flush when the delay passes
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void clearDropsEverything() throws IOException {
+        OutboundQueue queue = new OutboundQueue();
+        queue.offer(frame(Constant.MESSAGE, 10));
+        queue.clear();
+        assertEquals(0, queue.size());
+        assertEquals(OutboundQueue.QUEUED_NEEDS_WRITE, queue.offer(frame(Constant.MESSAGE, 10)));
+    }
+}
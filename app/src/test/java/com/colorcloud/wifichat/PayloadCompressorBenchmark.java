@@ -0,0 +1,69 @@
+package com.colorcloud.wifichat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * cost of encoding and decoding chat frames with and without compression, per frame, over ChatCorpus.
+ * Not run with the unit tests; run it on the JVM with the test classpath:
+ * <pre>
+ *   java -cp &lt;test classpath&gt; org.openjdk.jmh.Main PayloadCompressorBenchmark
+ * </pre>
+ * The bytes on the wire are checked by PayloadCompressorTest.chatTrafficShrinks().
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadCompressorBenchmark {
+
+    private static final int ROWS = 1024;
+
+    @Param({"true", "false"})
+    public boolean compression;
+
+    private MessageWrapper[] messages;
+    private ByteBuffer[] frames;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        FrameCodec.setCompression(compression);
+        List<String> rows = ChatCorpus.rows(ROWS, 24);
+        messages = new MessageWrapper[ROWS];
+        frames = new ByteBuffer[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            messages[i] = new MessageWrapper(Constant.MESSAGE, 0, i + 1, rows.get(i));
+            frames[i] = FrameCodec.encode(messages[i]);
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        next = (next + 1) & (ROWS - 1);
+        return FrameCodec.encode(messages[next]);
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) throws IOException {
+        next = (next + 1) & (ROWS - 1);
+        blackhole.consume(FrameCodec.decode(frames[next].duplicate()).getMessageBody());
+    }
+}
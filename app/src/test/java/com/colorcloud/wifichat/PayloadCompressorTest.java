@@ -0,0 +1,208 @@
+package com.colorcloud.wifichat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PayloadCompressorTest {
+
+    private static final String ROW = "Bob" + Constant.MESSAGE_ROW_TOKEN + "see you at the library"
+            + Constant.MESSAGE_ROW_TOKEN + "07-03-2016 09:45:02";
+
+    private static String roundTrip(int category, String body, int expectedFlags) throws IOException {
+        int[] flags = new int[1];
+        byte[] payload = PayloadCompressor.compress(new MessageWrapper(category, 0, 1, body), flags);
+        assertEquals(expectedFlags, flags[0]);
+        return PayloadCompressor.decompress(flags[0], payload, 0, payload.length);
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void shortPlainBodyIsLeftAlone() throws IOException {
+        assertEquals("hello", roundTrip(Constant.HEARTBEAT, "hello", 0));
+        assertEquals("", roundTrip(Constant.MESSAGE, "", 0));
+    }
+
+    @Test
+    public void messageRowIsCompactedAndRebuiltExactly() throws IOException {
+        assertEquals(ROW, roundTrip(Constant.MESSAGE, ROW, FrameCodec.FLAG_ROW));
+        byte[] compact = PayloadCompressor.compactRow(ROW);
+        assertNotNull(compact);
+        assertTrue(compact.length < ROW.length());
+    }
+
+    @Test
+    public void rowFieldsMayHoldAnything() throws IOException {
+        String row = "é中 😀" + Constant.MESSAGE_ROW_TOKEN + "a^&b, \"q\" é" + Constant.MESSAGE_ROW_TOKEN
+                + "31-12-2099 12:00:59";
+        assertEquals(row, roundTrip(Constant.MESSAGE, row, FrameCodec.FLAG_ROW));
+        String emptyFields = Constant.MESSAGE_ROW_TOKEN + Constant.MESSAGE_ROW_TOKEN + "01-01-2016 00:00:00";
+        assertEquals(emptyFields, roundTrip(Constant.MESSAGE, emptyFields, FrameCodec.FLAG_ROW));
+    }
+
+    @Test
+    public void notARowIsNotCompacted() {
+        assertNull(PayloadCompressor.compactRow("no tokens here"));
+        assertNull(PayloadCompressor.compactRow("a" + Constant.MESSAGE_ROW_TOKEN + "one token only"));
+        assertNull(PayloadCompressor.compactRow("a" + Constant.MESSAGE_ROW_TOKEN + "b" + Constant.MESSAGE_ROW_TOKEN
+                + "7-3-2016 9:45:02"));
+        assertNull(PayloadCompressor.compactRow("a" + Constant.MESSAGE_ROW_TOKEN + "b" + Constant.MESSAGE_ROW_TOKEN
+                + "07/03/2016 09:45:02"));
+        assertNull(PayloadCompressor.compactRow(repeat("s", 256) + Constant.MESSAGE_ROW_TOKEN + "b"
+                + Constant.MESSAGE_ROW_TOKEN + "07-03-2016 09:45:02"));
+    }
+
+    @Test
+    public void rowOnlyForMessages() throws IOException {
+        assertEquals(ROW, roundTrip(Constant.ROUTING_ACKNOWLEDGEMENT, ROW, 0));
+    }
+
+    @Test
+    public void longBodyIsDeflated() throws IOException {
+        String body = repeat("thanks, see you tomorrow at the lab ", 10);
+        int[] flags = new int[1];
+        byte[] payload = PayloadCompressor.compress(new MessageWrapper(Constant.HEARTBEAT, 0, 1, body), flags);
+        assertEquals(FrameCodec.FLAG_DEFLATE, flags[0]);
+        assertTrue(payload.length < body.length() / 4);
+        assertEquals(body, PayloadCompressor.decompress(flags[0], payload, 0, payload.length));
+
+        String row = "Bob" + Constant.MESSAGE_ROW_TOKEN + body + Constant.MESSAGE_ROW_TOKEN + "07-03-2016 09:45:02";
+        assertEquals(row, roundTrip(Constant.MESSAGE, row, FrameCodec.FLAG_ROW | FrameCodec.FLAG_DEFLATE));
+    }
+
+    @Test
+    public void bodyUnderTheThresholdIsNotDeflated() throws IOException {
+        String body = repeat("x", PayloadCompressor.DEFLATE_THRESHOLD - 1);
+        assertEquals(body, roundTrip(Constant.HEARTBEAT, body, 0));
+        body = repeat("x", PayloadCompressor.DEFLATE_THRESHOLD);
+        assertEquals(body, roundTrip(Constant.HEARTBEAT, body, FrameCodec.FLAG_DEFLATE));
+    }
+
+    @Test
+    public void payloadAtAnOffset() throws IOException {
+        int[] flags = new int[1];
+        byte[] payload = PayloadCompressor.compress(new MessageWrapper(Constant.MESSAGE, 0, 1, ROW), flags);
+        byte[] padded = new byte[payload.length + 10];
+        System.arraycopy(payload, 0, padded, 7, payload.length);
+        assertEquals(ROW, PayloadCompressor.decompress(flags[0], padded, 7, payload.length));
+    }
+
+    @Test
+    public void truncatedDeflatedBodyIsRejected() {
+        String body = repeat("good morning, where are you now? ", 20);
+        int[] flags = new int[1];
+        byte[] payload = PayloadCompressor.compress(new MessageWrapper(Constant.HEARTBEAT, 0, 1, body), flags);
+        try {
+            PayloadCompressor.decompress(flags[0], payload, 0, payload.length / 2);
+            fail("truncated body decoded");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void garbageDeflatedBodyIsRejected() throws IOException {
+        byte[] garbage = new byte[100];
+        Arrays.fill(garbage, (byte) 0xff);
+        PayloadCompressor.decompress(FrameCodec.FLAG_DEFLATE, garbage, 0, garbage.length);
+    }
+
+    @Test(expected = IOException.class)
+    public void rowWithASenderLongerThanTheBodyIsRejected() throws IOException {
+        PayloadCompressor.decompress(FrameCodec.FLAG_ROW, new byte[]{50, 'a', 'b'}, 0, 3);
+    }
+
+    @Test(expected = IOException.class)
+    public void emptyRowIsRejected() throws IOException {
+        PayloadCompressor.decompress(FrameCodec.FLAG_ROW, new byte[0], 0, 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void inflatingPastTheBodyCapIsRejected() throws IOException {
+        String bomb = repeat("x", FrameCodec.MAX_BODY_SIZE + 1024);
+        int[] flags = new int[1];
+        byte[] payload = PayloadCompressor.compress(new MessageWrapper(Constant.HEARTBEAT, 0, 1, bomb), flags);
+        assertEquals(FrameCodec.FLAG_DEFLATE, flags[0]);
+        PayloadCompressor.decompress(flags[0], payload, 0, payload.length);
+    }
+
+    @Test
+    public void framesRoundTripWithCompressionOn() throws IOException {
+        for (String row : ChatCorpus.rows(500, 1)) {
+            MessageWrapper decoded = FrameCodec.decode(FrameCodec.encode(new MessageWrapper(Constant.MESSAGE, 0, 1, row)));
+            assertEquals(row, decoded.getMessageBody());
+        }
+    }
+
+    @Test
+    public void chatTrafficShrinks() {
+        List<String> rows = ChatCorpus.rows(2000, 2);
+        long plain = 0;
+        long compressed = 0;
+        int[] flags = new int[1];
+        for (String row : rows) {
+            plain += row.length();
+            compressed += PayloadCompressor.compress(new MessageWrapper(Constant.MESSAGE, 0, 1, row), flags).length;
+        }
+        assertTrue(compressed + " of " + plain, compressed < plain * 8 / 10);
+    }
+
+    @Test
+    public void threadsDoNotShareTheDeflater() throws InterruptedException {
+        final List<String> rows = ChatCorpus.rows(300, 3);
+        final String longBody = repeat("haha ok sure, the photo is sent ", 8);
+        final boolean[] failed = {false};
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    int[] flags = new int[1];
+                    try {
+                        for (int i = 0; i < 20; i++) {
+                            for (String row : rows) {
+                                String body = row + longBody;
+                                byte[] payload = PayloadCompressor.compress(
+                                        new MessageWrapper(Constant.HEARTBEAT, 0, 1, body), flags);
+                                if (!body.equals(PayloadCompressor.decompress(flags[0], payload, 0, payload.length))) {
+                                    failed[0] = true;
+                                }
+                            }
+                        }
+                    } catch (IOException e) {
+                        failed[0] = true;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(!failed[0]);
+    }
+
+    @Test
+    public void decodeKeepsTheWireBytes() throws IOException {
+        ByteBuffer frame = FrameCodec.encode(new MessageWrapper(Constant.MESSAGE, 0, 1, ROW));
+        assertTrue(frame.remaining() < FrameCodec.HEADER_SIZE + ROW.length());
+        MessageWrapper decoded = FrameCodec.decode(frame.duplicate());
+        assertEquals(frame, decoded.getFrame());   // relayed as received, compact
+    }
+}
@@ -0,0 +1,203 @@
+package com.colorcloud.wifichat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * the registry's lookups, and its snapshot while peers join and leave on other threads. Unconnected channels
+ * stand for the links, the peers have no ChannelContext.
+ */
+public class PeerRegistryTest {
+
+    private static final int WRITERS = 4;
+    private static final int CHANNELS_PER_WRITER = 8;
+    private static final int ROUNDS = 251 * CHANNELS_PER_WRITER;   // odd flips per channel, all end up added
+    private static final int READERS = 2;
+
+    private final PeerRegistry registry = new PeerRegistry();
+    private final List<SocketChannel> channels = new ArrayList<SocketChannel>();
+
+    @After
+    public void tearDown() throws IOException {
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+    }
+
+    private SocketChannel channel() throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channels.add(channel);
+        return channel;
+    }
+
+    @Test
+    public void peerIsFoundByEveryKeyUntilItLeaves() throws IOException {
+        SocketChannel channel = channel();
+        PeerRegistry.Peer peer = registry.add(channel, "192.168.49.10", null, 0);
+        assertNull(registry.byMac("02:00:00:00:00:01"));
+        registry.bindMac(peer, "02:00:00:AB:CD:01");
+
+        assertSame(peer, registry.get(channel));
+        assertSame(peer, registry.byIp("192.168.49.10"));
+        assertSame(peer, registry.byMac("02:00:00:ab:cd:01"));
+        assertSame(peer, registry.byNodeId(MessageIdGenerator.nodeIdOf("02:00:00:ab:cd:01")));
+        assertEquals("02:00:00:ab:cd:01", peer.getMac());
+        assertEquals(Arrays.asList(peer), registry.snapshot());
+
+        assertSame(peer, registry.remove(channel));
+        assertNull(registry.remove(channel));
+        assertNull(registry.get(channel));
+        assertNull(registry.byIp("192.168.49.10"));
+        assertNull(registry.byMac("02:00:00:ab:cd:01"));
+        assertNull(registry.byNodeId(MessageIdGenerator.nodeIdOf("02:00:00:ab:cd:01")));
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void newerLinkFromTheSameIpTakesTheIpOver() throws IOException {
+        SocketChannel old = channel();
+        SocketChannel reconnected = channel();
+        PeerRegistry.Peer first = registry.add(old, "192.168.49.10", null, 0);
+        registry.bindMac(first, "02:00:00:00:00:01");
+        PeerRegistry.Peer second = registry.add(reconnected, "192.168.49.10", null, 0);
+        assertSame(second, registry.byIp("192.168.49.10"));
+        assertSame(first, registry.byMac("02:00:00:00:00:01"));
+        assertEquals(Arrays.asList(first, second), registry.snapshot());
+
+        registry.remove(old);   // the older link leaving keeps the newer one
+        assertSame(second, registry.byIp("192.168.49.10"));
+        assertNull(registry.byMac("02:00:00:00:00:01"));
+        assertEquals(Arrays.asList(second), registry.snapshot());
+    }
+
+    @Test
+    public void channelAddedAgainReplacesItsPeer() throws IOException {
+        SocketChannel channel = channel();
+        PeerRegistry.Peer first = registry.add(channel, "192.168.49.10", null, 0);
+        registry.bindMac(first, "02:00:00:00:00:01");
+        PeerRegistry.Peer second = registry.add(channel, "192.168.49.11", null, 0);
+        assertSame(second, registry.get(channel));
+        assertNull(registry.byIp("192.168.49.10"));
+        assertNull(registry.byMac("02:00:00:00:00:01"));
+        assertEquals(Arrays.asList(second), registry.snapshot());
+    }
+
+    @Test
+    public void macOfAPeerThatLeftIsNotBound() throws IOException {
+        SocketChannel channel = channel();
+        PeerRegistry.Peer peer = registry.add(channel, "192.168.49.10", null, 0);
+        registry.remove(channel);
+        registry.bindMac(peer, "02:00:00:00:00:01");
+        assertNull(registry.byMac("02:00:00:00:00:01"));
+
+        PeerRegistry.Peer other = registry.add(channel(), "192.168.49.11", null, 0);
+        registry.bindMac(other, "02:00:00:00:00:01");
+        registry.bindMac(other, "02:00:00:00:00:02");
+        assertNull(registry.byMac("02:00:00:00:00:01"));
+        assertNull(registry.byNodeId(MessageIdGenerator.nodeIdOf("02:00:00:00:00:01")));
+        assertSame(other, registry.byMac("02:00:00:00:00:02"));
+    }
+
+    @Test
+    public void snapshotStaysConsistentUnderConcurrentAddAndRemove() throws Exception {
+        final SocketChannel[][] owned = new SocketChannel[WRITERS][CHANNELS_PER_WRITER];
+        for (int w = 0; w < WRITERS; w++) {
+            for (int c = 0; c < CHANNELS_PER_WRITER; c++) {
+                owned[w][c] = channel();
+            }
+        }
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch writersDone = new CountDownLatch(WRITERS);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int w = 0; w < WRITERS; w++) {
+            final int writer = w;
+            threads.add(new Thread("writer-" + w) {
+                @Override
+                public void run() {
+                    try {
+                        for (int round = 0; round < ROUNDS; round++) {
+                            SocketChannel channel = owned[writer][round % CHANNELS_PER_WRITER];
+                            if (registry.get(channel) == null) {
+                                registry.add(channel, "10.0." + writer + "." + (round % CHANNELS_PER_WRITER), null, 0);
+                            } else {
+                                registry.remove(channel);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        writersDone.countDown();
+                    }
+                }
+            });
+        }
+        for (int r = 0; r < READERS; r++) {
+            threads.add(new Thread("reader-" + r) {
+                @Override
+                public void run() {
+                    try {
+                        while (writing.get()) {
+                            List<PeerRegistry.Peer> snapshot = registry.snapshot();
+                            int size = snapshot.size();
+                            Set<SocketChannel> seen = new HashSet<SocketChannel>();
+                            for (PeerRegistry.Peer peer : snapshot) {
+                                assertTrue("a channel twice in " + snapshot, seen.add(peer.getChannel()));
+                            }
+                            assertTrue(seen.size() <= WRITERS * CHANNELS_PER_WRITER);
+                            assertEquals("the snapshot changed under its reader", size, snapshot.size());
+                            try {
+                                snapshot.add(null);
+                                fail("the snapshot can be changed");
+                            } catch (UnsupportedOperationException expected) {
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        writersDone.await();
+        writing.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        Set<SocketChannel> registered = new HashSet<SocketChannel>();
+        for (PeerRegistry.Peer peer : registry.snapshot()) {
+            registered.add(peer.getChannel());
+            assertSame(peer, registry.get(peer.getChannel()));
+            assertSame(peer, registry.byIp(peer.getIp()));
+        }
+        for (SocketChannel[] writerChannels : owned) {
+            for (SocketChannel channel : writerChannels) {
+                assertEquals(registry.get(channel) != null, registered.contains(channel));
+            }
+        }
+        assertEquals(WRITERS * CHANNELS_PER_WRITER, registered.size());
+    }
+}
@@ -0,0 +1,170 @@
+package com.colorcloud.wifichat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PeerSessionTest {
+
+    private static ByteBuffer frame(int category, long id) {
+        return FrameCodec.encode(new MessageWrapper(category, 0, id, "message " + id));
+    }
+
+    private static List<Long> ids(List<ByteBuffer> frames) {
+        List<Long> ids = new ArrayList<Long>();
+        for (ByteBuffer frame : frames) {
+            ids.add(FrameCodec.idOf(frame));
+        }
+        return ids;
+    }
+
+    @Test
+    public void onlyMessagesAreKeptUntilAcked() {
+        PeerSession session = new PeerSession();
+        session.record(frame(Constant.MESSAGE, 1));
+        session.record(frame(Constant.HEARTBEAT, 2));
+        session.record(frame(Constant.ROUTED_MESSAGE, 3));
+        session.record(frame(Constant.MESSAGE, 1));   // a retransmission
+        assertEquals(2, session.unackedCount());
+
+        assertEquals(1, session.acknowledge(new AckCoalescer.AckRange(1, 1, 0)));
+        assertEquals(1, session.getLastAckedId());
+        assertEquals(3L, (long) ids(session.unackedFrames()).get(0));
+    }
+
+    @Test
+    public void acknowledgeRunAndSack() {
+        PeerSession session = new PeerSession();
+        for (long id = 10; id < 20; id++) {
+            session.record(frame(Constant.MESSAGE, id));
+        }
+        // 10..12, then 14 and 16
+        assertEquals(5, session.acknowledge(new AckCoalescer.AckRange(10, 3, 0x1 | 0x4)));
+        assertEquals("[13, 15, 17, 18, 19]", ids(session.unackedFrames()).toString());
+    }
+
+    @Test
+    public void overflowDropsTheOldestIntoTheGap() {
+        PeerSession session = new PeerSession();
+        for (long id = 1; id <= PeerSession.MAX_UNACKED_FRAMES; id++) {
+            assertEquals(0, session.record(frame(Constant.MESSAGE, id)));
+        }
+        assertNull(session.takeGap());
+        assertEquals(1, session.record(frame(Constant.MESSAGE, 1000)));
+        assertEquals(2, session.record(frame(Constant.MESSAGE, 1001)));
+        assertEquals(PeerSession.MAX_UNACKED_FRAMES, session.unackedCount());
+
+        assertArrayEquals(new long[]{2, 1, 2}, session.takeGap());
+        assertNull(session.takeGap());
+    }
+
+    @Test
+    public void absorbCarriesTheFramesAndTheGap() {
+        PeerSession queued = new PeerSession();
+        for (long id = 1; id <= PeerSession.MAX_UNACKED_FRAMES + 3; id++) {
+            queued.record(frame(Constant.MESSAGE, id));
+        }
+        PeerSession session = new PeerSession();
+        session.absorb(queued);
+        assertEquals(PeerSession.MAX_UNACKED_FRAMES, session.unackedCount());
+        assertArrayEquals(new long[]{3, 1, 3}, session.takeGap());
+    }
+
+    @Test
+    public void gapBodyRoundTrip() {
+        long[] gap = {7, 0x1234567890L, -5};
+        assertArrayEquals(gap, PeerSession.parseGap(PeerSession.gapBody(gap)));
+        assertNull(PeerSession.parseGap("1|2"));
+        assertNull(PeerSession.parseGap("a|b|c"));
+    }
+
+    @Test
+    public void detachedSessionExpires() {
+        PeerSession session = new PeerSession();
+        assertTrue(!session.isExpired(Long.MAX_VALUE));
+        session.detach(1000);
+        assertTrue(!session.isExpired(1000 + PeerSession.DETACHED_TTL));
+        assertTrue(session.isExpired(1001 + PeerSession.DETACHED_TTL));
+        session.attach();
+        assertTrue(!session.isExpired(Long.MAX_VALUE));
+    }
+
+    /**
+     * a link that loses frames and acks at random and breaks at random points. Every break is followed by a
+     * reconnect: the frames queued while reconnecting go to a session of their own, absorbed by the peer's
+     * session on resume, and the unacked ones are replayed. The receiver gets every message exactly once.
+     */
+    @Test
+    public void everyMessageArrivesOnceOverABreakingLink() throws IOException {
+        Random random = new Random(22);
+        int messages = 2000;
+        PeerSession session = new PeerSession();
+        PeerSession linkSession = session;   // the session of the current link, a fresh one until it resumes
+        Set<Long> received = new HashSet<Long>();
+        List<Long> duplicates = new ArrayList<Long>();
+        DuplicateFilter filter = new DuplicateFilter();
+        boolean linked = true;
+        long nextId = 1;
+
+        for (int round = 0; round < 100000 && (nextId <= messages || session.unackedCount() > 0); round++) {
+            int event = random.nextInt(100);
+            if (event < 3 && linked) {
+                linked = false;                  // the link breaks, in flight frames are lost
+                linkSession = new PeerSession();
+            } else if (event < 20 && !linked) {
+                // link up again and SESSION_RESUME: replay what the old session never got acked
+                List<ByteBuffer> replay = session.unackedFrames();
+                replay.addAll(linkSession.unackedFrames());   // queued while reconnecting, sent once connected
+                session.absorb(linkSession);
+                linkSession = session;
+                linked = true;
+                assertNull(session.takeGap());   // never more than MAX_UNACKED_FRAMES in flight here
+                for (ByteBuffer frame : replay) {
+                    deliver(frame, random, session, received, duplicates, filter);
+                }
+            } else if (nextId <= messages && session.unackedCount() + linkSession.unackedCount() < 200) {
+                ByteBuffer frame = frame(Constant.MESSAGE, nextId++);
+                linkSession.record(frame);
+                if (linked) {
+                    deliver(frame, random, session, received, duplicates, filter);
+                }
+            } else if (linked) {
+                // retransmission of the oldest unacked on the live link
+                List<ByteBuffer> unacked = session.unackedFrames();
+                if (!unacked.isEmpty()) {
+                    deliver(unacked.get(0), random, session, received, duplicates, filter);
+                }
+            }
+        }
+
+        assertEquals(messages, received.size());
+        assertTrue(duplicates.isEmpty());
+        assertEquals(0, session.unackedCount());
+    }
+
+    private static void deliver(ByteBuffer frame, Random random, PeerSession session, Set<Long> received,
+                                List<Long> duplicates, DuplicateFilter filter) throws IOException {
+        if (random.nextInt(10) == 0) {
+            return;   // the frame is lost
+        }
+        MessageWrapper messageWrapper = FrameCodec.decode(frame.duplicate());
+        long id = messageWrapper.getAck();
+        if (filter.accept(id) && !received.add(id)) {
+            duplicates.add(id);
+        }
+        if (random.nextInt(10) != 0) {   // the ack is lost otherwise
+            session.acknowledge(new AckCoalescer.AckRange(id, 1, 0));
+        }
+    }
+}
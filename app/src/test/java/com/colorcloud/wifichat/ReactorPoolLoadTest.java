@@ -0,0 +1,127 @@
+package com.colorcloud.wifichat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * message throughput of a group owner serving CLIENTS loopback clients with 1, 2 and 4 worker reactors. Every
+ * client keeps WINDOW messages in flight to the owner, which answers each one on the reactor that read it, so the
+ * reads, the parsing and the writes are spread over the workers. A message is done when its answer is read.
+ * The workers can only run side by side with a core each; on fewer cores the test checks the load is spread and
+ * every message is answered, and only prints the throughput.
+ */
+public class ReactorPoolLoadTest {
+
+    private static final int CLIENTS = 64;
+    private static final int MESSAGES = 200;   // per client
+    private static final int WINDOW = 16;
+    private static final int SENDERS = 4;
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    private LoopbackGroup group;
+
+    @After
+    public void tearDown() throws IOException {
+        if (group != null) {
+            group.close();
+        }
+    }
+
+    /**
+     * @return messages answered per second.
+     */
+    private long run(int workers) throws Exception {
+        final Semaphore[] windows = new Semaphore[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++) {
+            windows[i] = new Semaphore(WINDOW);
+        }
+        group = new LoopbackGroup(CLIENTS, workers, 0, 0, new LoopbackGroup.Listener() {
+            @Override
+            public void onOwnerFrame(int client, MessageWrapper messageWrapper) {
+                // never blocks: the window keeps a client's answers far below the queue limit
+                group.sendWaiting(client, new MessageWrapper(Constant.MESSAGE, 0, messageWrapper.getAck(),
+                        messageWrapper.getMessageBody()).getFrame());
+            }
+
+            @Override
+            public void onClientFrame(int client, MessageWrapper messageWrapper) {
+                windows[client].release();
+            }
+        });
+        for (IoReactor worker : group.workers()) {
+            assertEquals(CLIENTS / workers, worker.load());
+        }
+
+        final List<String> rows = ChatCorpus.rows(MESSAGES, 8);
+        final List<IOException> failed = new ArrayList<IOException>();
+        List<Thread> senders = new ArrayList<Thread>();
+        long start = System.nanoTime();
+        for (int s = 0; s < SENDERS; s++) {
+            final int first = s * CLIENTS / SENDERS;
+            Thread sender = new Thread("sender-" + s) {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < MESSAGES; i++) {
+                            ByteBuffer frame = new MessageWrapper(Constant.MESSAGE, 0, i + 1, rows.get(i)).getFrame();
+                            for (int client = first; client < first + CLIENTS / SENDERS; client++) {
+                                windows[client].acquire();
+                                group.sendFromClient(client, frame);
+                            }
+                        }
+                    } catch (IOException e) {
+                        synchronized (failed) {
+                            failed.add(e);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            };
+            senders.add(sender);
+            sender.start();
+        }
+        for (Thread sender : senders) {
+            sender.join(TIMEOUT_MILLIS);
+        }
+        assertTrue(failed.toString(), failed.isEmpty());
+        long total = (long) CLIENTS * MESSAGES;
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (group.clientFrames() < total && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        assertEquals(total, group.clientFrames());
+        assertEquals(total, group.ownerFrames());
+        long rate = (long) (total / seconds);
+        System.out.println(CLIENTS + " clients, " + workers + " workers: " + rate + " messages/s");
+        group.close();
+        group = null;
+        return rate;
+    }
+
+    @Test
+    public void throughputScalesWithTheWorkers() throws Exception {
+        run(4);   // warms the JIT up, the first run is the slowest whatever its workers
+        long one = run(1);
+        long two = run(2);
+        long four = run(4);
+        int cores = Runtime.getRuntime().availableProcessors();
+        if (cores > 4) {
+            // the workers, the senders and the client thread all need a core
+            assertTrue("1 worker " + one + " msg/s, 4 workers " + four + " msg/s", four > one);
+        } else {
+            System.out.println(cores + " cores, too few for the workers to run side by side; 2 workers: " + two);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.colorcloud.wifichat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * the engine driven by a fake clock: time only moves when the test says so.
+ */
+public class RetransmissionEngineTest {
+
+    static class FakeClock implements RetransmissionEngine.Clock {
+        long now = 1000000;
+
+        @Override
+        public long now() {
+            return now;
+        }
+    }
+
+    private FakeClock clock;
+    private List<String> sent;
+    private List<MessageWrapper> delivered;
+    private List<MessageWrapper> failed;
+    private RetransmissionEngine engine;
+
+    @Before
+    public void setUp() {
+        clock = new FakeClock();
+        sent = new ArrayList<String>();
+        delivered = new ArrayList<MessageWrapper>();
+        failed = new ArrayList<MessageWrapper>();
+        engine = new RetransmissionEngine(clock, new RetransmissionEngine.Transport() {
+            @Override
+            public void send(MessageWrapper messageWrapper, Object destination) {
+                sent.add(messageWrapper.getAck() + "@" + destination);
+            }
+        }, new Random(1));
+        engine.setDeliveryListener(new RetransmissionEngine.DeliveryListener() {
+            @Override
+            public void onDelivered(MessageWrapper messageWrapper) {
+                delivered.add(messageWrapper);
+            }
+
+            @Override
+            public void onFailed(MessageWrapper messageWrapper) {
+                failed.add(messageWrapper);
+            }
+        });
+    }
+
+    private static MessageWrapper message(long id) {
+        return new MessageWrapper(Constant.MESSAGE, 0, id, "m" + id);
+    }
+
+    /**
+     * move the clock forward tick by tick, as the looper does.
+     */
+    private void advance(long millis) {
+        long end = clock.now + millis;
+        while (clock.now < end) {
+            clock.now = Math.min(end, clock.now + RetransmissionEngine.DEFAULT_TICK_MILLIS);
+            engine.tick();
+        }
+    }
+
+    @Test
+    public void ackBeforeTimeoutIsNotRetransmitted() {
+        engine.track(1, message(1));
+        advance(100);
+        assertTrue(engine.acknowledge(1));
+        advance(60000);
+        assertTrue(sent.isEmpty());
+        assertEquals(1, delivered.size());
+        assertEquals(0, engine.size());
+        assertEquals(100, engine.getRttEstimator().getSrtt());
+    }
+
+    @Test
+    public void firstRetransmissionAfterTheRtoWithJitter() {
+        engine.track(1, message(1));
+        advance(RttEstimator.DEFAULT_INITIAL_RTO * 3 / 4 - RetransmissionEngine.DEFAULT_TICK_MILLIS);
+        assertTrue(sent.isEmpty());
+        advance(RttEstimator.DEFAULT_INITIAL_RTO / 2 + 2 * RetransmissionEngine.DEFAULT_TICK_MILLIS);
+        assertEquals(Arrays.asList("1@null"), sent);
+    }
+
+    @Test
+    public void backoffDoublesAndGivesUp() {
+        engine.track(1, message(1));
+        long total = 0;
+        long timeout = RttEstimator.DEFAULT_INITIAL_RTO;
+        for (int i = 0; i <= RetransmissionEngine.DEFAULT_MAX_RETRIES; i++) {
+            total += Math.min(timeout, RttEstimator.DEFAULT_MAX_RTO) * 5 / 4 + RetransmissionEngine.DEFAULT_TICK_MILLIS;
+            timeout *= 2;
+        }
+        advance(total);
+        assertEquals(RetransmissionEngine.DEFAULT_MAX_RETRIES, sent.size());
+        assertEquals(1, failed.size());
+        assertEquals(0, engine.size());
+        assertFalse(engine.acknowledge(1));
+    }
+
+    @Test
+    public void ackOfARetransmittedMessageIsNotSampled() {
+        engine.track(1, message(1));
+        advance(2000);
+        assertEquals(1, sent.size());
+        engine.acknowledge(1);
+        assertFalse(engine.getRttEstimator().hasSample());
+    }
+
+    @Test
+    public void broadcastWaitsForEveryPeerAndRetransmitsToTheSilentOnes() {
+        engine.track(1, message(1), Arrays.asList("a", "b", "c"));
+        advance(100);
+        assertTrue(engine.acknowledge(1, "a", null));
+        assertFalse(engine.acknowledge(1, "a", null));   // twice from the same peer
+        assertFalse(engine.acknowledge(1, "x", null));   // never sent there
+        assertTrue(delivered.isEmpty());
+
+        advance(1300);   // the first timeout, the second one is at least 2250 after the send
+        List<String> retransmitted = new ArrayList<String>(sent);
+        Collections.sort(retransmitted);
+        assertEquals(Arrays.asList("1@b", "1@c"), retransmitted);
+
+        engine.acknowledge(1, "b", null);
+        engine.acknowledge(1, "c", null);
+        assertEquals(1, delivered.size());
+        assertEquals(0, engine.size());
+    }
+
+    @Test
+    public void rangeAckFromOnePeer() {
+        for (long id = 10; id < 14; id++) {
+            engine.track(id, message(id), Arrays.asList("a", "b"));
+        }
+        // 10, 11 and 13 acked by a: run 2, then a gap at 12, then 13
+        AckCoalescer.AckRange range = new AckCoalescer.AckRange(10, 2, 1L << 0);
+        assertEquals(3, engine.acknowledge(range, "a", null));
+        assertEquals(4, engine.size());
+        assertEquals(4, engine.acknowledge(new AckCoalescer.AckRange(10, 4, 0), "b", null));
+        assertEquals(3, delivered.size());
+        assertEquals(1, engine.size());
+    }
+
+    @Test
+    public void closedLinkTakesTheAckOfAnyPeer() {
+        engine.track(1, message(1), Arrays.asList("a", "b"));
+        engine.acknowledge(1, "b", null);
+        engine.forget("a");
+        advance(1400);
+        assertEquals(Arrays.asList("1@null"), sent);   // a comes back on another link, who knows which
+        assertTrue(engine.acknowledge(1, "a2", null));
+        assertEquals(1, delivered.size());
+    }
+
+    @Test
+    public void peerThatAckedCanNotStandInForAClosedLink() {
+        engine.track(1, message(1), Arrays.asList("a", "b"));
+        assertTrue(engine.acknowledge(1, "a", null));
+        engine.forget("b");
+        assertFalse(engine.acknowledge(1, "a", null));   // a repeats its ack, b has still not got it
+        assertTrue(delivered.isEmpty());
+        assertTrue(engine.acknowledge(1, "b2", null));
+        assertEquals(1, delivered.size());
+    }
+
+    @Test
+    public void everyClosedLinkWaitsForAnAckOfItsOwn() {
+        engine.track(1, message(1), Arrays.asList("a", "b", "c"));
+        engine.forget("a");
+        engine.forget("b");
+        assertTrue(engine.acknowledge(1, "c", null));
+        assertTrue(engine.acknowledge(1, "x", null));
+        assertFalse(engine.acknowledge(1, "x", null));
+        assertTrue(delivered.isEmpty());
+        assertTrue(engine.acknowledge(1, "y", null));
+        assertEquals(1, delivered.size());
+    }
+
+    @Test
+    public void peerRttIsFedToo() {
+        RttEstimator peerRtt = new RttEstimator();
+        engine.track(1, message(1), Arrays.asList("a"));
+        advance(300);
+        engine.acknowledge(1, "a", peerRtt);
+        assertEquals(300, peerRtt.getSrtt());
+    }
+
+    @Test
+    public void timeoutIsTheDestinationsOwn() {
+        RttEstimator fast = new RttEstimator();
+        RttEstimator slow = new RttEstimator();
+        engine.track(1, message(1), Arrays.asList("a", "b"));
+        advance(100);
+        engine.acknowledge(1, "a", fast);
+        engine.acknowledge(1, "b", slow);
+        for (int i = 0; i < 3; i++) {
+            slow.sample(4000);   // heartbeat echoes of a peer far away
+        }
+        assertEquals(300, fast.getRto());
+        assertEquals(250, engine.getRttEstimator().getRto());   // sampled by both acks
+        assertTrue(slow.getRto() > 8000);
+
+        engine.track(2, message(2), Arrays.asList("a"));
+        engine.track(3, message(3), Arrays.asList("b"));
+        engine.track(4, message(4), Arrays.asList("a", "b"));
+        engine.track(5, message(5), Arrays.asList("c"));   // no estimator of its own, the engine's
+        advance(300 * 5 / 4 + RetransmissionEngine.DEFAULT_TICK_MILLIS);
+        assertEquals(Arrays.asList("2@a", "5@c"), sent);
+        advance(slow.getRto() * 5 / 4);
+        assertTrue(sent.toString(), sent.contains("3@b") && sent.contains("4@a") && sent.contains("4@b"));
+    }
+
+    @Test
+    public void forgottenDestinationDropsItsEstimator() {
+        RttEstimator slow = new RttEstimator();
+        engine.track(1, message(1), Arrays.asList("b"));
+        advance(100);
+        engine.acknowledge(1, "b", slow);
+        for (int i = 0; i < 3; i++) {
+            slow.sample(4000);
+        }
+        engine.forget("b");
+
+        engine.track(2, message(2), Arrays.asList("b"));
+        advance(300 * 5 / 4 + RetransmissionEngine.DEFAULT_TICK_MILLIS);
+        assertEquals(Arrays.asList("2@b"), sent);
+    }
+
+    @Test
+    public void resetForgetsWithoutCallbacks() {
+        engine.track(1, message(1));
+        engine.reset();
+        advance(60000);
+        assertTrue(sent.isEmpty());
+        assertTrue(failed.isEmpty());
+        assertEquals(0, engine.size());
+    }
+}
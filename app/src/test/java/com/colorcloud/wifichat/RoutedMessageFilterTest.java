@@ -0,0 +1,42 @@
+package com.colorcloud.wifichat;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RoutedMessageFilterTest {
+
+    private static RoutedMessage envelope(long id, String... destinations) {
+        return new RoutedMessage(id, Arrays.asList(destinations), 5, "hi");
+    }
+
+    @Test
+    public void secondCopyIsDropped() {
+        RoutedMessageFilter filter = new RoutedMessageFilter();
+        assertEquals(Arrays.asList("a", "b"), filter.accept(envelope(1, "a", "b")));
+        assertTrue(filter.accept(envelope(1, "a", "b")).isEmpty());
+    }
+
+    @Test
+    public void envelopesMeetingAgainKeepTheirOwnDestinations() {
+        RoutedMessageFilter filter = new RoutedMessageFilter();
+        filter.accept(envelope(1, "a", "b"));
+        assertEquals(Arrays.asList("c"), filter.accept(envelope(1, "c")));
+        assertEquals(Collections.singletonList("d"), filter.accept(envelope(1, "B", "d")));   // MACs in any case
+        assertEquals(Arrays.asList("a"), filter.accept(envelope(2, "a")));
+    }
+
+    @Test
+    public void onlyTheRecentMessagesAreRemembered() {
+        RoutedMessageFilter filter = new RoutedMessageFilter();
+        for (long id = 0; id <= RoutedMessageFilter.MAX_MESSAGES; id++) {
+            filter.accept(envelope(id, "a"));
+        }
+        assertEquals(Arrays.asList("a"), filter.accept(envelope(0, "a")));
+        assertTrue(filter.accept(envelope(RoutedMessageFilter.MAX_MESSAGES, "a")).isEmpty());
+    }
+}
@@ -0,0 +1,114 @@
+package com.colorcloud.wifichat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * convergence time and forwarding overhead of the routing, on simulated topologies. The numbers are printed;
+ * the asserts hold the bounds the protocol promises.
+ */
+public class RoutingSimulationTest {
+
+    private static final long LATENCY = 20;
+    private static final long STEP = 10;
+
+    private static List<TopologySimulator.Node> allBut(TopologySimulator sim, int index) {
+        List<TopologySimulator.Node> others = new ArrayList<TopologySimulator.Node>();
+        for (TopologySimulator.Node node : sim.nodes()) {
+            if (node.index != index) {
+                others.add(node);
+            }
+        }
+        return others;
+    }
+
+    @Test
+    public void lineConvergesOneAdvertisementPerHop() {
+        TopologySimulator sim = new TopologySimulator(8, LATENCY, 1);
+        sim.line();
+        sim.startAdvertising();
+        long converged = sim.runUntilConverged(STEP, 60000);
+        System.out.println("line of 8: converged in " + converged + " ms");
+        assertTrue(converged >= 0);
+        // a route learned on link up travels one hop per advertisement at worst
+        assertTrue(converged <= 6 * RoutingManager.ADVERTISE_INTERVAL);
+    }
+
+    @Test
+    public void gridReconvergesAfterALinkBreaks() {
+        TopologySimulator sim = new TopologySimulator(16, LATENCY, 2);
+        sim.grid(4);
+        sim.startAdvertising();
+        assertTrue(sim.runUntilConverged(STEP, 60000) >= 0);
+
+        sim.unlink(5, 6);
+        sim.unlink(9, 10);
+        long reconverged = sim.runUntilConverged(STEP, 2 * RoutingTable.DEFAULT_ROUTE_TIMEOUT);
+        System.out.println("grid 4x4, 2 links broken: reconverged in " + reconverged + " ms");
+        assertTrue(reconverged >= 0);
+        assertTrue(reconverged <= RoutingTable.DEFAULT_ROUTE_TIMEOUT);
+    }
+
+    @Test
+    public void partitionedNodesLoseTheirRoutes() {
+        TopologySimulator sim = new TopologySimulator(6, LATENCY, 3);
+        sim.line();
+        sim.startAdvertising();
+        assertTrue(sim.runUntilConverged(STEP, 60000) >= 0);
+
+        sim.unlink(2, 3);
+        long reconverged = sim.runUntilConverged(STEP, 2 * RoutingTable.DEFAULT_ROUTE_TIMEOUT);
+        System.out.println("line of 6 cut in two: routes withdrawn in " + reconverged + " ms");
+        assertTrue(reconverged >= 0);
+        assertEquals(RoutingTable.INFINITY, sim.node(0).table.hopsTo(TopologySimulator.macOf(5)));
+    }
+
+    /**
+     * a group message from a corner of the grid reaches every node with about one frame per destination, where
+     * the old connectionTest walk made one p2p connect per peer and reached only the neighbors. Where the paths
+     * of two envelopes cross, a node forwards each of them: a little over one frame per destination.
+     */
+    @Test
+    public void groupMessageTakesAboutOneFramePerDestination() {
+        TopologySimulator sim = new TopologySimulator(16, LATENCY, 4);
+        sim.grid(4);
+        sim.startAdvertising();
+        assertTrue(sim.runUntilConverged(STEP, 60000) >= 0);
+
+        sim.resetCounters();
+        long id = sim.node(0).send(allBut(sim, 0));
+        sim.runUntil(sim.now() + 15 * LATENCY);
+        int delivered = 0;
+        for (TopologySimulator.Node node : sim.nodes()) {
+            if (node.received.contains(id)) {
+                delivered++;
+            }
+        }
+        int frames = sim.frames(Constant.ROUTED_MESSAGE);
+        System.out.println("grid 4x4 group message: " + delivered + " of 15 delivered with " + frames
+                + " frames, " + sim.frames(Constant.ROUTING_ACKNOWLEDGEMENT) + " advertisements meanwhile");
+        assertEquals(15, delivered);
+        assertTrue(frames >= 15 && frames <= 15 * 5 / 4);
+        assertEquals(0, sim.unreachable());
+    }
+
+    @Test
+    public void advertisementOverheadPerInterval() {
+        TopologySimulator sim = new TopologySimulator(16, LATENCY, 5);
+        sim.grid(4);
+        sim.startAdvertising();
+        assertTrue(sim.runUntilConverged(STEP, 60000) >= 0);
+
+        sim.resetCounters();
+        sim.runUntil(sim.now() + 10 * RoutingManager.ADVERTISE_INTERVAL);
+        int frames = sim.frames(Constant.ROUTING_ACKNOWLEDGEMENT);
+        System.out.println("grid 4x4: " + frames / 10 + " advertisements, " + sim.bytesSent() / 10
+                + " bytes per interval");
+        assertEquals(2 * 24 * 10, frames, 2 * 24);   // one per link direction per interval, 24 links
+    }
+}
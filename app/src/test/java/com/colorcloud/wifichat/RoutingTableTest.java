@@ -0,0 +1,121 @@
+package com.colorcloud.wifichat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RoutingTableTest {
+
+    private static final String A = "aa:aa:aa:aa:aa:aa";
+    private static final String B = "bb:bb:bb:bb:bb:bb";
+    private static final String C = "cc:cc:cc:cc:cc:cc";
+    private static final String D = "dd:dd:dd:dd:dd:dd";
+
+    private static String advertisement(String advertiser, String... entries) {
+        StringBuilder sb = new StringBuilder(advertiser);
+        for (String entry : entries) {
+            sb.append(Constant.ROUTE_ENTRY_TOKEN).append(entry);
+        }
+        return sb.toString();
+    }
+
+    private static String entry(String destination, Object hops, String nextHop) {
+        return destination + Constant.ROUTE_FIELD_TOKEN + hops + Constant.ROUTE_FIELD_TOKEN + nextHop;
+    }
+
+    @Test
+    public void advertiserIsANeighbor() {
+        RoutingTable table = new RoutingTable(A, RoutingTable.DEFAULT_ROUTE_TIMEOUT);
+        table.onAdvertisement(advertisement(B.toUpperCase()), 0);
+        assertEquals(B, table.nextHop(B));
+        assertEquals(1, table.hopsTo(B));
+    }
+
+    @Test
+    public void routesThroughTheNeighborAreOneHopLonger() {
+        RoutingTable table = new RoutingTable(A, RoutingTable.DEFAULT_ROUTE_TIMEOUT);
+        assertTrue(table.onAdvertisement(advertisement(B, entry(C, 1, C), entry(D, 2, C)), 0));
+        assertEquals(B, table.nextHop(C));
+        assertEquals(2, table.hopsTo(C));
+        assertEquals(3, table.hopsTo(D));
+    }
+
+    @Test
+    public void shorterRouteWins() {
+        RoutingTable table = new RoutingTable(A, RoutingTable.DEFAULT_ROUTE_TIMEOUT);
+        table.onAdvertisement(advertisement(B, entry(D, 3, C)), 0);
+        table.onAdvertisement(advertisement(C, entry(D, 1, D)), 0);
+        assertEquals(C, table.nextHop(D));
+        assertEquals(2, table.hopsTo(D));
+
+        assertFalse(table.onAdvertisement(advertisement(B, entry(D, 3, C)), 0));
+        assertEquals(C, table.nextHop(D));
+    }
+
+    @Test
+    public void poisonReverse() {
+        RoutingTable table = new RoutingTable(A, RoutingTable.DEFAULT_ROUTE_TIMEOUT);
+        table.onAdvertisement(advertisement(B, entry(C, 1, A)), 0);
+        assertNull(table.nextHop(C));
+        assertEquals(RoutingTable.INFINITY, table.hopsTo(C));
+    }
+
+    @Test
+    public void routeNoLongerAdvertisedIsWithdrawn() {
+        RoutingTable table = new RoutingTable(A, RoutingTable.DEFAULT_ROUTE_TIMEOUT);
+        table.onAdvertisement(advertisement(B, entry(C, 1, C)), 0);
+        assertTrue(table.onAdvertisement(advertisement(B), 1));
+        assertNull(table.nextHop(C));
+        assertEquals(B, table.nextHop(B));
+    }
+
+    @Test
+    public void staleRoutesExpire() {
+        RoutingTable table = new RoutingTable(A, 1000);
+        table.onAdvertisement(advertisement(B, entry(C, 1, C)), 0);
+        table.onNeighbor(D, 900);
+        assertEquals(2, table.expire(1500));
+        assertEquals(D, table.nextHop(D));
+        assertNull(table.nextHop(B));
+    }
+
+    @Test
+    public void removeNeighborDropsItsRoutes() {
+        RoutingTable table = new RoutingTable(A, RoutingTable.DEFAULT_ROUTE_TIMEOUT);
+        table.onAdvertisement(advertisement(B, entry(C, 1, C)), 0);
+        table.removeNeighbor(B);
+        assertTrue(table.routes().isEmpty());
+    }
+
+    @Test
+    public void encodedAdvertisementIsUnderstood() {
+        RoutingTable b = new RoutingTable(B, RoutingTable.DEFAULT_ROUTE_TIMEOUT);
+        b.onNeighbor(C, 0);
+        RoutingTable a = new RoutingTable(A, RoutingTable.DEFAULT_ROUTE_TIMEOUT);
+        a.onAdvertisement(b.encodeAdvertisement(), 0);
+        assertEquals(B, a.nextHop(C));
+        assertEquals(B, RoutingTable.advertiser(b.encodeAdvertisement()));
+    }
+
+    @Test
+    public void malformedAdvertisementIsIgnoredWhole() {
+        String[] malformed = {
+                advertisement(B, entry(C, 1, C), entry(D, "x", C)),
+                advertisement(B, entry(C, 1, C), entry(D, "", C)),
+                advertisement(B, entry(C, 1, C), entry(D, "99999999999", C)),
+                advertisement(B, entry(C, 1, C), entry(D, -1, C)),
+                advertisement(B, entry(C, 1, C), D + Constant.ROUTE_FIELD_TOKEN + 1),
+                advertisement(B, entry(C, 1, C), "garbage"),
+                "",
+        };
+        for (String body : malformed) {
+            RoutingTable table = new RoutingTable(A, RoutingTable.DEFAULT_ROUTE_TIMEOUT);
+            assertFalse(body, table.onAdvertisement(body, 0));
+            assertTrue(body, table.routes().isEmpty());
+            assertNull(body, RoutingTable.advertiser(body));
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.colorcloud.wifichat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RttEstimatorTest {
+
+    @Test
+    public void initialRtoBeforeAnySample() {
+        RttEstimator estimator = new RttEstimator();
+        assertFalse(estimator.hasSample());
+        assertEquals(RttEstimator.DEFAULT_INITIAL_RTO, estimator.getRto());
+    }
+
+    @Test
+    public void firstSampleSetsSrttAndHalfOfItAsVariance() {
+        RttEstimator estimator = new RttEstimator();
+        estimator.sample(100);
+        assertTrue(estimator.hasSample());
+        assertEquals(100, estimator.getSrtt());
+        assertEquals(50, estimator.getRttvar());
+        assertEquals(300, estimator.getRto());   // 100 + 4 * 50
+    }
+
+    @Test
+    public void laterSamplesAreSmoothed() {
+        RttEstimator estimator = new RttEstimator();
+        estimator.sample(100);
+        estimator.sample(200);
+        // rttvar = 0.75 * 50 + 0.25 * 100, srtt = 0.875 * 100 + 0.125 * 200
+        assertEquals(62, estimator.getRttvar());
+        assertEquals(112, estimator.getSrtt());
+        assertEquals(363, estimator.getRto());   // ceil(112.5 + 4 * 62.5)
+    }
+
+    @Test
+    public void rtoIsClamped() {
+        RttEstimator estimator = new RttEstimator(1000, 200, 5000);
+        estimator.sample(1);
+        assertEquals(200, estimator.getRto());
+        for (int i = 0; i < 10; i++) {
+            estimator.sample(100000);
+        }
+        assertEquals(5000, estimator.getRto());
+    }
+
+    @Test
+    public void negativeSampleIsIgnored() {
+        RttEstimator estimator = new RttEstimator();
+        estimator.sample(-5);
+        assertFalse(estimator.hasSample());
+    }
+}
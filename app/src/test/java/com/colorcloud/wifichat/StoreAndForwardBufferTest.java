@@ -0,0 +1,95 @@
+package com.colorcloud.wifichat;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StoreAndForwardBufferTest {
+
+    private static RoutedMessage message(long id, int hopsLeft) {
+        return new RoutedMessage(id, Arrays.asList("aa:aa:aa:aa:aa:aa"), hopsLeft, "body " + id);
+    }
+
+    @Test
+    public void summaryVectorListsHeldMessages() {
+        StoreAndForwardBuffer buffer = new StoreAndForwardBuffer(10, 1000);
+        assertTrue(buffer.offer(message(1, 3), StoreAndForwardBuffer.PRIORITY_OWN, 0));
+        assertTrue(buffer.offer(message(2, 3), StoreAndForwardBuffer.PRIORITY_RELAYED, 0));
+        assertFalse(buffer.offer(message(2, 3), StoreAndForwardBuffer.PRIORITY_RELAYED, 0));
+        assertFalse(buffer.offer(message(3, 0), StoreAndForwardBuffer.PRIORITY_RELAYED, 0));
+        assertEquals("1,2", buffer.summaryVector(0));
+    }
+
+    @Test
+    public void missingFromSendsOnlyWhatTheNeighborLacks() {
+        StoreAndForwardBuffer buffer = new StoreAndForwardBuffer(10, 1000);
+        buffer.offer(message(1, 3), StoreAndForwardBuffer.PRIORITY_OWN, 0);
+        buffer.offer(message(2, 3), StoreAndForwardBuffer.PRIORITY_OWN, 0);
+        assertEquals(1, buffer.missingFrom("1,junk", 0).size());
+        assertEquals(2, buffer.missingFrom("1,junk", 0).get(0).getId());
+    }
+
+    @Test
+    public void deliveredMessagesAreListedWithoutBeingKept() {
+        StoreAndForwardBuffer buffer = new StoreAndForwardBuffer(10, 1000);
+        buffer.offer(message(1, 3), StoreAndForwardBuffer.PRIORITY_RELAYED, 0);
+        buffer.markDelivered(1, 0);
+        buffer.markDelivered(5, 0);
+        buffer.markDelivered(5, 0);
+
+        Set<Long> ids = StoreAndForwardBuffer.parseSummaryVector(buffer.summaryVector(0));
+        assertEquals(2, ids.size());
+        assertTrue(ids.contains(5L));
+        assertEquals(1, buffer.size());
+        assertFalse(buffer.contains(5));
+
+        // a neighbor holding 5 gets nothing back for it
+        StoreAndForwardBuffer neighbor = new StoreAndForwardBuffer(10, 1000);
+        neighbor.offer(message(5, 3), StoreAndForwardBuffer.PRIORITY_RELAYED, 0);
+        assertTrue(neighbor.missingFrom(buffer.summaryVector(0), 0).isEmpty());
+    }
+
+    @Test
+    public void deliveredIdsExpireAndAreBounded() {
+        StoreAndForwardBuffer buffer = new StoreAndForwardBuffer(2, 1000);
+        buffer.markDelivered(1, 0);
+        buffer.markDelivered(2, 0);
+        buffer.markDelivered(3, 0);
+        assertEquals("2,3", buffer.summaryVector(0));
+        assertEquals("", buffer.summaryVector(1000));
+    }
+
+    @Test
+    public void lowestPriorityGoesFirstWhenFull() {
+        StoreAndForwardBuffer buffer = new StoreAndForwardBuffer(2, 1000);
+        buffer.offer(message(1, 3), StoreAndForwardBuffer.PRIORITY_RELAYED, 0);
+        buffer.offer(message(2, 3), StoreAndForwardBuffer.PRIORITY_OWN, 0);
+        assertTrue(buffer.offer(message(3, 3), StoreAndForwardBuffer.PRIORITY_OWN, 0));
+        assertFalse(buffer.contains(1));
+        assertEquals(2, buffer.size());
+        assertFalse(buffer.offer(message(4, 3), StoreAndForwardBuffer.PRIORITY_RELAYED, 0));
+        assertFalse(buffer.contains(4));
+    }
+
+    @Test
+    public void evictedAndTurnedAwayMessagesAreStillListed() {
+        StoreAndForwardBuffer buffer = new StoreAndForwardBuffer(2, 1000);
+        buffer.offer(message(1, 3), StoreAndForwardBuffer.PRIORITY_RELAYED, 0);
+        buffer.offer(message(2, 3), StoreAndForwardBuffer.PRIORITY_OWN, 0);
+        buffer.offer(message(3, 3), StoreAndForwardBuffer.PRIORITY_OWN, 500);
+        buffer.offer(message(4, 3), StoreAndForwardBuffer.PRIORITY_RELAYED, 500);
+        assertEquals("2,3,1,4", buffer.summaryVector(500));
+
+        // a neighbor does not offer them again, only to see them dropped
+        StoreAndForwardBuffer neighbor = new StoreAndForwardBuffer(10, 1000);
+        neighbor.offer(message(1, 3), StoreAndForwardBuffer.PRIORITY_RELAYED, 0);
+        assertTrue(neighbor.missingFrom(buffer.summaryVector(500), 500).isEmpty());
+
+        assertEquals("3,4", buffer.summaryVector(1000));   // 1 listed until its own expiry, not longer
+    }
+}
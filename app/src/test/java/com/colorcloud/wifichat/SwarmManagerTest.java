@@ -0,0 +1,375 @@
+package com.colorcloud.wifichat;
+
+import android.os.Handler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * swarms between SwarmManagers on fake ConnectionManagers, and one manager against scripted neighbors.
+ * The handler does nothing on the JVM: the test delivers the frames and runs the pumps itself.
+ */
+public class SwarmManagerTest {
+
+    private static final int CHUNK_SIZE = 16 * 1024;   // one SWARM_PIECE per chunk
+    private static final int MAX_STEPS = 100000;
+
+    /**
+     * a group member. Its channels lead to other nodes, or to scripted neighbors (null node) the test plays.
+     */
+    private static class Node extends ConnectionManager implements FileServer.Listener {
+        final SwarmManager manager = new SwarmManager();
+        final Map<SocketChannel, Node> links = new LinkedHashMap<SocketChannel, Node>();
+        final Map<SocketChannel, SocketChannel> far = new HashMap<SocketChannel, SocketChannel>();   // the other end's channel to us
+        final ArrayDeque<MessageWrapper> inbox = new ArrayDeque<MessageWrapper>();
+        final List<MessageWrapper> sent = new ArrayList<MessageWrapper>();   // origin: the channel it went out on
+        final List<FileTransferEngine.Received> done = new ArrayList<FileTransferEngine.Received>();
+        long pieceBytes = 0;
+        int answered = 0;   // of sent, the requests a scripted neighbor answered
+
+        Node(File dir) {
+            super(null);
+            manager.init(this, new Handler(), dir);   // posts nothing on the JVM
+            manager.setListener(this);
+        }
+
+        SocketChannel scriptedNeighbor() throws IOException {
+            SocketChannel channel = SocketChannel.open();
+            links.put(channel, null);
+            return channel;
+        }
+
+        @Override
+        public List<SocketChannel> peerChannels() {
+            return new ArrayList<SocketChannel>(links.keySet());
+        }
+
+        @Override
+        public int sendTo(SocketChannel socketChannel, MessageWrapper messageWrapper) {
+            MessageWrapper copy = arrived(messageWrapper, socketChannel);
+            sent.add(copy);
+            if (copy.getCategory() == Constant.SWARM_PIECE) {
+                pieceBytes += copy.getPayload().remaining() - 8;
+            }
+            Node other = links.get(socketChannel);
+            if (other != null) {
+                other.inbox.add(arrived(messageWrapper, far.get(socketChannel)));
+            }
+            return messageWrapper.getFrame().remaining();
+        }
+
+        @Override
+        public int bulkRoom(SocketChannel socketChannel) {
+            return Integer.MAX_VALUE;
+        }
+
+        boolean deliver() {
+            boolean any = !inbox.isEmpty();
+            while (!inbox.isEmpty()) {
+                manager.onFrame(inbox.poll());
+            }
+            return any;
+        }
+
+        @Override
+        public void onTransferProgress(int transfer, FileManifest manifest, long bytesDone) {
+        }
+
+        @Override
+        public void onTransferDone(int transfer, FileTransferEngine.Received received) {
+            done.add(received);
+        }
+
+        @Override
+        public void onTransferFailed(int transfer, IOException e) {
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<SocketChannel> channels = new ArrayList<SocketChannel>();
+    private byte[] content;
+    private File source;
+    private FileManifest manifest;
+
+    @Before
+    public void setUp() {
+        PersistentGroupPeers.getInstance().reset();   // no member list: swarms do not retire by themselves
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+    }
+
+    private void file(int chunks) throws IOException {
+        content = new byte[chunks * CHUNK_SIZE - 100];
+        new Random(chunks).nextBytes(content);
+        source = folder.newFile("clip.mp4");
+        RandomAccessFile out = new RandomAccessFile(source, "rw");
+        out.write(content);
+        out.close();
+        FileChannel channel = new FileInputStream(source).getChannel();
+        manifest = FileManifest.build(channel, source.getName(), "video/mp4", CHUNK_SIZE);
+        channel.close();
+    }
+
+    private Node node(String name) throws IOException {
+        return new Node(folder.newFolder(name));
+    }
+
+    private SocketChannel neighbor(Node node) throws IOException {
+        SocketChannel channel = node.scriptedNeighbor();
+        channels.add(channel);
+        return channel;
+    }
+
+    private void link(Node a, Node b) throws IOException {
+        SocketChannel ab = SocketChannel.open();
+        SocketChannel ba = SocketChannel.open();
+        channels.add(ab);
+        channels.add(ba);
+        a.links.put(ab, b);
+        a.far.put(ab, ba);
+        b.links.put(ba, a);
+        b.far.put(ba, ab);
+    }
+
+    /**
+     * the frame as read off the socket on the other end, from origin.
+     */
+    private static MessageWrapper arrived(MessageWrapper messageWrapper, SocketChannel origin) {
+        try {
+            MessageWrapper copy = FrameCodec.decode(messageWrapper.getFrame().duplicate());
+            copy.setOrigin(origin);
+            return copy;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void run(Node... nodes) {
+        for (int step = 0; step < MAX_STEPS; step++) {
+            boolean moved = false;
+            for (Node node : nodes) {
+                moved |= node.deliver();
+            }
+            if (!moved) {
+                for (Node node : nodes) {
+                    node.manager.pump();
+                }
+                boolean idle = true;
+                for (Node node : nodes) {
+                    idle &= node.inbox.isEmpty();
+                }
+                if (idle) {
+                    return;
+                }
+            }
+        }
+        fail("the swarm did not settle");
+    }
+
+    private MessageWrapper announce() {
+        byte[] manifestBytes = manifest.toBytes();
+        ByteBuffer frame = FrameCodec.allocateBinary(Constant.SWARM_ANNOUNCE, manifest.transferId(), manifestBytes.length);
+        frame.put(manifestBytes);
+        return FrameCodec.binaryMessage(frame);
+    }
+
+    private MessageWrapper haveAll(int... chunks) {
+        byte[] bits = new byte[(manifest.chunkCount() + 7) / 8];
+        for (int chunk : chunks) {
+            bits[chunk >> 3] |= 1 << (chunk & 7);
+        }
+        ByteBuffer frame = FrameCodec.allocateBinary(Constant.SWARM_HAVE, manifest.transferId(), 4 + bits.length);
+        frame.putInt(-1).put(bits);
+        return FrameCodec.binaryMessage(frame);
+    }
+
+    private MessageWrapper piece(int chunk, boolean corrupt) {
+        int offset = chunk * CHUNK_SIZE;
+        int n = Math.min(CHUNK_SIZE, content.length - offset);
+        ByteBuffer frame = FrameCodec.allocateBinary(Constant.SWARM_PIECE, manifest.transferId(), 8 + n);
+        frame.putInt(chunk).putInt(0).put(content, offset, n);
+        if (corrupt) {
+            frame.put(FrameCodec.HEADER_SIZE + 8, (byte) ~content[offset]);
+        }
+        return FrameCodec.binaryMessage(frame);
+    }
+
+    private static void from(Node node, SocketChannel neighbor, MessageWrapper messageWrapper) {
+        node.manager.onFrame(arrived(messageWrapper, neighbor));
+    }
+
+    /**
+     * the chunks node asked the neighbor for, in order.
+     */
+    private static List<Integer> requests(Node node, SocketChannel neighbor) {
+        List<Integer> chunks = new ArrayList<Integer>();
+        for (MessageWrapper messageWrapper : node.sent) {
+            if (messageWrapper.getCategory() == Constant.SWARM_REQUEST && messageWrapper.getOrigin() == neighbor) {
+                chunks.add(messageWrapper.getPayload().getInt());
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * the neighbor answers the requests of node it has not answered yet, and those they lead to, up to max pieces.
+     */
+    private void answer(Node node, SocketChannel neighbor, int max) {
+        for (int pieces = 0; pieces < max && node.answered < node.sent.size(); node.answered++) {
+            MessageWrapper messageWrapper = node.sent.get(node.answered);
+            if (messageWrapper.getCategory() == Constant.SWARM_REQUEST && messageWrapper.getOrigin() == neighbor) {
+                from(node, neighbor, piece(messageWrapper.getPayload().getInt(), false));
+                pieces++;
+            }
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void everyMemberGetsTheFileWhileTheSourceUploadsItAboutOnce() throws IOException {
+        file(64);
+        Node s = node("s");
+        Node a = node("a");
+        Node b = node("b");
+        link(s, a);
+        link(s, b);
+        link(a, b);
+
+        s.manager.distribute(new FileInputStream(source).getChannel(), manifest);
+        run(s, a, b);
+
+        assertEquals(1, a.done.size());
+        assertEquals(1, b.done.size());
+        assertArrayEquals(content, read(a.done.get(0).file));
+        assertArrayEquals(content, read(b.done.get(0).file));
+        System.out.println("source uploaded " + s.pieceBytes * 100 / content.length + "% of the file for 2 members");
+        // one upload per member would be twice the file
+        assertTrue("source uploaded " + s.pieceBytes + " bytes", s.pieceBytes < content.length * 3 / 2);
+        assertEquals(2L * content.length, s.pieceBytes + a.pieceBytes + b.pieceBytes);
+    }
+
+    @Test
+    public void rarestChunkIsAskedForFirst() throws IOException {
+        file(4);
+        Node a = node("a");
+        SocketChannel p1 = neighbor(a);
+        SocketChannel p2 = neighbor(a);
+
+        from(a, p1, announce());
+        from(a, p2, haveAll(0, 1, 2));
+        List<Integer> fromP2 = requests(a, p2);
+        assertEquals(2, fromP2.size());   // MAX_REQUESTS_PER_PEER
+
+        from(a, p1, haveAll(0, 1, 2, 3));
+        List<Integer> fromP1 = requests(a, p1);
+        assertEquals(Integer.valueOf(3), fromP1.get(0));   // only p1 has it
+        assertEquals(2, fromP1.size());
+        List<Integer> all = new ArrayList<Integer>(fromP1);
+        all.addAll(fromP2);
+        assertTrue(all.containsAll(Arrays.asList(0, 1, 2, 3)));
+    }
+
+    @Test
+    public void pieceFailingItsChecksumIsAskedForAgain() throws IOException {
+        file(2);
+        Node a = node("a");
+        SocketChannel p = neighbor(a);
+        from(a, p, announce());
+        from(a, p, haveAll(0, 1));
+        assertEquals(2, requests(a, p).size());
+
+        from(a, p, piece(0, true));
+        assertEquals(3, requests(a, p).size());
+        assertEquals(Integer.valueOf(0), requests(a, p).get(2));
+        assertTrue(a.done.isEmpty());
+
+        answer(a, p, 3);   // every request, the first one for chunk 0 too: a piece nobody waits for is dropped
+        assertEquals(1, a.done.size());
+        assertArrayEquals(content, read(a.done.get(0).file));
+    }
+
+    @Test
+    public void verifiedChunksSurviveForTheNextAnnouncement() throws IOException {
+        file(20);
+        File dir = folder.newFolder("a");
+        Node a = new Node(dir);
+        SocketChannel p = neighbor(a);
+        from(a, p, announce());
+        from(a, p, haveAll(range(20)));
+        answer(a, p, 17);   // the bitfield is recorded at 16
+
+        Node again = new Node(dir);
+        SocketChannel q = neighbor(again);
+        from(again, q, announce());
+
+        BitSet kept = null;
+        for (MessageWrapper messageWrapper : again.sent) {
+            ByteBuffer payload = messageWrapper.getPayload();
+            if (messageWrapper.getCategory() == Constant.SWARM_HAVE && payload.getInt() == -1) {
+                byte[] bits = new byte[payload.remaining()];
+                payload.get(bits);
+                kept = BitSet.valueOf(bits);
+            }
+        }
+        assertEquals(16, kept.cardinality());
+
+        from(again, q, haveAll(range(20)));
+        answer(again, q, 20);
+        assertEquals(4, requests(again, q).size());
+        for (int chunk : requests(again, q)) {
+            assertTrue(!kept.get(chunk));
+        }
+        assertEquals(1, again.done.size());
+        assertArrayEquals(content, read(again.done.get(0).file));
+    }
+
+    private static int[] range(int count) {
+        int[] chunks = new int[count];
+        for (int i = 0; i < count; i++) {
+            chunks[i] = i;
+        }
+        return chunks;
+    }
+}
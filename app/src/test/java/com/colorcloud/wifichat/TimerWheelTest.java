@@ -0,0 +1,92 @@
+package com.colorcloud.wifichat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimerWheelTest {
+
+    private static final long TICK = 50;
+
+    @Test
+    public void firesAtTheDeadlineNotBefore() {
+        TimerWheel<String> wheel = new TimerWheel<String>(TICK, 16, 0);
+        List<String> expired = new ArrayList<String>();
+        wheel.schedule("a", 120);
+        wheel.advance(100, expired);
+        assertTrue(expired.isEmpty());
+        wheel.advance(149, expired);
+        assertTrue(expired.isEmpty());
+        wheel.advance(150, expired);
+        assertEquals(Arrays.asList("a"), expired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void passedDeadlineFiresOnTheNextTick() {
+        TimerWheel<String> wheel = new TimerWheel<String>(TICK, 16, 1000);
+        List<String> expired = new ArrayList<String>();
+        wheel.schedule("late", 10);
+        wheel.advance(1049, expired);
+        assertTrue(expired.isEmpty());
+        wheel.advance(1050, expired);
+        assertEquals(Arrays.asList("late"), expired);
+    }
+
+    @Test
+    public void deadlineBeyondOneRevolutionWaitsItsTurn() {
+        TimerWheel<String> wheel = new TimerWheel<String>(TICK, 4, 0);
+        List<String> expired = new ArrayList<String>();
+        wheel.schedule("far", 10 * TICK);
+        for (long now = TICK; now < 10 * TICK; now += TICK) {
+            wheel.advance(now, expired);
+            assertTrue("fired at " + now, expired.isEmpty());
+        }
+        wheel.advance(10 * TICK, expired);
+        assertEquals(Arrays.asList("far"), expired);
+    }
+
+    @Test
+    public void longPauseFiresEverythingDueOnce() {
+        TimerWheel<String> wheel = new TimerWheel<String>(TICK, 8, 0);
+        List<String> expired = new ArrayList<String>();
+        wheel.schedule("a", 60);
+        wheel.schedule("b", 300);
+        wheel.schedule("c", 5000);
+        wheel.advance(100000, expired);
+        Collections.sort(expired);
+        assertEquals(Arrays.asList("a", "b", "c"), expired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void slotsRoundUpToAPowerOfTwo() {
+        TimerWheel<Integer> wheel = new TimerWheel<Integer>(TICK, 5, 0);
+        List<Integer> expired = new ArrayList<Integer>();
+        for (int i = 1; i <= 20; i++) {
+            wheel.schedule(i, i * TICK);
+        }
+        for (int i = 1; i <= 20; i++) {
+            wheel.advance(i * TICK, expired);
+            assertEquals(i, expired.size());
+            assertEquals(Integer.valueOf(i), expired.get(i - 1));
+        }
+    }
+
+    @Test
+    public void clear() {
+        TimerWheel<String> wheel = new TimerWheel<String>(TICK, 8, 0);
+        List<String> expired = new ArrayList<String>();
+        wheel.schedule("a", 60);
+        wheel.clear();
+        wheel.advance(1000, expired);
+        assertTrue(expired.isEmpty());
+        assertEquals(0, wheel.size());
+    }
+}
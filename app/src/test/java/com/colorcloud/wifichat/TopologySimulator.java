@@ -0,0 +1,440 @@
+package com.colorcloud.wifichat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static com.colorcloud.wifichat.Constant.ROUTED_MESSAGE;
+import static com.colorcloud.wifichat.Constant.ROUTING_ACKNOWLEDGEMENT;
+import static com.colorcloud.wifichat.Constant.SUMMARY_VECTOR;
+
+/**
+ * discrete-event simulation of devices running the multi-hop mode over a topology of socket links, on the JVM.
+ * <p/>
+ * Each node runs what RoutingManager runs on a device, with the same pure java parts: a RoutingTable advertised to
+ * the linked neighbors every RoutingManager.ADVERTISE_INTERVAL (first one at a random phase) and right away when
+ * a link comes up, routed messages split per next hop, the copies dropped by RoutedMessageFilter. A frame
+ * takes linkLatency to cross a link, and is lost if the link is down by then. Time is simulated, in
+ * milliseconds: an hour of advertisements runs in well under a second.
+ * <p/>
+ * With STORE_SUMMARY the nodes also keep what they send and relay in a StoreAndForwardBuffer and swap summary
+ * vectors when a link comes up, as RoutingManager does. STORE_NONE is the multi-hop mode without the buffer, a
+ * message with no linked next hop is lost; STORE_FLOOD keeps the buffer but sends all of it on every link up,
+ * without summary vectors.
+ * <p/>
+ * Every frame sent is counted, per category, to measure the overhead.
+ */
+final class TopologySimulator {
+
+    static final int STORE_NONE = 0;
+    static final int STORE_FLOOD = 1;
+    static final int STORE_SUMMARY = 2;
+
+    private static final class Event implements Comparable<Event> {
+        final long time;
+        final long seq;
+        final Runnable action;
+
+        Event(long time, long seq, Runnable action) {
+            this.time = time;
+            this.seq = seq;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+        }
+    }
+
+    final class Node {
+        final int index;
+        final String mac;
+        final RoutingTable table;
+        final RoutedMessageFilter routedFilter = new RoutedMessageFilter();
+        final MessageIdGenerator ids;
+        final StoreAndForwardBuffer buffer = new StoreAndForwardBuffer(StoreAndForwardBuffer.DEFAULT_CAPACITY,
+                StoreAndForwardBuffer.DEFAULT_TTL);
+        final List<Long> received = new ArrayList<Long>();   // ids of the routed messages delivered here
+
+        Node(int index) {
+            this.index = index;
+            this.mac = macOf(index);
+            this.table = new RoutingTable(mac, RoutingTable.DEFAULT_ROUTE_TIMEOUT);
+            this.ids = new MessageIdGenerator(index, 1);
+        }
+
+        void advertise() {
+            table.expire(now);
+            MessageWrapper advertisement = new MessageWrapper(ROUTING_ACKNOWLEDGEMENT, 0, 0,
+                    table.encodeAdvertisement());
+            for (int neighbor = 0; neighbor < nodes.size(); neighbor++) {
+                if (linked(index, neighbor)) {
+                    transmit(this, nodes.get(neighbor), advertisement);
+                }
+            }
+        }
+
+        /**
+         * send a new message to the destinations, as RoutingManager.send() does.
+         */
+        long send(List<Node> destinations) {
+            List<String> macs = new ArrayList<String>();
+            for (Node destination : destinations) {
+                macs.add(destination.mac);
+            }
+            long id = ids.next();
+            RoutedMessage routedMessage = new RoutedMessage(id, macs, RoutingTable.INFINITY - 1, "m" + id);
+            routedFilter.accept(routedMessage);
+            if (storeMode != STORE_NONE) {
+                buffer.offer(routedMessage, StoreAndForwardBuffer.PRIORITY_OWN, now);
+            }
+            forward(routedMessage);
+            return id;
+        }
+
+        /**
+         * one envelope per next hop; a destination without a route is tried directly.
+         */
+        void forward(RoutedMessage routedMessage) {
+            Map<String, List<String>> byNextHop = new LinkedHashMap<String, List<String>>();
+            for (String destination : routedMessage.getDestinations()) {
+                String nextHop = table.nextHop(destination);
+                if (nextHop == null) {
+                    nextHop = destination;
+                }
+                List<String> list = byNextHop.get(nextHop);
+                if (list == null) {
+                    list = new ArrayList<String>();
+                    byNextHop.put(nextHop, list);
+                }
+                list.add(destination);
+            }
+            for (Map.Entry<String, List<String>> entry : byNextHop.entrySet()) {
+                Node nextHop = nodeOf(entry.getKey());
+                if (nextHop != null && linked(index, nextHop.index)) {
+                    transmit(this, nextHop, new RoutedMessage(routedMessage.getId(), entry.getValue(),
+                            routedMessage.getHopsLeft(), routedMessage.getBody()).toMessageWrapper());
+                } else {
+                    unreachable += entry.getValue().size();
+                }
+            }
+        }
+
+        void onFrame(Node from, MessageWrapper messageWrapper) {
+            switch (messageWrapper.getCategory()) {
+                case ROUTING_ACKNOWLEDGEMENT:
+                    table.onAdvertisement(messageWrapper.getMessageBody(), now);
+                    break;
+                case ROUTED_MESSAGE:
+                    onRoutedMessage(RoutedMessage.parse(messageWrapper));
+                    break;
+                case SUMMARY_VECTOR:
+                    for (RoutedMessage missing : buffer.missingFrom(messageWrapper.getMessageBody(), now)) {
+                        transmit(this, from, missing.toMessageWrapper());
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        void onRoutedMessage(RoutedMessage routedMessage) {
+            List<String> others = new ArrayList<String>();
+            for (String destination : routedFilter.accept(routedMessage)) {
+                if (destination.equals(mac)) {
+                    received.add(routedMessage.getId());
+                    buffer.markDelivered(routedMessage.getId(), now);
+                } else {
+                    others.add(destination);
+                }
+            }
+            if (!others.isEmpty() && routedMessage.getHopsLeft() > 1) {
+                RoutedMessage next = new RoutedMessage(routedMessage.getId(), others, routedMessage.getHopsLeft() - 1,
+                        routedMessage.getBody());
+                if (storeMode != STORE_NONE) {
+                    buffer.offer(next, StoreAndForwardBuffer.PRIORITY_RELAYED, now);
+                }
+                forward(next);
+            }
+        }
+    }
+
+    private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+    private long seq = 0;
+    private long now = 0;
+    private final Random random;
+    private final long linkLatency;
+    private int storeMode = STORE_NONE;
+    private final List<Node> nodes = new ArrayList<Node>();
+    private final boolean[][] links;
+    private final Map<Integer, Integer> framesByCategory = new LinkedHashMap<Integer, Integer>();
+    private long bytesSent = 0;
+    private int unreachable = 0;   // destinations a node had no linked next hop for
+
+    TopologySimulator(int size, long linkLatency, long seed) {
+        this.random = new Random(seed);
+        this.linkLatency = linkLatency;
+        this.links = new boolean[size][size];
+        for (int i = 0; i < size; i++) {
+            nodes.add(new Node(i));
+        }
+    }
+
+    /**
+     * STORE_NONE, STORE_FLOOD or STORE_SUMMARY, before the first message is sent.
+     */
+    void setStoreMode(int storeMode) {
+        this.storeMode = storeMode;
+    }
+
+    static String macOf(int index) {
+        return String.format(Locale.US, "02:00:00:00:%02x:%02x", index >> 8, index & 0xff);
+    }
+
+    Node node(int index) {
+        return nodes.get(index);
+    }
+
+    List<Node> nodes() {
+        return nodes;
+    }
+
+    Node nodeOf(String mac) {
+        for (Node node : nodes) {
+            if (node.mac.equals(mac)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    long now() {
+        return now;
+    }
+
+    /**
+     * run action at the simulated time.
+     */
+    void at(long time, Runnable action) {
+        events.add(new Event(Math.max(time, now), seq++, action));
+    }
+
+    /**
+     * process the events up to the time, then stop there.
+     */
+    void runUntil(long time) {
+        while (!events.isEmpty() && events.peek().time <= time) {
+            Event event = events.poll();
+            now = event.time;
+            event.action.run();
+        }
+        now = Math.max(now, time);
+    }
+
+    /**
+     * every node advertises every RoutingManager.ADVERTISE_INTERVAL from now on, each at its own phase.
+     */
+    void startAdvertising() {
+        for (final Node node : nodes) {
+            at(now + (long) (random.nextDouble() * RoutingManager.ADVERTISE_INTERVAL), new Runnable() {
+                @Override
+                public void run() {
+                    node.advertise();
+                    at(now + RoutingManager.ADVERTISE_INTERVAL, this);
+                }
+            });
+        }
+    }
+
+    boolean linked(int a, int b) {
+        return a != b && links[a][b];
+    }
+
+    /**
+     * a socket link comes up between a and b; both sides advertise over it right away.
+     */
+    void link(int a, int b) {
+        if (linked(a, b)) {
+            return;
+        }
+        links[a][b] = true;
+        links[b][a] = true;
+        onLinkUp(nodes.get(a), nodes.get(b));
+        onLinkUp(nodes.get(b), nodes.get(a));
+    }
+
+    void onLinkUp(Node node, Node neighbor) {
+        node.advertise();
+        if (storeMode == STORE_SUMMARY) {
+            transmit(node, neighbor, new MessageWrapper(SUMMARY_VECTOR, 0, 0, node.buffer.summaryVector(now)));
+        } else if (storeMode == STORE_FLOOD) {
+            for (RoutedMessage held : node.buffer.missingFrom("", now)) {
+                transmit(node, neighbor, held.toMessageWrapper());
+            }
+        }
+    }
+
+    /**
+     * the link between a and b breaks; both sides notice, as with a failed write or the failure detector.
+     */
+    void unlink(int a, int b) {
+        if (!linked(a, b)) {
+            return;
+        }
+        links[a][b] = false;
+        links[b][a] = false;
+        nodes.get(a).table.removeNeighbor(nodes.get(b).mac);
+        nodes.get(b).table.removeNeighbor(nodes.get(a).mac);
+    }
+
+    /**
+     * link the nodes in a line: 0 - 1 - ... - size-1.
+     */
+    void line() {
+        for (int i = 0; i + 1 < nodes.size(); i++) {
+            link(i, i + 1);
+        }
+    }
+
+    /**
+     * link the nodes in a grid of the given width, row by row.
+     */
+    void grid(int width) {
+        for (int i = 0; i < nodes.size(); i++) {
+            if ((i + 1) % width != 0 && i + 1 < nodes.size()) {
+                link(i, i + 1);
+            }
+            if (i + width < nodes.size()) {
+                link(i, i + width);
+            }
+        }
+    }
+
+    /**
+     * brief links between random pairs of nodes until the time: one comes up every meanGap on average
+     * (exponential gaps) and lasts between minDuration and maxDuration, like the connect windows of the
+     * ConnectionScheduler.
+     */
+    void randomContacts(final long meanGap, final long minDuration, final long maxDuration, final long until) {
+        long start = now - (long) (Math.log(1 - random.nextDouble()) * meanGap);
+        if (start > until) {
+            return;
+        }
+        at(start, new Runnable() {
+            @Override
+            public void run() {
+                final int a = random.nextInt(nodes.size());
+                final int b = (a + 1 + random.nextInt(nodes.size() - 1)) % nodes.size();
+                if (!linked(a, b)) {
+                    link(a, b);
+                    at(now + minDuration + (long) (random.nextDouble() * (maxDuration - minDuration)), new Runnable() {
+                        @Override
+                        public void run() {
+                            unlink(a, b);
+                        }
+                    });
+                }
+                randomContacts(meanGap, minDuration, maxDuration, until);
+            }
+        });
+    }
+
+    Random random() {
+        return random;
+    }
+
+    void transmit(final Node from, final Node to, final MessageWrapper messageWrapper) {
+        Integer frames = framesByCategory.get(messageWrapper.getCategory());
+        framesByCategory.put(messageWrapper.getCategory(), frames == null ? 1 : frames + 1);
+        bytesSent += messageWrapper.getFrame().remaining();
+        at(now + linkLatency, new Runnable() {
+            @Override
+            public void run() {
+                if (linked(from.index, to.index)) {
+                    to.onFrame(from, messageWrapper);
+                }
+            }
+        });
+    }
+
+    int frames(int category) {
+        Integer frames = framesByCategory.get(category);
+        return frames == null ? 0 : frames;
+    }
+
+    long bytesSent() {
+        return bytesSent;
+    }
+
+    int unreachable() {
+        return unreachable;
+    }
+
+    void resetCounters() {
+        framesByCategory.clear();
+        bytesSent = 0;
+        unreachable = 0;
+    }
+
+    /**
+     * hop counts of the shortest paths from node over the links up now, RoutingTable.INFINITY if not reachable.
+     */
+    int[] shortestHops(int from) {
+        int[] hops = new int[nodes.size()];
+        Arrays.fill(hops, RoutingTable.INFINITY);
+        hops[from] = 0;
+        ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+        queue.add(from);
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            for (int next = 0; next < nodes.size(); next++) {
+                if (linked(node, next) && hops[next] == RoutingTable.INFINITY) {
+                    hops[next] = hops[node] + 1;
+                    queue.add(next);
+                }
+            }
+        }
+        return hops;
+    }
+
+    /**
+     * every routing table has the shortest path to every node reachable, and no route to the others.
+     */
+    boolean converged() {
+        for (Node node : nodes) {
+            int[] hops = shortestHops(node.index);
+            for (Node other : nodes) {
+                if (other != node && node.table.hopsTo(other.mac) != Math.min(hops[other.index], RoutingTable.INFINITY)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * run until the tables converged, checking every step milliseconds.
+     *
+     * @return the simulated time it took, -1 if they did not within limit.
+     */
+    long runUntilConverged(long step, long limit) {
+        long start = now;
+        while (now - start <= limit) {
+            if (converged()) {
+                return now - start;
+            }
+            runUntil(now + step);
+        }
+        return -1;
+    }
+}